@@ -2,14 +2,18 @@ package in.zqureshi.feeds;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import in.zqureshi.feeds.cli.DumpDBCommand;
+import in.zqureshi.feeds.cli.MigrateCommand;
 import in.zqureshi.feeds.cli.PopulateCommand;
 import in.zqureshi.feeds.db.FeedsDB;
+import in.zqureshi.feeds.resources.ChangeResource;
 import in.zqureshi.feeds.resources.CounterResource;
 import in.zqureshi.feeds.resources.FeedResource;
+import in.zqureshi.feeds.resources.ReadOnlyFilter;
 import in.zqureshi.feeds.resources.UserResource;
 import io.dropwizard.Application;
 import io.dropwizard.setup.Bootstrap;
 import io.dropwizard.setup.Environment;
+import org.glassfish.jersey.media.sse.SseFeature;
 
 public class FeedsApplication extends Application<FeedsConfiguration> {
 
@@ -26,6 +30,7 @@ public class FeedsApplication extends Application<FeedsConfiguration> {
     public void initialize(final Bootstrap<FeedsConfiguration> bootstrap) {
         bootstrap.addCommand(new DumpDBCommand());
         bootstrap.addCommand(new PopulateCommand());
+        bootstrap.addCommand(new MigrateCommand());
     }
 
     @Override
@@ -34,11 +39,31 @@ public class FeedsApplication extends Application<FeedsConfiguration> {
         FeedsDB db = configuration.getFeedsDBFactory().build(environment);
         ObjectMapper mapper = environment.getObjectMapper();
 
-        FeedResource feedResource = new FeedResource(db, mapper);
+        FeedResource feedResource = new FeedResource(db, mapper, configuration.getPageCache(),
+            configuration.getInbox().build(db, environment), configuration.getWatchers().build(environment),
+            environment.metrics());
+        environment.jersey().register(SseFeature.class);
         environment.jersey().register(feedResource);
 
         environment.jersey().register(new CounterResource(db));
-        environment.jersey().register(new UserResource(db, feedResource, mapper));
+        // Shards each have their own log, there's no one change feed to
+        // serve or replicate from.
+        if (db.shards() == 1) {
+            // Managed after the database, so it is stopped before it.
+            ChangeResource changeResource = new ChangeResource(db);
+            environment.lifecycle().manage(changeResource);
+            environment.jersey().register(changeResource);
+        }
+        environment.jersey().register(new UserResource(db, feedResource, mapper, configuration.getFanOut().build(environment)));
+
+        // Replicas only write what they read from the primary's log.
+        if (configuration.getReplication().isReplica()) {
+            if (db.shards() > 1) {
+                throw new IllegalStateException("Replicas can't be sharded, pages of the primary's log are applied atomically");
+            }
+            configuration.getReplication().build(db, feedResource, environment);
+            environment.jersey().register(ReadOnlyFilter.class);
+        }
     }
 
 }
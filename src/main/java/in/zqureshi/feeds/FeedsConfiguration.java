@@ -1,6 +1,11 @@
 package in.zqureshi.feeds;
 
 import in.zqureshi.feeds.db.FeedsDB;
+import in.zqureshi.feeds.resources.FeedFanOutFactory;
+import in.zqureshi.feeds.resources.FeedPageCacheFactory;
+import in.zqureshi.feeds.resources.FeedWatchersFactory;
+import in.zqureshi.feeds.resources.ReplicationFactory;
+import in.zqureshi.feeds.resources.InboxFactory;
 import io.dropwizard.Configuration;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
@@ -12,6 +17,26 @@ public class FeedsConfiguration extends Configuration {
     @NotNull
     private FeedsDB.FeedsDBFactory db;
 
+    @Valid
+    @NotNull
+    private FeedPageCacheFactory pageCache = new FeedPageCacheFactory();
+
+    @Valid
+    @NotNull
+    private FeedFanOutFactory fanOut = new FeedFanOutFactory();
+
+    @Valid
+    @NotNull
+    private InboxFactory inbox = new InboxFactory();
+
+    @Valid
+    @NotNull
+    private FeedWatchersFactory watchers = new FeedWatchersFactory();
+
+    @Valid
+    @NotNull
+    private ReplicationFactory replication = new ReplicationFactory();
+
     @JsonProperty("db")
     public FeedsDB.FeedsDBFactory getFeedsDBFactory() {
         return db;
@@ -21,4 +46,54 @@ public class FeedsConfiguration extends Configuration {
     public void setFeedsDBFactory(FeedsDB.FeedsDBFactory db) {
         this.db = db;
     }
+
+    @JsonProperty
+    public FeedPageCacheFactory getPageCache() {
+        return pageCache;
+    }
+
+    @JsonProperty
+    public void setPageCache(FeedPageCacheFactory pageCache) {
+        this.pageCache = pageCache;
+    }
+
+    @JsonProperty
+    public FeedFanOutFactory getFanOut() {
+        return fanOut;
+    }
+
+    @JsonProperty
+    public void setFanOut(FeedFanOutFactory fanOut) {
+        this.fanOut = fanOut;
+    }
+
+    @JsonProperty
+    public InboxFactory getInbox() {
+        return inbox;
+    }
+
+    @JsonProperty
+    public void setInbox(InboxFactory inbox) {
+        this.inbox = inbox;
+    }
+
+    @JsonProperty
+    public FeedWatchersFactory getWatchers() {
+        return watchers;
+    }
+
+    @JsonProperty
+    public void setWatchers(FeedWatchersFactory watchers) {
+        this.watchers = watchers;
+    }
+
+    @JsonProperty
+    public ReplicationFactory getReplication() {
+        return replication;
+    }
+
+    @JsonProperty
+    public void setReplication(ReplicationFactory replication) {
+        this.replication = replication;
+    }
 }
@@ -1,20 +1,30 @@
 package in.zqureshi.feeds.api;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
 import com.google.common.collect.ComparisonChain;
 import org.glassfish.jersey.server.JSONP;
 
+@JsonPropertyOrder({"id", "text", "publishedAt"})
 public class Article {
     private Long id;
     private String text;
+    // Epoch millis, null for articles stored before it was recorded.
+    private Long publishedAt;
 
     public Article() {
         // Jackson deserialization
     }
 
     public Article(Long id, String text) {
+        this(id, text, null);
+    }
+
+    public Article(Long id, String text, Long publishedAt) {
         this.id = id;
         this.text = text;
+        this.publishedAt = publishedAt;
     }
 
     @JsonProperty
@@ -37,6 +47,17 @@ public class Article {
         this.text = text;
     }
 
+    @JsonProperty
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public Long getPublishedAt() {
+        return publishedAt;
+    }
+
+    @JsonProperty
+    public void setPublishedAt(Long publishedAt) {
+        this.publishedAt = publishedAt;
+    }
+
     @Override
     public boolean equals(Object that) {
         if (that == null) return false;
@@ -0,0 +1,88 @@
+package in.zqureshi.feeds.api;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * Something that was written, at the sequence number it got in the log.
+ * Only the ids the type is about are set, article only for published
+ * articles.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class Change {
+    public enum Type {
+        USER_CREATED,
+        FEED_CREATED,
+        ARTICLE_PUBLISHED,
+        SUBSCRIBED,
+        UNSUBSCRIBED
+    }
+
+    private Long sequence;
+    private Type type;
+    private Long userId;
+    private Long feedId;
+    private Article article;
+
+    public Change() {
+        // Jackson deserialization
+    }
+
+    public Change(Long sequence, Type type, Long userId, Long feedId, Article article) {
+        this.sequence = sequence;
+        this.type = type;
+        this.userId = userId;
+        this.feedId = feedId;
+        this.article = article;
+    }
+
+    @JsonProperty
+    public Long getSequence() {
+        return sequence;
+    }
+
+    @JsonProperty
+    public void setSequence(Long sequence) {
+        this.sequence = sequence;
+    }
+
+    @JsonProperty
+    public Type getType() {
+        return type;
+    }
+
+    @JsonProperty
+    public void setType(Type type) {
+        this.type = type;
+    }
+
+    @JsonProperty
+    public Long getUserId() {
+        return userId;
+    }
+
+    @JsonProperty
+    public void setUserId(Long userId) {
+        this.userId = userId;
+    }
+
+    @JsonProperty
+    public Long getFeedId() {
+        return feedId;
+    }
+
+    @JsonProperty
+    public void setFeedId(Long feedId) {
+        this.feedId = feedId;
+    }
+
+    @JsonProperty
+    public Article getArticle() {
+        return article;
+    }
+
+    @JsonProperty
+    public void setArticle(Article article) {
+        this.article = article;
+    }
+}
@@ -0,0 +1,56 @@
+package in.zqureshi.feeds.api;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.List;
+
+/**
+ * A page of changes in the order they were written. next is passed back as
+ * since to get the changes after these, latest is the sequence number of
+ * the newest write so consumers can tell how far behind they are.
+ */
+public class Changes {
+    private List<Change> changes;
+    private Long next;
+    private Long latest;
+
+    public Changes() {
+        // Jackson deserialization
+    }
+
+    public Changes(List<Change> changes, Long next, Long latest) {
+        this.changes = changes;
+        this.next = next;
+        this.latest = latest;
+    }
+
+    @JsonProperty
+    public List<Change> getChanges() {
+        return changes;
+    }
+
+    @JsonProperty
+    public void setChanges(List<Change> changes) {
+        this.changes = changes;
+    }
+
+    @JsonProperty
+    public Long getNext() {
+        return next;
+    }
+
+    @JsonProperty
+    public void setNext(Long next) {
+        this.next = next;
+    }
+
+    @JsonProperty
+    public Long getLatest() {
+        return latest;
+    }
+
+    @JsonProperty
+    public void setLatest(Long latest) {
+        this.latest = latest;
+    }
+}
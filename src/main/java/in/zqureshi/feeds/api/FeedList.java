@@ -0,0 +1,43 @@
+package in.zqureshi.feeds.api;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.List;
+
+/**
+ * A page of feeds in id order. next is passed back as after to get the
+ * page after this one and is null once there are no more.
+ */
+public class FeedList {
+    private List<Feed> feeds;
+    private Long next;
+
+    public FeedList() {
+        // Jackson deserialization
+    }
+
+    public FeedList(List<Feed> feeds, Long next) {
+        this.feeds = feeds;
+        this.next = next;
+    }
+
+    @JsonProperty
+    public List<Feed> getFeeds() {
+        return feeds;
+    }
+
+    @JsonProperty
+    public void setFeeds(List<Feed> feeds) {
+        this.feeds = feeds;
+    }
+
+    @JsonProperty
+    public Long getNext() {
+        return next;
+    }
+
+    @JsonProperty
+    public void setNext(Long next) {
+        this.next = next;
+    }
+}
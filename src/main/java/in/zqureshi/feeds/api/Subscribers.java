@@ -0,0 +1,68 @@
+package in.zqureshi.feeds.api;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.List;
+
+/**
+ * A page of the users subscribed to a feed, in user id order, along with
+ * how many there are in total. next is passed back as after to get the page
+ * after this one and is null once there are no more.
+ */
+public class Subscribers {
+    private Long feedId;
+    private Long count;
+    private List<Long> users;
+    private Long next;
+
+    public Subscribers() {
+        // Jackson deserialization
+    }
+
+    public Subscribers(Long feedId, Long count, List<Long> users, Long next) {
+        this.feedId = feedId;
+        this.count = count;
+        this.users = users;
+        this.next = next;
+    }
+
+    @JsonProperty
+    public Long getFeedId() {
+        return feedId;
+    }
+
+    @JsonProperty
+    public void setFeedId(Long feedId) {
+        this.feedId = feedId;
+    }
+
+    @JsonProperty
+    public Long getCount() {
+        return count;
+    }
+
+    @JsonProperty
+    public void setCount(Long count) {
+        this.count = count;
+    }
+
+    @JsonProperty
+    public List<Long> getUsers() {
+        return users;
+    }
+
+    @JsonProperty
+    public void setUsers(List<Long> users) {
+        this.users = users;
+    }
+
+    @JsonProperty
+    public Long getNext() {
+        return next;
+    }
+
+    @JsonProperty
+    public void setNext(Long next) {
+        this.next = next;
+    }
+}
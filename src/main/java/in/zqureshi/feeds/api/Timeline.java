@@ -0,0 +1,43 @@
+package in.zqureshi.feeds.api;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.List;
+
+/**
+ * A page of a user's timeline, newest article first. cursor is passed back
+ * to get the page after this one and is null once there is nothing older.
+ */
+public class Timeline {
+    private List<TimelineArticle> articles;
+    private String cursor;
+
+    public Timeline() {
+        // Jackson deserialization
+    }
+
+    public Timeline(List<TimelineArticle> articles, String cursor) {
+        this.articles = articles;
+        this.cursor = cursor;
+    }
+
+    @JsonProperty
+    public List<TimelineArticle> getArticles() {
+        return articles;
+    }
+
+    @JsonProperty
+    public void setArticles(List<TimelineArticle> articles) {
+        this.articles = articles;
+    }
+
+    @JsonProperty
+    public String getCursor() {
+        return cursor;
+    }
+
+    @JsonProperty
+    public void setCursor(String cursor) {
+        this.cursor = cursor;
+    }
+}
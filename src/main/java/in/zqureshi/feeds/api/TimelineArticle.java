@@ -0,0 +1,27 @@
+package in.zqureshi.feeds.api;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+// An article on a timeline, along with the feed it was published to.
+public class TimelineArticle extends Article {
+    private Long feedId;
+
+    public TimelineArticle() {
+        // Jackson deserialization
+    }
+
+    public TimelineArticle(Long feedId, Article article) {
+        super(article.getId(), article.getText(), article.getPublishedAt());
+        this.feedId = feedId;
+    }
+
+    @JsonProperty
+    public Long getFeedId() {
+        return feedId;
+    }
+
+    @JsonProperty
+    public void setFeedId(Long feedId) {
+        this.feedId = feedId;
+    }
+}
@@ -0,0 +1,44 @@
+package in.zqureshi.feeds.api;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.List;
+
+/**
+ * A page of users in id order, each with their subscriptions. next is
+ * passed back as after to get the page after this one and is null once
+ * there are no more.
+ */
+public class UserList {
+    private List<User> users;
+    private Long next;
+
+    public UserList() {
+        // Jackson deserialization
+    }
+
+    public UserList(List<User> users, Long next) {
+        this.users = users;
+        this.next = next;
+    }
+
+    @JsonProperty
+    public List<User> getUsers() {
+        return users;
+    }
+
+    @JsonProperty
+    public void setUsers(List<User> users) {
+        this.users = users;
+    }
+
+    @JsonProperty
+    public Long getNext() {
+        return next;
+    }
+
+    @JsonProperty
+    public void setNext(Long next) {
+        this.next = next;
+    }
+}
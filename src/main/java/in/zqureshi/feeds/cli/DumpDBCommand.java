@@ -1,21 +1,35 @@
 package in.zqureshi.feeds.cli;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.primitives.Bytes;
 import com.google.common.primitives.Longs;
 import in.zqureshi.feeds.FeedsConfiguration;
+import in.zqureshi.feeds.db.FeedsDB;
+import in.zqureshi.feeds.db.Keys;
+import in.zqureshi.feeds.db.Records;
 import io.dropwizard.cli.ConfiguredCommand;
 import io.dropwizard.setup.Bootstrap;
 import net.sourceforge.argparse4j.inf.Namespace;
 import net.sourceforge.argparse4j.inf.Subparser;
+import org.rocksdb.ColumnFamilyDescriptor;
+import org.rocksdb.ColumnFamilyHandle;
+import org.rocksdb.ColumnFamilyOptions;
 import org.rocksdb.Options;
 import org.rocksdb.RocksDB;
+import org.rocksdb.RocksDBException;
 import org.rocksdb.RocksIterator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
 public class DumpDBCommand extends ConfiguredCommand<FeedsConfiguration> {
     public static final Logger LOGGER = LoggerFactory.getLogger(DumpDBCommand.class);
 
+    private static final ObjectMapper JSON = new ObjectMapper();
+
     public DumpDBCommand() {
         super("dump", "Dump database");
     }
@@ -24,28 +38,85 @@ public class DumpDBCommand extends ConfiguredCommand<FeedsConfiguration> {
     protected void run(Bootstrap<FeedsConfiguration> bootstrap, Namespace namespace, FeedsConfiguration configuration) throws Exception {
         RocksDB.loadLibrary();
 
-        Options options = new Options().setCreateIfMissing(false);
-        RocksDB db = null;
-        try {
-            db = RocksDB.open(options, configuration.getFeedsDBFactory().getPath());
-        } catch (Exception e) {
-            LOGGER.error("Could not open database " + configuration.getFeedsDBFactory().getPath());
-            throw e;
+        List<String> paths = configuration.getFeedsDBFactory().getPaths();
+        for (String path : paths) {
+            if (paths.size() > 1) {
+                System.out.println("##### " + path + " #####");
+            }
+            dump(path);
+        }
+    }
+
+    private static void dump(String path) throws RocksDBException {
+        List<ColumnFamilyDescriptor> descriptors = new ArrayList<>();
+        List<ColumnFamilyHandle> handles = new ArrayList<>();
+        // Counts are merge operands until compacted, they can only be read
+        // with the operator that adds them up.
+        try (Options options = new Options().setCreateIfMissing(false);
+             ColumnFamilyOptions familyOptions = new ColumnFamilyOptions().setMergeOperatorName("uint64add");
+             RocksDB db = open(options, familyOptions, path, descriptors, handles)) {
+            try {
+                for (ColumnFamilyHandle handle : handles) {
+                    System.out.println("===== " + new String(handle.getName()).toUpperCase() + " =====");
+
+                    try (RocksIterator it = db.newIterator(handle)) {
+                        for (it.seekToFirst(); it.isValid(); it.next()) {
+                            System.out.println(format(it.key(), it.value()));
+                        }
+                    }
+                }
+            } finally {
+                // Handles have to go before the DB does.
+                handles.forEach(ColumnFamilyHandle::close);
+            }
+        }
+    }
+
+    private static String format(byte[] key, byte[] value) {
+        if (Bytes.indexOf(key, "/system".getBytes()) == 0) {
+            return "Counter " + new String(key) + " => " + Longs.fromByteArray(value);
+        } else if (key.length > 0 && key[0] < '/') {
+            return Keys.toString(key) + " => " + record(key, value);
         }
 
-        System.out.println("===== COUNTERS =====");
-        RocksIterator it = db.newIterator();
-        for (it.seek("/system".getBytes());
-             it.isValid() && (Bytes.indexOf(it.key(), "/system".getBytes()) == 0);
-             it.next()) {
-            System.out.println("Counter " + new String(it.key()) + " => " + Longs.fromByteArray(it.value()));
+        return new String(key) + " => " + new String(value);
+    }
+
+    // Records are binary, print them as the JSON the API would show.
+    private static String record(byte[] key, byte[] value) {
+        try {
+            switch (Keys.tag(key)) {
+                case Keys.USERS:
+                    return JSON.writeValueAsString(Records.decodeUser(value));
+                case Keys.FEEDS:
+                    return JSON.writeValueAsString(Records.decodeFeed(value));
+                case Keys.ARTICLES:
+                    return JSON.writeValueAsString(Records.decodeArticle(value));
+                case Keys.SUBSCRIBER_COUNTS:
+                    return String.valueOf(FeedsDB.count(value));
+                case Keys.SUBSCRIPTIONS:
+                    return String.valueOf(Records.decodeSubscription(value));
+                default:
+                    return new String(value);
+            }
+        } catch (IOException e) {
+            return "<unreadable record: " + e.getMessage() + ">";
         }
+    }
+
+    // Read only, with every column family the database has.
+    private static RocksDB open(Options options, ColumnFamilyOptions familyOptions, String path,
+                                List<ColumnFamilyDescriptor> descriptors,
+                                List<ColumnFamilyHandle> handles) throws RocksDBException {
+        try {
+            for (byte[] name : RocksDB.listColumnFamilies(options, path)) {
+                descriptors.add(new ColumnFamilyDescriptor(name, familyOptions));
+            }
 
-        System.out.println("===== KEYS =====");
-        for (it.seek("/data".getBytes());
-             it.isValid() && (Bytes.indexOf(it.key(), "/data".getBytes()) == 0);
-             it.next()) {
-            System.out.println(new String(it.key()) + " => " + new String(it.value()));
+            return RocksDB.openReadOnly(path, descriptors, handles);
+        } catch (RocksDBException e) {
+            LOGGER.error("Could not open database " + path);
+            throw e;
         }
     }
 }
@@ -0,0 +1,56 @@
+package in.zqureshi.feeds.cli;
+
+import com.codahale.metrics.MetricRegistry;
+import in.zqureshi.feeds.FeedsConfiguration;
+import in.zqureshi.feeds.db.FeedsDB;
+import in.zqureshi.feeds.db.Migrations;
+import io.dropwizard.cli.ConfiguredCommand;
+import io.dropwizard.setup.Bootstrap;
+import net.sourceforge.argparse4j.inf.Namespace;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class MigrateCommand extends ConfiguredCommand<FeedsConfiguration> {
+    public static final Logger LOGGER = LoggerFactory.getLogger(MigrateCommand.class);
+
+    public MigrateCommand() {
+        super("migrate", "Rewrite database into the current storage layout");
+    }
+
+    @Override
+    protected void run(Bootstrap<FeedsConfiguration> bootstrap, Namespace namespace, FeedsConfiguration configuration) throws Exception {
+        FeedsDB db = null;
+        try {
+            db = configuration.getFeedsDBFactory().build();
+        } catch (Exception e) {
+            LOGGER.error("Could not open database " + configuration.getFeedsDBFactory().getPath());
+            throw e;
+        }
+
+        try {
+            LOGGER.info("Migrating path-style keys to binary keys");
+            Migrations.legacyKeys(db);
+
+            LOGGER.info("Migrating counters and records to column families");
+            Migrations.columnFamilies(db);
+
+            LOGGER.info("Moving subscriptions out of user records");
+            Migrations.subscriptions(db);
+
+            LOGGER.info("Indexing subscribers of every feed");
+            Migrations.subscribers(db);
+
+            if (db.shards() > 1) {
+                LOGGER.info("Reconciling subscribers across shards");
+                Migrations.reconcileSubscribers(db);
+            }
+
+            if (configuration.getInbox().isEnabled()) {
+                LOGGER.info("Backfilling inboxes");
+                configuration.getInbox().build(db, new MetricRegistry()).rebuild();
+            }
+        } finally {
+            db.stop();
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package in.zqureshi.feeds.db;
+
+import com.codahale.metrics.Timer;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.OptionalLong;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory table of counters, loaded lazily from the backing store.
+ *
+ * Ids are handed out from a per-counter {@link AtomicLong} so independent
+ * counters never contend with each other. Durability comes from a write-ahead
+ * high-water mark: before any id at or above the persisted ceiling is handed
+ * out the ceiling is moved forward and written to the store, so after a crash
+ * the counter resumes from the ceiling and never reissues an id. The unused
+ * part of the reservation is simply skipped, which shows up as a gap. A clean
+ * shutdown calls {@link #flush()} and leaves no gap.
+ */
+class CounterTable {
+    interface Store {
+        long load(String counter);
+
+        void persist(String counter, long ceiling);
+    }
+
+    /**
+     * Writes whatever was allocated {@code id}. When the id crossed the
+     * persisted ceiling the new ceiling is passed along and must be made
+     * durable by the same write, it is called under the counter's lock in
+     * that case so no other id from the new range is written first.
+     */
+    interface Commit<E extends Exception> {
+        void commit(long id, OptionalLong ceiling) throws E;
+    }
+
+    private final Store store;
+    private final long defaultRange;
+    private final Map<String, Long> ranges;
+    private final Timer refills;
+    private final ConcurrentHashMap<String, Slot> slots = new ConcurrentHashMap<>();
+
+    /**
+     * @param ranges range size keyed by counter name prefix, the longest
+     *               matching prefix wins and {@code defaultRange} otherwise
+     * @param refills timed once for every durable ceiling write
+     */
+    CounterTable(Store store, long defaultRange, Map<String, Long> ranges, Timer refills) {
+        checkRange(defaultRange);
+        ranges.values().forEach(CounterTable::checkRange);
+
+        this.store = store;
+        this.defaultRange = defaultRange;
+        this.ranges = new HashMap<>(ranges);
+        this.refills = refills;
+    }
+
+    long range(String counter) {
+        String match = null;
+        for (String prefix : ranges.keySet()) {
+            if (counter.startsWith(prefix) && (match == null || prefix.length() > match.length())) {
+                match = prefix;
+            }
+        }
+
+        return match == null ? defaultRange : ranges.get(match);
+    }
+
+    long get(String counter) {
+        return slot(counter).next.get();
+    }
+
+    long increment(String counter) {
+        return increment(counter, (id, ceiling) -> {
+            if (ceiling.isPresent()) {
+                store.persist(counter, ceiling.getAsLong());
+            }
+        });
+    }
+
+    <E extends Exception> long increment(String counter, Commit<E> commit) throws E {
+        Slot slot = slot(counter);
+        long id = slot.next.getAndIncrement();
+
+        // Fast path, id is already covered by the persisted ceiling.
+        if (id < slot.ceiling || !slot.reserve(id, commit)) {
+            commit.commit(id, OptionalLong.empty());
+        }
+
+        return id;
+    }
+
+    // Only meant for seeding a counter before it is used, later increments
+    // racing with this call could be handed out ids below the new value.
+    void reset(String counter, long value) {
+        Slot slot = slot(counter);
+
+        synchronized (slot) {
+            store.persist(counter, value);
+            slot.ceiling = value;
+            slot.next.set(value);
+        }
+    }
+
+    // Never moves a counter back, safe to race with anything.
+    void advance(String counter, long next) {
+        slot(counter).next.accumulateAndGet(next, Math::max);
+    }
+
+    /**
+     * Persists the exact value of every counter that moved since it was
+     * loaded, giving back the unused part of each reservation. Only for
+     * shutting down once nothing increments anymore, an id handed out
+     * concurrently could be reissued after a restart.
+     */
+    void flush() {
+        slots.forEach((counter, slot) -> {
+            synchronized (slot) {
+                long next = slot.next.get();
+                if (next != slot.ceiling) {
+                    store.persist(counter, next);
+                    slot.ceiling = next;
+                }
+            }
+        });
+    }
+
+    // Current value of every counter that has been loaded into memory.
+    Map<String, Long> loaded() {
+        Map<String, Long> values = new HashMap<>(slots.size());
+        slots.forEach((counter, slot) -> values.put(counter, slot.next.get()));
+
+        return values;
+    }
+
+    private Slot slot(String counter) {
+        return slots.computeIfAbsent(counter, c -> new Slot(store.load(c), range(c)));
+    }
+
+    private static void checkRange(long range) {
+        if (range < 1) {
+            throw new IllegalArgumentException("counter range must be positive");
+        }
+    }
+
+    private class Slot {
+        private final AtomicLong next;
+        private final long range;
+        private volatile long ceiling;
+
+        Slot(long value, long range) {
+            this.next = new AtomicLong(value);
+            this.range = range;
+            this.ceiling = value;
+        }
+
+        // Several threads may overshoot the ceiling at once, they all queue up
+        // here and whoever gets in first moves it far enough for the rest.
+        // Returns false if another thread already covered the id, in which
+        // case the caller still has to commit it.
+        synchronized <E extends Exception> boolean reserve(long id, Commit<E> commit) throws E {
+            long target = ceiling;
+            while (id >= target) {
+                target += range;
+            }
+
+            if (target == ceiling) {
+                return false;
+            }
+
+            try (Timer.Context ignored = refills.time()) {
+                commit.commit(id, OptionalLong.of(target));
+            }
+            ceiling = target;
+
+            return true;
+        }
+    }
+}
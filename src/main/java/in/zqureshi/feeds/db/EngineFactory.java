@@ -0,0 +1,243 @@
+package in.zqureshi.feeds.db;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.collect.ImmutableList;
+import io.dropwizard.util.Size;
+import org.rocksdb.Cache;
+import org.rocksdb.ColumnFamilyOptions;
+import org.rocksdb.CompactionStyle;
+import org.rocksdb.CompressionType;
+import org.rocksdb.DBOptions;
+import org.rocksdb.LRUCache;
+
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+import java.util.List;
+
+import static org.rocksdb.CompressionType.*;
+
+/**
+ * RocksDB tuning knobs. Every knob left out falls back to the chosen preset,
+ * so a node can start from a preset and override just what it needs.
+ */
+public class EngineFactory {
+    public enum Preset {
+        // Whatever RocksDB defaults to.
+        @JsonProperty("default")
+        DEFAULT(Size.megabytes(8), 0, Size.megabytes(64), 2, CompactionStyle.LEVEL,
+            ImmutableList.of(), 2, -1),
+
+        // Lots of small article inserts. Bigger and more memtables absorb
+        // bursts, the upper levels skip compression since they are rewritten
+        // soon anyway and more background jobs keep L0 from stalling writes.
+        @JsonProperty("write-heavy-publish")
+        WRITE_HEAVY_PUBLISH(Size.megabytes(64), 10, Size.megabytes(128), 4, CompactionStyle.LEVEL,
+            ImmutableList.of(NO_COMPRESSION, NO_COMPRESSION, LZ4_COMPRESSION, LZ4_COMPRESSION,
+                LZ4_COMPRESSION, LZ4_COMPRESSION, ZSTD_COMPRESSION), 4, -1),
+
+        // Feed pages and timelines. A large cache holds the hot pages and
+        // bloom filters skip SST files that can't have the feed being read.
+        @JsonProperty("read-heavy-timeline")
+        READ_HEAVY_TIMELINE(Size.megabytes(512), 10, Size.megabytes(64), 2, CompactionStyle.LEVEL,
+            ImmutableList.of(LZ4_COMPRESSION, LZ4_COMPRESSION, LZ4_COMPRESSION, LZ4_COMPRESSION,
+                LZ4_COMPRESSION, ZSTD_COMPRESSION, ZSTD_COMPRESSION), 2, -1);
+
+        private final Size blockCacheSize;
+        private final int bloomBitsPerKey;
+        private final Size writeBufferSize;
+        private final int maxWriteBufferNumber;
+        private final CompactionStyle compactionStyle;
+        private final List<CompressionType> compressionPerLevel;
+        private final int maxBackgroundJobs;
+        private final int maxOpenFiles;
+
+        Preset(Size blockCacheSize, int bloomBitsPerKey, Size writeBufferSize, int maxWriteBufferNumber,
+               CompactionStyle compactionStyle, List<CompressionType> compressionPerLevel,
+               int maxBackgroundJobs, int maxOpenFiles) {
+            this.blockCacheSize = blockCacheSize;
+            this.bloomBitsPerKey = bloomBitsPerKey;
+            this.writeBufferSize = writeBufferSize;
+            this.maxWriteBufferNumber = maxWriteBufferNumber;
+            this.compactionStyle = compactionStyle;
+            this.compressionPerLevel = compressionPerLevel;
+            this.maxBackgroundJobs = maxBackgroundJobs;
+            this.maxOpenFiles = maxOpenFiles;
+        }
+    }
+
+    @NotNull
+    private Preset preset = Preset.DEFAULT;
+
+    private Size blockCacheSize;
+
+    // One cache for the whole DB rather than one per column family, so a busy
+    // family can use what the quiet ones don't.
+    private boolean shareBlockCache = true;
+
+    // Zero turns bloom filters off.
+    @Min(0)
+    private Integer bloomBitsPerKey;
+
+    private Size writeBufferSize;
+
+    @Min(1)
+    private Integer maxWriteBufferNumber;
+
+    private CompactionStyle compactionStyle;
+
+    // Compression for L0, L1, ... an empty list keeps the RocksDB default.
+    private List<CompressionType> compressionPerLevel;
+
+    @Min(1)
+    private Integer maxBackgroundJobs;
+
+    // O_DIRECT for reads and for flush / compaction writes, needs a file
+    // system that supports it (tmpfs doesn't).
+    private boolean useDirectReads = false;
+    private boolean useDirectIoForFlushAndCompaction = false;
+
+    // -1 keeps every SST file open.
+    @Min(-1)
+    private Integer maxOpenFiles;
+
+    @JsonProperty
+    public Preset getPreset() {
+        return preset;
+    }
+
+    @JsonProperty
+    public void setPreset(Preset preset) {
+        this.preset = preset;
+    }
+
+    @JsonProperty
+    public Size getBlockCacheSize() {
+        return blockCacheSize != null ? blockCacheSize : preset.blockCacheSize;
+    }
+
+    @JsonProperty
+    public void setBlockCacheSize(Size blockCacheSize) {
+        this.blockCacheSize = blockCacheSize;
+    }
+
+    @JsonProperty
+    public boolean isShareBlockCache() {
+        return shareBlockCache;
+    }
+
+    @JsonProperty
+    public void setShareBlockCache(boolean shareBlockCache) {
+        this.shareBlockCache = shareBlockCache;
+    }
+
+    @JsonProperty
+    public int getBloomBitsPerKey() {
+        return bloomBitsPerKey != null ? bloomBitsPerKey : preset.bloomBitsPerKey;
+    }
+
+    @JsonProperty
+    public void setBloomBitsPerKey(Integer bloomBitsPerKey) {
+        this.bloomBitsPerKey = bloomBitsPerKey;
+    }
+
+    @JsonProperty
+    public Size getWriteBufferSize() {
+        return writeBufferSize != null ? writeBufferSize : preset.writeBufferSize;
+    }
+
+    @JsonProperty
+    public void setWriteBufferSize(Size writeBufferSize) {
+        this.writeBufferSize = writeBufferSize;
+    }
+
+    @JsonProperty
+    public int getMaxWriteBufferNumber() {
+        return maxWriteBufferNumber != null ? maxWriteBufferNumber : preset.maxWriteBufferNumber;
+    }
+
+    @JsonProperty
+    public void setMaxWriteBufferNumber(Integer maxWriteBufferNumber) {
+        this.maxWriteBufferNumber = maxWriteBufferNumber;
+    }
+
+    @JsonProperty
+    public CompactionStyle getCompactionStyle() {
+        return compactionStyle != null ? compactionStyle : preset.compactionStyle;
+    }
+
+    @JsonProperty
+    public void setCompactionStyle(CompactionStyle compactionStyle) {
+        this.compactionStyle = compactionStyle;
+    }
+
+    @JsonProperty
+    public List<CompressionType> getCompressionPerLevel() {
+        return compressionPerLevel != null ? compressionPerLevel : preset.compressionPerLevel;
+    }
+
+    @JsonProperty
+    public void setCompressionPerLevel(List<CompressionType> compressionPerLevel) {
+        this.compressionPerLevel = compressionPerLevel;
+    }
+
+    @JsonProperty
+    public int getMaxBackgroundJobs() {
+        return maxBackgroundJobs != null ? maxBackgroundJobs : preset.maxBackgroundJobs;
+    }
+
+    @JsonProperty
+    public void setMaxBackgroundJobs(Integer maxBackgroundJobs) {
+        this.maxBackgroundJobs = maxBackgroundJobs;
+    }
+
+    @JsonProperty
+    public boolean isUseDirectReads() {
+        return useDirectReads;
+    }
+
+    @JsonProperty
+    public void setUseDirectReads(boolean useDirectReads) {
+        this.useDirectReads = useDirectReads;
+    }
+
+    @JsonProperty
+    public boolean isUseDirectIoForFlushAndCompaction() {
+        return useDirectIoForFlushAndCompaction;
+    }
+
+    @JsonProperty
+    public void setUseDirectIoForFlushAndCompaction(boolean useDirectIoForFlushAndCompaction) {
+        this.useDirectIoForFlushAndCompaction = useDirectIoForFlushAndCompaction;
+    }
+
+    @JsonProperty
+    public int getMaxOpenFiles() {
+        return maxOpenFiles != null ? maxOpenFiles : preset.maxOpenFiles;
+    }
+
+    @JsonProperty
+    public void setMaxOpenFiles(Integer maxOpenFiles) {
+        this.maxOpenFiles = maxOpenFiles;
+    }
+
+    Cache newBlockCache() {
+        return new LRUCache(getBlockCacheSize().toBytes());
+    }
+
+    void configure(DBOptions options) {
+        options.setMaxBackgroundJobs(getMaxBackgroundJobs());
+        options.setMaxOpenFiles(getMaxOpenFiles());
+        options.setUseDirectReads(isUseDirectReads());
+        options.setUseDirectIoForFlushAndCompaction(isUseDirectIoForFlushAndCompaction());
+    }
+
+    // Baseline for every column family, see Family for what each one changes.
+    void configure(ColumnFamilyOptions options) {
+        options.setWriteBufferSize(getWriteBufferSize().toBytes());
+        options.setMaxWriteBufferNumber(getMaxWriteBufferNumber());
+        options.setCompactionStyle(getCompactionStyle());
+        if (!getCompressionPerLevel().isEmpty()) {
+            options.setCompressionPerLevel(getCompressionPerLevel());
+        }
+    }
+}
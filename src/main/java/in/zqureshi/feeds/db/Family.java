@@ -0,0 +1,177 @@
+package in.zqureshi.feeds.db;
+
+import org.rocksdb.AbstractNativeReference;
+import org.rocksdb.BlockBasedTableConfig;
+import org.rocksdb.BloomFilter;
+import org.rocksdb.Cache;
+import org.rocksdb.ColumnFamilyOptions;
+import org.rocksdb.RocksDB;
+
+import java.util.List;
+
+/**
+ * Column families records live in, picked from the key itself so callers
+ * never deal with handles. Each family starts from the engine settings and
+ * adjusts them for how it is used.
+ */
+enum Family {
+    // Legacy path-style /data keys and anything that doesn't fit below.
+    DEFAULT(RocksDB.DEFAULT_COLUMN_FAMILY, 0) {
+        @Override
+        void tune(ColumnFamilyOptions options, BlockBasedTableConfig table) {
+        }
+    },
+
+    // A handful of tiny, hot keys. Small memtables keep them flushing into
+    // an SST that stays in the block cache, index and filter included.
+    COUNTERS("counters".getBytes(), 0) {
+        @Override
+        void tune(ColumnFamilyOptions options, BlockBasedTableConfig table) {
+            options.setWriteBufferSize(SMALL_WRITE_BUFFER);
+            table.setCacheIndexAndFilterBlocks(true)
+                .setPinL0FilterAndIndexBlocksInCache(true);
+        }
+    },
+
+    // Written once, subscriptions live in SUBSCRIPTIONS. Records from before
+    // that were rewritten on every subscribe, dynamic level sizing keeps the
+    // space taken by overwritten versions in check until they compact away.
+    USERS("users".getBytes(), 0) {
+        @Override
+        void tune(ColumnFamilyOptions options, BlockBasedTableConfig table) {
+            options.setLevelCompactionDynamicLevelBytes(true);
+        }
+    },
+
+    // Written once, read by id on every publish and feed page.
+    FEEDS("feeds".getBytes(), 0) {
+        @Override
+        void tune(ColumnFamilyOptions options, BlockBasedTableConfig table) {
+            options.setWriteBufferSize(SMALL_WRITE_BUFFER);
+        }
+    },
+
+    // Append only and only ever scanned a feed at a time, so the bloom filter
+    // is built over the (tag, feedId) prefix instead of whole keys.
+    ARTICLES("articles".getBytes(), 1 + Long.BYTES) {
+        @Override
+        void tune(ColumnFamilyOptions options, BlockBasedTableConfig table) {
+            options.useFixedLengthPrefixExtractor(prefixLength());
+            options.setMemtablePrefixBloomSizeRatio(0.1);
+            table.setWholeKeyFiltering(false);
+        }
+    },
+
+    // Scanned a feed at a time on every fan-out, keys only.
+    SUBSCRIBERS("subscribers".getBytes(), 1 + Long.BYTES) {
+        @Override
+        void tune(ColumnFamilyOptions options, BlockBasedTableConfig table) {
+            options.useFixedLengthPrefixExtractor(prefixLength());
+            options.setMemtablePrefixBloomSizeRatio(0.1);
+            table.setWholeKeyFiltering(false);
+        }
+    },
+
+    // Written by fan-out for every subscriber, read newest first a user at
+    // a time.
+    INBOX("inbox".getBytes(), 1 + Long.BYTES) {
+        @Override
+        void tune(ColumnFamilyOptions options, BlockBasedTableConfig table) {
+            options.useFixedLengthPrefixExtractor(prefixLength());
+            options.setMemtablePrefixBloomSizeRatio(0.1);
+            table.setWholeKeyFiltering(false);
+        }
+    },
+
+    // One small count per feed, only ever merged into and read by key.
+    SUBSCRIBER_COUNTS("subscriber-counts".getBytes(), 0) {
+        @Override
+        void tune(ColumnFamilyOptions options, BlockBasedTableConfig table) {
+            options.setMergeOperatorName("uint64add");
+            options.setWriteBufferSize(SMALL_WRITE_BUFFER);
+            table.setCacheIndexAndFilterBlocks(true)
+                .setPinL0FilterAndIndexBlocksInCache(true);
+        }
+    },
+
+    // One small key per subscription, scanned a user at a time.
+    SUBSCRIPTIONS("subscriptions".getBytes(), 1 + Long.BYTES) {
+        @Override
+        void tune(ColumnFamilyOptions options, BlockBasedTableConfig table) {
+            options.useFixedLengthPrefixExtractor(prefixLength());
+            options.setMemtablePrefixBloomSizeRatio(0.1);
+            table.setWholeKeyFiltering(false);
+        }
+    };
+
+    private static final long SMALL_WRITE_BUFFER = 4L * 1024 * 1024;
+    private static final int POINT_LOOKUP_BLOOM_BITS = 10;
+
+    private final byte[] name;
+    private final int prefixLength;
+
+    Family(byte[] name, int prefixLength) {
+        this.name = name;
+        this.prefixLength = prefixLength;
+    }
+
+    abstract void tune(ColumnFamilyOptions options, BlockBasedTableConfig table);
+
+    byte[] columnFamilyName() {
+        return name;
+    }
+
+    // Length of the prefix bloom filters are built on, 0 when whole keys are.
+    int prefixLength() {
+        return prefixLength;
+    }
+
+    ColumnFamilyOptions options(EngineFactory engine, Cache cache, List<AbstractNativeReference> handles) {
+        ColumnFamilyOptions options = new ColumnFamilyOptions();
+        handles.add(options);
+        engine.configure(options);
+
+        BlockBasedTableConfig table = new BlockBasedTableConfig().setBlockCache(cache);
+
+        // Everything but the legacy family is read by key or feed prefix, so
+        // always worth a filter even when the engine default has them off.
+        int bloomBits = this == DEFAULT
+            ? engine.getBloomBitsPerKey()
+            : Math.max(engine.getBloomBitsPerKey(), POINT_LOOKUP_BLOOM_BITS);
+        if (bloomBits > 0) {
+            BloomFilter filter = new BloomFilter(bloomBits, false);
+            handles.add(filter);
+            table.setFilterPolicy(filter);
+        }
+
+        tune(options, table);
+        options.setTableFormatConfig(table);
+
+        return options;
+    }
+
+    static Family of(byte[] key) {
+        if (key.length == 0) {
+            return DEFAULT;
+        }
+
+        switch (Keys.tag(key)) {
+            case Keys.USERS:
+                return USERS;
+            case Keys.FEEDS:
+                return FEEDS;
+            case Keys.ARTICLES:
+                return ARTICLES;
+            case Keys.SUBSCRIBERS:
+                return SUBSCRIBERS;
+            case Keys.INBOX:
+                return INBOX;
+            case Keys.SUBSCRIBER_COUNTS:
+                return SUBSCRIBER_COUNTS;
+            case Keys.SUBSCRIPTIONS:
+                return SUBSCRIPTIONS;
+            default:
+                return Keys.startsWith(key, FeedsDB.COUNTERS_KEY_PREFIX) ? COUNTERS : DEFAULT;
+        }
+    }
+}
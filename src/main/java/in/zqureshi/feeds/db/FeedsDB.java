@@ -1,78 +1,307 @@
 package in.zqureshi.feeds.db;
 
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.google.common.collect.ImmutableMap;
-import com.google.common.primitives.Bytes;
 import com.google.common.primitives.Longs;
+import com.google.common.primitives.UnsignedBytes;
 import io.dropwizard.lifecycle.Managed;
 import io.dropwizard.setup.Environment;
 import org.hibernate.validator.constraints.NotEmpty;
-import org.rocksdb.Options;
+import org.rocksdb.AbstractNativeReference;
+import org.rocksdb.Cache;
+import org.rocksdb.ColumnFamilyHandle;
+import org.rocksdb.ReadOptions;
 import org.rocksdb.RocksDB;
 import org.rocksdb.RocksDBException;
 import org.rocksdb.RocksIterator;
+import org.rocksdb.Slice;
+import org.rocksdb.TransactionLogIterator;
+import org.rocksdb.WriteBatch;
+import org.rocksdb.WriteOptions;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.validation.Valid;
 import javax.validation.constraints.NotNull;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
 
 public class FeedsDB implements Managed {
     private static final Logger LOGGER = LoggerFactory.getLogger(FeedsDB.class);
 
     private static final String SYSTEM_PREFIX = "/system";
     private static final String COUNTERS_PREFIX = SYSTEM_PREFIX + "/counters";
+    static final byte[] COUNTERS_KEY_PREFIX = COUNTERS_PREFIX.getBytes();
 
     private static final String DATA_PREFIX = "/data";
 
     // Hacky way to provide stable ordering of article, feeds.
     public static final Long INITIAL_COUNTER_VALUE = 10000L;
 
-    private RocksDB db;
+    // Number of ids reserved by each durable write of a counter ceiling,
+    // unless overridden per counter through FeedsDBFactory.
+    public static final long DEFAULT_COUNTER_RANGE = 1000L;
+
+    // Keys up to this long are checked without a copy on the heap during
+    // multi-range scans, record keys are 17 bytes.
+    private static final int MAX_RANGE_KEY = 64;
+
+    // Mixes sequential ids up before they pick a shard.
+    private static final long SHARD_HASH = 0x9E3779B97F4A7C15L;
+
+    // Native objects options refer to, freed after every shard is closed.
+    private final List<AbstractNativeReference> handles = new ArrayList<>();
+    // Just the one unless more paths are configured, see shard(byte[]).
+    private final Shard[] shards;
+    private WriteOptions writeOptions;
+    private CounterTable counters;
+
+    // Ids with a record, for the families exists() answers from memory.
+    private final EnumMap<Family, IdIndex> ids = new EnumMap<>(Family.class);
+
+    // PrefixIterators handed out and not closed yet, each one pins native
+    // memory and the SST files it was opened against.
+    private final AtomicLong openIterators = new AtomicLong();
 
     public FeedsDB(String path) throws RocksDBException {
+        this(FeedsDBFactory.withPath(path), new MetricRegistry());
+    }
+
+    public FeedsDB(FeedsDBFactory config, MetricRegistry metrics) throws RocksDBException {
         RocksDB.loadLibrary();
 
-        Options options = new Options();
-        options.setCreateIfMissing(true);
-        options.setWalSizeLimitMB(1024);
+        EngineFactory engine = config.getEngine();
+        Cache sharedCache = engine.isShareBlockCache() ? engine.newBlockCache() : null;
+        if (sharedCache != null) {
+            handles.add(sharedCache);
+        }
 
-        db = RocksDB.open(options, path);
+        List<String> paths = config.getPaths();
+        shards = new Shard[paths.size()];
+        try {
+            for (int i = 0; i < shards.length; i++) {
+                shards[i] = new Shard(paths.get(i), i, shards.length, engine, sharedCache, handles);
+            }
+        } catch (RocksDBException | RuntimeException e) {
+            for (Shard shard : shards) {
+                if (shard != null) {
+                    shard.closeDB();
+                }
+            }
+            handles.forEach(AbstractNativeReference::close);
+            throw e;
+        }
+        warnIfUnmigrated();
+        loadIds(Family.USERS);
+        loadIds(Family.FEEDS);
+
+        writeOptions = new WriteOptions().setSync(config.isSyncWrites());
+        counters = new CounterTable(new CounterTable.Store() {
+            @Override
+            public long load(String counter) {
+                return getCounterInternal(counter);
+            }
+
+            @Override
+            public void persist(String counter, long ceiling) {
+                putCounterInternal(counter, ceiling);
+            }
+        }, DEFAULT_COUNTER_RANGE, config.getCounterRanges(), metrics.timer(MetricRegistry.name(FeedsDB.class, "counter-refills")));
+
+        // A writer per shard, groups never span shards.
+        if (config.getGroupCommit().isEnabled()) {
+            for (Shard shard : shards) {
+                shard.groupCommit(new GroupCommitWriter(
+                    batch -> shard.db().write(writeOptions, batch),
+                    config.getGroupCommit().getMaxBatchSize(),
+                    config.getGroupCommit().getMaxWaitMicros(),
+                    metrics.histogram(MetricRegistry.name(FeedsDB.class, "group-commit-size")),
+                    metrics.timer(MetricRegistry.name(FeedsDB.class, "group-commit-writes"))
+                ));
+            }
+        }
+
+        metrics.register(MetricRegistry.name(FeedsDB.class, "open-iterators"), (Gauge<Long>) this::openIterators);
+
+        // Subscribing writes to two shards, dying in between leaves the
+        // feed's subscribers out of line with the subscriptions.
+        if (shards.length > 1 && !shards[0].wasClosedCleanly()) {
+            LOGGER.warn("Sharded database wasn't shut down cleanly, reconciling subscribers");
+            try {
+                Migrations.reconcileSubscribers(this);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
     }
 
     public long getCounter(final String counter) {
-        return getCounterInternal(counter);
+        return counters.get(counter);
     }
 
-    public synchronized long incrementCounter(final String counter) {
-        long current = getCounterInternal(counter);
-        putCounterInternal(counter, current + 1);
+    // Lock free, see CounterTable for how ids stay unique across restarts.
+    public long incrementCounter(final String counter) {
+        return counters.increment(counter);
+    }
 
-        return current;
+    /**
+     * For replicas, which never hand out ids: moves counter up to next if
+     * it is behind, the way publishing on the primary would have. The
+     * value itself has to be written with {@link Batch#setCounter}.
+     */
+    public void advanceCounter(final String counter, long next) {
+        counters.advance(counter, next);
+    }
+
+    // Whether key is where a counter is persisted.
+    public static boolean isCounter(byte[] key) {
+        return Keys.startsWith(key, COUNTERS_KEY_PREFIX);
     }
 
     public ImmutableMap<String, Long> counters() {
         HashMap<String, Long> map = new HashMap<>(50);
 
-        RocksIterator iterator = db.newIterator();
+        byte[] prefix = COUNTERS_PREFIX.getBytes();
 
-        if (iterator != null) {
-            for (iterator.seek(COUNTERS_PREFIX.getBytes());
-                 iterator.isValid() && Bytes.indexOf(iterator.key(), COUNTERS_PREFIX.getBytes()) == 0;
-                 iterator.next()) {
-                map.put(
-                    new String(Arrays.copyOfRange(iterator.key(), COUNTERS_PREFIX.length(), iterator.key().length)),
-                    Longs.fromByteArray(iterator.value())
-                );
+        // Counters are spread the same way records are, no two shards have
+        // the same one.
+        for (Shard shard : shards) {
+            try (Slice bound = new Slice(upperBound(prefix));
+                 ReadOptions readOptions = new ReadOptions().setIterateUpperBound(bound);
+                 RocksIterator iterator = shard.db().newIterator(shard.family(Family.COUNTERS), readOptions)) {
+                for (iterator.seek(prefix); iterator.isValid(); iterator.next()) {
+                    map.put(
+                        new String(Arrays.copyOfRange(iterator.key(), prefix.length, iterator.key().length)),
+                        Longs.fromByteArray(iterator.value())
+                    );
+                }
             }
         }
 
+        // Persisted values are only ceilings, prefer the live value when loaded.
+        map.putAll(counters.loaded());
+
         return ImmutableMap.copyOf(map);
     }
 
     public byte[] get(String key) {
+        return get((DATA_PREFIX + key).getBytes());
+    }
+
+    // Binary record keys built with Keys, stored as is.
+    public byte[] get(byte[] key) {
+        Shard shard = shards[shard(key)];
         try {
-            return db.get((DATA_PREFIX + key).getBytes());
+            return shard.db().get(shard.family(key), key);
+        } catch (RocksDBException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Count kept at key through {@link Batch#increment}, 0 when there is
+     * none. Stored as the little-endian uint64 RocksDB's uint64add merge
+     * operator adds up, so counting never reads before writing.
+     */
+    public long getCount(byte[] key) {
+        return count(get(key));
+    }
+
+    // Value of a count key as read from a scan.
+    public static long count(byte[] value) {
+        return value == null ? 0 : Long.reverseBytes(Longs.fromByteArray(value));
+    }
+
+    /**
+     * Whether key has a record. User and feed keys are answered from an
+     * in-memory index of their ids, anything else is a plain get.
+     */
+    public boolean exists(byte[] key) {
+        IdIndex index = index(key);
+        if (index != null && index.covers(Keys.id(key, 0))) {
+            return index.contains(Keys.id(key, 0));
+        }
+
+        return get(key) != null;
+    }
+
+    // Same as exists for every key, whatever the index can't answer is
+    // looked up with a single multiGet.
+    public boolean[] exists(List<byte[]> keys) {
+        boolean[] exists = new boolean[keys.size()];
+        List<byte[]> unknown = new ArrayList<>();
+        List<Integer> positions = new ArrayList<>();
+
+        for (int i = 0; i < keys.size(); i++) {
+            byte[] key = keys.get(i);
+            IdIndex index = index(key);
+            if (index != null && index.covers(Keys.id(key, 0))) {
+                exists[i] = index.contains(Keys.id(key, 0));
+            } else {
+                unknown.add(key);
+                positions.add(i);
+            }
+        }
+
+        if (!unknown.isEmpty()) {
+            List<byte[]> values = multiGet(unknown);
+            for (int i = 0; i < values.size(); i++) {
+                exists[positions.get(i)] = values.get(i) != null;
+            }
+        }
+
+        return exists;
+    }
+
+    /**
+     * Values of keys in the same order, null where there is none. Keys may
+     * span column families, everything is fetched in one native call per
+     * shard.
+     */
+    public List<byte[]> multiGet(List<byte[]> keys) {
+        if (shards.length == 1) {
+            return multiGet(shards[0], keys);
+        }
+
+        List<List<byte[]>> keysByShard = new ArrayList<>(shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            keysByShard.add(new ArrayList<>());
+        }
+        int[] shardOf = new int[keys.size()];
+        for (int i = 0; i < keys.size(); i++) {
+            shardOf[i] = shard(keys.get(i));
+            keysByShard.get(shardOf[i]).add(keys.get(i));
+        }
+
+        List<Iterator<byte[]>> values = new ArrayList<>(shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            List<byte[]> shardKeys = keysByShard.get(i);
+            values.add(shardKeys.isEmpty() ? Collections.emptyIterator() : multiGet(shards[i], shardKeys).iterator());
+        }
+
+        // Each shard answers its keys in the order they were asked for.
+        List<byte[]> merged = new ArrayList<>(keys.size());
+        for (int shard : shardOf) {
+            merged.add(values.get(shard).next());
+        }
+
+        return merged;
+    }
+
+    private static List<byte[]> multiGet(Shard shard, List<byte[]> keys) {
+        List<ColumnFamilyHandle> handles = new ArrayList<>(keys.size());
+        for (byte[] key : keys) {
+            handles.add(shard.family(key));
+        }
+
+        try {
+            return shard.db().multiGetAsList(handles, keys);
         } catch (RocksDBException e) {
             throw new RuntimeException(e);
         }
@@ -83,11 +312,66 @@ public class FeedsDB implements Managed {
     //
     // TODO: RocksDB java doesn't have OptimisticTransactionDB yet.
     public void put(String key, byte[] value) {
+        put((DATA_PREFIX + key).getBytes(), value);
+    }
+
+    public void put(byte[] key, byte[] value) {
+        Shard shard = shards[shard(key)];
         try {
-            db.put((DATA_PREFIX + key).getBytes(), value);
+            shard.db().put(shard.family(key), writeOptions, key, value);
         } catch (RocksDBException e) {
             throw new RuntimeException(e);
         }
+        indexed(key);
+    }
+
+    /**
+     * Allocates the next id from {@code counter} and writes whatever
+     * {@code insert} adds to the batch for it in a single atomic write. When
+     * the allocation moves the counter's persisted ceiling that goes into the
+     * same batch, so a request costs one WAL append.
+     */
+    public long insert(String counter, Insert insert) throws IOException {
+        return counters.increment(counter, (id, ceiling) -> {
+            Batch batch = batch();
+            if (ceiling.isPresent()) {
+                batch.put(counterKey(counter), Longs.toByteArray(ceiling.getAsLong()));
+            }
+
+            insert.apply(id, batch);
+            write(batch);
+        });
+    }
+
+    // Empty batch for write(), keys routed to their shards and column
+    // families.
+    public Batch batch() {
+        return new Batch(this::shard, key -> shards[shard(key)].family(key));
+    }
+
+    /**
+     * Applies every mutation in batch in one atomic write, through group
+     * commit when it is on. A batch spanning shards goes out as one write
+     * per shard, in the order the batch first touches each of them, and is
+     * only atomic within each one. insert adds a counter ceiling ahead of
+     * the records, so it's always durable before the records using it are.
+     */
+    public void write(Batch batch) {
+        int shard = batch.shard();
+        if (shard >= 0) {
+            shards[shard].write(writeOptions, batch);
+        } else {
+            for (int i : batch.shards()) {
+                shards[i].write(writeOptions, batch.part(i));
+            }
+        }
+
+        // Only once durable, exists() must never see a record that isn't.
+        for (int i = 0; i < batch.keys.size(); i++) {
+            if (batch.ops.get(i) == Op.PUT) {
+                indexed(batch.keys.get(i));
+            }
+        }
     }
 
     public PrefixIterator scan(String prefix) {
@@ -98,22 +382,440 @@ public class FeedsDB implements Managed {
         return scan(prefix, Optional.of(startIndex));
     }
 
+    public PrefixIterator scan(byte[] prefix) {
+        return new PrefixIterator(prefix, prefix);
+    }
+
+    // Starts at the first key at or after startKey, which should share prefix.
+    public PrefixIterator scan(byte[] prefix, byte[] startKey) {
+        return new PrefixIterator(prefix, startKey);
+    }
+
+    // Newest first: starts at the last key at or before startKey, which
+    // should share prefix, and walks backwards to the start of prefix.
+    public PrefixIterator scanReverse(byte[] prefix, byte[] startKey) {
+        return new PrefixIterator(prefix, startKey, true);
+    }
+
+    /**
+     * Hands every value under prefix, starting at startKey, to visitor until
+     * it returns false. The iterator is always closed before returning, even
+     * when visitor throws, so prefer this over holding a PrefixIterator.
+     */
+    public void scan(byte[] prefix, byte[] startKey, Visitor visitor) throws IOException {
+        try (PrefixIterator it = scan(prefix, startKey)) {
+            while (it.hasNext()) {
+                if (!visitor.visit(it.next())) {
+                    return;
+                }
+            }
+        }
+    }
+
+    public void scan(byte[] prefix, Visitor visitor) throws IOException {
+        scan(prefix, prefix, visitor);
+    }
+
+    /**
+     * Up to limit entries from each range, all read through one iterator
+     * that is reseeked per range instead of an iterator per range. Ranges
+     * are visited in key order, visitor gets the index of the range in
+     * ranges with every entry. All ranges have to be in the same family and
+     * each one inside a single shard, there's an iterator per shard.
+     */
+    public void scan(List<Range> ranges, int limit, RangeVisitor visitor) throws IOException {
+        if (ranges.isEmpty()) {
+            return;
+        }
+
+        Family family = Family.of(ranges.get(0).prefix);
+        boolean totalOrder = false;
+        Integer[] order = new Integer[ranges.size()];
+        int[] shardOf = new int[ranges.size()];
+        for (int i = 0; i < order.length; i++) {
+            if (Family.of(ranges.get(i).prefix) != family) {
+                throw new IllegalArgumentException("ranges span column families");
+            }
+            shardOf[i] = shardOfPrefix(ranges.get(i).prefix);
+            if (shardOf[i] < 0) {
+                throw new IllegalArgumentException("range spans shards");
+            }
+            totalOrder |= ranges.get(i).prefix.length < family.prefixLength();
+            order[i] = i;
+        }
+        Comparator<byte[]> bytewise = UnsignedBytes.lexicographicalComparator();
+        Arrays.sort(order, (a, b) -> bytewise.compare(ranges.get(a).startKey, ranges.get(b).startKey));
+
+        // Keys are only copied into here to check them against the prefix.
+        ByteBuffer key = ByteBuffer.allocateDirect(MAX_RANGE_KEY);
+
+        // Prefix seek is fine as long as no range is wider than the filter
+        // prefix, every range stops where its prefix does.
+        RocksIterator[] iterators = new RocksIterator[shards.length];
+        try (ReadOptions readOptions = new ReadOptions().setTotalOrderSeek(totalOrder)) {
+            openIterators.incrementAndGet();
+            try {
+                for (int i : order) {
+                    Range range = ranges.get(i);
+                    Shard shard = shards[shardOf[i]];
+                    if (iterators[shardOf[i]] == null) {
+                        iterators[shardOf[i]] = shard.db().newIterator(shard.family(family), readOptions);
+                    }
+                    RocksIterator it = iterators[shardOf[i]];
+
+                    it.seek(range.startKey);
+                    for (int n = 0; n < limit && it.isValid(); n++, it.next()) {
+                        key.clear();
+                        ByteBuffer current = it.key(key) <= key.capacity() ? key : ByteBuffer.wrap(it.key());
+                        if (!startsWith(current, range.prefix)) {
+                            break;
+                        }
+
+                        visitor.visit(i, current, it.value());
+                    }
+                }
+            } finally {
+                openIterators.decrementAndGet();
+                for (RocksIterator it : iterators) {
+                    if (it != null) {
+                        it.close();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Every write from sequence on, one atomic batch at a time in the order
+     * it went into the WAL. Goes back as far as archived WAL files are kept
+     * (up to 1GB of them), a sequence past the latest write gives an empty
+     * iterator. Close it when done with it, same as a PrefixIterator.
+     *
+     * Only for unsharded databases, shards each have a log of their own
+     * and nothing orders writes across them.
+     */
+    public ChangeIterator changes(long sequence) {
+        return new ChangeIterator(sequence, false);
+    }
+
+    // Same as changes but never runs out, see ChangeIterator.
+    public ChangeIterator tail(long sequence) {
+        return new ChangeIterator(sequence, true);
+    }
+
+    // Sequence number of the latest write, 0 before the first one.
+    public long latestSequence() {
+        return log().getLatestSequenceNumber();
+    }
+
+    // Number of RocksDB instances records are spread over.
+    public int shards() {
+        return shards.length;
+    }
+
+    // Number of PrefixIterators and ChangeIterators that haven't been closed
+    // or run to the end.
+    public long openIterators() {
+        return openIterators.get();
+    }
+
     @Override
     public void start() throws RocksDBException {
     }
 
     @Override
-    public void stop() throws RocksDBException {
-        db.close();
+    public void stop() throws Exception {
+        close(true);
+    }
+
+    // Closes as if the process died right now, leaving counters at their
+    // ceilings and sharded databases to be reconciled. For tests.
+    void crash() throws Exception {
+        close(false);
+    }
+
+    private void close(boolean clean) throws Exception {
+        if (openIterators() > 0) {
+            LOGGER.warn("Closing with {} iterators still open", openIterators());
+        }
+
+        // Group commit writers drain before counters are written back with
+        // the ids actually used, then the shards close.
+        for (Shard shard : shards) {
+            shard.drain();
+        }
+        if (clean) {
+            counters.flush();
+            if (shards.length > 1) {
+                shards[0].closedCleanly();
+            }
+        }
+        for (Shard shard : shards) {
+            shard.close();
+        }
+        writeOptions.close();
+        handles.forEach(AbstractNativeReference::close);
+    }
+
+    @FunctionalInterface
+    public interface Visitor {
+        // Return false to stop the scan early.
+        boolean visit(byte[] value) throws IOException;
+    }
+
+    @FunctionalInterface
+    public interface RangeVisitor {
+        // key is only valid until visit returns.
+        void visit(int range, ByteBuffer key, byte[] value) throws IOException;
+    }
+
+    // Keys starting with prefix, from startKey on.
+    public static class Range {
+        private final byte[] prefix;
+        private final byte[] startKey;
+
+        public Range(byte[] prefix, byte[] startKey) {
+            this.prefix = prefix;
+            this.startKey = startKey;
+        }
+    }
+
+    public enum Op { PUT, DELETE, MERGE }
+
+    // A key written by a batch, value is null for deletes and the delta for
+    // merges.
+    public static class Mutation {
+        private final Op op;
+        private final byte[] key;
+        private final byte[] value;
+
+        Mutation(Op op, byte[] key, byte[] value) {
+            this.op = op;
+            this.key = key;
+            this.value = value;
+        }
+
+        public Op op() {
+            return op;
+        }
+
+        public byte[] key() {
+            return key;
+        }
+
+        public byte[] value() {
+            return value;
+        }
+    }
+
+    // One atomic write as logged, every mutation in it takes the sequence
+    // number after the one before.
+    public static class Update {
+        private final long sequence;
+        private final long count;
+        private final List<Mutation> mutations;
+
+        Update(long sequence, long count, List<Mutation> mutations) {
+            this.sequence = sequence;
+            this.count = count;
+            this.mutations = mutations;
+        }
+
+        public long sequence() {
+            return sequence;
+        }
+
+        public List<Mutation> mutations() {
+            return mutations;
+        }
+
+        // Sequence number of the write after this one.
+        public long next() {
+            return sequence + count;
+        }
+    }
+
+    @FunctionalInterface
+    public interface Insert {
+        void apply(long id, Batch batch) throws IOException;
+    }
+
+    // Mutations collected for a single atomic write, string keys are relative
+    // to /data just like get and put, binary keys are stored as is. Keys go
+    // to whichever shard and column family route picks, the default family
+    // of a single shard without it.
+    public static class Batch {
+        private static final int EMPTY = -2;
+        private static final int MIXED = -1;
+
+        private final ToIntFunction<byte[]> shardOf;
+        private final Function<byte[], ColumnFamilyHandle> route;
+        private final List<Op> ops = new ArrayList<>(2);
+        private final List<ColumnFamilyHandle> families = new ArrayList<>(2);
+        private final List<byte[]> keys = new ArrayList<>(2);
+        private final List<byte[]> values = new ArrayList<>(2);
+        // Shard every key so far is in, MIXED once they aren't all in one.
+        private int shard = EMPTY;
+
+        Batch() {
+            this(key -> 0, key -> null);
+        }
+
+        Batch(ToIntFunction<byte[]> shardOf, Function<byte[], ColumnFamilyHandle> route) {
+            this.shardOf = shardOf;
+            this.route = route;
+        }
+
+        public Batch put(String key, byte[] value) {
+            return put((DATA_PREFIX + key).getBytes(), value);
+        }
+
+        public Batch put(byte[] key, byte[] value) {
+            return add(Op.PUT, key, value);
+        }
+
+        public Batch delete(byte[] key) {
+            return add(Op.DELETE, key, null);
+        }
+
+        /**
+         * Adds delta to the count at key without reading it, see
+         * {@link FeedsDB#getCount}. Only for keys in a family that merges
+         * with uint64add.
+         */
+        public Batch increment(byte[] key, long delta) {
+            return add(Op.MERGE, key, Longs.toByteArray(Long.reverseBytes(delta)));
+        }
+
+        // Same write as mutation did where it was logged.
+        public Batch apply(Mutation mutation) {
+            return add(mutation.op(), mutation.key(), mutation.value());
+        }
+
+        /**
+         * Persists value as the counter itself rather than a ceiling, only
+         * for replicas, see {@link #advanceCounter}.
+         */
+        public Batch setCounter(String counter, long value) {
+            return put(counterKey(counter), Longs.toByteArray(value));
+        }
+
+        public int size() {
+            return keys.size();
+        }
+
+        private Batch add(Op op, byte[] key, byte[] value) {
+            int keyShard = shardOf.applyAsInt(key);
+            shard = shard == EMPTY || shard == keyShard ? keyShard : MIXED;
+
+            ops.add(op);
+            families.add(route.apply(key));
+            keys.add(key);
+            values.add(value);
+            return this;
+        }
+
+        // Shard every key is in, negative when there are none or they're
+        // spread over more than one.
+        int shard() {
+            return shard < 0 ? MIXED : shard;
+        }
+
+        // Every shard with a key in the batch, in the order of their first.
+        Set<Integer> shards() {
+            Set<Integer> shards = new LinkedHashSet<>();
+            for (byte[] key : keys) {
+                shards.add(shardOf.applyAsInt(key));
+            }
+
+            return shards;
+        }
+
+        // Just the mutations on one shard, in the same order.
+        Batch part(int shard) {
+            Batch part = new Batch(shardOf, route);
+            for (int i = 0; i < keys.size(); i++) {
+                if (shardOf.applyAsInt(keys.get(i)) == shard) {
+                    part.shard = shard;
+                    part.ops.add(ops.get(i));
+                    part.families.add(families.get(i));
+                    part.keys.add(keys.get(i));
+                    part.values.add(values.get(i));
+                }
+            }
+
+            return part;
+        }
+
+        void writeTo(WriteBatch batch) throws RocksDBException {
+            for (int i = 0; i < keys.size(); i++) {
+                ColumnFamilyHandle family = families.get(i);
+                byte[] key = keys.get(i);
+                byte[] value = values.get(i);
+
+                switch (ops.get(i)) {
+                    case PUT:
+                        if (family == null) {
+                            batch.put(key, value);
+                        } else {
+                            batch.put(family, key, value);
+                        }
+                        break;
+                    case DELETE:
+                        if (family == null) {
+                            batch.delete(key);
+                        } else {
+                            batch.delete(family, key);
+                        }
+                        break;
+                    case MERGE:
+                        if (family == null) {
+                            batch.merge(key, value);
+                        } else {
+                            batch.merge(family, key, value);
+                        }
+                        break;
+                }
+            }
+        }
     }
 
     public static class FeedsDBFactory {
         @NotEmpty
         private String path;
 
+        // More RocksDB instances to spread records over, ideally each on a
+        // disk of its own. path is the first shard. Never change the list
+        // once anything is written, which shard a record is in depends on
+        // how many there are.
+        @NotNull
+        private List<String> shardPaths = Collections.emptyList();
+
         @NotNull
         private Map<String, Long> counters = Collections.emptyMap();
 
+        // Ids reserved per durable write, keyed by counter name prefix.
+        @NotNull
+        private Map<String, Long> counterRanges = Collections.emptyMap();
+
+        // fsync the WAL on every insert, or once per group with group commit.
+        private boolean syncWrites = false;
+
+        @Valid
+        @NotNull
+        private GroupCommitFactory groupCommit = new GroupCommitFactory();
+
+        @Valid
+        @NotNull
+        private EngineFactory engine = new EngineFactory();
+
+        static FeedsDBFactory withPath(String path) {
+            FeedsDBFactory factory = new FeedsDBFactory();
+            factory.setPath(path);
+
+            return factory;
+        }
+
         @JsonProperty
         public String getPath() {
             return path;
@@ -124,6 +826,25 @@ public class FeedsDB implements Managed {
             this.path = path;
         }
 
+        @JsonProperty
+        public List<String> getShardPaths() {
+            return shardPaths;
+        }
+
+        @JsonProperty
+        public void setShardPaths(List<String> shardPaths) {
+            this.shardPaths = shardPaths;
+        }
+
+        // Every shard, path first.
+        public List<String> getPaths() {
+            List<String> paths = new ArrayList<>(1 + shardPaths.size());
+            paths.add(path);
+            paths.addAll(shardPaths);
+
+            return paths;
+        }
+
         @JsonProperty
         public Map<String, Long> getCounters() {
             return counters;
@@ -134,20 +855,64 @@ public class FeedsDB implements Managed {
             this.counters = counters;
         }
 
+        @JsonProperty
+        public Map<String, Long> getCounterRanges() {
+            return counterRanges;
+        }
+
+        @JsonProperty
+        public void setCounterRanges(Map<String, Long> counterRanges) {
+            this.counterRanges = counterRanges;
+        }
+
+        @JsonProperty
+        public boolean isSyncWrites() {
+            return syncWrites;
+        }
+
+        @JsonProperty
+        public void setSyncWrites(boolean syncWrites) {
+            this.syncWrites = syncWrites;
+        }
+
+        @JsonProperty
+        public GroupCommitFactory getGroupCommit() {
+            return groupCommit;
+        }
+
+        @JsonProperty
+        public void setGroupCommit(GroupCommitFactory groupCommit) {
+            this.groupCommit = groupCommit;
+        }
+
+        @JsonProperty
+        public EngineFactory getEngine() {
+            return engine;
+        }
+
+        @JsonProperty
+        public void setEngine(EngineFactory engine) {
+            this.engine = engine;
+        }
+
         public FeedsDB build(Environment environment) throws RocksDBException {
-            FeedsDB db = build();
+            FeedsDB db = build(environment.metrics());
             environment.lifecycle().manage(db);
 
             return db;
         }
 
         public FeedsDB build() throws RocksDBException {
-            FeedsDB db = new FeedsDB(getPath());
+            return build(new MetricRegistry());
+        }
+
+        public FeedsDB build(MetricRegistry metrics) throws RocksDBException {
+            FeedsDB db = new FeedsDB(this, metrics);
 
             // Load all configured counters
             for (Map.Entry<String, Long> entry : getCounters().entrySet()) {
-                if (db.getCounterInternal(entry.getKey()) == INITIAL_COUNTER_VALUE) {
-                    db.putCounterInternal(entry.getKey(), entry.getValue());
+                if (db.getCounter(entry.getKey()) == INITIAL_COUNTER_VALUE) {
+                    db.counters.reset(entry.getKey(), entry.getValue());
                 }
             }
 
@@ -155,25 +920,80 @@ public class FeedsDB implements Managed {
         }
     }
 
-    public class PrefixIterator implements Iterator<byte[]> {
-        private byte[] prefix;
+    /**
+     * Iterates values under a prefix. The prefix is turned into an upper bound
+     * on the native iterator so RocksDB stops at the end of the range itself
+     * and keys never have to be copied into Java to be checked. Reverse
+     * iterators get the prefix itself as lower bound for the same reason.
+     *
+     * Prefixes narrower than a user or feed are spread over every shard,
+     * those are read with an iterator per shard merged back into key order.
+     *
+     * Native resources are released as soon as the iterator is exhausted,
+     * open it in a try-with-resources block when it may be abandoned earlier.
+     */
+    public class PrefixIterator implements Iterator<byte[]>, AutoCloseable {
+        private final Slice upperBound;
+        private final Slice lowerBound;
+        private final ReadOptions readOptions;
+        private final RocksIterator[] iterators;
+        // Current key of each iterator when merging, null once it's done.
+        private final byte[][] keys;
+        // Whichever iterator the next value comes from.
         private RocksIterator rit;
+        private final boolean reverse;
+        private boolean closed;
+
+        private PrefixIterator(byte[] prefix, byte[] startKey) {
+            this(prefix, startKey, false);
+        }
+
+        private PrefixIterator(byte[] prefix, byte[] startKey, boolean reverse) {
+            byte[] bound = upperBound(prefix);
+
+            this.reverse = reverse;
+            upperBound = bound == null ? null : new Slice(bound);
+            lowerBound = reverse ? new Slice(prefix) : null;
+            readOptions = new ReadOptions();
+            if (upperBound != null) {
+                readOptions.setIterateUpperBound(upperBound);
+            }
+            if (lowerBound != null) {
+                readOptions.setIterateLowerBound(lowerBound);
+            }
 
-        public PrefixIterator(RocksIterator rit, String prefix, Optional<String> startIndex) {
-            this.prefix = prefix.getBytes();
-            this.rit = rit;
+            // Prefix filters can only skip files when the whole scan stays
+            // inside one prefix, anything wider has to see every file.
+            Family family = Family.of(prefix);
+            if (prefix.length < family.prefixLength()) {
+                readOptions.setTotalOrderSeek(true);
+            }
 
-            String key = prefix;
-            if (startIndex.isPresent()) {
-                key += startIndex.get();
+            int shard = shardOfPrefix(prefix);
+            iterators = new RocksIterator[shard < 0 ? shards.length : 1];
+            for (int i = 0; i < iterators.length; i++) {
+                Shard scanned = shards[shard < 0 ? i : shard];
+                iterators[i] = scanned.db().newIterator(scanned.family(family), readOptions);
+                if (reverse) {
+                    iterators[i].seekForPrev(startKey);
+                } else {
+                    iterators[i].seek(startKey);
+                }
             }
+            openIterators.incrementAndGet();
 
-            if (this.rit != null) { rit.seek(key.getBytes()); }
+            keys = iterators.length > 1 ? new byte[iterators.length][] : null;
+            if (keys != null) {
+                for (int i = 0; i < iterators.length; i++) {
+                    keys[i] = key(iterators[i]);
+                }
+            }
+            pick();
         }
 
         @Override
         public boolean hasNext() {
-            return rit != null && rit.isValid() && Bytes.indexOf(rit.key(), prefix) == 0;
+            return !closed;
         }
 
         @Override
@@ -183,15 +1003,388 @@ public class FeedsDB implements Managed {
             }
 
             byte[] current = rit.value();
-            rit.next();
+            advance();
+
+            return current;
+        }
+
+        // Key of the value the following next() returns.
+        public byte[] nextKey() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            return rit.key();
+        }
+
+        /**
+         * Same as {@link #next()} but copies the value straight from native
+         * memory into a reusable direct {@code buffer} instead of a fresh
+         * array. The returned buffer is ready to read from, values that don't
+         * fit come back in a newly allocated buffer instead.
+         */
+        public ByteBuffer next(ByteBuffer buffer) {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            if (!buffer.isDirect()) {
+                throw new IllegalArgumentException("value buffer must be direct");
+            }
+
+            buffer.clear();
+            int size = rit.value(buffer);
+            ByteBuffer current = size <= buffer.capacity() ? buffer : ByteBuffer.wrap(rit.value());
+            advance();
 
             return current;
         }
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+            openIterators.decrementAndGet();
+            for (RocksIterator it : iterators) {
+                it.close();
+            }
+            readOptions.close();
+            if (upperBound != null) {
+                upperBound.close();
+            }
+            if (lowerBound != null) {
+                lowerBound.close();
+            }
+        }
+
+        private void advance() {
+            if (reverse) {
+                rit.prev();
+            } else {
+                rit.next();
+            }
+
+            if (keys != null) {
+                for (int i = 0; i < iterators.length; i++) {
+                    if (iterators[i] == rit) {
+                        keys[i] = key(rit);
+                    }
+                }
+            }
+            pick();
+        }
+
+        // Smallest key of all shards next, largest in reverse.
+        private void pick() {
+            if (keys == null) {
+                rit = iterators[0];
+            } else {
+                Comparator<byte[]> bytewise = UnsignedBytes.lexicographicalComparator();
+                int next = -1;
+                for (int i = 0; i < keys.length; i++) {
+                    if (keys[i] == null) {
+                        continue;
+                    }
+                    if (next < 0) {
+                        next = i;
+                    } else {
+                        int order = bytewise.compare(keys[i], keys[next]);
+                        if (reverse ? order > 0 : order < 0) {
+                            next = i;
+                        }
+                    }
+                }
+                rit = next < 0 ? iterators[0] : iterators[next];
+            }
+
+            if (!rit.isValid()) {
+                checkStatus(rit);
+                close();
+            }
+        }
+
+        // Current key of it, null once it's done.
+        private byte[] key(RocksIterator it) {
+            if (it.isValid()) {
+                return it.key();
+            }
+
+            checkStatus(it);
+            return null;
+        }
+
+        // An iterator also stops on I/O errors and corruption, those mustn't
+        // pass for the end of the scan.
+        private void checkStatus(RocksIterator it) {
+            try {
+                it.status();
+            } catch (RocksDBException e) {
+                close();
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * Walks the WAL with getUpdatesSince, decoding each logged WriteBatch
+     * into its mutations. Keys say which family they belong to, so column
+     * family ids in the log are never looked at. The first update is the
+     * one holding the sequence asked for, or the oldest one still around
+     * when that's gone.
+     *
+     * A tailing iterator stays open at the end of the log and picks up
+     * whatever is written later, reopening the log itself when the WAL
+     * moves on to a new file. Getting to a sequence means reading the WAL
+     * file it's in from the start, so keep a tailing iterator around
+     * instead of asking for every page again.
+     */
+    public class ChangeIterator implements Iterator<Update>, AutoCloseable {
+        private final RocksDB db;
+        private final boolean tailing;
+        private final Decoder decoder = new Decoder();
+        // Null until there's something at or after sequence.
+        private TransactionLogIterator log;
+        // Where the next update starts.
+        private long sequence;
+        private boolean closed;
+
+        private ChangeIterator(long sequence, boolean tailing) {
+            db = log();
+            this.sequence = sequence;
+            this.tailing = tailing;
+            openIterators.incrementAndGet();
+
+            open();
+            if (!tailing && (log == null || !log.isValid())) {
+                close();
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (closed) {
+                return false;
+            }
+            if (log != null && log.isValid()) {
+                return true;
+            }
+            if (!tailing) {
+                close();
+                return false;
+            }
+
+            refresh();
+            return log != null && log.isValid();
+        }
+
+        @Override
+        public Update next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            TransactionLogIterator.BatchResult result = log.getBatch();
+            Update update;
+            try (WriteBatch batch = result.writeBatch()) {
+                decoder.mutations = new ArrayList<>(batch.count());
+                batch.iterate(decoder);
+                update = new Update(result.sequenceNumber(), batch.count(), decoder.mutations);
+            } catch (RocksDBException e) {
+                close();
+                throw new RuntimeException(e);
+            }
+
+            sequence = update.next();
+            log.next();
+            if (!tailing && !log.isValid()) {
+                checkStatus();
+                close();
+            }
+
+            return update;
+        }
+
+        // Sequence number the next update starts at.
+        public long sequence() {
+            return sequence;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+            openIterators.decrementAndGet();
+            decoder.close();
+            if (log != null) {
+                log.close();
+            }
+        }
+
+        // RocksDB refuses sequences that haven't been written yet.
+        private void open() {
+            if (sequence > db.getLatestSequenceNumber()) {
+                return;
+            }
+
+            try {
+                log = db.getUpdatesSince(sequence);
+            } catch (RocksDBException e) {
+                close();
+                throw new RuntimeException(e);
+            }
+        }
+
+        private void refresh() {
+            if (sequence > db.getLatestSequenceNumber()) {
+                return;
+            }
+
+            if (log != null) {
+                // Reads on in the same WAL file, gives up once it's full.
+                log.next();
+                if (log.isValid()) {
+                    return;
+                }
+                log.close();
+                log = null;
+            }
+            open();
+        }
+
+        private void checkStatus() {
+            try {
+                log.status();
+            } catch (RocksDBException e) {
+                close();
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    // FeedsDB only ever writes puts, deletes and merges, nothing else shows
+    // up in the log.
+    private static class Decoder extends WriteBatch.Handler {
+        private List<Mutation> mutations;
+
+        @Override
+        public void put(int columnFamilyId, byte[] key, byte[] value) {
+            put(key, value);
+        }
+
+        @Override
+        public void put(byte[] key, byte[] value) {
+            mutations.add(new Mutation(Op.PUT, key, value));
+        }
+
+        @Override
+        public void merge(int columnFamilyId, byte[] key, byte[] value) {
+            merge(key, value);
+        }
+
+        @Override
+        public void merge(byte[] key, byte[] value) {
+            mutations.add(new Mutation(Op.MERGE, key, value));
+        }
+
+        @Override
+        public void delete(int columnFamilyId, byte[] key) {
+            delete(key);
+        }
+
+        @Override
+        public void delete(byte[] key) {
+            mutations.add(new Mutation(Op.DELETE, key, null));
+        }
+
+        @Override
+        public void singleDelete(int columnFamilyId, byte[] key) {
+            delete(key);
+        }
+
+        @Override
+        public void singleDelete(byte[] key) {
+            delete(key);
+        }
+
+        @Override
+        public void deleteRange(int columnFamilyId, byte[] beginKey, byte[] endKey) {
+        }
+
+        @Override
+        public void deleteRange(byte[] beginKey, byte[] endKey) {
+        }
+
+        @Override
+        public void logData(byte[] blob) {
+        }
+
+        @Override
+        public void putBlobIndex(int columnFamilyId, byte[] key, byte[] value) {
+        }
+
+        @Override
+        public void markBeginPrepare() {
+        }
+
+        @Override
+        public void markEndPrepare(byte[] xid) {
+        }
+
+        @Override
+        public void markNoop(boolean emptyBatch) {
+        }
+
+        @Override
+        public void markRollback(byte[] xid) {
+        }
+
+        @Override
+        public void markCommit(byte[] xid) {
+        }
+
+        @Override
+        public void markCommitWithTimestamp(byte[] xid, byte[] ts) {
+        }
+    }
+
+    private static boolean startsWith(ByteBuffer key, byte[] prefix) {
+        if (key.remaining() < prefix.length) {
+            return false;
+        }
+
+        for (int i = prefix.length - 1; i >= 0; i--) {
+            if (key.get(key.position() + i) != prefix[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    // Smallest key greater than every key starting with prefix, null if
+    // there is none (prefix is all 0xff).
+    static byte[] upperBound(byte[] prefix) {
+        for (int i = prefix.length - 1; i >= 0; i--) {
+            if (prefix[i] != (byte) 0xFF) {
+                byte[] bound = Arrays.copyOf(prefix, i + 1);
+                bound[i]++;
+
+                return bound;
+            }
+        }
+
+        return null;
     }
 
     private long getCounterInternal(String counter) {
+        Shard shard = shards[shard(counterKey(counter))];
         try {
-            byte[] current = db.get((COUNTERS_PREFIX + counter).getBytes());
+            byte[] current = shard.db().get(shard.family(Family.COUNTERS), counterKey(counter));
 
             if (current == null) {
                 return INITIAL_COUNTER_VALUE;
@@ -204,17 +1397,127 @@ public class FeedsDB implements Managed {
     }
 
     private void putCounterInternal(String counter, long value) {
+        Shard shard = shards[shard(counterKey(counter))];
         try {
-            db.put(
-                (COUNTERS_PREFIX + counter).getBytes(),
-                Longs.toByteArray(value)
-            );
+            shard.db().put(shard.family(Family.COUNTERS), writeOptions, counterKey(counter), Longs.toByteArray(value));
         } catch (RocksDBException e) {
             throw new RuntimeException(e);
         }
     }
 
+    private IdIndex index(byte[] key) {
+        return key.length == 1 + Long.BYTES ? ids.get(Family.of(key)) : null;
+    }
+
+    private void indexed(byte[] key) {
+        IdIndex index = index(key);
+        if (index != null) {
+            index.add(Keys.id(key, 0));
+        }
+    }
+
+    // Keys only, values are never read.
+    private void loadIds(Family family) {
+        IdIndex index = new IdIndex(INITIAL_COUNTER_VALUE);
+
+        for (Shard shard : shards) {
+            try (RocksIterator it = shard.db().newIterator(shard.family(family))) {
+                for (it.seekToFirst(); it.isValid(); it.next()) {
+                    byte[] key = it.key();
+                    if (key.length == 1 + Long.BYTES) {
+                        index.add(Keys.id(key, 0));
+                    }
+                }
+            }
+        }
+
+        ids.put(family, index);
+    }
+
+    private static byte[] counterKey(String counter) {
+        return (COUNTERS_PREFIX + counter).getBytes();
+    }
+
     private PrefixIterator scan(String prefix, Optional<String> startIndex) {
-        return new PrefixIterator(db.newIterator(), DATA_PREFIX + prefix, startIndex);
+        String key = DATA_PREFIX + prefix;
+        return new PrefixIterator(key.getBytes(), (key + startIndex.orElse("")).getBytes());
+    }
+
+    /**
+     * Shard key is kept in. Records go by the user or feed id they start
+     * with, so everything of one feed (articles, subscribers, its count)
+     * or one user (subscriptions, inbox) is in the same shard. Counters
+     * named after an id, like a feed's articles counter, go with that id
+     * and everything else is on the first shard.
+     */
+    int shard(byte[] key) {
+        if (shards.length == 1) {
+            return 0;
+        }
+
+        Family family = Family.of(key);
+        if (family == Family.COUNTERS) {
+            String counter = new String(key);
+            return shard(Longs.tryParse(counter.substring(counter.lastIndexOf('/') + 1)));
+        }
+        if (family == Family.DEFAULT || key.length < 1 + Long.BYTES) {
+            return 0;
+        }
+
+        return shard(Keys.id(key, 0));
+    }
+
+    private int shard(Long id) {
+        return id == null ? 0 : (int) (((id * SHARD_HASH) >>> 32) % shards.length);
+    }
+
+    // Shard every key starting with prefix is in, -1 when they're spread
+    // over all of them.
+    private int shardOfPrefix(byte[] prefix) {
+        Family family = Family.of(prefix);
+        if (shards.length > 1 && family != Family.DEFAULT && prefix.length < 1 + Long.BYTES) {
+            return -1;
+        }
+
+        return shard(prefix);
+    }
+
+    private RocksDB log() {
+        if (shards.length > 1) {
+            throw new UnsupportedOperationException("No single log to read across " + shards.length + " shards");
+        }
+
+        return shards[0].db();
+    }
+
+    // Raw handles of the first shard, for migrations in this package. Only
+    // unsharded databases were ever written in older layouts.
+    RocksDB rocksDB() {
+        return shards[0].db();
+    }
+
+    ColumnFamilyHandle family(Family family) {
+        return shards[0].family(family);
+    }
+
+    ColumnFamilyHandle family(byte[] key) {
+        return family(Family.of(key));
+    }
+
+    // Records and counters left in the default column family by older
+    // versions are invisible until the migrate command moves them.
+    private void warnIfUnmigrated() {
+        RocksDB db = rocksDB();
+        try (RocksIterator it = db.newIterator(family(Family.DEFAULT))) {
+            it.seekToFirst();
+            boolean records = it.isValid() && Family.of(it.key()) != Family.DEFAULT;
+
+            it.seek(COUNTERS_KEY_PREFIX);
+            boolean counters = it.isValid() && Family.of(it.key()) == Family.COUNTERS;
+
+            if (records || counters) {
+                LOGGER.warn("Found records outside their column family, run the migrate command before serving");
+            }
+        }
     }
 }
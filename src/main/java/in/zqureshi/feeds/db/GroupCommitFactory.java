@@ -0,0 +1,51 @@
+package in.zqureshi.feeds.db;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import javax.validation.constraints.Min;
+
+/**
+ * Settings for funnelling inserts through a single group commit writer.
+ * Disabled by default, in which case every insert is its own write.
+ */
+public class GroupCommitFactory {
+    private boolean enabled = false;
+
+    @Min(1)
+    private int maxBatchSize = 256;
+
+    // Zero only groups writes that are already queued, anything higher trades
+    // latency of a lone writer for bigger batches under load.
+    @Min(0)
+    private long maxWaitMicros = 0;
+
+    @JsonProperty
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @JsonProperty
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    @JsonProperty
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    @JsonProperty
+    public void setMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    @JsonProperty
+    public long getMaxWaitMicros() {
+        return maxWaitMicros;
+    }
+
+    @JsonProperty
+    public void setMaxWaitMicros(long maxWaitMicros) {
+        this.maxWaitMicros = maxWaitMicros;
+    }
+}
@@ -0,0 +1,161 @@
+package in.zqureshi.feeds.db;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Timer;
+import org.rocksdb.RocksDBException;
+import org.rocksdb.WriteBatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Single writer thread that drains concurrently submitted batches into one
+ * {@link WriteBatch}, so a burst of N writes costs one WAL append (and one
+ * fsync when the sink syncs) instead of N. Callers block until the group
+ * their batch went out with is durable.
+ */
+class GroupCommitWriter implements AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(GroupCommitWriter.class);
+
+    interface Sink {
+        void write(WriteBatch batch) throws RocksDBException;
+    }
+
+    private static class Pending {
+        private final FeedsDB.Batch batch;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Pending(FeedsDB.Batch batch) {
+            this.batch = batch;
+        }
+    }
+
+    private final Sink sink;
+    private final int maxBatchSize;
+    private final long maxWaitNanos;
+    private final Histogram batchSizes;
+    private final Timer writes;
+
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final Object lifecycle = new Object();
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    GroupCommitWriter(Sink sink, int maxBatchSize, long maxWaitMicros, Histogram batchSizes, Timer writes) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize must be positive");
+        }
+
+        this.sink = sink;
+        this.maxBatchSize = maxBatchSize;
+        this.maxWaitNanos = TimeUnit.MICROSECONDS.toNanos(maxWaitMicros);
+        this.batchSizes = batchSizes;
+        this.writes = writes;
+
+        thread = new Thread(this::run, "feeds-group-commit");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void write(FeedsDB.Batch batch) {
+        Pending pending = new Pending(batch);
+
+        synchronized (lifecycle) {
+            if (!running) {
+                throw new IllegalStateException("group commit writer is closed");
+            }
+            queue.add(pending);
+        }
+
+        try {
+            pending.done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        synchronized (lifecycle) {
+            running = false;
+        }
+
+        // Writer drains whatever was queued before it exits.
+        thread.join();
+    }
+
+    // For tests.
+    Thread thread() {
+        return thread;
+    }
+
+    private void run() {
+        List<Pending> group = new ArrayList<>(maxBatchSize);
+
+        while (running || !queue.isEmpty()) {
+            try {
+                Pending first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+
+                group.add(first);
+                collect(group);
+                commit(group);
+            } catch (InterruptedException e) {
+                // Whoever is waiting on the group would otherwise hang.
+                LOGGER.warn("Group commit writer interrupted", e);
+                group.forEach(pending -> pending.done.completeExceptionally(e));
+            } finally {
+                group.clear();
+            }
+        }
+    }
+
+    // Takes whatever is already queued and then waits up to maxWait for
+    // stragglers, never more than maxBatchSize in total.
+    private void collect(List<Pending> group) throws InterruptedException {
+        long deadline = System.nanoTime() + maxWaitNanos;
+
+        while (group.size() < maxBatchSize) {
+            if (queue.drainTo(group, maxBatchSize - group.size()) > 0) {
+                continue;
+            }
+
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return;
+            }
+
+            Pending next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+            if (next == null) {
+                return;
+            }
+            group.add(next);
+        }
+    }
+
+    private void commit(List<Pending> group) {
+        batchSizes.update(group.size());
+
+        try (WriteBatch batch = new WriteBatch();
+             Timer.Context ignored = writes.time()) {
+            for (Pending pending : group) {
+                pending.batch.writeTo(batch);
+            }
+
+            sink.write(batch);
+        } catch (Exception e) {
+            group.forEach(pending -> pending.done.completeExceptionally(e));
+            return;
+        }
+
+        group.forEach(pending -> pending.done.complete(null));
+    }
+}
@@ -0,0 +1,66 @@
+package in.zqureshi.feeds.db;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bitmap of the ids that have a record, so checking whether a user or feed
+ * exists never touches RocksDB. Ids come from counters starting at
+ * {@code base} and are dense, gaps only show up where a counter range was
+ * skipped, so a bit per id stays tiny (about 125KB per million ids).
+ *
+ * Lookups are lock free, adds are serialized since they may have to grow the
+ * bitmap and are only done once per created record. Ids outside what the
+ * bitmap can cover are not tracked, see {@link #covers(long)}.
+ */
+class IdIndex {
+    // 2^31 ids, 256MB worst case.
+    private static final long MAX_IDS = 1L << 31;
+
+    private final long base;
+    private volatile AtomicLongArray words;
+
+    IdIndex(long base) {
+        this.base = base;
+        this.words = new AtomicLongArray(16);
+    }
+
+    boolean covers(long id) {
+        return id >= base && id - base < MAX_IDS;
+    }
+
+    // False for ids the index doesn't cover, check covers() first.
+    boolean contains(long id) {
+        if (!covers(id)) {
+            return false;
+        }
+
+        long bit = id - base;
+        AtomicLongArray current = words;
+        int word = (int) (bit >>> 6);
+
+        return word < current.length() && (current.get(word) & (1L << bit)) != 0;
+    }
+
+    synchronized void add(long id) {
+        if (!covers(id)) {
+            return;
+        }
+
+        long bit = id - base;
+        int word = (int) (bit >>> 6);
+
+        AtomicLongArray current = words;
+        if (word >= current.length()) {
+            AtomicLongArray grown = new AtomicLongArray(Math.max(word + 1, 2 * current.length()));
+            for (int i = 0; i < current.length(); i++) {
+                grown.set(i, current.get(i));
+            }
+            grown.set(word, 1L << bit);
+
+            words = grown;
+            return;
+        }
+
+        current.set(word, current.get(word) | (1L << bit));
+    }
+}
@@ -0,0 +1,189 @@
+package in.zqureshi.feeds.db;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Binary keys for records, a one byte namespace tag followed by big-endian
+ * ids. Ids are never negative so the bytewise order RocksDB sorts by is the
+ * same as numeric order, no matter how many digits an id has.
+ *
+ * Tags sort before {@code '/'} so these keys never interleave with the
+ * path-style {@code /system} and {@code /data} keys.
+ */
+public final class Keys {
+    public static final byte USERS = 0x01;
+    public static final byte FEEDS = 0x02;
+    public static final byte ARTICLES = 0x03;
+    // {feedId} {userId}, reverse of SUBSCRIPTIONS.
+    public static final byte SUBSCRIBERS = 0x04;
+    // {userId} {publishedAt} {feedId} {articleId}, articles fanned out to a user.
+    public static final byte INBOX = 0x05;
+    // {feedId}, number of subscribers.
+    public static final byte SUBSCRIBER_COUNTS = 0x06;
+    // {userId} {feedId}, the article id the subscription started at.
+    public static final byte SUBSCRIPTIONS = 0x07;
+
+    private static final int TAG_LENGTH = 1;
+    private static final int ID_LENGTH = Long.BYTES;
+
+    private Keys() {
+    }
+
+    public static byte[] namespace(byte tag) {
+        return new byte[]{tag};
+    }
+
+    public static byte[] user(long userId) {
+        return key(USERS, userId);
+    }
+
+    public static byte[] feed(long feedId) {
+        return key(FEEDS, feedId);
+    }
+
+    // Prefix shared by every article in a feed.
+    public static byte[] articles(long feedId) {
+        return key(ARTICLES, feedId);
+    }
+
+    public static byte[] article(long feedId, long articleId) {
+        byte[] key = new byte[TAG_LENGTH + 2 * ID_LENGTH];
+        key[0] = ARTICLES;
+        writeLong(key, TAG_LENGTH, feedId);
+        writeLong(key, TAG_LENGTH + ID_LENGTH, articleId);
+
+        return key;
+    }
+
+    // Prefix shared by every subscriber of a feed.
+    public static byte[] subscribers(long feedId) {
+        return key(SUBSCRIBERS, feedId);
+    }
+
+    public static byte[] subscriber(long feedId, long userId) {
+        byte[] key = new byte[TAG_LENGTH + 2 * ID_LENGTH];
+        key[0] = SUBSCRIBERS;
+        writeLong(key, TAG_LENGTH, feedId);
+        writeLong(key, TAG_LENGTH + ID_LENGTH, userId);
+
+        return key;
+    }
+
+    public static byte[] subscriberCount(long feedId) {
+        return key(SUBSCRIBER_COUNTS, feedId);
+    }
+
+    // Prefix shared by every subscription of a user.
+    public static byte[] subscriptions(long userId) {
+        return key(SUBSCRIPTIONS, userId);
+    }
+
+    public static byte[] subscription(long userId, long feedId) {
+        byte[] key = new byte[TAG_LENGTH + 2 * ID_LENGTH];
+        key[0] = SUBSCRIPTIONS;
+        writeLong(key, TAG_LENGTH, userId);
+        writeLong(key, TAG_LENGTH + ID_LENGTH, feedId);
+
+        return key;
+    }
+
+    // Prefix shared by every entry in a user's inbox.
+    public static byte[] inbox(long userId) {
+        return key(INBOX, userId);
+    }
+
+    // Sorts oldest first, ties by feed and then article id.
+    public static byte[] inbox(long userId, long publishedAt, long feedId, long articleId) {
+        byte[] key = new byte[TAG_LENGTH + 4 * ID_LENGTH];
+        key[0] = INBOX;
+        writeLong(key, TAG_LENGTH, userId);
+        writeLong(key, TAG_LENGTH + ID_LENGTH, publishedAt);
+        writeLong(key, TAG_LENGTH + 2 * ID_LENGTH, feedId);
+        writeLong(key, TAG_LENGTH + 3 * ID_LENGTH, articleId);
+
+        return key;
+    }
+
+    public static byte tag(byte[] key) {
+        return key[0];
+    }
+
+    // n-th id in the key, user / feed id first and then article id (for
+    // inbox keys publishedAt, feed id and article id).
+    public static long id(byte[] key, int n) {
+        return readLong(key, TAG_LENGTH + n * ID_LENGTH);
+    }
+
+    public static long id(ByteBuffer key, int n) {
+        return key.getLong(key.position() + TAG_LENGTH + n * ID_LENGTH);
+    }
+
+    public static boolean startsWith(byte[] key, byte[] prefix) {
+        if (key.length < prefix.length) {
+            return false;
+        }
+
+        for (int i = prefix.length - 1; i >= 0; i--) {
+            if (key[i] != prefix[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    // Human readable form for dumps and logs.
+    public static String toString(byte[] key) {
+        switch (key.length > 0 ? key[0] : -1) {
+            case USERS:
+                return "users/" + id(key, 0);
+            case FEEDS:
+                return "feeds/" + id(key, 0);
+            case ARTICLES:
+                return key.length > TAG_LENGTH + ID_LENGTH
+                    ? "articles/" + id(key, 0) + "/" + id(key, 1)
+                    : "articles/" + id(key, 0);
+            case SUBSCRIBERS:
+                return key.length > TAG_LENGTH + ID_LENGTH
+                    ? "subscribers/" + id(key, 0) + "/" + id(key, 1)
+                    : "subscribers/" + id(key, 0);
+            case INBOX:
+                return key.length > TAG_LENGTH + ID_LENGTH
+                    ? "inbox/" + id(key, 0) + "/" + id(key, 1) + "/" + id(key, 2) + "/" + id(key, 3)
+                    : "inbox/" + id(key, 0);
+            case SUBSCRIBER_COUNTS:
+                return "subscriber-counts/" + id(key, 0);
+            case SUBSCRIPTIONS:
+                return key.length > TAG_LENGTH + ID_LENGTH
+                    ? "subscriptions/" + id(key, 0) + "/" + id(key, 1)
+                    : "subscriptions/" + id(key, 0);
+            default:
+                return Arrays.toString(key);
+        }
+    }
+
+    private static byte[] key(byte tag, long id) {
+        byte[] key = new byte[TAG_LENGTH + ID_LENGTH];
+        key[0] = tag;
+        writeLong(key, TAG_LENGTH, id);
+
+        return key;
+    }
+
+    private static void writeLong(byte[] buffer, int offset, long value) {
+        for (int i = ID_LENGTH - 1; i >= 0; i--) {
+            buffer[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    private static long readLong(byte[] buffer, int offset) {
+        long value = 0;
+        for (int i = 0; i < ID_LENGTH; i++) {
+            value = (value << 8) | (buffer[offset + i] & 0xFF);
+        }
+
+        return value;
+    }
+}
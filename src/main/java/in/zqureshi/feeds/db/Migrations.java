@@ -0,0 +1,321 @@
+package in.zqureshi.feeds.db;
+
+import com.google.common.primitives.Longs;
+import in.zqureshi.feeds.api.User;
+import org.rocksdb.ColumnFamilyHandle;
+import org.rocksdb.RocksDB;
+import org.rocksdb.RocksDBException;
+import org.rocksdb.RocksIterator;
+import org.rocksdb.WriteBatch;
+import org.rocksdb.WriteOptions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One-shot rewrites of existing databases into the current layout. Every
+ * step is idempotent so the migrate command can simply run all of them.
+ */
+public final class Migrations {
+    private static final Logger LOGGER = LoggerFactory.getLogger(Migrations.class);
+
+    private static final int BATCH_SIZE = 1000;
+
+    private static final String LEGACY_USERS = "/data/users/";
+    private static final String LEGACY_FEEDS = "/data/feeds/";
+    private static final String LEGACY_ARTICLES = "/data/articles/";
+
+    private Migrations() {
+    }
+
+    /**
+     * Moves records stored under path-style keys such as
+     * {@code /data/articles/{feedId}/{articleId}} to the binary keys from
+     * {@link Keys}. Returns the number of records moved.
+     */
+    public static long legacyKeys(FeedsDB feedsDB) throws RocksDBException {
+        RocksDB db = feedsDB.rocksDB();
+        long moved = 0;
+
+        try (RocksIterator it = db.newIterator();
+             WriteOptions options = new WriteOptions();
+             WriteBatch batch = new WriteBatch()) {
+            for (it.seek("/data/".getBytes()); it.isValid(); it.next()) {
+                String key = new String(it.key());
+                if (!key.startsWith("/data/")) {
+                    break;
+                }
+
+                byte[] migrated = legacyKey(key);
+                if (migrated == null) {
+                    continue;
+                }
+
+                batch.put(feedsDB.family(migrated), migrated, it.value());
+                batch.delete(it.key());
+                moved++;
+
+                if (batch.count() >= 2 * BATCH_SIZE) {
+                    db.write(options, batch);
+                    batch.clear();
+                }
+            }
+
+            db.write(options, batch);
+        }
+
+        LOGGER.info("Moved {} records to binary keys", moved);
+        return moved;
+    }
+
+    /**
+     * Moves counters and binary keyed records written to the default column
+     * family by older versions into the family {@link Family#of} picks for
+     * them. A counter that already exists in its family keeps the larger of
+     * the two ceilings. Returns the number of keys moved.
+     */
+    public static long columnFamilies(FeedsDB feedsDB) throws RocksDBException {
+        RocksDB db = feedsDB.rocksDB();
+        ColumnFamilyHandle legacy = feedsDB.family(Family.DEFAULT);
+        long moved = 0;
+
+        try (RocksIterator it = db.newIterator(legacy);
+             WriteOptions options = new WriteOptions();
+             WriteBatch batch = new WriteBatch()) {
+            for (it.seekToFirst(); it.isValid(); it.next()) {
+                Family family = Family.of(it.key());
+                if (family == Family.DEFAULT) {
+                    continue;
+                }
+
+                byte[] value = it.value();
+                if (family == Family.COUNTERS) {
+                    byte[] current = db.get(feedsDB.family(family), it.key());
+                    if (current != null && Longs.fromByteArray(current) > Longs.fromByteArray(value)) {
+                        value = current;
+                    }
+                }
+
+                batch.put(feedsDB.family(family), it.key(), value);
+                batch.delete(legacy, it.key());
+                moved++;
+
+                if (batch.count() >= 2 * BATCH_SIZE) {
+                    db.write(options, batch);
+                    batch.clear();
+                }
+            }
+
+            db.write(options, batch);
+        }
+
+        LOGGER.info("Moved {} keys to their column families", moved);
+        return moved;
+    }
+
+    /**
+     * Moves the subscriptions held in user records to a subscription record
+     * each and rewrites the user without them. Returns the number of
+     * subscriptions moved.
+     */
+    public static long subscriptions(FeedsDB feedsDB) throws IOException {
+        long moved = 0;
+        FeedsDB.Batch batch = feedsDB.batch();
+
+        try (FeedsDB.PrefixIterator it = feedsDB.scan(Keys.namespace(Keys.USERS))) {
+            while (it.hasNext()) {
+                User user = Records.decodeUser(it.next());
+                if (user.getFeeds().isEmpty()) {
+                    continue;
+                }
+
+                for (Map.Entry<Long, Long> feed : user.getFeeds().entrySet()) {
+                    batch.put(Keys.subscription(user.getId(), feed.getKey()), Records.encodeSubscription(feed.getValue()));
+                    moved++;
+                }
+                batch.put(Keys.user(user.getId()), Records.encode(new User(user.getId(), Collections.emptyMap())));
+
+                if (batch.size() >= BATCH_SIZE) {
+                    feedsDB.write(batch);
+                    batch = feedsDB.batch();
+                }
+            }
+        }
+
+        if (batch.size() > 0) {
+            feedsDB.write(batch);
+        }
+
+        LOGGER.info("Moved {} subscriptions out of user records", moved);
+        return moved;
+    }
+
+    /**
+     * Writes the subscriber key of every subscription record and recounts
+     * the subscribers of every feed, for databases from before the
+     * subscriber index. Run after {@link #subscriptions}. Returns the number
+     * of subscriptions indexed.
+     */
+    public static long subscribers(FeedsDB feedsDB) throws IOException {
+        long indexed = 0;
+        Map<Long, Long> counts = new HashMap<>();
+        FeedsDB.Batch batch = feedsDB.batch();
+
+        try (FeedsDB.PrefixIterator it = feedsDB.scan(Keys.namespace(Keys.SUBSCRIPTIONS))) {
+            while (it.hasNext()) {
+                byte[] key = it.nextKey();
+                it.next();
+
+                long userId = Keys.id(key, 0);
+                long feedId = Keys.id(key, 1);
+                batch.put(Keys.subscriber(feedId, userId), new byte[0]);
+                counts.merge(feedId, 1L, Long::sum);
+                indexed++;
+
+                if (batch.size() >= BATCH_SIZE) {
+                    feedsDB.write(batch);
+                    batch = feedsDB.batch();
+                }
+            }
+        }
+
+        for (Map.Entry<Long, Long> count : counts.entrySet()) {
+            // Deleted first so the count starts over.
+            batch.delete(Keys.subscriberCount(count.getKey()))
+                .increment(Keys.subscriberCount(count.getKey()), count.getValue());
+
+            if (batch.size() >= BATCH_SIZE) {
+                feedsDB.write(batch);
+                batch = feedsDB.batch();
+            }
+        }
+
+        if (batch.size() > 0) {
+            feedsDB.write(batch);
+        }
+
+        LOGGER.info("Indexed {} subscriptions", indexed);
+        return indexed;
+    }
+
+    /**
+     * Makes the subscriber keys and counts of every feed match the
+     * subscription records, which are what a user is subscribed to as far
+     * as anything else goes. Sharded databases keep the two on different
+     * shards and need this after a crash, see {@link FeedsDB#write}.
+     * Returns the number of keys and counts fixed.
+     */
+    public static long reconcileSubscribers(FeedsDB feedsDB) throws IOException {
+        Map<Long, Long> counts = new HashMap<>();
+        long fixed = 0;
+
+        // Subscriber keys without a subscription go, the rest are counted.
+        try (FeedsDB.PrefixIterator it = feedsDB.scan(Keys.namespace(Keys.SUBSCRIBERS))) {
+            for (List<byte[]> keys = nextKeys(it); !keys.isEmpty(); keys = nextKeys(it)) {
+                List<byte[]> subscriptions = new ArrayList<>(keys.size());
+                for (byte[] key : keys) {
+                    subscriptions.add(Keys.subscription(Keys.id(key, 1), Keys.id(key, 0)));
+                }
+                List<byte[]> found = feedsDB.multiGet(subscriptions);
+
+                FeedsDB.Batch batch = feedsDB.batch();
+                for (int i = 0; i < keys.size(); i++) {
+                    if (found.get(i) == null) {
+                        batch.delete(keys.get(i));
+                        fixed++;
+                    } else {
+                        counts.merge(Keys.id(keys.get(i), 0), 1L, Long::sum);
+                    }
+                }
+                write(feedsDB, batch);
+            }
+        }
+
+        // Subscriptions without a subscriber key get one and are counted.
+        try (FeedsDB.PrefixIterator it = feedsDB.scan(Keys.namespace(Keys.SUBSCRIPTIONS))) {
+            for (List<byte[]> keys = nextKeys(it); !keys.isEmpty(); keys = nextKeys(it)) {
+                List<byte[]> subscribers = new ArrayList<>(keys.size());
+                for (byte[] key : keys) {
+                    subscribers.add(Keys.subscriber(Keys.id(key, 1), Keys.id(key, 0)));
+                }
+                List<byte[]> found = feedsDB.multiGet(subscribers);
+
+                FeedsDB.Batch batch = feedsDB.batch();
+                for (int i = 0; i < keys.size(); i++) {
+                    if (found.get(i) == null) {
+                        batch.put(subscribers.get(i), new byte[0]);
+                        counts.merge(Keys.id(keys.get(i), 1), 1L, Long::sum);
+                        fixed++;
+                    }
+                }
+                write(feedsDB, batch);
+            }
+        }
+
+        // Counts that are off start over, so do feeds left without any.
+        FeedsDB.Batch batch = feedsDB.batch();
+        try (FeedsDB.PrefixIterator it = feedsDB.scan(Keys.namespace(Keys.SUBSCRIBER_COUNTS))) {
+            while (it.hasNext()) {
+                long feedId = Keys.id(it.nextKey(), 0);
+                long count = counts.getOrDefault(feedId, 0L);
+                counts.remove(feedId);
+
+                if (FeedsDB.count(it.next()) != count) {
+                    batch.delete(Keys.subscriberCount(feedId)).increment(Keys.subscriberCount(feedId), count);
+                    fixed++;
+                }
+            }
+        }
+        for (Map.Entry<Long, Long> count : counts.entrySet()) {
+            batch.increment(Keys.subscriberCount(count.getKey()), count.getValue());
+            fixed++;
+        }
+        write(feedsDB, batch);
+
+        LOGGER.info("Fixed {} subscriber keys and counts", fixed);
+        return fixed;
+    }
+
+    // Up to BATCH_SIZE more keys of it, none once it's done.
+    private static List<byte[]> nextKeys(FeedsDB.PrefixIterator it) {
+        List<byte[]> keys = new ArrayList<>(BATCH_SIZE);
+        while (keys.size() < BATCH_SIZE && it.hasNext()) {
+            keys.add(it.nextKey());
+            it.next();
+        }
+
+        return keys;
+    }
+
+    private static void write(FeedsDB feedsDB, FeedsDB.Batch batch) {
+        if (batch.size() > 0) {
+            feedsDB.write(batch);
+        }
+    }
+
+    // Binary key for a legacy path, null for anything that isn't a record.
+    static byte[] legacyKey(String key) {
+        try {
+            if (key.startsWith(LEGACY_USERS)) {
+                return Keys.user(Long.parseLong(key.substring(LEGACY_USERS.length())));
+            } else if (key.startsWith(LEGACY_FEEDS)) {
+                return Keys.feed(Long.parseLong(key.substring(LEGACY_FEEDS.length())));
+            } else if (key.startsWith(LEGACY_ARTICLES)) {
+                String[] ids = key.substring(LEGACY_ARTICLES.length()).split("/");
+                if (ids.length == 2) {
+                    return Keys.article(Long.parseLong(ids[0]), Long.parseLong(ids[1]));
+                }
+            }
+        } catch (NumberFormatException e) {
+            LOGGER.warn("Skipping unexpected key {}", key);
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,434 @@
+package in.zqureshi.feeds.db;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
+import in.zqureshi.feeds.api.Article;
+import in.zqureshi.feeds.api.Feed;
+import in.zqureshi.feeds.api.User;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Storage format for Article, Feed, User, subscription and update records. A record starts with a
+ * format version byte followed by unsigned varints and length prefixed UTF-8
+ * text, no field names and no parsing beyond reading the bytes in order.
+ *
+ * <pre>
+ * article  2 {id} {publishedAt + 1} {text length + 1} {text}   (0 is null)
+ * feed     2 {id} {article count} {article}...   (articles without version)
+ * user     1 {id} {feed count} ({feedId} {index})...
+ * subscription  1 {index}
+ * update   1 {sequence} {count} {mutation count} ({op} {key length} {key} {value length + 1} {value})...
+ * </pre>
+ *
+ * Users are written without feeds now, each subscription is a record of
+ * its own under {@link Keys#subscription}. Older user records still carry
+ * them until migrated.
+ *
+ * Updates aren't stored, they carry writes from the log to replicas. op
+ * is the ordinal of {@link FeedsDB.Op}, deletes have a null value.
+ *
+ * Version 1 articles and feeds have no publishedAt, it reads back as null.
+ *
+ * Rows written as JSON by older versions start with {@code '{'}, which is no
+ * valid version, and are still read through Jackson.
+ */
+public final class Records {
+    public static final byte V1 = 0x01;
+    // Articles gained publishedAt.
+    public static final byte V2 = 0x02;
+
+    private static final byte LEGACY_JSON = '{';
+    private static final ObjectMapper LEGACY = new ObjectMapper();
+
+    // Scratch space for transcoding out of direct buffers.
+    private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[4096]);
+    private static final ThreadLocal<byte[]> SCRATCH_DIGITS = ThreadLocal.withInitial(() -> new byte[20]);
+
+    private static final byte[] JSON_ID = "{\"id\":".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] JSON_TEXT = ",\"text\":".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] JSON_PUBLISHED_AT = ",\"publishedAt\":".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] JSON_NULL = "null".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HEX = "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+
+    private Records() {
+    }
+
+    public static byte[] encode(Article article) {
+        Writer out = new Writer(24 + length(article.getText()));
+        out.write(V2);
+        writeArticle(out, article);
+
+        return out.toByteArray();
+    }
+
+    public static byte[] encode(Feed feed) {
+        Writer out = new Writer(16);
+        out.write(V2);
+        out.writeVarint(feed.getId());
+
+        List<Article> articles = feed.getArticles() == null ? Collections.emptyList() : feed.getArticles();
+        out.writeVarint(articles.size());
+        for (Article article : articles) {
+            writeArticle(out, article);
+        }
+
+        return out.toByteArray();
+    }
+
+    public static byte[] encode(User user) {
+        Map<Long, Long> feeds = user.getFeeds() == null ? Collections.emptyMap() : user.getFeeds();
+
+        Writer out = new Writer(16 + 10 * feeds.size());
+        out.write(V1);
+        out.writeVarint(user.getId());
+        out.writeVarint(feeds.size());
+        for (Map.Entry<Long, Long> feed : feeds.entrySet()) {
+            out.writeVarint(feed.getKey());
+            out.writeVarint(feed.getValue());
+        }
+
+        return out.toByteArray();
+    }
+
+    // index is the article id the subscription reads on from.
+    public static byte[] encodeSubscription(long index) {
+        Writer out = new Writer(11);
+        out.write(V1);
+        out.writeVarint(index);
+
+        return out.toByteArray();
+    }
+
+    public static byte[] encode(FeedsDB.Update update) {
+        int size = 32;
+        for (FeedsDB.Mutation mutation : update.mutations()) {
+            size += 12 + mutation.key().length + (mutation.value() == null ? 0 : mutation.value().length);
+        }
+
+        Writer out = new Writer(size);
+        out.write(V1);
+        out.writeVarint(update.sequence());
+        out.writeVarint(update.next() - update.sequence());
+        out.writeVarint(update.mutations().size());
+        for (FeedsDB.Mutation mutation : update.mutations()) {
+            out.write(mutation.op().ordinal());
+            out.writeVarint(mutation.key().length);
+            out.write(mutation.key(), 0, mutation.key().length);
+            if (mutation.value() == null) {
+                out.writeVarint(0);
+            } else {
+                out.writeVarint(mutation.value().length + 1);
+                out.write(mutation.value(), 0, mutation.value().length);
+            }
+        }
+
+        return out.toByteArray();
+    }
+
+    // Reads one update from in, which is left at whatever follows it.
+    public static FeedsDB.Update decodeUpdate(ByteBuffer in) throws IOException {
+        version(in, V1);
+        long sequence = readVarint(in);
+        long count = readVarint(in);
+        int size = (int) readVarint(in);
+
+        FeedsDB.Op[] ops = FeedsDB.Op.values();
+        List<FeedsDB.Mutation> mutations = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            int op = in.get();
+            if (op < 0 || op >= ops.length) {
+                throw new IOException("Unknown mutation " + op);
+            }
+
+            byte[] key = readBytes(in, (int) readVarint(in));
+            int length = (int) readVarint(in);
+            byte[] value = length == 0 ? null : readBytes(in, length - 1);
+            mutations.add(new FeedsDB.Mutation(ops[op], key, value));
+        }
+
+        return new FeedsDB.Update(sequence, count, mutations);
+    }
+
+    public static Article decodeArticle(byte[] record) throws IOException {
+        return decodeArticle(ByteBuffer.wrap(record));
+    }
+
+    public static Article decodeArticle(ByteBuffer record) throws IOException {
+        if (isLegacy(record)) {
+            return LEGACY.readValue(new ByteBufferBackedInputStream(record), Article.class);
+        }
+
+        return readArticle(record, version(record, V2));
+    }
+
+    public static Feed decodeFeed(byte[] record) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(record);
+        if (isLegacy(in)) {
+            return LEGACY.readValue(record, Feed.class);
+        }
+
+        byte version = version(in, V2);
+        long id = readVarint(in);
+        int count = (int) readVarint(in);
+
+        List<Article> articles = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            articles.add(readArticle(in, version));
+        }
+
+        return new Feed(id, articles);
+    }
+
+    public static User decodeUser(byte[] record) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(record);
+        if (isLegacy(in)) {
+            return LEGACY.readValue(record, User.class);
+        }
+
+        version(in, V1);
+        long id = readVarint(in);
+        int count = (int) readVarint(in);
+
+        Map<Long, Long> feeds = new LinkedHashMap<>(Math.max(16, 2 * count));
+        for (int i = 0; i < count; i++) {
+            feeds.put(readVarint(in), readVarint(in));
+        }
+
+        return new User(id, feeds);
+    }
+
+    public static long decodeSubscription(byte[] record) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(record);
+        version(in, V1);
+
+        return readVarint(in);
+    }
+
+    /**
+     * Writes an article record as the same JSON Jackson would produce for
+     * the Article, straight from the record bytes. Legacy rows already are
+     * that JSON and are copied as is.
+     */
+    public static void writeArticleJson(ByteBuffer record, OutputStream out) throws IOException {
+        byte[] bytes;
+        int offset;
+        int length = record.remaining();
+
+        if (record.hasArray()) {
+            bytes = record.array();
+            offset = record.arrayOffset() + record.position();
+        } else {
+            bytes = SCRATCH.get();
+            if (bytes.length < length) {
+                bytes = new byte[Math.max(length, 2 * bytes.length)];
+                SCRATCH.set(bytes);
+            }
+            record.duplicate().get(bytes, 0, length);
+            offset = 0;
+        }
+
+        if (length > 0 && bytes[offset] == LEGACY_JSON) {
+            out.write(bytes, offset, length);
+            return;
+        }
+
+        ByteBuffer in = ByteBuffer.wrap(bytes, offset, length);
+        byte version = version(in, V2);
+
+        out.write(JSON_ID);
+        writeAscii(out, readVarint(in));
+        out.write(JSON_TEXT);
+
+        long publishedAt = version >= V2 ? readVarint(in) - 1 : -1;
+        long textLength = readVarint(in) - 1;
+        if (textLength > in.remaining()) {
+            throw new IOException("Truncated article record");
+        } else if (textLength < 0) {
+            out.write(JSON_NULL);
+        } else {
+            writeJsonString(out, bytes, in.position(), (int) textLength);
+        }
+
+        // Left out when null, same as Article's JSON.
+        if (publishedAt >= 0) {
+            out.write(JSON_PUBLISHED_AT);
+            writeAscii(out, publishedAt);
+        }
+        out.write('}');
+    }
+
+    private static boolean isLegacy(ByteBuffer record) {
+        return record.hasRemaining() && record.get(record.position()) == LEGACY_JSON;
+    }
+
+    // Version of the record in, anything from V1 to latest is readable.
+    private static byte version(ByteBuffer in, byte latest) throws IOException {
+        byte version = in.get();
+        if (version < V1 || version > latest) {
+            throw new IOException("Unknown record version " + version);
+        }
+
+        return version;
+    }
+
+    private static void writeArticle(Writer out, Article article) {
+        out.writeVarint(article.getId());
+        out.writeVarint(article.getPublishedAt() == null ? 0 : article.getPublishedAt() + 1);
+
+        if (article.getText() == null) {
+            out.writeVarint(0);
+        } else {
+            byte[] text = article.getText().getBytes(StandardCharsets.UTF_8);
+            out.writeVarint(text.length + 1);
+            out.write(text, 0, text.length);
+        }
+    }
+
+    private static Article readArticle(ByteBuffer in, byte version) throws IOException {
+        long id = readVarint(in);
+        long publishedAt = version >= V2 ? readVarint(in) - 1 : -1;
+        Long published = publishedAt < 0 ? null : publishedAt;
+
+        int length = (int) readVarint(in) - 1;
+        if (length < 0) {
+            return new Article(id, null, published);
+        }
+        if (length > in.remaining()) {
+            throw new IOException("Truncated article record");
+        }
+
+        String text;
+        if (in.hasArray()) {
+            text = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+            in.position(in.position() + length);
+        } else {
+            byte[] bytes = new byte[length];
+            in.get(bytes);
+            text = new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        return new Article(id, text, published);
+    }
+
+    public static long readVarint(ByteBuffer in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (!in.hasRemaining()) {
+                throw new IOException("Truncated varint");
+            }
+
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+
+        throw new IOException("Malformed varint");
+    }
+
+    private static byte[] readBytes(ByteBuffer in, int length) throws IOException {
+        if (length < 0 || length > in.remaining()) {
+            throw new IOException("Truncated record");
+        }
+
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+
+        return bytes;
+    }
+
+    private static int length(String text) {
+        return text == null ? 0 : 3 * text.length();
+    }
+
+    private static void writeAscii(OutputStream out, long value) throws IOException {
+        byte[] digits = SCRATCH_DIGITS.get();
+        int i = digits.length;
+        do {
+            digits[--i] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+
+        out.write(digits, i, digits.length - i);
+    }
+
+    // Quoted and escaped the way JSON wants, runs of plain bytes (UTF-8
+    // multi byte sequences included) go out in one write.
+    private static void writeJsonString(OutputStream out, byte[] text, int offset, int length) throws IOException {
+        out.write('"');
+
+        int run = offset;
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            int b = text[i] & 0xFF;
+            if (b >= 0x20 && b != '"' && b != '\\') {
+                continue;
+            }
+
+            out.write(text, run, i - run);
+            run = i + 1;
+
+            out.write('\\');
+            switch (b) {
+                case '"':
+                case '\\':
+                    out.write(b);
+                    break;
+                case '\n':
+                    out.write('n');
+                    break;
+                case '\r':
+                    out.write('r');
+                    break;
+                case '\t':
+                    out.write('t');
+                    break;
+                case '\b':
+                    out.write('b');
+                    break;
+                case '\f':
+                    out.write('f');
+                    break;
+                default:
+                    out.write('u');
+                    out.write('0');
+                    out.write('0');
+                    out.write(HEX[b >> 4]);
+                    out.write(HEX[b & 0xF]);
+            }
+        }
+        out.write(text, run, end - run);
+
+        out.write('"');
+    }
+
+    // Unsigned LEB128, 7 bits a byte with the high bit set on all but the last.
+    public static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static class Writer extends ByteArrayOutputStream {
+        Writer(int size) {
+            super(size);
+        }
+
+        void writeVarint(long value) {
+            Records.writeVarint(this, value);
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package in.zqureshi.feeds.db;
+
+import org.rocksdb.AbstractNativeReference;
+import org.rocksdb.Cache;
+import org.rocksdb.ColumnFamilyDescriptor;
+import org.rocksdb.ColumnFamilyHandle;
+import org.rocksdb.DBOptions;
+import org.rocksdb.RocksDB;
+import org.rocksdb.RocksDBException;
+import org.rocksdb.RocksIterator;
+import org.rocksdb.WriteBatch;
+import org.rocksdb.WriteOptions;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+
+/**
+ * One RocksDB instance of a FeedsDB, with every column family and its own
+ * WAL, memtables and compactions. A FeedsDB is one of these unless more
+ * paths are configured, see {@link FeedsDB#shard(byte[])} for what goes
+ * where.
+ *
+ * Every shard of a sharded database remembers which one it is and out of
+ * how many, records are spread by hashing their ids so opening them in
+ * another order or with another count would lose track of them.
+ */
+class Shard implements AutoCloseable {
+    // "{index}/{count}", only written when there's more than one shard.
+    private static final byte[] SHARD_KEY = "/shard".getBytes();
+    // Only there between a clean shutdown and the next open.
+    private static final byte[] CLEAN_KEY = "/clean".getBytes();
+
+    private final String path;
+    private final RocksDB db;
+    private final EnumMap<Family, ColumnFamilyHandle> families = new EnumMap<>(Family.class);
+    private GroupCommitWriter groupCommit;
+
+    // Native objects that have to outlive the DB go into handles, cache is
+    // shared with the other shards when not null.
+    Shard(String path, int index, int count, EngineFactory engine, Cache cache,
+          List<AbstractNativeReference> handles) throws RocksDBException {
+        this.path = path;
+
+        DBOptions options = new DBOptions()
+            .setCreateIfMissing(true)
+            .setCreateMissingColumnFamilies(true)
+            .setWalSizeLimitMB(1024);
+        engine.configure(options);
+        handles.add(options);
+
+        List<ColumnFamilyDescriptor> descriptors = new ArrayList<>();
+        for (Family family : Family.values()) {
+            Cache familyCache = cache;
+            if (familyCache == null) {
+                familyCache = engine.newBlockCache();
+                handles.add(familyCache);
+            }
+
+            descriptors.add(new ColumnFamilyDescriptor(family.columnFamilyName(), family.options(engine, familyCache, handles)));
+        }
+
+        List<ColumnFamilyHandle> opened = new ArrayList<>();
+        db = RocksDB.open(options, path, descriptors, opened);
+        for (Family family : Family.values()) {
+            families.put(family, opened.get(family.ordinal()));
+        }
+
+        try {
+            checkShard(index, count);
+        } catch (RocksDBException | RuntimeException e) {
+            closeDB();
+            throw e;
+        }
+    }
+
+    RocksDB db() {
+        return db;
+    }
+
+    ColumnFamilyHandle family(Family family) {
+        return families.get(family);
+    }
+
+    ColumnFamilyHandle family(byte[] key) {
+        return family(Family.of(key));
+    }
+
+    void groupCommit(GroupCommitWriter groupCommit) {
+        this.groupCommit = groupCommit;
+    }
+
+    // batch should only hold keys of this shard.
+    void write(WriteOptions writeOptions, FeedsDB.Batch batch) {
+        if (groupCommit != null) {
+            groupCommit.write(batch);
+            return;
+        }
+
+        try (WriteBatch writeBatch = new WriteBatch()) {
+            batch.writeTo(writeBatch);
+            db.write(writeOptions, writeBatch);
+        } catch (RocksDBException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Whether the last close was a clean shutdown that called
+     * {@link #closedCleanly()}, and forgets that it was so dying before
+     * the next one shows.
+     */
+    boolean wasClosedCleanly() throws RocksDBException {
+        if (db.get(families.get(Family.DEFAULT), CLEAN_KEY) == null) {
+            return false;
+        }
+
+        db.delete(families.get(Family.DEFAULT), CLEAN_KEY);
+        return true;
+    }
+
+    // Once nothing writes anymore.
+    void closedCleanly() throws RocksDBException {
+        db.put(families.get(Family.DEFAULT), CLEAN_KEY, new byte[0]);
+    }
+
+    // Stops taking writes once the group commit writer has drained.
+    void drain() throws InterruptedException {
+        if (groupCommit != null) {
+            groupCommit.close();
+        }
+    }
+
+    // Lets the group commit writer drain first.
+    @Override
+    public void close() throws InterruptedException {
+        drain();
+        closeDB();
+    }
+
+    void closeDB() {
+        families.values().forEach(ColumnFamilyHandle::close);
+        db.close();
+    }
+
+    private void checkShard(int index, int count) throws RocksDBException {
+        String expected = index + "/" + count;
+        byte[] stored = db.get(families.get(Family.DEFAULT), SHARD_KEY);
+
+        if (stored != null) {
+            if (!expected.equals(new String(stored))) {
+                throw new IllegalStateException(path + " is shard " + new String(stored) + ", not " + expected);
+            }
+            return;
+        }
+
+        if (count == 1) {
+            return;
+        }
+        if (hasRecords()) {
+            throw new IllegalStateException(path + " already has records, it can't become shard " + expected);
+        }
+        db.put(families.get(Family.DEFAULT), SHARD_KEY, expected.getBytes());
+    }
+
+    private boolean hasRecords() {
+        for (Family family : new Family[]{Family.USERS, Family.FEEDS}) {
+            try (RocksIterator it = db.newIterator(families.get(family))) {
+                it.seekToFirst();
+                if (it.isValid()) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+}
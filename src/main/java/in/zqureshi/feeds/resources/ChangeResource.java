@@ -0,0 +1,214 @@
+package in.zqureshi.feeds.resources;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import in.zqureshi.feeds.api.Change;
+import in.zqureshi.feeds.api.Changes;
+import in.zqureshi.feeds.db.FeedsDB;
+import in.zqureshi.feeds.db.Keys;
+import in.zqureshi.feeds.db.Records;
+import io.dropwizard.lifecycle.Managed;
+
+import javax.ws.rs.BadRequestException;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Everything written, in order, read from the WAL with sequence numbers as
+ * cursors. Consumers keep the next sequence and only ever read what is new
+ * instead of rescanning the keyspace. Only records a change is about show
+ * up, whatever is derived from them (counters, inboxes, the subscriber
+ * index and counts) is left out.
+ *
+ * Where each page stopped the log is kept open, keyed by the next
+ * sequence, so a consumer that comes back for the following page carries
+ * on from there instead of reading through the WAL to get to it again.
+ */
+@Path("/v1/changes")
+@Produces(MediaType.APPLICATION_JSON)
+public class ChangeResource implements Managed {
+    private static final int CHANGES_PAGE = 100;
+    private static final int MAX_CHANGES_PAGE = 1000;
+
+    public static final String NEXT_HEADER = "Feeds-Next-Sequence";
+    public static final String LATEST_HEADER = "Feeds-Latest-Sequence";
+    // Roughly one per consumer, given up on once they stop asking.
+    private static final int MAX_TAILS = 64;
+    private static final long TAIL_IDLE_SECONDS = 60;
+
+    private final FeedsDB db;
+    // Taken out while a page is read, so each one is only used by a single
+    // request at a time. Removed explicitly only when taken out or on stop.
+    private final Cache<Long, FeedsDB.ChangeIterator> tails = CacheBuilder.newBuilder()
+        .maximumSize(MAX_TAILS)
+        .expireAfterAccess(TAIL_IDLE_SECONDS, TimeUnit.SECONDS)
+        .<Long, FeedsDB.ChangeIterator>removalListener(removal -> {
+            if (removal.getCause() != RemovalCause.EXPLICIT) {
+                removal.getValue().close();
+            }
+        })
+        .build();
+
+    public ChangeResource(FeedsDB db) {
+        this.db = db;
+    }
+
+    /**
+     * Up to limit changes from sequence since on, the oldest still logged
+     * without it. Writes are never split across pages, and a page stops
+     * after limit writes even when they changed nothing listed here. Gone
+     * when the log no longer goes back to since, the consumer has to start
+     * over from a scan.
+     */
+    @GET
+    public Changes listChanges(@QueryParam("since") Optional<Long> since,
+                               @QueryParam("limit") Optional<Integer> limit) throws IOException {
+        int size = Math.min(MAX_CHANGES_PAGE, Math.max(1, limit.orElse(CHANGES_PAGE)));
+        long latest = db.latestSequence();
+        // Sequence numbers start at 1.
+        long start = Math.max(1, since.orElse(1L));
+
+        List<Change> changes = new ArrayList<>(size);
+        long next = read(start, since.isPresent(), size, update -> {
+            List<FeedsDB.Mutation> mutations = update.mutations();
+            for (int i = 0; i < mutations.size(); i++) {
+                long sequence = update.sequence() + i;
+                Change change = sequence >= start ? decode(sequence, mutations.get(i)) : null;
+                if (change != null) {
+                    changes.add(change);
+                }
+            }
+
+            return changes.size() < size;
+        });
+
+        return new Changes(changes, since.isPresent() || next > start ? next : latest + 1, latest);
+    }
+
+    /**
+     * Up to limit writes from sequence since on as they were logged, keys
+     * and values included, for replicas to apply as is (see
+     * {@link Records#encode(FeedsDB.Update)}). Same paging as listChanges,
+     * where the next page starts and the latest sequence come back as
+     * headers.
+     */
+    @GET
+    @Path("/log")
+    @Produces(MediaType.APPLICATION_OCTET_STREAM)
+    public Response log(@QueryParam("since") Long since,
+                        @QueryParam("limit") Optional<Integer> limit) throws IOException {
+        if (since == null) {
+            throw new BadRequestException("since is required");
+        }
+
+        int size = Math.min(MAX_CHANGES_PAGE, Math.max(1, limit.orElse(CHANGES_PAGE)));
+        long latest = db.latestSequence();
+        long start = Math.max(1, since);
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        long next = read(start, true, size, update -> {
+            body.write(Records.encode(update));
+            return true;
+        });
+
+        return Response.ok(body.toByteArray())
+            .header(NEXT_HEADER, next)
+            .header(LATEST_HEADER, latest)
+            .build();
+    }
+
+    @Override
+    public void start() {
+    }
+
+    // Before the database closes.
+    @Override
+    public void stop() {
+        tails.asMap().values().forEach(FeedsDB.ChangeIterator::close);
+        tails.invalidateAll();
+    }
+
+    /**
+     * Hands updates from start on to page, through the tail the previous
+     * page left open at start when there is one. Stops after limit updates
+     * or once page returns false, and returns where the next page starts.
+     * Gone when the log no longer reaches back to start, unless the caller
+     * is fine with whatever is oldest.
+     */
+    private long read(long start, boolean exact, int limit, Page page) throws IOException {
+        long next = start;
+        FeedsDB.ChangeIterator it = tails.asMap().remove(start);
+        if (it == null) {
+            it = db.tail(start);
+        }
+
+        try {
+            for (int updates = 0; updates < limit && it.hasNext(); updates++) {
+                FeedsDB.Update update = it.next();
+                if (exact && updates == 0 && update.sequence() > start) {
+                    throw new WebApplicationException("Changes since " + start + " are no longer logged", Response.Status.GONE);
+                }
+
+                next = update.next();
+                if (!page.add(update)) {
+                    break;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            it.close();
+            throw e;
+        }
+
+        // Anything read ahead into the page after this one has gone unseen.
+        if (it.sequence() == next) {
+            tails.put(next, it);
+        } else {
+            it.close();
+        }
+
+        return next;
+    }
+
+    @FunctionalInterface
+    private interface Page {
+        // Return false once the page is full.
+        boolean add(FeedsDB.Update update) throws IOException;
+    }
+
+    // The change a mutation stands for, null for derived records.
+    static Change decode(long sequence, FeedsDB.Mutation mutation) throws IOException {
+        byte[] key = mutation.key();
+        boolean put = mutation.op() == FeedsDB.Op.PUT;
+        if (key.length == 0) {
+            return null;
+        }
+
+        switch (Keys.tag(key)) {
+            case Keys.USERS:
+                return put ? new Change(sequence, Change.Type.USER_CREATED, Keys.id(key, 0), null, null) : null;
+            case Keys.FEEDS:
+                return put ? new Change(sequence, Change.Type.FEED_CREATED, null, Keys.id(key, 0), null) : null;
+            case Keys.ARTICLES:
+                return put
+                    ? new Change(sequence, Change.Type.ARTICLE_PUBLISHED, null, Keys.id(key, 0), Records.decodeArticle(mutation.value()))
+                    : null;
+            case Keys.SUBSCRIPTIONS:
+                return new Change(sequence, put ? Change.Type.SUBSCRIBED : Change.Type.UNSUBSCRIBED,
+                    Keys.id(key, 0), Keys.id(key, 1), null);
+            default:
+                return null;
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package in.zqureshi.feeds.resources;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.ForwardingList;
+import com.google.common.collect.Iterables;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+
+/**
+ * Runs the per-feed reads of one request concurrently on a shared executor
+ * and hands back the results in the order they were asked for.
+ *
+ * A request never has more than maxConcurrency reads in flight, so one user
+ * with hundreds of subscriptions can't take over the pool. Whatever isn't
+ * done by the deadline is cancelled and left out, the request returns the
+ * feeds it has instead of waiting on a slow one and says which it left out.
+ */
+public class FeedFanOut {
+    private static final Logger LOGGER = LoggerFactory.getLogger(FeedFanOut.class);
+
+    static final int MIN_BATCH = 16;
+
+    private final ExecutorService executor;
+    private final int maxConcurrency;
+    private final long timeoutNanos;
+    private final Meter timeouts;
+
+    public FeedFanOut(ExecutorService executor, int maxConcurrency, long timeoutMillis, MetricRegistry metrics) {
+        this.executor = executor;
+        this.maxConcurrency = maxConcurrency;
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        this.timeouts = metrics.meter(MetricRegistry.name(FeedFanOut.class, "timeouts"));
+    }
+
+    /**
+     * Splits startIds into one batch per allowed concurrent read, none
+     * smaller than MIN_BATCH since a batch costs about as much as a single
+     * feed, and reads them with readAll. Results come back flattened in the
+     * order of startIds, a batch past the deadline is left out as a whole
+     * and its feed ids end up in {@link Results#missed()}.
+     */
+    public <T> Results<T> readBatched(Map<Long, Long> startIds,
+                                      Function<Map<Long, Long>, Callable<List<T>>> batchReader) throws IOException {
+        int batchSize = Math.max(MIN_BATCH, (startIds.size() + maxConcurrency - 1) / maxConcurrency);
+
+        List<Map<Long, Long>> batches = new ArrayList<>();
+        List<Callable<List<T>>> reads = new ArrayList<>();
+        for (List<Map.Entry<Long, Long>> entries : Iterables.partition(startIds.entrySet(), batchSize)) {
+            Map<Long, Long> batch = new LinkedHashMap<>();
+            entries.forEach(entry -> batch.put(entry.getKey(), entry.getValue()));
+            batches.add(batch);
+            reads.add(batchReader.apply(batch));
+        }
+
+        List<Integer> missedBatches = new ArrayList<>();
+        List<T> results = new ArrayList<>(startIds.size());
+        readAll(reads, missedBatches).forEach(results::addAll);
+
+        List<Long> missed = new ArrayList<>();
+        missedBatches.forEach(i -> missed.addAll(batches.get(i).keySet()));
+
+        return new Results<>(results, missed);
+    }
+
+    public <T> List<T> readAll(List<Callable<T>> reads) throws IOException {
+        return readAll(reads, new ArrayList<>());
+    }
+
+    // Indexes of the reads left out go into missed.
+    private <T> List<T> readAll(List<Callable<T>> reads, List<Integer> missed) throws IOException {
+        if (reads.size() <= 1 || maxConcurrency <= 1) {
+            return readInline(reads);
+        }
+
+        long deadline = System.nanoTime() + timeoutNanos;
+        Semaphore permits = new Semaphore(maxConcurrency);
+        List<Future<T>> futures = new ArrayList<>(reads.size());
+
+        try {
+            for (Callable<T> read : reads) {
+                if (!permits.tryAcquire(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                    break;
+                }
+
+                futures.add(executor.submit(() -> {
+                    try {
+                        return read.call();
+                    } finally {
+                        permits.release();
+                    }
+                }));
+            }
+
+            List<T> results = new ArrayList<>(futures.size());
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    results.add(futures.get(i).get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS));
+                } catch (TimeoutException | CancellationException e) {
+                    futures.get(i).cancel(true);
+                    missed.add(i);
+                }
+            }
+            for (int i = futures.size(); i < reads.size(); i++) {
+                missed.add(i);
+            }
+
+            if (!missed.isEmpty()) {
+                timeouts.mark(missed.size());
+                LOGGER.debug("{} of {} feeds not read before the deadline", missed.size(), reads.size());
+            }
+
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } finally {
+            // Nothing keeps running once the request is answered.
+            futures.forEach(future -> future.cancel(true));
+        }
+    }
+
+    // Single reads gain nothing from a hop through the pool.
+    private static <T> List<T> readInline(List<Callable<T>> reads) throws IOException {
+        List<T> results = new ArrayList<>(reads.size());
+        for (Callable<T> read : reads) {
+            try {
+                results.add(read.call());
+            } catch (IOException | RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        return results;
+    }
+
+    /**
+     * What readBatched read in time, in request order, along with the ids
+     * of the feeds it gave up on. Callers that only want the feeds can use
+     * it as a plain list.
+     */
+    public static final class Results<T> extends ForwardingList<T> {
+        private final List<T> results;
+        private final List<Long> missed;
+
+        Results(List<T> results, List<Long> missed) {
+            this.results = results;
+            this.missed = missed;
+        }
+
+        public List<Long> missed() {
+            return missed;
+        }
+
+        @Override
+        protected List<T> delegate() {
+            return results;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package in.zqureshi.feeds.resources;
+
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import io.dropwizard.setup.Environment;
+import io.dropwizard.util.Duration;
+
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+/**
+ * Settings for reading the feeds of consumeFeeds concurrently. threads is
+ * shared by every request, maxConcurrencyPerRequest caps a single one and
+ * timeout is how long a request waits before answering with what it has.
+ */
+public class FeedFanOutFactory {
+    @Min(1)
+    private int threads = 32;
+
+    @Min(1)
+    private int maxConcurrencyPerRequest = 8;
+
+    @NotNull
+    private Duration timeout = Duration.seconds(2);
+
+    @JsonProperty
+    public int getThreads() {
+        return threads;
+    }
+
+    @JsonProperty
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    @JsonProperty
+    public int getMaxConcurrencyPerRequest() {
+        return maxConcurrencyPerRequest;
+    }
+
+    @JsonProperty
+    public void setMaxConcurrencyPerRequest(int maxConcurrencyPerRequest) {
+        this.maxConcurrencyPerRequest = maxConcurrencyPerRequest;
+    }
+
+    @JsonProperty
+    public Duration getTimeout() {
+        return timeout;
+    }
+
+    @JsonProperty
+    public void setTimeout(Duration timeout) {
+        this.timeout = timeout;
+    }
+
+    public FeedFanOut build(Environment environment) {
+        return new FeedFanOut(Pools.fixed(environment, "feed-fan-out-%d", threads),
+            maxConcurrencyPerRequest, timeout.toMilliseconds(), environment.metrics());
+    }
+
+    public FeedFanOut build(MetricRegistry metrics) {
+        return new FeedFanOut(Pools.fixed("feed-fan-out-%d", threads),
+            maxConcurrencyPerRequest, timeout.toMilliseconds(), metrics);
+    }
+}
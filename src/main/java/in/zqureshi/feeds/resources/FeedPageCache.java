@@ -0,0 +1,133 @@
+package in.zqureshi.feeds.resources;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.primitives.Longs;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latest page of articles per feed, kept as the bytes they are stored as so
+ * the most common read skips RocksDB and can be written out as is.
+ *
+ * A page is tagged with the article counter it was read at and only served
+ * while the counter hasn't moved since. Publishing appends to the page when
+ * it is exactly one article behind and drops it otherwise, so an article
+ * still being written can never go missing from a cached page.
+ */
+public class FeedPageCache {
+    // Rough heap cost of an article and a page besides the bytes themselves.
+    private static final int ARTICLE_OVERHEAD = 32;
+    private static final int PAGE_OVERHEAD = 96;
+
+    private static class Page {
+        private final long nextId;
+        private final long[] ids;
+        private final List<byte[]> articles;
+
+        Page(long nextId, long[] ids, List<byte[]> articles) {
+            this.nextId = nextId;
+            this.ids = ids;
+            this.articles = articles;
+        }
+
+        int weight() {
+            int weight = PAGE_OVERHEAD;
+            for (byte[] article : articles) {
+                weight += ARTICLE_OVERHEAD + article.length;
+            }
+
+            return weight;
+        }
+    }
+
+    private final int pageSize;
+    private final boolean enabled;
+    private final Cache<Long, Page> pages;
+    private final Meter hits;
+    private final Meter misses;
+    private final Meter evictions;
+
+    public FeedPageCache(int pageSize, long maxBytes, long expireAfterAccessMillis, MetricRegistry metrics) {
+        this.pageSize = pageSize;
+        this.enabled = maxBytes > 0;
+
+        hits = metrics.meter(MetricRegistry.name(FeedPageCache.class, "hits"));
+        misses = metrics.meter(MetricRegistry.name(FeedPageCache.class, "misses"));
+        evictions = metrics.meter(MetricRegistry.name(FeedPageCache.class, "evictions"));
+
+        CacheBuilder<Long, Page> builder = CacheBuilder.newBuilder()
+            .maximumWeight(maxBytes)
+            .<Long, Page>weigher((feedId, page) -> page.weight())
+            .removalListener(removal -> {
+                if (removal.wasEvicted()) {
+                    evictions.mark();
+                }
+            });
+        if (expireAfterAccessMillis > 0) {
+            builder.expireAfterAccess(expireAfterAccessMillis, TimeUnit.MILLISECONDS);
+        }
+
+        pages = builder.build();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    // Latest page of feedId if it was cached while nextId was the counter.
+    public Optional<List<byte[]>> get(long feedId, long nextId) {
+        Page page = pages.getIfPresent(feedId);
+
+        if (page == null || page.nextId != nextId) {
+            misses.mark();
+            return Optional.empty();
+        }
+
+        hits.mark();
+        return Optional.of(page.articles);
+    }
+
+    /**
+     * Caches a latest page read while nextId was the counter. Pages that
+     * don't end right before nextId are skipped since some article in them
+     * was still being written.
+     */
+    public void put(long feedId, long nextId, List<Long> ids, List<byte[]> articles) {
+        if (!enabled || ids.isEmpty() || ids.get(ids.size() - 1) != nextId - 1) {
+            return;
+        }
+
+        pages.put(feedId, new Page(nextId, Longs.toArray(ids), ImmutableList.copyOf(articles)));
+    }
+
+    // Call once article is durable.
+    public void published(long feedId, long articleId, byte[] article) {
+        pages.asMap().computeIfPresent(feedId, (id, page) -> {
+            if (page.nextId != articleId) {
+                return null;
+            }
+
+            long nextId = articleId + 1;
+            int from = 0;
+            while (from < page.ids.length && page.ids[from] < nextId - pageSize) {
+                from++;
+            }
+
+            long[] ids = Arrays.copyOfRange(page.ids, from, page.ids.length + 1);
+            ids[ids.length - 1] = articleId;
+            List<byte[]> articles = ImmutableList.<byte[]>builder()
+                .addAll(page.articles.subList(from, page.articles.size()))
+                .add(article)
+                .build();
+
+            return new Page(nextId, ids, articles);
+        });
+    }
+}
@@ -0,0 +1,45 @@
+package in.zqureshi.feeds.resources;
+
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import io.dropwizard.util.Duration;
+import io.dropwizard.util.Size;
+
+import javax.validation.constraints.NotNull;
+
+/**
+ * Settings for the cache of latest feed pages. Pages are evicted least
+ * recently used first once maxMemory is reached, zero turns caching off.
+ */
+public class FeedPageCacheFactory {
+    @NotNull
+    private Size maxMemory = Size.megabytes(64);
+
+    // Also drop pages nobody read for this long, zero keeps them until evicted.
+    @NotNull
+    private Duration expireAfterAccess = Duration.minutes(10);
+
+    @JsonProperty
+    public Size getMaxMemory() {
+        return maxMemory;
+    }
+
+    @JsonProperty
+    public void setMaxMemory(Size maxMemory) {
+        this.maxMemory = maxMemory;
+    }
+
+    @JsonProperty
+    public Duration getExpireAfterAccess() {
+        return expireAfterAccess;
+    }
+
+    @JsonProperty
+    public void setExpireAfterAccess(Duration expireAfterAccess) {
+        this.expireAfterAccess = expireAfterAccess;
+    }
+
+    public FeedPageCache build(int pageSize, MetricRegistry metrics) {
+        return new FeedPageCache(pageSize, maxMemory.toBytes(), expireAfterAccess.toMilliseconds(), metrics);
+    }
+}
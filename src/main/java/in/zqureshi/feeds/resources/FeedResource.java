@@ -1,72 +1,630 @@
 package in.zqureshi.feeds.resources;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
+import com.codahale.metrics.MetricRegistry;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.util.concurrent.Striped;
 import in.zqureshi.feeds.api.Article;
 import in.zqureshi.feeds.api.Feed;
+import in.zqureshi.feeds.api.FeedList;
+import in.zqureshi.feeds.api.Subscribers;
+import in.zqureshi.feeds.api.Timeline;
+import in.zqureshi.feeds.api.TimelineArticle;
 import in.zqureshi.feeds.db.FeedsDB;
+import in.zqureshi.feeds.db.Keys;
+import in.zqureshi.feeds.db.Records;
+import org.glassfish.jersey.media.sse.EventOutput;
+import org.glassfish.jersey.media.sse.OutboundEvent;
+import org.glassfish.jersey.media.sse.SseFeature;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.ws.rs.*;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.CompletionCallback;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
 
 @Path("/v1/feeds")
 @Produces(MediaType.APPLICATION_JSON)
 public class FeedResource {
     private static final Logger LOGGER = LoggerFactory.getLogger(FeedResource.class);
 
-    private static final String FEEDS_COUNTER = "/feeds";
-    private static final String ARTICLES_COUNTER_PREFIX = "/articles/";
-
-    private static final String FEEDS_PREFIX = "/feeds/";
-    private static final String ARTICLES_PREFIX = "/articles/";
+    static final String FEEDS_COUNTER = "/feeds";
+    static final String ARTICLES_COUNTER_PREFIX = "/articles/";
 
     private static final int PAGE_SIZE = 50;
 
+    // Publishes are serialized per feed, feeds sharing a stripe wait on
+    // each other.
+    private static final int LOCK_STRIPES = 1024;
+
+    private static final int SUBSCRIBERS_PAGE = 100;
+    private static final int MAX_SUBSCRIBERS_PAGE = 1000;
+
+    // Pages of listFeeds and UserResource.listUsers.
+    static final int LIST_PAGE = 100;
+    static final int MAX_LIST_PAGE = 1000;
+
+    /**
+     * Newline delimited JSON, what whole listings stream as. Only picked
+     * when asked for, plain JSON wins for clients that take anything.
+     */
+    public static final String NDJSON = "application/x-ndjson";
+    static final String NDJSON_ONLY_IF_ASKED = NDJSON + "; qs=0.5";
+
+    private static final byte[] FEED_END = "]}".getBytes(StandardCharsets.US_ASCII);
+
+    // Articles are decoded straight out of this instead of a copy per value.
+    private static final ThreadLocal<ByteBuffer> VALUE_BUFFER =
+        ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(64 * 1024));
+
     private FeedsDB db;
     private ObjectMapper mapper;
+    private FeedPageCache pages;
+    private Inbox inbox;
+    private FeedWatchers watchers;
+    private Clock clock = Clock.systemUTC();
+    private final Striped<Lock> publishLocks = Striped.lock(LOCK_STRIPES);
 
     public FeedResource(FeedsDB db, ObjectMapper mapper) {
+        this(db, mapper, new FeedPageCacheFactory(), new MetricRegistry());
+    }
+
+    public FeedResource(FeedsDB db, ObjectMapper mapper, FeedPageCacheFactory pageCache, MetricRegistry metrics) {
+        this(db, mapper, pageCache, new InboxFactory().build(db, metrics), metrics);
+    }
+
+    public FeedResource(FeedsDB db, ObjectMapper mapper, FeedPageCacheFactory pageCache, Inbox inbox, MetricRegistry metrics) {
+        this(db, mapper, pageCache, inbox, new FeedWatchersFactory().build(metrics), metrics);
+    }
+
+    public FeedResource(FeedsDB db, ObjectMapper mapper, FeedPageCacheFactory pageCache, Inbox inbox,
+                        FeedWatchers watchers, MetricRegistry metrics) {
         this.db = db;
         this.mapper = mapper;
+        this.pages = pageCache.build(PAGE_SIZE, metrics);
+        this.inbox = inbox;
+        this.watchers = watchers;
     }
 
-    // This method purposely does not fill the articles for each feed since
-    // it is only meant to list what feeds are available.
+    /**
+     * Feeds after {@code after}, {@code limit} of them (default 100, at
+     * most 1000). Articles are purposely left out since this is only meant
+     * to list what feeds are available.
+     */
     @GET
-    public List<Feed> listFeeds() throws IOException {
-        List<Feed> feeds = new ArrayList<>();
+    public FeedList listFeeds(@QueryParam("after") Optional<Long> after,
+                              @QueryParam("limit") Optional<Integer> limit) throws IOException {
+        int size = Math.min(MAX_LIST_PAGE, Math.max(1, limit.orElse(LIST_PAGE)));
 
-        for (FeedsDB.PrefixIterator it = db.scan(FEEDS_PREFIX);
-            it.hasNext();) {
-            feeds.add(mapper.readValue(it.next(), Feed.class));
-        }
+        List<Feed> feeds = new ArrayList<>(size);
+        boolean more = scanFeeds(after, size, feedId -> feeds.add(new Feed(feedId, Collections.emptyList())));
+
+        return new FeedList(feeds, more ? feeds.get(feeds.size() - 1).getId() : null);
+    }
+
+    /**
+     * Every feed after {@code after} (default: all of them), one JSON
+     * object per line written out as the scan goes, so nothing is held
+     * onto however many feeds there are.
+     */
+    @GET
+    @Produces(NDJSON_ONLY_IF_ASKED)
+    public StreamingOutput streamFeeds(@QueryParam("after") Optional<Long> after) {
+        return out -> scanFeeds(after, Long.MAX_VALUE, feedId -> {
+            out.write(feedStart(feedId));
+            out.write(FEED_END);
+            out.write('\n');
+        });
+    }
+
+    // Every feed at once, for tests. Anything serving requests pages or
+    // streams instead.
+    List<Feed> listFeeds() throws IOException {
+        List<Feed> feeds = new ArrayList<>();
+        scanFeeds(Optional.empty(), Long.MAX_VALUE, feedId -> feeds.add(new Feed(feedId, Collections.emptyList())));
 
         return feeds;
     }
 
+    // Up to limit feed ids after after in order, returns whether there are
+    // more. Ids are read from keys, records are never decoded.
+    private boolean scanFeeds(Optional<Long> after, long limit, IdVisitor visitor) throws IOException {
+        byte[] start = after.isPresent() ? Keys.feed(after.get() + 1) : Keys.namespace(Keys.FEEDS);
+
+        try (FeedsDB.PrefixIterator it = db.scan(Keys.namespace(Keys.FEEDS), start)) {
+            for (long n = 0; n < limit && it.hasNext(); n++) {
+                visitor.visit(Keys.id(it.nextKey(), 0));
+                it.next();
+            }
+
+            return it.hasNext();
+        }
+    }
+
     // Don't need synchronization because uniqueness is guaranteed by atomic incrementCounter.
     @POST
-    public Feed creatFeed() throws JsonProcessingException {
-        final Long id = db.incrementCounter(FEEDS_COUNTER);
-        Feed feed = new Feed(id, Collections.emptyList());
-        db.put(FEEDS_PREFIX + id, mapper.writeValueAsBytes(feed));
+    @Write
+    public Feed creatFeed() throws IOException {
+        final Long id = db.insert(FEEDS_COUNTER, (feedId, batch) ->
+            batch.put(Keys.feed(feedId), Records.encode(new Feed(feedId, Collections.emptyList())))
+        );
 
-        return feed;
+        return new Feed(id, Collections.emptyList());
     }
 
+    /**
+     * Writes the page as {@code {"id":..,"articles":[..]}} straight from the
+     * stored article bytes, transcoded without building any Article.
+     */
     @GET
     @Path("/{id}")
     @Produces(MediaType.APPLICATION_JSON)
-    public Feed showFeed(@PathParam("id") Long id, @QueryParam("startId") Optional<Long> startId) throws IOException {
+    public StreamingOutput streamFeed(@PathParam("id") Long id, @QueryParam("startId") Optional<Long> startId) {
+        return feedOutput(id, startId);
+    }
+
+    // Same page as streamFeed, decoded for callers that need the articles.
+    public Feed showFeed(Long id, Optional<Long> startId) throws IOException {
+        return readFeed(page(id, startId));
+    }
+
+    /**
+     * Pages of several feeds, keyed by feed id with the startId to read from,
+     * as one batch: existence is checked for all of them at once and every
+     * page not in the cache is read through a single iterator. Like
+     * feedOutput everything is checked right away, pages are read when the
+     * returned Callable runs. Results are in the order of startIds.
+     */
+    public Callable<List<Feed>> feedsReader(Map<Long, Long> startIds) {
+        List<Page> batch = pages(startIds);
+
+        return () -> {
+            List<List<byte[]>> stored = readPages(batch);
+
+            List<Feed> feeds = new ArrayList<>(batch.size());
+            for (int i = 0; i < batch.size(); i++) {
+                List<Article> articles = new ArrayList<>(stored.get(i).size());
+                for (byte[] article : stored.get(i)) {
+                    articles.add(Records.decodeArticle(article));
+                }
+                feeds.add(new Feed(batch.get(i).feedId, articles));
+            }
+
+            return feeds;
+        };
+    }
+
+    // Same batch as feedsReader, every feed written out as JSON the way
+    // feedOutput writes it.
+    public Callable<List<byte[]>> feedsOutput(Map<Long, Long> startIds) {
+        List<Page> batch = pages(startIds);
+
+        return () -> {
+            List<List<byte[]>> stored = readPages(batch);
+
+            List<byte[]> feeds = new ArrayList<>(batch.size());
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            for (int i = 0; i < batch.size(); i++) {
+                out.reset();
+                out.write(feedStart(batch.get(i).feedId));
+                for (int n = 0; n < stored.get(i).size(); n++) {
+                    if (n > 0) {
+                        out.write(',');
+                    }
+
+                    Records.writeArticleJson(ByteBuffer.wrap(stored.get(i).get(n)), out);
+                }
+                out.write(FEED_END);
+                feeds.add(out.toByteArray());
+            }
+
+            return feeds;
+        };
+    }
+
+    /**
+     * Output writing a single feed as JSON. Everything that can fail (the
+     * feed missing, startId out of range) is checked here, before a single
+     * byte goes out.
+     */
+    public StreamingOutput feedOutput(Long id, Optional<Long> startId) {
+        Page page = page(id, startId);
+
+        return out -> {
+            out.write(feedStart(page.feedId));
+            readPage(page, (n, article) -> {
+                if (n > 0) {
+                    out.write(',');
+                }
+
+                Records.writeArticleJson(article, out);
+            });
+            out.write(FEED_END);
+        };
+    }
+
+    @POST
+    @Write
+    @Path("/{id}")
+    @Produces(MediaType.APPLICATION_JSON)
+    @Consumes(MediaType.TEXT_PLAIN)
+    public Article publishArticle(@PathParam("id") Long feedId, String text) throws IOException {
+        if (!db.exists(Keys.feed(feedId))) {
+            throw new NotFoundException();
+        }
+
+        // Timelines merge by publishedAt but read a feed by id, so both have
+        // to go up together: publishes to a feed take turns and none is
+        // stamped earlier than the article before it.
+        final long[] publishedAt = new long[1];
+        final byte[][] stored = new byte[1][];
+        final long articleId;
+        Lock lock = publishLocks.get(feedId);
+        lock.lock();
+        try {
+            articleId = db.insert(ARTICLES_COUNTER_PREFIX + feedId, (id, batch) -> {
+                Article previous = atOrBefore(feedId, id - 1);
+                publishedAt[0] = Math.max(clock.millis(), previous == null ? 0 : FeedHead.publishedAt(previous));
+                stored[0] = Records.encode(new Article(id, text, publishedAt[0]));
+                batch.put(Keys.article(feedId, id), stored[0]);
+            });
+        } finally {
+            lock.unlock();
+        }
+        pages.published(feedId, articleId, stored[0]);
+        inbox.published(feedId, articleId, publishedAt[0]);
+        watchers.published(feedId, articleId);
+
+        return new Article(articleId, text, publishedAt[0]);
+    }
+
+    // On replicas, for an article the primary published once it's applied.
+    // Fan-out was replicated along with it.
+    public void replicated(long feedId, long articleId, byte[] stored) {
+        pages.published(feedId, articleId, stored);
+        watchers.published(feedId, articleId);
+    }
+
+    /**
+     * Long poll for the page from startId on, answered as soon as it has an
+     * article. Until then the request is parked, holding no thread, and
+     * publishArticle wakes it. Once timeout seconds are up it's answered
+     * with an empty page. Without startId it waits for the next article.
+     */
+    @GET
+    @Path("/{id}/poll")
+    public void poll(@PathParam("id") Long id,
+                     @QueryParam("startId") Optional<Long> startId,
+                     @QueryParam("timeout") Optional<Integer> timeout,
+                     @Suspended AsyncResponse response) {
+        long start = page(id, Optional.of(startId.orElseGet(() -> latestArticleId(id) + 1))).startIndex;
+        AtomicBoolean answered = new AtomicBoolean();
+
+        FeedWatchers.Watcher watcher = articleId -> {
+            if (articleId >= start && answered.compareAndSet(false, true)) {
+                answer(response, id, start);
+            }
+        };
+        response.register((CompletionCallback) error -> watchers.unwatch(id, watcher));
+        response.setTimeoutHandler(expired -> {
+            if (answered.compareAndSet(false, true)) {
+                expired.resume(new Feed(id, Collections.emptyList()));
+            }
+        });
+        response.setTimeout(watchers.pollTimeout(timeout), TimeUnit.MILLISECONDS);
+        watchers.watch(id, watcher);
+
+        // Watching first, anything published before that is already readable.
+        if (hasArticles(id, start) && answered.compareAndSet(false, true)) {
+            answer(response, id, start);
+        }
+    }
+
+    /**
+     * Server-Sent Events stream of every article from startId on, or from
+     * after Last-Event-ID when reconnecting, one {@code article} event each
+     * with the article id as event id. Without either it starts at the next
+     * article published. Written from the watcher pool as articles come in.
+     */
+    @GET
+    @Path("/{id}/events")
+    @Produces(SseFeature.SERVER_SENT_EVENTS)
+    public EventOutput events(@PathParam("id") Long id,
+                              @QueryParam("startId") Optional<Long> startId,
+                              @HeaderParam(SseFeature.LAST_EVENT_ID_HEADER) Optional<Long> lastEventId) {
+        EventOutput output = new EventOutput();
+        events(id, lastEventId.isPresent() ? Optional.of(lastEventId.get() + 1) : startId, output);
+
+        return output;
+    }
+
+    void events(Long id, Optional<Long> startId, EventOutput output) {
+        long start = page(id, Optional.of(startId.orElseGet(() -> latestArticleId(id) + 1))).startIndex;
+
+        ArticleEvents events = new ArticleEvents(id, start, output);
+        watchers.watch(id, events);
+        // Catches up on anything from before watching.
+        watchers.execute(id, events::drain);
+    }
+
+    /**
+     * Users subscribed to the feed in id order, limit at a time starting
+     * after the given user id, along with the total from the feed's
+     * subscriber count.
+     */
+    @GET
+    @Path("/{id}/subscribers")
+    public Subscribers listSubscribers(@PathParam("id") Long id,
+                                       @QueryParam("after") Optional<Long> after,
+                                       @QueryParam("limit") Optional<Integer> limit) {
+        if (!db.exists(Keys.feed(id))) {
+            throw new NotFoundException();
+        }
+
+        int size = Math.min(MAX_SUBSCRIBERS_PAGE, Math.max(1, limit.orElse(SUBSCRIBERS_PAGE)));
+        // Negative ids sort after every real one, so does after + 1 when
+        // it overflows.
+        byte[] start = after.isPresent() ? Keys.subscriber(id, after.get() + 1) : Keys.subscribers(id);
+
+        List<Long> users = new ArrayList<>(size);
+        Long next = null;
+        try (FeedsDB.PrefixIterator it = db.scan(Keys.subscribers(id), start)) {
+            while (users.size() < size && it.hasNext()) {
+                users.add(Keys.id(it.nextKey(), 1));
+                it.next();
+            }
+            if (it.hasNext()) {
+                next = users.get(users.size() - 1);
+            }
+        }
+
+        return new Subscribers(id, subscriberCount(id), users, next);
+    }
+
+    // O(1), read from the count subscribe and unsubscribe keep.
+    public long subscriberCount(long feedId) {
+        return db.getCount(Keys.subscriberCount(feedId));
+    }
+
+    // Id of the newest article in the feed, INITIAL_COUNTER_VALUE when it
+    // has none. One seek instead of reading the latest page.
+    public long latestArticleId(long feedId) {
+        if (!db.exists(Keys.feed(feedId))) {
+            throw new NotFoundException();
+        }
+
+        try (FeedsDB.PrefixIterator it = db.scanReverse(Keys.articles(feedId), Keys.article(feedId, Long.MAX_VALUE))) {
+            return it.hasNext() ? Keys.id(it.nextKey(), 1) : FeedsDB.INITIAL_COUNTER_VALUE;
+        }
+    }
+
+    /**
+     * Newest limit articles across feedIds, older than where cursor left off
+     * (the newest ones there are without a cursor).
+     * A k-way merge over a reverse iterator per feed, each feed is only read
+     * as far as the page needs. Ties on publishedAt go to the higher feed and
+     * article id so the order is stable from page to page.
+     */
+    public Timeline timeline(Collection<Long> feedIds, Optional<String> cursorParam, int limit) throws IOException {
+        return timeline(OptionalLong.empty(), feedIds, cursorParam, limit);
+    }
+
+    /**
+     * Same page for a user subscribed to feedIds. With the inbox on, fanned
+     * out feeds come from a single scan of the user's inbox and only the
+     * feeds pulled at read time get an iterator of their own.
+     */
+    public Timeline timeline(long userId, Collection<Long> feedIds, Optional<String> cursorParam, int limit) throws IOException {
+        return timeline(inbox.isEnabled() ? OptionalLong.of(userId) : OptionalLong.empty(), feedIds, cursorParam, limit);
+    }
+
+    private Timeline timeline(OptionalLong inboxOf, Collection<Long> feedIds,
+                              Optional<String> cursorParam, int limit) throws IOException {
+        TimelineCursor cursor = cursorParam.map(TimelineCursor::decode)
+            .orElseGet(() -> TimelineCursor.start(clock.millis()));
+
+        PriorityQueue<TimelineHead> heads = new PriorityQueue<>(Math.max(1, feedIds.size()), TimelineHead.NEWEST_FIRST);
+        List<FeedsDB.PrefixIterator> open = new ArrayList<>();
+
+        try {
+            Set<Long> fannedOut = new HashSet<>();
+            for (long feedId : feedIds) {
+                if (inboxOf.isPresent() && !inbox.isPulled(feedId)) {
+                    fannedOut.add(feedId);
+                    continue;
+                }
+
+                // Ids start at INITIAL_COUNTER_VALUE, nothing is older.
+                long start = cursor.last().isPresent() ? startAt(feedId, cursor.last().get()) : Long.MAX_VALUE;
+                if (start < FeedsDB.INITIAL_COUNTER_VALUE) {
+                    continue;
+                }
+
+                FeedsDB.PrefixIterator it = db.scanReverse(Keys.articles(feedId), Keys.article(feedId, start));
+                open.add(it);
+
+                TimelineHead head = new FeedHead(feedId, it);
+                if (head.advance(cursor)) {
+                    heads.add(head);
+                }
+            }
+
+            if (!fannedOut.isEmpty()) {
+                // Inbox keys sort in timeline order backwards, so the page
+                // after last starts at it.
+                long userId = inboxOf.getAsLong();
+                byte[] start = cursor.last()
+                    .map(last -> Keys.inbox(userId, last.publishedAt(), last.feedId(), last.articleId()))
+                    .orElse(Keys.inbox(userId, cursor.asOf(), Long.MAX_VALUE, Long.MAX_VALUE));
+
+                FeedsDB.PrefixIterator it = db.scanReverse(Keys.inbox(userId), start);
+                open.add(it);
+
+                TimelineHead head = new InboxHead(it, fannedOut);
+                if (head.advance(cursor)) {
+                    heads.add(head);
+                }
+            }
+
+            List<TimelineHead.Taken> taken = new ArrayList<>(limit);
+            TimelineCursor.Entry last = null;
+            while (taken.size() < limit && !heads.isEmpty()) {
+                // Past too many stale inbox entries the page ends short, the
+                // next one carries on from there.
+                if (heads.peek().stalled) {
+                    last = heads.peek().entry;
+                    break;
+                }
+
+                TimelineHead head = heads.poll();
+                taken.add(head.take());
+                last = head.entry;
+
+                if (head.advance(cursor)) {
+                    heads.add(head);
+                }
+            }
+
+            String next = heads.isEmpty() ? null : new TimelineCursor(cursor.asOf(), Optional.ofNullable(last)).encode();
+            return new Timeline(articles(taken), next);
+        } finally {
+            open.forEach(FeedsDB.PrefixIterator::close);
+        }
+    }
+
+    // Highest id of feedId that can still be on the page after last. A
+    // feed's publishedAt never goes down as its ids go up, so the articles
+    // newer than last are galloped past from the top and the boundary
+    // binary searched, a few seeks however deep the page is.
+    private long startAt(long feedId, TimelineCursor.Entry last) throws IOException {
+        if (last.feedId() == feedId) {
+            return last.articleId() - 1;
+        }
+
+        // Every article above bound is newer than last, lo is older.
+        long bound = Long.MAX_VALUE;
+        long probe = Long.MAX_VALUE;
+        long lo;
+        for (long step = 1; ; step *= 2) {
+            Article article = probe < FeedsDB.INITIAL_COUNTER_VALUE ? null : atOrBefore(feedId, probe);
+            if (article == null) {
+                return FeedsDB.INITIAL_COUNTER_VALUE - 1;
+            }
+            if (last.isNewerThan(FeedHead.publishedAt(article), feedId, article.getId())) {
+                lo = article.getId();
+                break;
+            }
+
+            bound = article.getId() - 1;
+            probe = Math.min(bound, Math.max(FeedsDB.INITIAL_COUNTER_VALUE, article.getId() - step));
+        }
+
+        while (lo < bound) {
+            long mid = lo + (bound - lo + 1) / 2;
+            Article article = atOrBefore(feedId, mid);
+            if (article == null || article.getId() <= lo
+                || last.isNewerThan(FeedHead.publishedAt(article), feedId, article.getId())) {
+                lo = mid;
+            } else {
+                bound = article.getId() - 1;
+            }
+        }
+
+        return lo;
+    }
+
+    private Article atOrBefore(long feedId, long articleId) throws IOException {
+        try (FeedsDB.PrefixIterator it = db.scanReverse(Keys.articles(feedId), Keys.article(feedId, articleId))) {
+            return it.hasNext() ? Records.decodeArticle(it.next()) : null;
+        }
+    }
+
+    // Articles of a merged page, the ones only referenced from an inbox
+    // are read with one multiGet.
+    private List<TimelineArticle> articles(List<TimelineHead.Taken> taken) throws IOException {
+        List<byte[]> keys = new ArrayList<>();
+        for (TimelineHead.Taken entry : taken) {
+            if (entry.article == null) {
+                keys.add(Keys.article(entry.feedId, entry.articleId));
+            }
+        }
+        Iterator<byte[]> values = keys.isEmpty() ? Collections.emptyIterator() : db.multiGet(keys).iterator();
+
+        List<TimelineArticle> articles = new ArrayList<>(taken.size());
+        for (TimelineHead.Taken entry : taken) {
+            Article article = entry.article;
+            if (article == null) {
+                byte[] value = values.next();
+                if (value == null) {
+                    continue;
+                }
+                article = Records.decodeArticle(value);
+            }
+
+            articles.add(new TimelineArticle(entry.feedId, article));
+        }
+
+        return articles;
+    }
+
+    // Subscriptions keep the inbox up to date through this.
+    Inbox inbox() {
+        return inbox;
+    }
+
+    // For tests that need to control publishedAt.
+    void setClock(Clock clock) {
+        this.clock = clock;
+    }
+
+    // Resolves which articles a request is after. Throws NotFoundException for
+    // unknown feeds and IndexOutOfBoundsException for a startId outside it.
+    private Page page(Long id, Optional<Long> startId) {
         // Check if feed exists
-        if (db.get(FEEDS_PREFIX + id) == null) {
+        if (!db.exists(Keys.feed(id))) {
             throw new NotFoundException();
         }
 
+        return bounds(id, startId);
+    }
+
+    // page() for every feed in startIds, existence checked in one go.
+    private List<Page> pages(Map<Long, Long> startIds) {
+        List<byte[]> keys = new ArrayList<>(startIds.size());
+        for (Long id : startIds.keySet()) {
+            keys.add(Keys.feed(id));
+        }
+
+        boolean[] exists = db.exists(keys);
+        for (boolean feedExists : exists) {
+            if (!feedExists) {
+                throw new NotFoundException();
+            }
+        }
+
+        List<Page> batch = new ArrayList<>(startIds.size());
+        for (Map.Entry<Long, Long> entry : startIds.entrySet()) {
+            batch.add(bounds(entry.getKey(), Optional.of(entry.getValue())));
+        }
+
+        return batch;
+    }
+
+    // Without startId it's the latest page, which isn't found from the
+    // counter since ids skip ahead of it after a crash, see readLatestPage.
+    private Page bounds(Long id, Optional<Long> startId) {
         final long articleCount = db.getCounter(ARTICLES_COUNTER_PREFIX + id);
         long startIndex = FeedsDB.INITIAL_COUNTER_VALUE;
         if (startId.isPresent()) {
@@ -76,42 +634,361 @@ public class FeedResource {
                 || startIndex > articleCount) {
                 throw new IndexOutOfBoundsException();
             }
-        } else {
-            // return last 50 articles
-            startIndex = Math.max(FeedsDB.INITIAL_COUNTER_VALUE, articleCount - PAGE_SIZE);
         }
 
+        return new Page(id, articleCount, startIndex, !startId.isPresent());
+    }
+
+    private Feed readFeed(Page page) throws IOException {
         List<Article> articles = new ArrayList<>(PAGE_SIZE);
-        for (FeedsDB.PrefixIterator it = db.scan(constructArticlePrefix(id), Long.toString(startIndex));
-             it.hasNext() && articles.size() < PAGE_SIZE;) {
-            articles.add(mapper.readValue(it.next(), Article.class));
+        readPage(page, (n, article) -> articles.add(Records.decodeArticle(article)));
+
+        return new Feed(page.feedId, articles);
+    }
+
+    // Hands the stored bytes of every article on page to visitor in order.
+    // The latest page is by far the most read, it comes from the page cache
+    // whenever nothing was published since it was cached.
+    private void readPage(Page page, ArticleVisitor visitor) throws IOException {
+        if (page.latest) {
+            readLatestPage(page, visitor);
+            return;
         }
 
-        return new Feed(id, articles);
+        ByteBuffer buffer = VALUE_BUFFER.get();
+        try (FeedsDB.PrefixIterator it = db.scan(Keys.articles(page.feedId), Keys.article(page.feedId, page.startIndex))) {
+            for (int n = 0; n < PAGE_SIZE && it.hasNext(); n++) {
+                visitor.visit(n, it.next(buffer));
+            }
+        }
     }
 
-    @POST
-    @Path("/{id}")
-    @Produces(MediaType.APPLICATION_JSON)
-    @Consumes(MediaType.TEXT_PLAIN)
-    public Article publishArticle(@PathParam("id") Long feedId, String text) throws JsonProcessingException {
-        if (db.get(FEEDS_PREFIX + feedId) == null) {
-            throw new NotFoundException();
+    // The newest PAGE_SIZE articles, found with a reverse seek and handed
+    // to visitor oldest first. The cache only takes pages ending right
+    // before the counter, so after a crash a feed is cached again once
+    // something is published to it.
+    private void readLatestPage(Page page, ArticleVisitor visitor) throws IOException {
+        boolean cacheable = cacheable(page);
+
+        if (cacheable) {
+            Optional<List<byte[]>> cached = pages.get(page.feedId, page.articleCount);
+            if (cached.isPresent()) {
+                List<byte[]> articles = cached.get();
+                for (int n = 0; n < articles.size(); n++) {
+                    visitor.visit(n, ByteBuffer.wrap(articles.get(n)));
+                }
+                return;
+            }
+        }
+
+        List<Long> ids = new ArrayList<>(PAGE_SIZE);
+        List<byte[]> articles = new ArrayList<>(PAGE_SIZE);
+        try (FeedsDB.PrefixIterator it = db.scanReverse(Keys.articles(page.feedId), Keys.article(page.feedId, Long.MAX_VALUE))) {
+            while (ids.size() < PAGE_SIZE && it.hasNext()) {
+                ids.add(Keys.id(it.nextKey(), 1));
+                articles.add(it.next());
+            }
+        }
+        Collections.reverse(ids);
+        Collections.reverse(articles);
+
+        for (int n = 0; n < articles.size(); n++) {
+            visitor.visit(n, ByteBuffer.wrap(articles.get(n)));
+        }
+
+        if (cacheable) {
+            pages.put(page.feedId, page.articleCount, ids, articles);
+        }
+    }
+
+    // Stored articles of every page in batch, same order. Cached pages are
+    // served as in readPage, the rest share a single multi-range scan.
+    private List<List<byte[]>> readPages(List<Page> batch) throws IOException {
+        List<List<byte[]>> articles = new ArrayList<>(batch.size());
+        List<List<Long>> ids = new ArrayList<>(batch.size());
+        List<FeedsDB.Range> ranges = new ArrayList<>();
+        List<Integer> rangePages = new ArrayList<>();
+
+        for (int i = 0; i < batch.size(); i++) {
+            Page page = batch.get(i);
+
+            Optional<List<byte[]>> cached = cacheable(page)
+                ? pages.get(page.feedId, page.articleCount)
+                : Optional.empty();
+            articles.add(cached.orElseGet(() -> new ArrayList<>(PAGE_SIZE)));
+            ids.add(new ArrayList<>(cached.isPresent() ? 0 : PAGE_SIZE));
+
+            if (!cached.isPresent()) {
+                ranges.add(new FeedsDB.Range(Keys.articles(page.feedId), Keys.article(page.feedId, page.startIndex)));
+                rangePages.add(i);
+            }
+        }
+
+        db.scan(ranges, PAGE_SIZE, (range, key, value) -> {
+            int i = rangePages.get(range);
+            ids.get(i).add(Keys.id(key, 1));
+            articles.get(i).add(value);
+        });
+
+        for (int i : rangePages) {
+            Page page = batch.get(i);
+            if (cacheable(page)) {
+                pages.put(page.feedId, page.articleCount, ids.get(i), articles.get(i));
+            }
+        }
+
+        return articles;
+    }
+
+    FeedWatchers watchers() {
+        return watchers;
+    }
+
+    private boolean hasArticles(long feedId, long startId) {
+        try (FeedsDB.PrefixIterator it = db.scan(Keys.articles(feedId), Keys.article(feedId, startId))) {
+            return it.hasNext();
+        }
+    }
+
+    private void answer(AsyncResponse response, long feedId, long startId) {
+        try {
+            response.resume(readFeed(page(feedId, Optional.of(startId))));
+        } catch (IOException | RuntimeException e) {
+            response.resume(e);
         }
+    }
 
-        final long articleId = db.incrementCounter(ARTICLES_COUNTER_PREFIX + feedId);
-        Article article = new Article(articleId, text);
+    private boolean cacheable(Page page) {
+        return page.latest && pages.isEnabled();
+    }
 
-        db.put(constructArticleKey(feedId, articleId), mapper.writeValueAsBytes(article));
+    private static byte[] feedStart(long feedId) {
+        return ("{\"id\":" + feedId + ",\"articles\":[").getBytes(StandardCharsets.US_ASCII);
+    }
 
-        return article;
+    @FunctionalInterface
+    private interface IdVisitor {
+        void visit(long id) throws IOException;
     }
 
-    private String constructArticlePrefix(final Long feedId) {
-        return ARTICLES_PREFIX + feedId + "/";
+    @FunctionalInterface
+    private interface ArticleVisitor {
+        void visit(int n, ByteBuffer article) throws IOException;
     }
 
-    private String constructArticleKey(final Long feedId, final Long startIndex) {
-         return constructArticlePrefix(feedId) + startIndex;
+    // Newest entry of a timeline source the merge hasn't taken yet.
+    private abstract static class TimelineHead {
+        // A feed's own article goes before a stale inbox entry for it.
+        private static final Comparator<TimelineHead> NEWEST_FIRST =
+            Comparator.comparing((TimelineHead head) -> head.entry, TimelineCursor.Entry.NEWEST_FIRST)
+                .thenComparing(head -> head.stalled);
+
+        TimelineCursor.Entry entry;
+
+        // Entry is where the source gave up for this page, not one to take.
+        boolean stalled;
+
+        // Moves to the next older entry on the page after cursor, false
+        // once the source has none left.
+        boolean advance(TimelineCursor cursor) throws IOException {
+            while (next()) {
+                if (cursor.includes(entry.publishedAt(), entry.feedId(), entry.articleId())) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        // Moves to the next older entry, whatever the cursor.
+        abstract boolean next() throws IOException;
+
+        abstract Taken take();
+
+        // An entry on the page, article is null until read.
+        static class Taken {
+            private final long feedId;
+            private final long articleId;
+            private final Article article;
+
+            Taken(long feedId, long articleId, Article article) {
+                this.feedId = feedId;
+                this.articleId = articleId;
+                this.article = article;
+            }
+        }
+    }
+
+    // A feed read newest first.
+    private static class FeedHead extends TimelineHead {
+        private final long feedId;
+        private final FeedsDB.PrefixIterator it;
+        private Article article;
+
+        FeedHead(long feedId, FeedsDB.PrefixIterator it) {
+            this.feedId = feedId;
+            this.it = it;
+        }
+
+        @Override
+        boolean next() throws IOException {
+            if (!it.hasNext()) {
+                return false;
+            }
+
+            article = Records.decodeArticle(it.next());
+            entry = new TimelineCursor.Entry(publishedAt(article), feedId, article.getId());
+            return true;
+        }
+
+        @Override
+        Taken take() {
+            return new Taken(feedId, article.getId(), article);
+        }
+
+        // Articles from before publishedAt was stored sort as the oldest.
+        private static long publishedAt(Article article) {
+            return article.getPublishedAt() == null ? 0 : article.getPublishedAt();
+        }
+    }
+
+    // A user's inbox read newest first, entries of feeds not in feedIds
+    // (unsubscribed since, or pulled) are skipped. Up to MAX_SKIPPED a
+    // page, Inbox deletes them but may not have got to it yet.
+    private static class InboxHead extends TimelineHead {
+        private static final int MAX_SKIPPED = 1000;
+
+        private final FeedsDB.PrefixIterator it;
+        private final Set<Long> feedIds;
+        private int skipped;
+
+        InboxHead(FeedsDB.PrefixIterator it, Set<Long> feedIds) {
+            this.it = it;
+            this.feedIds = feedIds;
+        }
+
+        @Override
+        boolean next() {
+            while (it.hasNext()) {
+                byte[] key = it.nextKey();
+                it.next();
+
+                entry = new TimelineCursor.Entry(Keys.id(key, 1), Keys.id(key, 2), Keys.id(key, 3));
+                if (feedIds.contains(entry.feedId())) {
+                    return true;
+                }
+                if (++skipped >= MAX_SKIPPED) {
+                    stalled = true;
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        @Override
+        Taken take() {
+            return new Taken(entry.feedId(), entry.articleId(), null);
+        }
+    }
+
+    /**
+     * Writes the articles of a feed to an event stream from next on, called
+     * for every article published. Drains are serialized so events go out
+     * in order, a drain that finds nothing new writes nothing. Stops
+     * watching once the stream is closed or a write fails, heartbeats
+     * make sure a write happens every so often.
+     */
+    private final class ArticleEvents implements FeedWatchers.Watcher {
+        private final long feedId;
+        private final EventOutput output;
+        private long next;
+
+        ArticleEvents(long feedId, long next, EventOutput output) {
+            this.feedId = feedId;
+            this.next = next;
+            this.output = output;
+        }
+
+        @Override
+        public void published(long articleId) {
+            if (articleId >= next) {
+                drain();
+            }
+        }
+
+        @Override
+        public boolean heartbeats() {
+            return true;
+        }
+
+        @Override
+        public synchronized void idle() {
+            try {
+                output.write(new OutboundEvent.Builder().comment("heartbeat").build());
+            } catch (IOException | RuntimeException e) {
+                close(e);
+            }
+        }
+
+        synchronized void drain() {
+            try {
+                int read;
+                do {
+                    // Read a page and let go of the iterator before writing
+                    // to a client that may be slow.
+                    List<Long> ids = new ArrayList<>(PAGE_SIZE);
+                    List<byte[]> articles = new ArrayList<>(PAGE_SIZE);
+                    try (FeedsDB.PrefixIterator it = db.scan(Keys.articles(feedId), Keys.article(feedId, next))) {
+                        while (ids.size() < PAGE_SIZE && it.hasNext()) {
+                            ids.add(Keys.id(it.nextKey(), 1));
+                            articles.add(it.next());
+                        }
+                    }
+
+                    if (output.isClosed()) {
+                        throw new IOException("Stream closed");
+                    }
+                    for (int i = 0; i < ids.size(); i++) {
+                        ByteArrayOutputStream json = new ByteArrayOutputStream(articles.get(i).length + 32);
+                        Records.writeArticleJson(ByteBuffer.wrap(articles.get(i)), json);
+
+                        output.write(new OutboundEvent.Builder()
+                            .id(String.valueOf(ids.get(i)))
+                            .name("article")
+                            .data(String.class, json.toString(StandardCharsets.UTF_8.name()))
+                            .build());
+                        next = ids.get(i) + 1;
+                    }
+                    read = ids.size();
+                } while (read == PAGE_SIZE);
+            } catch (IOException | RuntimeException e) {
+                close(e);
+            }
+        }
+
+        private void close(Exception cause) {
+            LOGGER.debug("Closing event stream of feed {}", feedId, cause);
+            watchers.unwatch(feedId, this);
+            try {
+                output.close();
+            } catch (IOException ignored) {
+                // Already gone.
+            }
+        }
+    }
+
+    private static class Page {
+        private final long feedId;
+        private final long articleCount;
+        private final long startIndex;
+        private final boolean latest;
+
+        Page(long feedId, long articleCount, long startIndex, boolean latest) {
+            this.feedId = feedId;
+            this.articleCount = articleCount;
+            this.startIndex = startIndex;
+            this.latest = latest;
+        }
     }
 }
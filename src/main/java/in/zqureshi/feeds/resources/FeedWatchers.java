@@ -0,0 +1,132 @@
+package in.zqureshi.feeds.resources;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Who is waiting for new articles, per feed. publishArticle hands every
+ * article to the watchers of its feed, so long polls and event streams
+ * never go back to the database to find out whether there's anything new.
+ *
+ * Watching takes no thread, watchers are called on a small pool once
+ * something is published. A watcher stays registered until unwatched.
+ * Every heartbeat the ones that ask for it (event streams, not parked long
+ * polls) are also told they're idle, which is when streams find out their
+ * client has gone away.
+ */
+public class FeedWatchers {
+    private static final Logger LOGGER = LoggerFactory.getLogger(FeedWatchers.class);
+
+    private final Map<Long, Set<Watcher>> watchers = new ConcurrentHashMap<>();
+    private final ExecutorService executor;
+    private final long pollTimeout;
+    private final long maxPollTimeout;
+
+    private final Counter watching;
+    private final Meter notified;
+
+    public FeedWatchers(ExecutorService executor, ScheduledExecutorService scheduler, long heartbeat,
+                        long pollTimeout, long maxPollTimeout, MetricRegistry metrics) {
+        this.executor = executor;
+        this.pollTimeout = pollTimeout;
+        this.maxPollTimeout = maxPollTimeout;
+
+        watching = metrics.counter(MetricRegistry.name(FeedWatchers.class, "watching"));
+        notified = metrics.meter(MetricRegistry.name(FeedWatchers.class, "notified"));
+
+        scheduler.scheduleWithFixedDelay(this::idle, heartbeat, heartbeat, TimeUnit.MILLISECONDS);
+    }
+
+    // Per feed sets are only ever created and dropped inside compute, so a
+    // watcher can't land in a set that was just removed.
+    public void watch(long feedId, Watcher watcher) {
+        watchers.compute(feedId, (id, feed) -> {
+            Set<Watcher> set = feed == null ? ConcurrentHashMap.newKeySet() : feed;
+            if (set.add(watcher)) {
+                watching.inc();
+            }
+            return set;
+        });
+    }
+
+    public void unwatch(long feedId, Watcher watcher) {
+        watchers.computeIfPresent(feedId, (id, feed) -> {
+            if (feed.remove(watcher)) {
+                watching.dec();
+            }
+            return feed.isEmpty() ? null : feed;
+        });
+    }
+
+    public long watching() {
+        return watching.getCount();
+    }
+
+    // Wakes every watcher of feedId on the pool, so they must be able to
+    // read articleId by then.
+    public void published(long feedId, long articleId) {
+        Set<Watcher> feed = watchers.get(feedId);
+        if (feed == null) {
+            return;
+        }
+
+        for (Watcher watcher : feed) {
+            execute(feedId, () -> watcher.published(articleId));
+        }
+        notified.mark(feed.size());
+    }
+
+    void idle() {
+        for (Map.Entry<Long, Set<Watcher>> feed : watchers.entrySet()) {
+            for (Watcher watcher : feed.getValue()) {
+                // No task at all for the rest, there can be a lot of them.
+                if (watcher.heartbeats()) {
+                    execute(feed.getKey(), watcher::idle);
+                }
+            }
+        }
+    }
+
+    // Runs on the watcher pool, for work watchers do outside of published.
+    public void execute(long feedId, Runnable task) {
+        executor.execute(() -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                LOGGER.error("Watcher of feed " + feedId + " failed", e);
+            }
+        });
+    }
+
+    // How long a poll waits, in milliseconds, for the timeout it asked for
+    // in seconds.
+    public long pollTimeout(Optional<Integer> seconds) {
+        return seconds
+            .map(requested -> Math.min(maxPollTimeout, TimeUnit.SECONDS.toMillis(Math.max(0, requested))))
+            .orElse(pollTimeout);
+    }
+
+    @FunctionalInterface
+    public interface Watcher {
+        void published(long articleId);
+
+        // Whether idle should be called every heartbeat.
+        default boolean heartbeats() {
+            return false;
+        }
+
+        default void idle() {
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package in.zqureshi.feeds.resources;
+
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import io.dropwizard.setup.Environment;
+import io.dropwizard.util.Duration;
+
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+/**
+ * Settings for long polls and event streams on feeds. threads answer polls
+ * and write events once an article is published, waiting takes none.
+ * Streams get a comment every heartbeat so dead clients are noticed on
+ * quiet feeds. pollTimeout is how long a poll waits when it doesn't ask,
+ * no poll waits longer than maxPollTimeout.
+ */
+public class FeedWatchersFactory {
+    @Min(1)
+    private int threads = 4;
+
+    @NotNull
+    private Duration heartbeat = Duration.seconds(30);
+
+    @NotNull
+    private Duration pollTimeout = Duration.seconds(30);
+
+    @NotNull
+    private Duration maxPollTimeout = Duration.minutes(2);
+
+    @JsonProperty
+    public int getThreads() {
+        return threads;
+    }
+
+    @JsonProperty
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    @JsonProperty
+    public Duration getHeartbeat() {
+        return heartbeat;
+    }
+
+    @JsonProperty
+    public void setHeartbeat(Duration heartbeat) {
+        this.heartbeat = heartbeat;
+    }
+
+    @JsonProperty
+    public Duration getPollTimeout() {
+        return pollTimeout;
+    }
+
+    @JsonProperty
+    public void setPollTimeout(Duration pollTimeout) {
+        this.pollTimeout = pollTimeout;
+    }
+
+    @JsonProperty
+    public Duration getMaxPollTimeout() {
+        return maxPollTimeout;
+    }
+
+    @JsonProperty
+    public void setMaxPollTimeout(Duration maxPollTimeout) {
+        this.maxPollTimeout = maxPollTimeout;
+    }
+
+    public FeedWatchers build(Environment environment) {
+        return new FeedWatchers(Pools.fixed(environment, "feed-watchers-%d", threads),
+            Pools.scheduled(environment, "feed-watchers-heartbeat-%d"), heartbeat.toMilliseconds(),
+            pollTimeout.toMilliseconds(), maxPollTimeout.toMilliseconds(), environment.metrics());
+    }
+
+    public FeedWatchers build(MetricRegistry metrics) {
+        return new FeedWatchers(Pools.fixed("feed-watchers-%d", threads),
+            Pools.scheduled("feed-watchers-heartbeat-%d"), heartbeat.toMilliseconds(),
+            pollTimeout.toMilliseconds(), maxPollTimeout.toMilliseconds(), metrics);
+    }
+}
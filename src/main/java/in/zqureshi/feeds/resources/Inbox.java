@@ -0,0 +1,303 @@
+package in.zqureshi.feeds.resources;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import in.zqureshi.feeds.api.Article;
+import in.zqureshi.feeds.db.FeedsDB;
+import in.zqureshi.feeds.db.Keys;
+import in.zqureshi.feeds.db.Records;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fan-out on write. Every article published to a feed leaves a reference
+ * in the inbox of each subscriber (see {@link Keys#inbox}, the key is the
+ * whole entry), so a timeline is one prefix scan of the inbox instead of a
+ * scan per subscription.
+ *
+ * Fan-out runs on a small pool behind a bounded queue. Once the queue is
+ * full publishers run their own fan-out, which slows publishing down to
+ * what the pool keeps up with instead of queueing without bound.
+ *
+ * Feeds with more than celebrityThreshold subscribers aren't fanned out,
+ * timelines pull them at read time. A new subscription gets the feed's
+ * latest backfill articles, so an inbox timeline reaches back that far into
+ * a feed from before subscribing.
+ *
+ * Entries a timeline no longer wants, of a feed unsubscribed from or one
+ * that just became pulled, are deleted in the background. Whatever races
+ * past that is skipped at read time.
+ */
+public class Inbox {
+    private static final Logger LOGGER = LoggerFactory.getLogger(Inbox.class);
+
+    private static final int BATCH_SIZE = 1000;
+    private static final byte[] EMPTY = new byte[0];
+
+    private final FeedsDB db;
+    private final boolean enabled;
+    private final ExecutorService executor;
+    private final int celebrityThreshold;
+    private final int backfill;
+
+    // Subscribers per feed, loaded from the stored counts on startup and
+    // kept in memory since every timeline read checks all its feeds.
+    private final Map<Long, AtomicInteger> subscribers = new ConcurrentHashMap<>();
+
+    private final Meter fanOuts;
+    private final Meter entries;
+    private final Meter pulled;
+    private final Meter purges;
+
+    public Inbox(FeedsDB db, boolean enabled, ExecutorService executor,
+                 int celebrityThreshold, int backfill, MetricRegistry metrics) {
+        this.db = db;
+        this.enabled = enabled;
+        this.executor = executor;
+        this.celebrityThreshold = celebrityThreshold;
+        this.backfill = backfill;
+
+        fanOuts = metrics.meter(MetricRegistry.name(Inbox.class, "fan-outs"));
+        entries = metrics.meter(MetricRegistry.name(Inbox.class, "entries"));
+        pulled = metrics.meter(MetricRegistry.name(Inbox.class, "pulled"));
+        purges = metrics.meter(MetricRegistry.name(Inbox.class, "purges"));
+
+        if (enabled) {
+            countSubscribers();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    // Celebrity feeds are read at timeline time instead of fanned out.
+    public boolean isPulled(long feedId) {
+        return subscriberCount(feedId) > celebrityThreshold;
+    }
+
+    public int subscriberCount(long feedId) {
+        AtomicInteger count = subscribers.get(feedId);
+        return count == null ? 0 : count.get();
+    }
+
+    // Queues the article's fan-out to the feed's subscribers, unless the
+    // feed is pulled. Call once the article is durable.
+    public void published(long feedId, long articleId, long publishedAt) {
+        if (!enabled) {
+            return;
+        }
+
+        if (isPulled(feedId)) {
+            pulled.mark();
+            return;
+        }
+
+        executor.execute(() -> run("fan out", feedId, () -> fanOut(feedId, articleId, publishedAt)));
+    }
+
+    // Call once the subscriber key is written.
+    public void subscribed(long userId, long feedId) {
+        if (!enabled) {
+            return;
+        }
+
+        int count = subscribers.computeIfAbsent(feedId, id -> new AtomicInteger()).incrementAndGet();
+        if (!isPulled(feedId)) {
+            executor.execute(() -> run("backfill", feedId, () -> backfill(feedId, Collections.singletonList(userId))));
+        } else if (count == celebrityThreshold + 1) {
+            // Just became pulled, what was fanned out is read from the feed now.
+            executor.execute(() -> run("purge", feedId, () -> {
+                if (isPulled(feedId)) {
+                    purge(feedId, subscribers(feedId));
+                }
+            }));
+        }
+    }
+
+    // Call once the subscriber key is deleted. A feed dropping back under
+    // the threshold has missed fan-outs, its subscribers get a backfill.
+    public void unsubscribed(long userId, long feedId) {
+        if (!enabled) {
+            return;
+        }
+
+        executor.execute(() -> run("purge", feedId, () -> {
+            if (!db.exists(Keys.subscriber(feedId, userId))) {
+                purge(feedId, Collections.singletonList(userId));
+            }
+        }));
+
+        AtomicInteger count = subscribers.get(feedId);
+        if (count != null && count.decrementAndGet() == celebrityThreshold) {
+            executor.execute(() -> run("backfill", feedId, () -> backfill(feedId, subscribers(feedId))));
+        }
+    }
+
+    // On replicas, where subscriptions and their fan-out are replicated from
+    // the primary: only keeps the count isPulled goes by in line with it.
+    public void counted(long feedId, long count) {
+        if (!enabled) {
+            return;
+        }
+
+        subscribers.computeIfAbsent(feedId, id -> new AtomicInteger()).set((int) count);
+    }
+
+    /**
+     * Backfills the inbox of every subscriber of every fanned out feed, for
+     * turning the inbox on for an existing database. Runs in the calling
+     * thread.
+     */
+    public void rebuild() throws IOException {
+        long feeds = 0;
+        try (FeedsDB.PrefixIterator it = db.scan(Keys.namespace(Keys.SUBSCRIBERS))) {
+            long feedId = -1;
+            List<Long> users = new ArrayList<>();
+
+            while (it.hasNext()) {
+                byte[] key = it.nextKey();
+                it.next();
+
+                if (Keys.id(key, 0) != feedId) {
+                    if (!users.isEmpty() && !isPulled(feedId)) {
+                        backfill(feedId, users);
+                        feeds++;
+                    }
+                    feedId = Keys.id(key, 0);
+                    users.clear();
+                }
+                users.add(Keys.id(key, 1));
+            }
+
+            if (!users.isEmpty() && !isPulled(feedId)) {
+                backfill(feedId, users);
+                feeds++;
+            }
+        }
+
+        LOGGER.info("Backfilled inboxes for {} feeds", feeds);
+    }
+
+    private void fanOut(long feedId, long articleId, long publishedAt) throws IOException {
+        FeedsDB.Batch batch = db.batch();
+        try (FeedsDB.PrefixIterator it = db.scan(Keys.subscribers(feedId))) {
+            while (it.hasNext()) {
+                long userId = Keys.id(it.nextKey(), 1);
+                it.next();
+
+                batch.put(Keys.inbox(userId, publishedAt, feedId, articleId), EMPTY);
+                if (batch.size() >= BATCH_SIZE) {
+                    write(batch);
+                    batch = db.batch();
+                }
+            }
+        }
+
+        write(batch);
+        fanOuts.mark();
+    }
+
+    // Latest backfill articles of feedId into the inbox of each user.
+    private void backfill(long feedId, List<Long> users) throws IOException {
+        List<Article> articles = new ArrayList<>(backfill);
+        try (FeedsDB.PrefixIterator it = db.scanReverse(Keys.articles(feedId), Keys.article(feedId, Long.MAX_VALUE))) {
+            while (articles.size() < backfill && it.hasNext()) {
+                articles.add(Records.decodeArticle(it.next()));
+            }
+        }
+
+        FeedsDB.Batch batch = db.batch();
+        for (long userId : users) {
+            for (Article article : articles) {
+                long publishedAt = article.getPublishedAt() == null ? 0 : article.getPublishedAt();
+                batch.put(Keys.inbox(userId, publishedAt, feedId, article.getId()), EMPTY);
+
+                if (batch.size() >= BATCH_SIZE) {
+                    write(batch);
+                    batch = db.batch();
+                }
+            }
+        }
+
+        write(batch);
+    }
+
+    // Deletes the entries of feedId from the inbox of each user. Inbox keys
+    // are by time, so it's a scan of the whole inbox.
+    private void purge(long feedId, List<Long> users) {
+        FeedsDB.Batch batch = db.batch();
+        for (long userId : users) {
+            try (FeedsDB.PrefixIterator it = db.scan(Keys.inbox(userId))) {
+                while (it.hasNext()) {
+                    byte[] key = it.nextKey();
+                    it.next();
+
+                    if (Keys.id(key, 2) == feedId) {
+                        batch.delete(key);
+                        if (batch.size() >= BATCH_SIZE) {
+                            db.write(batch);
+                            batch = db.batch();
+                        }
+                    }
+                }
+            }
+        }
+
+        if (batch.size() > 0) {
+            db.write(batch);
+        }
+        purges.mark();
+    }
+
+    private List<Long> subscribers(long feedId) {
+        List<Long> users = new ArrayList<>();
+        try (FeedsDB.PrefixIterator it = db.scan(Keys.subscribers(feedId))) {
+            while (it.hasNext()) {
+                users.add(Keys.id(it.nextKey(), 1));
+                it.next();
+            }
+        }
+
+        return users;
+    }
+
+    private void write(FeedsDB.Batch batch) {
+        if (batch.size() > 0) {
+            db.write(batch);
+            entries.mark(batch.size());
+        }
+    }
+
+    private void countSubscribers() {
+        try (FeedsDB.PrefixIterator it = db.scan(Keys.namespace(Keys.SUBSCRIBER_COUNTS))) {
+            while (it.hasNext()) {
+                long feedId = Keys.id(it.nextKey(), 0);
+                subscribers.put(feedId, new AtomicInteger((int) FeedsDB.count(it.next())));
+            }
+        }
+    }
+
+    // Nobody waits on fan-out, failures can only be logged.
+    private static void run(String task, long feedId, Task work) {
+        try {
+            work.run();
+        } catch (IOException | RuntimeException e) {
+            LOGGER.error("Inbox " + task + " of feed " + feedId + " failed", e);
+        }
+    }
+
+    @FunctionalInterface
+    private interface Task {
+        void run() throws IOException;
+    }
+}
@@ -0,0 +1,91 @@
+package in.zqureshi.feeds.resources;
+
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import in.zqureshi.feeds.db.FeedsDB;
+import io.dropwizard.setup.Environment;
+
+import javax.validation.constraints.Min;
+
+/**
+ * Settings for fan-out on write, off by default. threads write inboxes,
+ * up to queueSize fan-outs wait for them before publishers have to do their
+ * own. Feeds with more than celebrityThreshold subscribers are pulled at
+ * read time instead, new subscriptions get the latest backfill articles.
+ */
+public class InboxFactory {
+    private boolean enabled = false;
+
+    @Min(1)
+    private int threads = 4;
+
+    @Min(1)
+    private int queueSize = 10000;
+
+    @Min(0)
+    private int celebrityThreshold = 10000;
+
+    @Min(0)
+    private int backfill = 200;
+
+    @JsonProperty
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @JsonProperty
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    @JsonProperty
+    public int getThreads() {
+        return threads;
+    }
+
+    @JsonProperty
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    @JsonProperty
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    @JsonProperty
+    public void setQueueSize(int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    @JsonProperty
+    public int getCelebrityThreshold() {
+        return celebrityThreshold;
+    }
+
+    @JsonProperty
+    public void setCelebrityThreshold(int celebrityThreshold) {
+        this.celebrityThreshold = celebrityThreshold;
+    }
+
+    @JsonProperty
+    public int getBackfill() {
+        return backfill;
+    }
+
+    @JsonProperty
+    public void setBackfill(int backfill) {
+        this.backfill = backfill;
+    }
+
+    // Queued fan-outs finish before the database closes.
+    public Inbox build(FeedsDB db, Environment environment) {
+        return new Inbox(db, enabled, Pools.bounded(environment, "inbox-%d", threads, queueSize),
+            celebrityThreshold, backfill, environment.metrics());
+    }
+
+    public Inbox build(FeedsDB db, MetricRegistry metrics) {
+        return new Inbox(db, enabled, Pools.bounded("inbox-%d", threads, queueSize),
+            celebrityThreshold, backfill, metrics);
+    }
+}
@@ -0,0 +1,64 @@
+package in.zqureshi.feeds.resources;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.dropwizard.setup.Environment;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Thread pools for the factories in this package. The ones built from an
+ * Environment are managed, started and shut down with the application. The
+ * others have daemon threads, for tests and commands that never shut them
+ * down.
+ */
+final class Pools {
+    private Pools() {
+    }
+
+    static ExecutorService fixed(Environment environment, String nameFormat, int threads) {
+        return environment.lifecycle()
+            .executorService(nameFormat)
+            .minThreads(threads)
+            .maxThreads(threads)
+            .build();
+    }
+
+    static ExecutorService fixed(String nameFormat, int threads) {
+        return Executors.newFixedThreadPool(threads, daemon(nameFormat));
+    }
+
+    // Up to queueSize tasks wait for a thread, past that callers run their
+    // own.
+    static ExecutorService bounded(Environment environment, String nameFormat, int threads, int queueSize) {
+        return environment.lifecycle()
+            .executorService(nameFormat)
+            .minThreads(threads)
+            .maxThreads(threads)
+            .workQueue(new ArrayBlockingQueue<>(queueSize))
+            .rejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy())
+            .build();
+    }
+
+    static ExecutorService bounded(String nameFormat, int threads, int queueSize) {
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(queueSize), daemon(nameFormat), new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    static ScheduledExecutorService scheduled(Environment environment, String nameFormat) {
+        return environment.lifecycle().scheduledExecutorService(nameFormat).build();
+    }
+
+    static ScheduledExecutorService scheduled(String nameFormat) {
+        return Executors.newSingleThreadScheduledExecutor(daemon(nameFormat));
+    }
+
+    private static ThreadFactory daemon(String nameFormat) {
+        return new ThreadFactoryBuilder().setNameFormat(nameFormat).setDaemon(true).build();
+    }
+}
@@ -0,0 +1,15 @@
+package in.zqureshi.feeds.resources;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.core.Response;
+
+// Registered on replicas, everything they store comes from the primary.
+@Write
+public class ReadOnlyFilter implements ContainerRequestFilter {
+    @Override
+    public void filter(ContainerRequestContext request) {
+        throw new WebApplicationException("Read only replica, write to the primary", Response.Status.METHOD_NOT_ALLOWED);
+    }
+}
@@ -0,0 +1,75 @@
+package in.zqureshi.feeds.resources;
+
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import in.zqureshi.feeds.db.FeedsDB;
+import io.dropwizard.setup.Environment;
+import io.dropwizard.util.Duration;
+
+import javax.validation.constraints.Max;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+/**
+ * Settings for running as a read only replica. Without a primary (its
+ * base URL, e.g. http://localhost:8080) this is the primary. Replicas read
+ * pageSize writes at a time from the primary's log and wait pollInterval
+ * before asking again once they have caught up.
+ */
+public class ReplicationFactory {
+    private String primary;
+
+    @NotNull
+    private Duration pollInterval = Duration.milliseconds(100);
+
+    @Min(1)
+    @Max(1000)
+    private int pageSize = 1000;
+
+    public boolean isReplica() {
+        return primary != null;
+    }
+
+    @JsonProperty
+    public String getPrimary() {
+        return primary;
+    }
+
+    @JsonProperty
+    public void setPrimary(String primary) {
+        this.primary = primary;
+    }
+
+    @JsonProperty
+    public Duration getPollInterval() {
+        return pollInterval;
+    }
+
+    @JsonProperty
+    public void setPollInterval(Duration pollInterval) {
+        this.pollInterval = pollInterval;
+    }
+
+    @JsonProperty
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    @JsonProperty
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    // Started and stopped with the application, before the database stops.
+    public Replicator build(FeedsDB db, FeedResource feedResource, Environment environment) {
+        Replicator replicator = build(db, feedResource, environment.metrics());
+        environment.lifecycle().manage(replicator);
+
+        return replicator;
+    }
+
+    public Replicator build(FeedsDB db, FeedResource feedResource, MetricRegistry metrics) {
+        return new Replicator(db, feedResource, new Replicator.HttpSource(primary), Pools.scheduled("replicator-%d"),
+            pollInterval.toMilliseconds(), pageSize, metrics);
+    }
+}
@@ -0,0 +1,260 @@
+package in.zqureshi.feeds.resources;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.io.ByteStreams;
+import com.google.common.primitives.Longs;
+import in.zqureshi.feeds.db.FeedsDB;
+import in.zqureshi.feeds.db.Keys;
+import in.zqureshi.feeds.db.Records;
+import io.dropwizard.lifecycle.Managed;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a replica's database up to date with the primary's by applying
+ * the primary's log (see {@link ChangeResource#log}) a page at a time,
+ * every page as one atomic write. Where the replica is in the primary's
+ * log goes into the same write, so a restart carries on from there without
+ * missing or applying anything twice.
+ *
+ * Counter ceilings from the primary are left out. The replica writes the
+ * exact next id of every counter it sees used instead, which is what pages
+ * of a feed are read from.
+ */
+public class Replicator implements Managed {
+    private static final Logger LOGGER = LoggerFactory.getLogger(Replicator.class);
+
+    // Next sequence of the primary's log to apply.
+    static final String POSITION = "/replication/next";
+
+    private static final long STOP_TIMEOUT_SECONDS = 10;
+
+    private final FeedsDB db;
+    private final FeedResource feedResource;
+    private final Source source;
+    private final ScheduledExecutorService scheduler;
+    private final long pollInterval;
+    private final int pageSize;
+    private Clock clock = Clock.systemUTC();
+
+    private volatile long next;
+    // Latest sequence of the primary as of the last page.
+    private volatile long latest;
+    private volatile long caughtUpAt;
+
+    private final Meter applied;
+    private final Meter failures;
+
+    public Replicator(FeedsDB db, FeedResource feedResource, Source source, ScheduledExecutorService scheduler,
+                      long pollInterval, int pageSize, MetricRegistry metrics) {
+        this.db = db;
+        this.feedResource = feedResource;
+        this.source = source;
+        this.scheduler = scheduler;
+        this.pollInterval = pollInterval;
+        this.pageSize = pageSize;
+
+        byte[] position = db.get(POSITION);
+        next = position == null ? 1 : Longs.fromByteArray(position);
+        latest = next - 1;
+        caughtUpAt = clock.millis();
+
+        applied = metrics.meter(MetricRegistry.name(Replicator.class, "applied"));
+        failures = metrics.meter(MetricRegistry.name(Replicator.class, "failures"));
+        metrics.register(MetricRegistry.name(Replicator.class, "lag"), (Gauge<Long>) this::lag);
+        metrics.register(MetricRegistry.name(Replicator.class, "lag-millis"), (Gauge<Long>) this::lagMillis);
+    }
+
+    @Override
+    public void start() {
+        scheduler.scheduleWithFixedDelay(this::poll, 0, pollInterval, TimeUnit.MILLISECONDS);
+    }
+
+    // Lets a page being applied finish, the database closes after.
+    @Override
+    public void stop() throws InterruptedException {
+        scheduler.shutdown();
+        scheduler.awaitTermination(STOP_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    // Writes of the primary not applied here yet, as of the last page.
+    public long lag() {
+        return Math.max(0, latest - (next - 1));
+    }
+
+    // How long since the replica last had everything the primary had, 0
+    // while it still does.
+    public long lagMillis() {
+        return lag() == 0 ? 0 : clock.millis() - caughtUpAt;
+    }
+
+    // Next sequence of the primary's log to apply.
+    public long next() {
+        return next;
+    }
+
+    // Catches up as far as the primary has got, a page at a time.
+    void poll() {
+        try {
+            while (replicate() == pageSize) {
+                // Full page, there's probably more.
+            }
+        } catch (Exception e) {
+            failures.mark();
+            LOGGER.warn("Replicating from " + next + " failed", e);
+        }
+    }
+
+    // Applies the next page of the primary's log, returns how many writes
+    // it had.
+    int replicate() throws IOException {
+        Page page = source.read(next, pageSize);
+
+        FeedsDB.Batch batch = db.batch();
+        Map<String, Long> counters = new HashMap<>();
+        List<FeedsDB.Mutation> articles = new ArrayList<>();
+        Set<Long> counted = new HashSet<>();
+        for (FeedsDB.Update update : page.updates) {
+            for (FeedsDB.Mutation mutation : update.mutations()) {
+                if (FeedsDB.isCounter(mutation.key())) {
+                    continue;
+                }
+
+                batch.apply(mutation);
+                if (Keys.tag(mutation.key()) == Keys.SUBSCRIBER_COUNTS) {
+                    counted.add(Keys.id(mutation.key(), 0));
+                }
+                if (mutation.op() == FeedsDB.Op.PUT) {
+                    used(mutation.key(), counters);
+                    if (Keys.tag(mutation.key()) == Keys.ARTICLES) {
+                        articles.add(mutation);
+                    }
+                }
+            }
+        }
+        counters.forEach(batch::setCounter);
+
+        long position = Math.max(next, page.next);
+        batch.put(POSITION, Longs.toByteArray(position));
+        db.write(batch);
+
+        counters.forEach(db::advanceCounter);
+        for (FeedsDB.Mutation article : articles) {
+            feedResource.replicated(Keys.id(article.key(), 0), Keys.id(article.key(), 1), article.value());
+        }
+        // The inbox decides which feeds are pulled from subscriber counts
+        // it keeps in memory.
+        for (long feedId : counted) {
+            feedResource.inbox().counted(feedId, db.getCount(Keys.subscriberCount(feedId)));
+        }
+
+        next = position;
+        latest = page.latest;
+        if (lag() == 0) {
+            caughtUpAt = clock.millis();
+        }
+        applied.mark(page.updates.size());
+
+        return page.updates.size();
+    }
+
+    // Counts lag from now on the new clock.
+    void setClock(Clock clock) {
+        this.clock = clock;
+        caughtUpAt = clock.millis();
+    }
+
+    // Counter that handed out the id in key on the primary, if any.
+    private static void used(byte[] key, Map<String, Long> counters) {
+        switch (Keys.tag(key)) {
+            case Keys.USERS:
+                counters.merge(UserResource.USERS_COUNTER, Keys.id(key, 0) + 1, Math::max);
+                break;
+            case Keys.FEEDS:
+                counters.merge(FeedResource.FEEDS_COUNTER, Keys.id(key, 0) + 1, Math::max);
+                break;
+            case Keys.ARTICLES:
+                counters.merge(FeedResource.ARTICLES_COUNTER_PREFIX + Keys.id(key, 0), Keys.id(key, 1) + 1, Math::max);
+                break;
+            default:
+        }
+    }
+
+    // Where pages of the primary's log come from.
+    @FunctionalInterface
+    public interface Source {
+        Page read(long since, int limit) throws IOException;
+    }
+
+    // A page of the primary's log as ChangeResource.log answers it.
+    public static class Page {
+        private final List<FeedsDB.Update> updates;
+        private final long next;
+        private final long latest;
+
+        public Page(byte[] body, long next, long latest) throws IOException {
+            ByteBuffer in = ByteBuffer.wrap(body);
+            updates = new ArrayList<>();
+            while (in.hasRemaining()) {
+                updates.add(Records.decodeUpdate(in));
+            }
+
+            this.next = next;
+            this.latest = latest;
+        }
+    }
+
+    // Reads from the primary's /v1/changes/log.
+    public static class HttpSource implements Source {
+        private static final int CONNECT_TIMEOUT = 5000;
+        private static final int READ_TIMEOUT = 30000;
+
+        private final String primary;
+
+        public HttpSource(String primary) {
+            this.primary = primary.endsWith("/") ? primary.substring(0, primary.length() - 1) : primary;
+        }
+
+        @Override
+        public Page read(long since, int limit) throws IOException {
+            URL url = new URL(primary + "/v1/changes/log?since=" + since + "&limit=" + limit);
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            connection.setConnectTimeout(CONNECT_TIMEOUT);
+            connection.setReadTimeout(READ_TIMEOUT);
+
+            try {
+                if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                    throw new IOException(url + " answered " + connection.getResponseCode());
+                }
+
+                byte[] body;
+                try (InputStream in = connection.getInputStream()) {
+                    body = ByteStreams.toByteArray(in);
+                }
+
+                return new Page(body,
+                    Long.parseLong(connection.getHeaderField(ChangeResource.NEXT_HEADER)),
+                    Long.parseLong(connection.getHeaderField(ChangeResource.LATEST_HEADER)));
+            } finally {
+                connection.disconnect();
+            }
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package in.zqureshi.feeds.resources;
+
+import in.zqureshi.feeds.db.Records;
+
+import javax.ws.rs.BadRequestException;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.Optional;
+
+/**
+ * Where a timeline page left off. asOf pins the timeline to the moment the
+ * first page was read so articles published since don't shift later pages,
+ * last is the last entry returned, whichever feed or inbox it came from,
+ * and everything on later pages sorts after it. A feed's publishedAt never
+ * goes down as its ids go up, so last is all it takes to find each feed's
+ * place again.
+ *
+ * Handed out as URL safe base64 of varints, clients treat it as opaque.
+ */
+final class TimelineCursor {
+    private static final byte V1 = 0x01;
+    // Added last.
+    private static final byte V2 = 0x02;
+    // Dropped the position of every feed read from.
+    private static final byte V3 = 0x03;
+
+    private final long asOf;
+    private final Optional<Entry> last;
+
+    TimelineCursor(long asOf, Optional<Entry> last) {
+        this.asOf = asOf;
+        this.last = last;
+    }
+
+    static TimelineCursor start(long asOf) {
+        return new TimelineCursor(asOf, Optional.empty());
+    }
+
+    long asOf() {
+        return asOf;
+    }
+
+    Optional<Entry> last() {
+        return last;
+    }
+
+    // Whether an entry still belongs on a page after this cursor.
+    boolean includes(long publishedAt, long feedId, long articleId) {
+        return publishedAt <= asOf && (!last.isPresent() || last.get().isNewerThan(publishedAt, feedId, articleId));
+    }
+
+    String encode() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(32);
+        out.write(V3);
+        Records.writeVarint(out, asOf);
+
+        if (last.isPresent()) {
+            out.write(1);
+            Records.writeVarint(out, last.get().publishedAt);
+            Records.writeVarint(out, last.get().feedId);
+            Records.writeVarint(out, last.get().articleId);
+        } else {
+            out.write(0);
+        }
+
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(out.toByteArray());
+    }
+
+    // Anything that isn't a cursor we handed out is a bad request. Older
+    // versions are still read, a version one cursor has no last and pages
+    // from the top of asOf again.
+    static TimelineCursor decode(String cursor) {
+        try {
+            ByteBuffer in = ByteBuffer.wrap(Base64.getUrlDecoder().decode(cursor));
+            byte version = in.get();
+            if (version != V1 && version != V2 && version != V3) {
+                throw new IOException("Unknown cursor version");
+            }
+
+            long asOf = Records.readVarint(in);
+            if (version < V3) {
+                long positions = Records.readVarint(in);
+                for (long i = 0; i < 2 * positions; i++) {
+                    Records.readVarint(in);
+                }
+            }
+
+            Optional<Entry> last = Optional.empty();
+            if (version >= V2 && in.get() != 0) {
+                last = Optional.of(new Entry(Records.readVarint(in), Records.readVarint(in), Records.readVarint(in)));
+            }
+
+            return new TimelineCursor(asOf, last);
+        } catch (IOException | IllegalArgumentException | BufferUnderflowException e) {
+            throw new BadRequestException("Malformed cursor", e);
+        }
+    }
+
+    // Position of an article in timeline order.
+    static final class Entry {
+        // Ties on publishedAt go to the higher feed and article id, the
+        // same order inbox keys have backwards.
+        static final Comparator<Entry> NEWEST_FIRST = Comparator
+            .comparingLong((Entry entry) -> entry.publishedAt)
+            .thenComparingLong(entry -> entry.feedId)
+            .thenComparingLong(entry -> entry.articleId)
+            .reversed();
+
+        private final long publishedAt;
+        private final long feedId;
+        private final long articleId;
+
+        Entry(long publishedAt, long feedId, long articleId) {
+            this.publishedAt = publishedAt;
+            this.feedId = feedId;
+            this.articleId = articleId;
+        }
+
+        long publishedAt() {
+            return publishedAt;
+        }
+
+        long feedId() {
+            return feedId;
+        }
+
+        long articleId() {
+            return articleId;
+        }
+
+        boolean isNewerThan(long publishedAt, long feedId, long articleId) {
+            return NEWEST_FIRST.compare(this, new Entry(publishedAt, feedId, articleId)) < 0;
+        }
+    }
+}
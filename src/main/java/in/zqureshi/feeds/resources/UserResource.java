@@ -1,127 +1,320 @@
 package in.zqureshi.feeds.resources;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
+import com.codahale.metrics.MetricRegistry;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.google.common.base.Joiner;
+import com.google.common.collect.ForwardingMap;
 import com.google.common.collect.Sets;
-import in.zqureshi.feeds.api.Article;
+import com.google.common.util.concurrent.Striped;
 import in.zqureshi.feeds.api.Feed;
+import in.zqureshi.feeds.api.Timeline;
 import in.zqureshi.feeds.api.User;
+import in.zqureshi.feeds.api.UserList;
 import in.zqureshi.feeds.db.FeedsDB;
+import in.zqureshi.feeds.db.Keys;
+import in.zqureshi.feeds.db.Records;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.jws.soap.SOAPBinding;
 import javax.ws.rs.*;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 import java.io.IOError;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.locks.Lock;
 
 @Path("/v1/users")
 @Produces(MediaType.APPLICATION_JSON)
 public class UserResource {
     private static final Logger LOGGER = LoggerFactory.getLogger(UserResource.class);
 
-    private static final String USERS_COUNTER = "/users";
-    private static final String USERS_PREFIX = "/users/";
+    static final String USERS_COUNTER = "/users";
+
+    // Feeds consumeFeeds left out for running past the fan-out timeout.
+    public static final String TIMED_OUT_HEADER = "Feeds-Timed-Out";
+
+    private static final int TIMELINE_PAGE = 50;
+    private static final int MAX_TIMELINE_PAGE = 200;
+
+    // Subscriber keys are all there is to them.
+    private static final byte[] SUBSCRIBED = new byte[0];
+
+    // Subscription changes check the subscription before writing it and the
+    // subscriber count, so they're serialized per user. Users sharing a
+    // stripe wait on each other.
+    private static final int LOCK_STRIPES = 1024;
 
     private FeedsDB db;
     private ObjectMapper mapper;
     private FeedResource feedResource;
+    private FeedFanOut fanOut;
+    private final Striped<Lock> locks = Striped.lock(LOCK_STRIPES);
 
     public UserResource(FeedsDB db, FeedResource feedResource, ObjectMapper mapper) {
+        this(db, feedResource, mapper, new FeedFanOutFactory().build(new MetricRegistry()));
+    }
+
+    public UserResource(FeedsDB db, FeedResource feedResource, ObjectMapper mapper, FeedFanOut fanOut) {
         this.db = db;
         this.mapper = mapper;
         this.feedResource = feedResource;
+        this.fanOut = fanOut;
     }
 
+    /**
+     * Users after {@code after} with their subscriptions, {@code limit} of
+     * them (default 100, at most 1000).
+     */
     @GET
-    public List<User> listUsers() throws IOException {
-        List<User> users = new ArrayList<>();
+    public UserList listUsers(@QueryParam("after") Optional<Long> after,
+                              @QueryParam("limit") Optional<Integer> limit) throws IOException {
+        int size = Math.min(FeedResource.MAX_LIST_PAGE, Math.max(1, limit.orElse(FeedResource.LIST_PAGE)));
 
-        for (FeedsDB.PrefixIterator it = db.scan(USERS_PREFIX);
-             it.hasNext();) {
-            users.add(mapper.readValue(it.next(), User.class));
-        }
+        List<User> users = new ArrayList<>(size);
+        boolean more = scanUsers(after, size, users::add);
+
+        return new UserList(users, more ? users.get(users.size() - 1).getId() : null);
+    }
+
+    /**
+     * Every user after {@code after} (default: all of them), one JSON
+     * object per line written out as the scan goes, so only one user's
+     * subscriptions are ever held onto.
+     */
+    @GET
+    @Produces(FeedResource.NDJSON_ONLY_IF_ASKED)
+    public StreamingOutput streamUsers(@QueryParam("after") Optional<Long> after) {
+        return out -> scanUsers(after, Long.MAX_VALUE, user -> {
+            out.write(mapper.writeValueAsBytes(user));
+            out.write('\n');
+        });
+    }
+
+    // Every user at once, for tests, same as FeedResource.listFeeds().
+    List<User> listUsers() throws IOException {
+        List<User> users = new ArrayList<>();
+        scanUsers(Optional.empty(), Long.MAX_VALUE, users::add);
 
         return users;
     }
 
-    // Don't need synchronization because uniqueness is guaranteed by atomic incrementCounter.
-    @POST
-    public User createUser() throws JsonProcessingException {
-        final long id = db.incrementCounter(USERS_COUNTER);
-        User user = new User(id, Collections.emptyMap());
+    // Up to limit users after after in order, returns whether there are
+    // more. Subscriptions are in user order too, so they're read alongside
+    // the users with a second iterator instead of a scan per user.
+    private boolean scanUsers(Optional<Long> after, long limit, UserVisitor visitor) throws IOException {
+        byte[] start = after.isPresent() ? Keys.user(after.get() + 1) : Keys.namespace(Keys.USERS);
+        byte[] subscriptionsStart = after.isPresent()
+            ? Keys.subscriptions(after.get() + 1)
+            : Keys.namespace(Keys.SUBSCRIPTIONS);
+
+        try (FeedsDB.PrefixIterator users = db.scan(Keys.namespace(Keys.USERS), start);
+             FeedsDB.PrefixIterator subscriptions = db.scan(Keys.namespace(Keys.SUBSCRIPTIONS), subscriptionsStart)) {
+            for (long n = 0; n < limit && users.hasNext(); n++) {
+                long userId = Keys.id(users.nextKey(), 0);
+                users.next();
+
+                Map<Long, Long> feeds = new LinkedHashMap<>();
+                while (subscriptions.hasNext() && Keys.id(subscriptions.nextKey(), 0) <= userId) {
+                    byte[] key = subscriptions.nextKey();
+                    long index = Records.decodeSubscription(subscriptions.next());
+                    if (Keys.id(key, 0) == userId) {
+                        feeds.put(Keys.id(key, 1), index);
+                    }
+                }
+
+                visitor.visit(new User(userId, feeds));
+            }
 
-        return updateUser(user);
+            return users.hasNext();
+        }
     }
 
-    public User updateUser(User user) throws JsonProcessingException {
-        db.put(USERS_PREFIX + user.getId(), mapper.writeValueAsBytes(user));
-        return user;
+    // Don't need synchronization because uniqueness is guaranteed by atomic incrementCounter.
+    @POST
+    @Write
+    public User createUser() throws IOException {
+        final long id = db.insert(USERS_COUNTER, (userId, batch) ->
+            batch.put(Keys.user(userId), Records.encode(new User(userId, Collections.emptyMap())))
+        );
+
+        return new User(id, Collections.emptyMap());
     }
 
+    // The user record only says the user exists, feeds are read from the
+    // user's subscription records once something looks at them.
     @GET
     @Path("/{id}")
     public User getUser(@PathParam("id") Long id) throws IOException {
-        byte[] result = db.get(USERS_PREFIX + id);
-        if (result == null) {
+        // Unknown ids are turned away without a read.
+        if (!db.exists(Keys.user(id))) {
             throw new NotFoundException();
         }
 
-        return mapper.readValue(result, User.class);
+        return new User(id, new Feeds(id));
     }
 
     @POST
+    @Write
     @Path("/{id}/subscribe")
     @Produces(MediaType.APPLICATION_JSON)
-    public synchronized User subscribe(@PathParam("id") Long id, @QueryParam("feedId") Long feedId) throws IOException {
-        User user = getUser(id);
+    public User subscribe(@PathParam("id") Long id, @QueryParam("feedId") Long feedId) throws IOException {
+        // Looked up before locking, an article published in between is one
+        // more to read on the next consume.
+        long feedIndex = feedResource.latestArticleId(feedId);
 
-        if (!user.getFeeds().containsKey(feedId)) {
-            Feed feed = feedResource.showFeed(feedId, Optional.empty());
-            Long feedIndex = FeedsDB.INITIAL_COUNTER_VALUE;
+        Lock lock = locks.get(id);
+        lock.lock();
+        try {
+            User user = getUser(id);
 
-            if (feed.getArticles().size() > 0) {
-                Article lastArticle = feed.getArticles().get(feed.getArticles().size() - 1);
-                feedIndex = lastArticle.getId();
+            // When sharded the feed's side is in another shard and written
+            // first, FeedsDB reconciles it with the subscription after a
+            // crash in between.
+            if (db.get(Keys.subscription(id, feedId)) == null) {
+                db.write(db.batch()
+                    .put(Keys.subscriber(feedId, id), SUBSCRIBED)
+                    .increment(Keys.subscriberCount(feedId), 1)
+                    .put(Keys.subscription(id, feedId), Records.encodeSubscription(feedIndex)));
+                feedResource.inbox().subscribed(id, feedId);
             }
 
-            user.getFeeds().put(feedId, feedIndex);
-            return updateUser(user);
+            return user;
+        } finally {
+            lock.unlock();
         }
-
-        return user;
     }
 
     @POST
+    @Write
     @Path("/{id}/unsubscribe")
     @Produces(MediaType.APPLICATION_JSON)
-    public synchronized User unsubscribe(@PathParam("id") Long id, @QueryParam("feedId") Long feedId) throws IOException {
-        User user = getUser(id);
+    public User unsubscribe(@PathParam("id") Long id, @QueryParam("feedId") Long feedId) throws IOException {
+        Lock lock = locks.get(id);
+        lock.lock();
+        try {
+            User user = getUser(id);
 
-        if (user.getFeeds().containsKey(feedId)) {
-            user.getFeeds().remove(feedId);
-            return updateUser(user);
+            if (db.get(Keys.subscription(id, feedId)) != null) {
+                // Feed's side first, as in subscribe.
+                db.write(db.batch()
+                    .delete(Keys.subscriber(feedId, id))
+                    .increment(Keys.subscriberCount(feedId), -1)
+                    .delete(Keys.subscription(id, feedId)));
+                feedResource.inbox().unsubscribed(id, feedId);
+            }
+
+            return user;
+        } finally {
+            lock.unlock();
         }
+    }
 
-        return user;
+    /**
+     * One page of the newest articles across every subscription, pass the
+     * returned cursor back for the page after it.
+     */
+    @GET
+    @Path("/{id}/timeline")
+    public Timeline timeline(@PathParam("id") Long id,
+                             @QueryParam("cursor") Optional<String> cursor,
+                             @QueryParam("limit") Optional<Integer> limit) throws IOException {
+        User user = getUser(id);
+        int size = Math.min(MAX_TIMELINE_PAGE, Math.max(1, limit.orElse(TIMELINE_PAGE)));
+
+        return feedResource.timeline(id, user.getFeeds().keySet(), cursor, size);
     }
 
+    /**
+     * Streams {@code [feed, ...]} for every subscription, articles written as
+     * stored. Every feed is looked up before anything is read so a bad feed
+     * or startId still fails the whole request cleanly, then the pages are
+     * read in a few concurrent batches and written out in subscription
+     * order. Feeds not read within the fan-out timeout are left out of the
+     * response and listed in the TIMED_OUT_HEADER, comma separated.
+     */
     @POST
     @Path("/{id}/consumeFeeds")
     @Produces(MediaType.APPLICATION_JSON)
     @Consumes(MediaType.APPLICATION_JSON)
-    public List<Feed> consumeFeeds(@PathParam("id") Long id, Map<Long, Long> startIds) throws IOException {
+    public Response streamFeeds(@PathParam("id") Long id, Map<Long, Long> startIds) throws IOException {
+        FeedFanOut.Results<byte[]> feeds = fanOut.readBatched(subscriptions(id, startIds), feedResource::feedsOutput);
+
+        StreamingOutput output = out -> {
+            out.write('[');
+            for (int i = 0; i < feeds.size(); i++) {
+                if (i > 0) {
+                    out.write(',');
+                }
+                out.write(feeds.get(i));
+            }
+            out.write(']');
+        };
+
+        Response.ResponseBuilder response = Response.ok(output);
+        if (!feeds.missed().isEmpty()) {
+            response.header(TIMED_OUT_HEADER, Joiner.on(',').join(feeds.missed()));
+        }
+
+        return response.build();
+    }
+
+    // Same feeds as streamFeeds, decoded.
+    public FeedFanOut.Results<Feed> consumeFeeds(Long id, Map<Long, Long> startIds) throws IOException {
+        return fanOut.readBatched(subscriptions(id, startIds), feedResource::feedsReader);
+    }
+
+    private Map<Long, Long> subscriptions(Long id, Map<Long, Long> startIds) throws IOException {
         User user = getUser(id);
         user.getFeeds().putAll(startIds);
 
-        List<Feed> feeds = new ArrayList<>(user.getFeeds().size());
-        for (Map.Entry<Long, Long> entry : user.getFeeds().entrySet()) {
-            feeds.add(feedResource.showFeed(entry.getKey(), Optional.of(entry.getValue())));
+        return user.getFeeds();
+    }
+
+    // Subscribed feed ids to the article id each was subscribed at, in feed
+    // id order.
+    private Map<Long, Long> feeds(long userId) throws IOException {
+        Map<Long, Long> feeds = new LinkedHashMap<>();
+        try (FeedsDB.PrefixIterator it = db.scan(Keys.subscriptions(userId))) {
+            while (it.hasNext()) {
+                long feedId = Keys.id(it.nextKey(), 1);
+                feeds.put(feedId, Records.decodeSubscription(it.next()));
+            }
         }
 
         return feeds;
     }
+
+    // feeds(userId), scanned on first use. Subscription changes only look up
+    // the one subscription, the scan is left to whatever reads the user
+    // they return, after the change is written.
+    private final class Feeds extends ForwardingMap<Long, Long> {
+        private final long userId;
+        private Map<Long, Long> feeds;
+
+        Feeds(long userId) {
+            this.userId = userId;
+        }
+
+        @Override
+        protected Map<Long, Long> delegate() {
+            if (feeds == null) {
+                try {
+                    feeds = feeds(userId);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+
+            return feeds;
+        }
+    }
+
+    @FunctionalInterface
+    private interface UserVisitor {
+        void visit(User user) throws IOException;
+    }
 }
@@ -0,0 +1,19 @@
+package in.zqureshi.feeds.benchmarks;
+
+import java.io.File;
+
+final class Benchmarks {
+    private Benchmarks() {
+    }
+
+    static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+
+        file.delete();
+    }
+}
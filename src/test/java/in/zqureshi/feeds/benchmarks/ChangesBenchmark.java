@@ -0,0 +1,137 @@
+package in.zqureshi.feeds.benchmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import in.zqureshi.feeds.api.Changes;
+import in.zqureshi.feeds.db.FeedsDB;
+import in.zqureshi.feeds.db.Keys;
+import in.zqureshi.feeds.resources.ChangeResource;
+import in.zqureshi.feeds.resources.FeedResource;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Catching up on the latest articles by reading the change log from where
+ * the consumer left off, against rescanning every article for ones it
+ * hasn't seen. seek starts a fresh log at the cursor, which reads the WAL
+ * file up to it. follow is a consumer polling every few publishes, carrying
+ * on with the log its last page left open, only what's new is read.
+ *
+ * Run with {@code mvn -Pbenchmarks test-compile exec:exec -Dbenchmark=ChangesBenchmark}
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChangesBenchmark {
+    private static final int FEEDS = 100;
+    private static final int NEW_ARTICLES = 100;
+    private static final int PER_POLL = 10;
+
+    @State(Scope.Benchmark)
+    public static class Database {
+        @Param({"100", "1000"})
+        int articlesPerFeed;
+
+        File folder;
+        FeedsDB db;
+        FeedResource feedResource;
+        ChangeResource changeResource;
+        long[] feeds;
+        long[] lastSeen;
+        long since;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            folder = Files.createTempDirectory("feeds-bench").toFile();
+            db = new FeedsDB(folder.getPath());
+            feedResource = new FeedResource(db, new ObjectMapper());
+            changeResource = new ChangeResource(db);
+
+            feeds = new long[FEEDS];
+            lastSeen = new long[FEEDS];
+            for (int i = 0; i < FEEDS; i++) {
+                feeds[i] = feedResource.creatFeed().getId();
+                for (int j = 0; j < articlesPerFeed; j++) {
+                    lastSeen[i] = feedResource.publishArticle(feeds[i], "#DEADBEEF:" + j).getId();
+                }
+            }
+
+            since = db.latestSequence() + 1;
+            for (int i = 0; i < NEW_ARTICLES; i++) {
+                feedResource.publishArticle(feeds[i % FEEDS], "#CAFEBABE:" + i);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            changeResource.stop();
+            db.stop();
+            Benchmarks.delete(folder);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Consumer {
+        long cursor;
+        int published;
+
+        // A few new articles before every poll, the first poll starts from
+        // the end of the log.
+        @Setup(Level.Invocation)
+        public void publish(Database database) throws Exception {
+            if (cursor == 0) {
+                cursor = database.db.latestSequence() + 1;
+            }
+            for (int i = 0; i < PER_POLL; i++, published++) {
+                database.feedResource.publishArticle(database.feeds[published % FEEDS], "#CAFEBABE:" + published);
+            }
+        }
+    }
+
+    @Benchmark
+    public Changes seek(Database database) throws Exception {
+        return database.changeResource.listChanges(Optional.of(database.since), Optional.of(NEW_ARTICLES));
+    }
+
+    @Benchmark
+    public Changes follow(Database database, Consumer consumer) throws Exception {
+        Changes changes = database.changeResource.listChanges(Optional.of(consumer.cursor), Optional.of(PER_POLL));
+        consumer.cursor = changes.getNext();
+
+        return changes;
+    }
+
+    // What a consumer without the log has to do, every article is read to
+    // find the ones past what it saw last.
+    @Benchmark
+    public int rescan(Database database) throws Exception {
+        int found = 0;
+        try (FeedsDB.PrefixIterator it = database.db.scan(Keys.namespace(Keys.ARTICLES))) {
+            while (it.hasNext()) {
+                byte[] key = it.nextKey();
+                it.next();
+                if (Keys.id(key, 1) > database.lastSeen[(int) (Keys.id(key, 0) - FeedsDB.INITIAL_COUNTER_VALUE)]) {
+                    found++;
+                }
+            }
+        }
+
+        return found;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+            .include(ChangesBenchmark.class.getName())
+            .build();
+
+        new Runner(options).run();
+    }
+}
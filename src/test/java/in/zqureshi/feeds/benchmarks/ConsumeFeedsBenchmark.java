@@ -0,0 +1,129 @@
+package in.zqureshi.feeds.benchmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import in.zqureshi.feeds.db.FeedsDB;
+import in.zqureshi.feeds.db.Keys;
+import in.zqureshi.feeds.resources.FeedResource;
+import in.zqureshi.feeds.resources.UserResource;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading a page from every subscribed feed: an existence check and an
+ * iterator per feed, against batched existence checks followed by one
+ * multi-range scan or one multiGet of the page keys. consumeFeeds is the
+ * whole request on top of the multi-range scan.
+ *
+ * Run with {@code mvn -Pbenchmarks test-compile exec:exec -Dbenchmark=ConsumeFeedsBenchmark}
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConsumeFeedsBenchmark {
+    private static final int PAGE_SIZE = 50;
+    private static final int ARTICLES = 60;
+    private static final long START_ID = FeedsDB.INITIAL_COUNTER_VALUE + ARTICLES - PAGE_SIZE;
+
+    @Param({"10", "100", "1000"})
+    int subscriptions;
+
+    File folder;
+    FeedsDB db;
+    UserResource userResource;
+    long userId;
+    List<Long> feeds = new ArrayList<>();
+    List<byte[]> feedKeys = new ArrayList<>();
+    List<byte[]> pageKeys = new ArrayList<>();
+    List<FeedsDB.Range> ranges = new ArrayList<>();
+    Map<Long, Long> startIds = new LinkedHashMap<>();
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        folder = Files.createTempDirectory("feeds-bench").toFile();
+        db = new FeedsDB(folder.getPath());
+
+        ObjectMapper mapper = new ObjectMapper();
+        FeedResource feedResource = new FeedResource(db, mapper);
+        userResource = new UserResource(db, feedResource, mapper);
+        userId = userResource.createUser().getId();
+
+        for (int i = 0; i < subscriptions; i++) {
+            long feedId = feedResource.creatFeed().getId();
+            for (int j = 0; j < ARTICLES; j++) {
+                feedResource.publishArticle(feedId, "f:" + feedId + "a:" + j);
+            }
+            userResource.subscribe(userId, feedId);
+
+            startIds.put(feedId, START_ID);
+            feeds.add(feedId);
+            feedKeys.add(Keys.feed(feedId));
+            ranges.add(new FeedsDB.Range(Keys.articles(feedId), Keys.article(feedId, START_ID)));
+            for (long articleId = START_ID; articleId < START_ID + PAGE_SIZE; articleId++) {
+                pageKeys.add(Keys.article(feedId, articleId));
+            }
+        }
+
+        // Reopened so everything is read from SST files, not the memtable.
+        db.stop();
+        db = new FeedsDB(folder.getPath());
+        feedResource = new FeedResource(db, mapper);
+        userResource = new UserResource(db, feedResource, mapper);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        db.stop();
+        Benchmarks.delete(folder);
+    }
+
+    @Benchmark
+    public void perFeed(Blackhole blackhole) throws Exception {
+        for (long feedId : feeds) {
+            blackhole.consume(db.exists(Keys.feed(feedId)));
+            try (FeedsDB.PrefixIterator it = db.scan(Keys.articles(feedId), Keys.article(feedId, START_ID))) {
+                for (int n = 0; n < PAGE_SIZE && it.hasNext(); n++) {
+                    blackhole.consume(it.next());
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public void multiRangeScan(Blackhole blackhole) throws Exception {
+        blackhole.consume(db.exists(feedKeys));
+        db.scan(ranges, PAGE_SIZE, (range, key, value) -> blackhole.consume(value));
+    }
+
+    @Benchmark
+    public void multiGet(Blackhole blackhole) throws Exception {
+        blackhole.consume(db.exists(feedKeys));
+        blackhole.consume(db.multiGet(pageKeys));
+    }
+
+    @Benchmark
+    public Object consumeFeeds() throws Exception {
+        return userResource.consumeFeeds(userId, startIds);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+            .include(ConsumeFeedsBenchmark.class.getName())
+            .build();
+
+        new Runner(options).run();
+    }
+}
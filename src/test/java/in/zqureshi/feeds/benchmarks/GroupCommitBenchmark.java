@@ -0,0 +1,95 @@
+package in.zqureshi.feeds.benchmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import in.zqureshi.feeds.db.FeedsDB;
+import in.zqureshi.feeds.resources.FeedResource;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Per-request writes against group commit, with and without an fsync per
+ * write. Sample time mode reports p50/p99 latency next to throughput.
+ *
+ * Run with {@code mvn -Pbenchmarks test-compile exec:exec -Dbenchmark=GroupCommitBenchmark}
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GroupCommitBenchmark {
+    private static final int FEEDS = 64;
+
+    @State(Scope.Benchmark)
+    public static class Database {
+        @Param({"false", "true"})
+        boolean groupCommit;
+
+        @Param({"false", "true"})
+        boolean syncWrites;
+
+        @Param({"0", "100"})
+        long maxWaitMicros;
+
+        File folder;
+        FeedsDB db;
+        FeedResource feedResource;
+        long[] feeds = new long[FEEDS];
+        AtomicInteger nextFeed = new AtomicInteger();
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            folder = Files.createTempDirectory("feeds-bench").toFile();
+
+            FeedsDB.FeedsDBFactory factory = new FeedsDB.FeedsDBFactory();
+            factory.setPath(folder.getPath());
+            factory.setSyncWrites(syncWrites);
+            factory.getGroupCommit().setEnabled(groupCommit);
+            factory.getGroupCommit().setMaxWaitMicros(maxWaitMicros);
+
+            db = factory.build();
+            feedResource = new FeedResource(db, new ObjectMapper());
+
+            for (int i = 0; i < FEEDS; i++) {
+                feeds[i] = feedResource.creatFeed().getId();
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            db.stop();
+            Benchmarks.delete(folder);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Writer {
+        long feedId;
+
+        @Setup(Level.Trial)
+        public void setup(Database database) {
+            feedId = database.feeds[database.nextFeed.getAndIncrement() % FEEDS];
+        }
+    }
+
+    @Benchmark
+    public Object publishArticle(Database database, Writer writer) throws Exception {
+        return database.feedResource.publishArticle(writer.feedId, "#DEADBEEF");
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+            .include(GroupCommitBenchmark.class.getName())
+            .threads(16)
+            .build();
+
+        new Runner(options).run();
+    }
+}
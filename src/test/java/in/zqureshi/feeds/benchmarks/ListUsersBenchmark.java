@@ -0,0 +1,101 @@
+package in.zqureshi.feeds.benchmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.io.ByteStreams;
+import in.zqureshi.feeds.api.UserList;
+import in.zqureshi.feeds.db.FeedsDB;
+import in.zqureshi.feeds.resources.FeedResource;
+import in.zqureshi.feeds.resources.UserResource;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Listing every user a page at a time, the way a client walks GET /v1/users,
+ * against streaming them and against a single page. Run with the GC
+ * profiler, streaming should allocate about as much but never hold more
+ * than a user at a time.
+ *
+ * Run with {@code mvn -Pbenchmarks test-compile exec:exec -Dbenchmark=ListUsersBenchmark}
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ListUsersBenchmark {
+    private static final OutputStream NULL = ByteStreams.nullOutputStream();
+    private static final int FEEDS = 10;
+
+    @Param({"100000"})
+    int users;
+
+    File folder;
+    FeedsDB db;
+    ObjectMapper mapper;
+    UserResource userResource;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        folder = Files.createTempDirectory("feeds-bench").toFile();
+        db = new FeedsDB(folder.getPath());
+        mapper = new ObjectMapper();
+        FeedResource feedResource = new FeedResource(db, mapper);
+        userResource = new UserResource(db, feedResource, mapper);
+
+        long[] feeds = new long[FEEDS];
+        for (int i = 0; i < FEEDS; i++) {
+            feeds[i] = feedResource.creatFeed().getId();
+        }
+        // A couple of subscriptions each.
+        for (int i = 0; i < users; i++) {
+            long userId = userResource.createUser().getId();
+            userResource.subscribe(userId, feeds[i % FEEDS]);
+            userResource.subscribe(userId, feeds[(i + 1) % FEEDS]);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        db.stop();
+        Benchmarks.delete(folder);
+    }
+
+    @Benchmark
+    public void pageThroughAll() throws Exception {
+        Optional<Long> after = Optional.empty();
+        do {
+            UserList page = userResource.listUsers(after, Optional.of(1000));
+            mapper.writeValue(NULL, page);
+            after = Optional.ofNullable(page.getNext());
+        } while (after.isPresent());
+    }
+
+    @Benchmark
+    public void streamAll() throws Exception {
+        userResource.streamUsers(Optional.empty()).write(NULL);
+    }
+
+    @Benchmark
+    public void page() throws Exception {
+        mapper.writeValue(NULL, userResource.listUsers(Optional.of(50000L), Optional.empty()));
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+            .include(ListUsersBenchmark.class.getName())
+            .addProfiler(GCProfiler.class)
+            .build();
+
+        new Runner(options).run();
+    }
+}
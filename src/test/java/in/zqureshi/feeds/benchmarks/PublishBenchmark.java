@@ -0,0 +1,89 @@
+package in.zqureshi.feeds.benchmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import in.zqureshi.feeds.db.FeedsDB;
+import in.zqureshi.feeds.resources.FeedResource;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Publish throughput when every thread writes to its own feed, which used to
+ * serialize on the single incrementCounter monitor.
+ *
+ * Run with {@code mvn -Pbenchmarks test-compile exec:exec -Dbenchmark=PublishBenchmark}
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PublishBenchmark {
+    private static final int FEEDS = 64;
+
+    @State(Scope.Benchmark)
+    public static class Database {
+        File folder;
+        FeedsDB db;
+        FeedResource feedResource;
+        long[] feeds = new long[FEEDS];
+        AtomicInteger nextFeed = new AtomicInteger();
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            folder = Files.createTempDirectory("feeds-bench").toFile();
+            db = new FeedsDB(folder.getPath());
+            feedResource = new FeedResource(db, new ObjectMapper());
+
+            for (int i = 0; i < FEEDS; i++) {
+                feeds[i] = feedResource.creatFeed().getId();
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            db.stop();
+            Benchmarks.delete(folder);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Writer {
+        long feedId;
+        String counter;
+
+        @Setup(Level.Trial)
+        public void setup(Database database) {
+            int index = database.nextFeed.getAndIncrement() % FEEDS;
+            feedId = database.feeds[index];
+            counter = "/bench/" + index;
+        }
+    }
+
+    @Benchmark
+    public Object publishArticle(Database database, Writer writer) throws Exception {
+        return database.feedResource.publishArticle(writer.feedId, "#DEADBEEF");
+    }
+
+    @Benchmark
+    public long incrementCounter(Database database, Writer writer) {
+        return database.db.incrementCounter(writer.counter);
+    }
+
+    public static void main(String[] args) throws Exception {
+        for (int threads : new int[]{1, 2, 4, 8}) {
+            Options options = new OptionsBuilder()
+                .include(PublishBenchmark.class.getName())
+                .threads(threads)
+                .build();
+
+            new Runner(options).run();
+        }
+    }
+}
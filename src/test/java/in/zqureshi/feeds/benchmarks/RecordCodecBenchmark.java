@@ -0,0 +1,181 @@
+package in.zqureshi.feeds.benchmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.io.ByteStreams;
+import in.zqureshi.feeds.api.Article;
+import in.zqureshi.feeds.api.User;
+import in.zqureshi.feeds.db.Keys;
+import in.zqureshi.feeds.db.Records;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.rocksdb.RocksDB;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Article and User records encoded and decoded as JSON against the binary
+ * record format, plus writing a stored article out as JSON the way feed
+ * pages do. {@code main} also prints what the same records take on disk.
+ *
+ * Run with {@code mvn -Pbenchmarks test-compile exec:exec -Dbenchmark=RecordCodecBenchmark}
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RecordCodecBenchmark {
+    private static final OutputStream NULL = ByteStreams.nullOutputStream();
+    private static final int SIZE_RECORDS = 100000;
+
+    @Param({"140"})
+    int articleLength;
+
+    @Param({"100"})
+    int subscriptions;
+
+    ObjectMapper mapper;
+    Article article;
+    User user;
+    byte[] articleJson;
+    byte[] articleBinary;
+    byte[] userJson;
+    byte[] userBinary;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        mapper = new ObjectMapper();
+        article = article(10042L, articleLength);
+        user = user(10042L, subscriptions);
+
+        articleJson = mapper.writeValueAsBytes(article);
+        articleBinary = Records.encode(article);
+        userJson = mapper.writeValueAsBytes(user);
+        userBinary = Records.encode(user);
+    }
+
+    @Benchmark
+    public byte[] encodeArticleJson() throws Exception {
+        return mapper.writeValueAsBytes(article);
+    }
+
+    @Benchmark
+    public byte[] encodeArticleBinary() {
+        return Records.encode(article);
+    }
+
+    @Benchmark
+    public Article decodeArticleJson() throws Exception {
+        return mapper.readValue(articleJson, Article.class);
+    }
+
+    @Benchmark
+    public Article decodeArticleBinary() throws Exception {
+        return Records.decodeArticle(articleBinary);
+    }
+
+    // What a feed page does per article.
+    @Benchmark
+    public void writeArticleJson() throws Exception {
+        Records.writeArticleJson(ByteBuffer.wrap(articleBinary), NULL);
+    }
+
+    @Benchmark
+    public byte[] encodeUserJson() throws Exception {
+        return mapper.writeValueAsBytes(user);
+    }
+
+    @Benchmark
+    public byte[] encodeUserBinary() {
+        return Records.encode(user);
+    }
+
+    @Benchmark
+    public User decodeUserJson() throws Exception {
+        return mapper.readValue(userJson, User.class);
+    }
+
+    @Benchmark
+    public User decodeUserBinary() throws Exception {
+        return Records.decodeUser(userBinary);
+    }
+
+    static Article article(long id, int length) {
+        StringBuilder text = new StringBuilder();
+        while (text.length() < length) {
+            text.append("#DEADBEEF ");
+        }
+
+        return new Article(id, text.substring(0, length));
+    }
+
+    static User user(long id, int subscriptions) {
+        Map<Long, Long> feeds = new HashMap<>();
+        for (long i = 0; i < subscriptions; i++) {
+            feeds.put(10000L + i, 10000L + 37 * i);
+        }
+
+        return new User(id, feeds);
+    }
+
+    // Bytes of SST files after writing count articles with encoder and
+    // compacting, with RocksDB's default compression.
+    static long sstSize(Function<Article, byte[]> encoder, int count) throws Exception {
+        File folder = Files.createTempDirectory("feeds-bench").toFile();
+        try (org.rocksdb.Options options = new org.rocksdb.Options().setCreateIfMissing(true);
+             RocksDB db = RocksDB.open(options, folder.getPath())) {
+            for (long i = 0; i < count; i++) {
+                db.put(Keys.article(10000L + i % 100, 10000L + i), encoder.apply(article(10000L + i, 140)));
+            }
+            db.compactRange();
+        }
+
+        long size = 0;
+        for (File file : folder.listFiles()) {
+            if (file.getName().endsWith(".sst")) {
+                size += file.length();
+            }
+        }
+        Benchmarks.delete(folder);
+
+        return size;
+    }
+
+    public static void main(String[] args) throws Exception {
+        ObjectMapper mapper = new ObjectMapper();
+        Article article = article(10042L, 140);
+        User user = user(10042L, 100);
+
+        System.out.printf("article: json %d bytes, binary %d bytes%n",
+            mapper.writeValueAsBytes(article).length, Records.encode(article).length);
+        System.out.printf("user (100 feeds): json %d bytes, binary %d bytes%n",
+            mapper.writeValueAsBytes(user).length, Records.encode(user).length);
+        System.out.printf("%d articles on disk: json %d bytes, binary %d bytes%n", SIZE_RECORDS,
+            sstSize(a -> {
+                try {
+                    return mapper.writeValueAsBytes(a);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }, SIZE_RECORDS),
+            sstSize(Records::encode, SIZE_RECORDS));
+
+        Options options = new OptionsBuilder()
+            .include(RecordCodecBenchmark.class.getName())
+            .addProfiler(GCProfiler.class)
+            .build();
+
+        new Runner(options).run();
+    }
+}
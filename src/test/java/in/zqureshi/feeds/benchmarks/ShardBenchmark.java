@@ -0,0 +1,98 @@
+package in.zqureshi.feeds.benchmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import in.zqureshi.feeds.db.FeedsDB;
+import in.zqureshi.feeds.resources.FeedResource;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Publish throughput with records spread over shards, every thread writing
+ * to its own feed. All shards share the temp directory's disk here, so
+ * this only shows what comes from separate WALs and memtables, not from
+ * separate disks.
+ *
+ * Run with {@code mvn -Pbenchmarks test-compile exec:exec -Dbenchmark=ShardBenchmark}
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+public class ShardBenchmark {
+    private static final int FEEDS = 64;
+
+    @State(Scope.Benchmark)
+    public static class Database {
+        @Param({"1", "4"})
+        int shards;
+
+        @Param({"false", "true"})
+        boolean syncWrites;
+
+        File folder;
+        FeedsDB db;
+        FeedResource feedResource;
+        long[] feeds = new long[FEEDS];
+        AtomicInteger nextFeed = new AtomicInteger();
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            folder = Files.createTempDirectory("feeds-bench").toFile();
+
+            FeedsDB.FeedsDBFactory factory = new FeedsDB.FeedsDBFactory();
+            factory.setPath(new File(folder, "shard-0").getPath());
+            List<String> paths = new ArrayList<>();
+            for (int i = 1; i < shards; i++) {
+                paths.add(new File(folder, "shard-" + i).getPath());
+            }
+            factory.setShardPaths(paths);
+            factory.setSyncWrites(syncWrites);
+            db = factory.build();
+            feedResource = new FeedResource(db, new ObjectMapper());
+
+            for (int i = 0; i < FEEDS; i++) {
+                feeds[i] = feedResource.creatFeed().getId();
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            db.stop();
+            Benchmarks.delete(folder);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Writer {
+        long feedId;
+
+        @Setup(Level.Trial)
+        public void setup(Database database) {
+            feedId = database.feeds[database.nextFeed.getAndIncrement() % FEEDS];
+        }
+    }
+
+    @Benchmark
+    public Object publishArticle(Database database, Writer writer) throws Exception {
+        return database.feedResource.publishArticle(writer.feedId, "#DEADBEEF");
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+            .include(ShardBenchmark.class.getName())
+            .build();
+
+        new Runner(options).run();
+    }
+}
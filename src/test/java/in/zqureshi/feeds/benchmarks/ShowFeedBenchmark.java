@@ -0,0 +1,95 @@
+package in.zqureshi.feeds.benchmarks;
+
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.io.ByteStreams;
+import in.zqureshi.feeds.db.FeedsDB;
+import in.zqureshi.feeds.resources.FeedPageCacheFactory;
+import in.zqureshi.feeds.resources.FeedResource;
+import io.dropwizard.util.Size;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latest page of a feed rendered by decoding articles and letting Jackson
+ * write the Feed back out, against streaming the stored bytes. Run with the
+ * GC profiler so allocation per request shows up next to the time.
+ *
+ * Run with {@code mvn -Pbenchmarks test-compile exec:exec -Dbenchmark=ShowFeedBenchmark}
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ShowFeedBenchmark {
+    private static final OutputStream NULL = ByteStreams.nullOutputStream();
+
+    @Param({"0", "64"})
+    long pageCacheMegabytes;
+
+    @Param({"140"})
+    int articleLength;
+
+    File folder;
+    FeedsDB db;
+    ObjectMapper mapper;
+    FeedResource feedResource;
+    long feedId;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        folder = Files.createTempDirectory("feeds-bench").toFile();
+        db = new FeedsDB(folder.getPath());
+        mapper = new ObjectMapper();
+
+        FeedPageCacheFactory pageCache = new FeedPageCacheFactory();
+        pageCache.setMaxMemory(Size.megabytes(pageCacheMegabytes));
+        feedResource = new FeedResource(db, mapper, pageCache, new MetricRegistry());
+
+        StringBuilder text = new StringBuilder();
+        while (text.length() < articleLength) {
+            text.append("#DEADBEEF ");
+        }
+
+        feedId = feedResource.creatFeed().getId();
+        for (int i = 0; i < 1000; i++) {
+            feedResource.publishArticle(feedId, text.substring(0, articleLength));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        db.stop();
+        Benchmarks.delete(folder);
+    }
+
+    @Benchmark
+    public void decodeAndSerialize() throws Exception {
+        mapper.writeValue(NULL, feedResource.showFeed(feedId, Optional.empty()));
+    }
+
+    @Benchmark
+    public void stream() throws Exception {
+        feedResource.streamFeed(feedId, Optional.empty()).write(NULL);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+            .include(ShowFeedBenchmark.class.getName())
+            .addProfiler(GCProfiler.class)
+            .build();
+
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,100 @@
+package in.zqureshi.feeds.benchmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import in.zqureshi.feeds.db.FeedsDB;
+import in.zqureshi.feeds.resources.FeedResource;
+import in.zqureshi.feeds.resources.UserResource;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Subscribe and unsubscribe throughput when every thread changes its own
+ * user's subscriptions, which used to serialize on the resource's monitor
+ * along with a read of the feed's latest page. subscriptions is how many
+ * other feeds each user already follows, every change used to rewrite all
+ * of them with the user record.
+ *
+ * Run with {@code mvn -Pbenchmarks test-compile exec:exec -Dbenchmark=SubscribeBenchmark}
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SubscribeBenchmark {
+    private static final int ARTICLES = 100;
+
+    @State(Scope.Benchmark)
+    public static class Database {
+        @Param({"0", "1000"})
+        int subscriptions;
+
+        File folder;
+        FeedsDB db;
+        FeedResource feedResource;
+        UserResource userResource;
+        long feedId;
+        long[] others;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            folder = Files.createTempDirectory("feeds-bench").toFile();
+            db = new FeedsDB(folder.getPath());
+            feedResource = new FeedResource(db, new ObjectMapper());
+            userResource = new UserResource(db, feedResource, new ObjectMapper());
+
+            feedId = feedResource.creatFeed().getId();
+            for (int i = 0; i < ARTICLES; i++) {
+                feedResource.publishArticle(feedId, "#DEADBEEF:" + i);
+            }
+
+            others = new long[subscriptions];
+            for (int i = 0; i < subscriptions; i++) {
+                others[i] = feedResource.creatFeed().getId();
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            db.stop();
+            Benchmarks.delete(folder);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Subscriber {
+        long userId;
+
+        @Setup(Level.Trial)
+        public void setup(Database database) throws Exception {
+            userId = database.userResource.createUser().getId();
+            for (long feedId : database.others) {
+                database.userResource.subscribe(userId, feedId);
+            }
+        }
+    }
+
+    // Both halves so every subscribe actually writes.
+    @Benchmark
+    public Object subscribeUnsubscribe(Database database, Subscriber subscriber) throws Exception {
+        database.userResource.subscribe(subscriber.userId, database.feedId);
+        return database.userResource.unsubscribe(subscriber.userId, database.feedId);
+    }
+
+    public static void main(String[] args) throws Exception {
+        for (int threads : new int[]{1, 2, 4, 8}) {
+            Options options = new OptionsBuilder()
+                .include(SubscribeBenchmark.class.getName())
+                .threads(threads)
+                .build();
+
+            new Runner(options).run();
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package in.zqureshi.feeds.benchmarks;
+
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.util.concurrent.MoreExecutors;
+import in.zqureshi.feeds.db.FeedsDB;
+import in.zqureshi.feeds.resources.FeedPageCacheFactory;
+import in.zqureshi.feeds.resources.FeedResource;
+import in.zqureshi.feeds.resources.Inbox;
+import in.zqureshi.feeds.resources.UserResource;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * First page of a timeline merged from a reverse iterator per subscribed
+ * feed, against one scan of the user's inbox and a multiGet of the page.
+ * publish is the cost fan-out adds on the write side, for a feed with
+ * subscribers readers.
+ *
+ * Run with {@code mvn -Pbenchmarks test-compile exec:exec -Dbenchmark=TimelineBenchmark}
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TimelineBenchmark {
+    private static final int ARTICLES = 20;
+    private static final int PAGE_SIZE = 50;
+
+    @Param({"10", "100", "1000"})
+    int subscriptions;
+
+    @Param({"false", "true"})
+    boolean inbox;
+
+    File folder;
+    FeedsDB db;
+    FeedResource feedResource;
+    UserResource userResource;
+    long userId;
+    long publishTo;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        folder = Files.createTempDirectory("feeds-bench").toFile();
+        db = new FeedsDB(folder.getPath());
+        build();
+
+        userId = userResource.createUser().getId();
+        long[] feeds = new long[subscriptions];
+        for (int i = 0; i < subscriptions; i++) {
+            feeds[i] = feedResource.creatFeed().getId();
+            userResource.subscribe(userId, feeds[i]);
+        }
+        // Round robin so every feed has something on the first page.
+        for (int j = 0; j < ARTICLES; j++) {
+            for (long feedId : feeds) {
+                feedResource.publishArticle(feedId, "f:" + feedId + "a:" + j);
+            }
+        }
+
+        // As many other readers as the user has feeds, all following one.
+        publishTo = feeds[0];
+        for (int i = 1; i < subscriptions; i++) {
+            userResource.subscribe(userResource.createUser().getId(), publishTo);
+        }
+
+        // Reopened so everything is read from SST files, not the memtable.
+        db.stop();
+        db = new FeedsDB(folder.getPath());
+        build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        db.stop();
+        Benchmarks.delete(folder);
+    }
+
+    @Benchmark
+    public Object timeline() throws Exception {
+        return userResource.timeline(userId, Optional.empty(), Optional.of(PAGE_SIZE));
+    }
+
+    @Benchmark
+    public Object publish() throws Exception {
+        return feedResource.publishArticle(publishTo, "#DEADBEEF");
+    }
+
+    // Fan-out in the publishing thread so publish includes it.
+    private void build() {
+        ObjectMapper mapper = new ObjectMapper();
+        MetricRegistry metrics = new MetricRegistry();
+        Inbox fanOut = new Inbox(db, inbox, MoreExecutors.newDirectExecutorService(), Integer.MAX_VALUE, 0, metrics);
+
+        feedResource = new FeedResource(db, mapper, new FeedPageCacheFactory(), fanOut, metrics);
+        userResource = new UserResource(db, feedResource, mapper);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+            .include(TimelineBenchmark.class.getName())
+            .build();
+
+        new Runner(options).run();
+    }
+}
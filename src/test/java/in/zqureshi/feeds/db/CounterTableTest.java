@@ -0,0 +1,100 @@
+package in.zqureshi.feeds.db;
+
+import com.codahale.metrics.Timer;
+import com.google.common.collect.ImmutableMap;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.*;
+
+public class CounterTableTest {
+    private Map<String, Long> persisted;
+    private CounterTable.Store store;
+    private Timer refills;
+
+    @Before
+    public void before() {
+        persisted = new HashMap<>();
+        store = new CounterTable.Store() {
+            @Override
+            public long load(String counter) {
+                return persisted.getOrDefault(counter, 10000L);
+            }
+
+            @Override
+            public void persist(String counter, long ceiling) {
+                persisted.put(counter, ceiling);
+            }
+        };
+        refills = new Timer();
+    }
+
+    @Test
+    public void rangeUsesLongestPrefix() {
+        CounterTable table = new CounterTable(store, 1000, ImmutableMap.of(
+            "/articles/", 500L,
+            "/articles/10005", 5L,
+            "/users", 10L
+        ), refills);
+
+        assertThat(table.range("/feeds")).isEqualTo(1000);
+        assertThat(table.range("/users")).isEqualTo(10);
+        assertThat(table.range("/articles/10001")).isEqualTo(500);
+        assertThat(table.range("/articles/10005")).isEqualTo(5);
+    }
+
+    @Test
+    public void refillsOncePerRange() {
+        CounterTable table = new CounterTable(store, 100, ImmutableMap.of("/small", 10L), refills);
+
+        for (int i = 0; i < 250; i++) {
+            assertThat(table.increment("/big")).isEqualTo(10000 + i);
+        }
+        assertThat(persisted.get("/big")).isEqualTo(10300L);
+        assertThat(refills.getCount()).isEqualTo(3);
+
+        for (int i = 0; i < 25; i++) {
+            table.increment("/small");
+        }
+        assertThat(persisted.get("/small")).isEqualTo(10030L);
+        assertThat(refills.getCount()).isEqualTo(6);
+    }
+
+    @Test
+    public void resumesFromCeiling() {
+        CounterTable table = new CounterTable(store, 100, ImmutableMap.of(), refills);
+        for (int i = 0; i < 42; i++) {
+            table.increment("/restart");
+        }
+
+        // A fresh table over the same store simulates a crash and restart.
+        table = new CounterTable(store, 100, ImmutableMap.of(), refills);
+        assertThat(table.get("/restart")).isEqualTo(10100L);
+        assertThat(table.increment("/restart")).isEqualTo(10100L);
+    }
+
+    @Test
+    public void flushGivesBackTheUnusedRange() {
+        CounterTable table = new CounterTable(store, 100, ImmutableMap.of(), refills);
+        for (int i = 0; i < 42; i++) {
+            table.increment("/restart");
+        }
+        table.get("/untouched");
+
+        table.flush();
+        assertThat(persisted).containsOnlyKeys("/restart").containsEntry("/restart", 10042L);
+
+        // Restarting after a clean shutdown carries on without a gap.
+        table = new CounterTable(store, 100, ImmutableMap.of(), refills);
+        assertThat(table.increment("/restart")).isEqualTo(10042L);
+        assertThat(persisted.get("/restart")).isEqualTo(10142L);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptyRange() {
+        new CounterTable(store, 100, ImmutableMap.of("/broken", 0L), refills);
+    }
+}
@@ -0,0 +1,70 @@
+package in.zqureshi.feeds.db;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+import io.dropwizard.jackson.Jackson;
+import io.dropwizard.util.Size;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.rocksdb.CompactionStyle;
+import org.rocksdb.CompressionType;
+
+import static org.assertj.core.api.Assertions.*;
+
+public class EngineFactoryTest {
+    private final ObjectMapper yaml = Jackson.newObjectMapper(new YAMLFactory());
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void defaultsToRocksDBDefaults() {
+        EngineFactory engine = new EngineFactory();
+
+        assertThat(engine.getPreset()).isEqualTo(EngineFactory.Preset.DEFAULT);
+        assertThat(engine.getBloomBitsPerKey()).isZero();
+        assertThat(engine.getCompactionStyle()).isEqualTo(CompactionStyle.LEVEL);
+        assertThat(engine.getCompressionPerLevel()).isEmpty();
+    }
+
+    @Test
+    public void overridesWinOverPreset() throws Exception {
+        EngineFactory engine = yaml.readValue(
+            "preset: write-heavy-publish\n" +
+            "blockCacheSize: 1GB\n" +
+            "compressionPerLevel: [NO_COMPRESSION, ZSTD_COMPRESSION]\n",
+            EngineFactory.class);
+
+        assertThat(engine.getPreset()).isEqualTo(EngineFactory.Preset.WRITE_HEAVY_PUBLISH);
+        assertThat(engine.getBlockCacheSize()).isEqualTo(Size.gigabytes(1));
+        assertThat(engine.getCompressionPerLevel())
+            .containsExactly(CompressionType.NO_COMPRESSION, CompressionType.ZSTD_COMPRESSION);
+
+        // Everything else comes from the preset.
+        assertThat(engine.getWriteBufferSize()).isEqualTo(Size.megabytes(128));
+        assertThat(engine.getMaxWriteBufferNumber()).isEqualTo(4);
+        assertThat(engine.getBloomBitsPerKey()).isEqualTo(10);
+    }
+
+    @Test
+    public void opensWithEveryPreset() throws Exception {
+        for (EngineFactory.Preset preset : EngineFactory.Preset.values()) {
+            FeedsDB.FeedsDBFactory factory = FeedsDB.FeedsDBFactory.withPath(folder.newFolder().getPath());
+            factory.getEngine().setPreset(preset);
+            factory.getEngine().setBlockCacheSize(Size.megabytes(1));
+
+            FeedsDB db = factory.build();
+            try {
+                for (long i = 0; i < 1000; i++) {
+                    db.put(Keys.feed(i), ("feed " + i).getBytes());
+                }
+                db.rocksDB().compactRange();
+
+                assertThat(db.get(Keys.feed(500))).isEqualTo("feed 500".getBytes());
+            } finally {
+                db.stop();
+            }
+        }
+    }
+}
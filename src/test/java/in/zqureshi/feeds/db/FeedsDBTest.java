@@ -1,17 +1,26 @@
 package in.zqureshi.feeds.db;
 
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
 import com.google.common.primitives.Ints;
 import com.google.common.primitives.Longs;
 import org.junit.*;
 import org.junit.rules.TemporaryFolder;
+import org.rocksdb.FlushOptions;
+import org.rocksdb.RocksDB;
 import org.rocksdb.RocksDBException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.lang.reflect.Method;
-import java.lang.reflect.Modifier;
-import java.util.NoSuchElementException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static org.assertj.core.api.Assertions.*;
 
@@ -50,16 +59,51 @@ public class FeedsDBTest {
         }
     }
 
-    // Shitty method of making sure it's atomic, in a better test suite would
-    // try to trigger race conditions by overloading with threads and force
-    // context switching.
     @Test
-    public void testIncrementCounterIsSynchronized() {
-        for (Method method : FeedsDB.class.getMethods()) {
-            if (method.getName() == "incrementCounter") {
-                assertThat(Modifier.isSynchronized(method.getModifiers())).isTrue();
-            }
+    public void incrementCounterIsAtomic() throws Exception {
+        final int threads = 8;
+        final int perThread = 5000;
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<List<Long>>> futures = new ArrayList<>(threads);
+        for (int t = 0; t < threads; t++) {
+            futures.add(executor.submit(() -> {
+                List<Long> ids = new ArrayList<>(perThread);
+                for (int i = 0; i < perThread; i++) {
+                    ids.add(db.incrementCounter("/contended"));
+                }
+                return ids;
+            }));
+        }
+
+        Set<Long> seen = new HashSet<>();
+        for (Future<List<Long>> future : futures) {
+            seen.addAll(future.get());
         }
+        executor.shutdown();
+
+        // Every id handed out exactly once and without holes.
+        assertThat(seen).hasSize(threads * perThread);
+        assertThat(Collections.min(seen)).isEqualTo(10000L);
+        assertThat(Collections.max(seen)).isEqualTo(10000L + threads * perThread - 1);
+        assertThat(db.getCounter("/contended")).isEqualTo(10000L + threads * perThread);
+    }
+
+    @Test
+    public void incrementCounterIsMonotonicAcrossRestarts() throws Exception {
+        long last = 0;
+        for (int i = 0; i < 250; i++) {
+            last = db.incrementCounter("/restart");
+        }
+
+        // A clean shutdown writes back the exact counter, no gap.
+        db.stop();
+        db = new FeedsDB(folder.getRoot().getPath());
+        assertThat(db.getCounter("/restart")).isEqualTo(last + 1);
+
+        long next = db.incrementCounter("/restart");
+        assertThat(next).isEqualTo(last + 1);
+        assertThat(db.incrementCounter("/restart")).isEqualTo(next + 1);
     }
 
     @Test
@@ -94,6 +138,107 @@ public class FeedsDBTest {
         assertThat(db.get("/memory")).isEmpty();
     }
 
+    @Test
+    public void insert() throws Exception {
+        long id = db.insert("/inserts", (insertId, batch) ->
+            batch.put("/inserted/" + insertId, Longs.toByteArray(insertId))
+        );
+
+        assertThat(id).isEqualTo(10000L);
+        assertThat(db.get("/inserted/10000")).isEqualTo(Longs.toByteArray(10000L));
+        assertThat(db.getCounter("/inserts")).isEqualTo(10001L);
+
+        // Ceiling was written with the record so a restart can't reissue the id.
+        db.stop();
+        db = new FeedsDB(folder.getRoot().getPath());
+        assertThat(db.get("/inserted/10000")).isNotNull();
+        assertThat(db.incrementCounter("/inserts")).isGreaterThan(10000L);
+    }
+
+    @Test
+    public void insertIsAtomic() throws Exception {
+        try {
+            db.insert("/inserts", (insertId, batch) -> {
+                batch.put("/inserted/" + insertId, Longs.toByteArray(insertId));
+                throw new IOException("boom");
+            });
+            fail("insert should have failed");
+        } catch (IOException e) {
+            // expected
+        }
+
+        // Nothing was written and the failed id is skipped.
+        assertThat(db.get("/inserted/10000")).isNull();
+        assertThat(db.insert("/inserts", (insertId, batch) ->
+            batch.put("/inserted/" + insertId, Longs.toByteArray(insertId))
+        )).isEqualTo(10001L);
+    }
+
+    @Test
+    public void writeBatch() throws Exception {
+        db.put(Keys.subscriber(10000, 20000), new byte[0]);
+
+        db.write(db.batch()
+            .put(Keys.user(20000), "u".getBytes())
+            .put(Keys.subscriber(10001, 20000), new byte[0])
+            .delete(Keys.subscriber(10000, 20000)));
+
+        assertThat(db.get(Keys.user(20000))).isEqualTo("u".getBytes());
+        assertThat(db.exists(Keys.user(20000))).isTrue();
+        assertThat(db.get(Keys.subscriber(10001, 20000))).isEmpty();
+        assertThat(db.get(Keys.subscriber(10000, 20000))).isNull();
+        assertThat(db.rocksDB().get(db.family(Family.SUBSCRIBERS), Keys.subscriber(10001, 20000))).isNotNull();
+    }
+
+    @Test
+    public void counts() throws Exception {
+        byte[] key = Keys.subscriberCount(10000);
+        assertThat(db.getCount(key)).isZero();
+
+        db.write(db.batch().increment(key, 3));
+        db.write(db.batch().increment(key, -1).increment(Keys.subscriberCount(10001), 1));
+        assertThat(db.getCount(key)).isEqualTo(2);
+        assertThat(db.getCount(Keys.subscriberCount(10001))).isEqualTo(1);
+
+        // Merged down by compaction and read back after a restart.
+        db.rocksDB().compactRange(db.family(Family.SUBSCRIBER_COUNTS));
+        db.write(db.batch().increment(key, 40));
+        db.stop();
+        db = new FeedsDB(folder.getRoot().getPath());
+        assertThat(db.getCount(key)).isEqualTo(42);
+
+        // Starts over after a delete in the same batch.
+        db.write(db.batch().delete(key).increment(key, 7));
+        assertThat(db.getCount(key)).isEqualTo(7);
+    }
+
+    @Test
+    public void insertWithGroupCommit() throws Exception {
+        db.stop();
+
+        FeedsDB.FeedsDBFactory factory = new FeedsDB.FeedsDBFactory();
+        factory.setPath(folder.getRoot().getPath());
+        factory.getGroupCommit().setEnabled(true);
+        factory.getGroupCommit().setMaxWaitMicros(100);
+        db = factory.build();
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<Long>> futures = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            futures.add(executor.submit(() -> db.insert("/grouped", (id, batch) ->
+                batch.put("/grouped/" + id, Longs.toByteArray(id))
+            )));
+        }
+
+        for (Future<Long> future : futures) {
+            long id = future.get();
+            assertThat(db.get("/grouped/" + id)).isEqualTo(Longs.toByteArray(id));
+        }
+        executor.shutdown();
+
+        assertThat(db.getCounter("/grouped")).isEqualTo(11000L);
+    }
+
     @Test(expected = NoSuchElementException.class)
     public void testIterator() {
         db.put("/users/1", "/1".getBytes());
@@ -129,4 +274,549 @@ public class FeedsDBTest {
         assertThat(it.hasNext()).isFalse();
         it.next();
     }
-}
\ No newline at end of file
+
+    @Test
+    public void binaryScanPastFiveDigits() {
+        for (long i = 99990; i < 100010; i++) {
+            db.put(Keys.article(10000, i), Longs.toByteArray(i));
+        }
+        db.put(Keys.article(10001, 0), Longs.toByteArray(-1));
+
+        FeedsDB.PrefixIterator it = db.scan(Keys.articles(10000), Keys.article(10000, 99995));
+        for (long i = 99995; i < 100010; i++) {
+            assertThat(Longs.fromByteArray(it.next())).isEqualTo(i);
+        }
+        assertThat(it.hasNext()).isFalse();
+    }
+
+    @Test
+    public void recordsLandInTheirColumnFamily() throws Exception {
+        db.put(Keys.user(10000), "u".getBytes());
+        db.put(Keys.feed(10000), "f".getBytes());
+        db.put(Keys.article(10000, 10000), "a".getBytes());
+        db.put("/memory", "m".getBytes());
+        db.incrementCounter("/users");
+
+        RocksDB rocksDB = db.rocksDB();
+        assertThat(rocksDB.get(db.family(Family.USERS), Keys.user(10000))).isEqualTo("u".getBytes());
+        assertThat(rocksDB.get(db.family(Family.FEEDS), Keys.feed(10000))).isEqualTo("f".getBytes());
+        assertThat(rocksDB.get(db.family(Family.ARTICLES), Keys.article(10000, 10000))).isEqualTo("a".getBytes());
+        assertThat(rocksDB.get(db.family(Family.DEFAULT), "/data/memory".getBytes())).isEqualTo("m".getBytes());
+        assertThat(rocksDB.get(db.family(Family.COUNTERS), "/system/counters/users".getBytes())).isNotNull();
+
+        assertThat(rocksDB.get(db.family(Family.DEFAULT), Keys.feed(10000))).isNull();
+    }
+
+    @Test
+    public void articleScansAfterFlush() throws Exception {
+        for (long feed = 10000; feed < 10005; feed++) {
+            for (long article = 0; article < 100; article++) {
+                db.put(Keys.article(feed, article), Longs.toByteArray(feed * 1000 + article));
+            }
+        }
+        // Out of the memtable and into SSTs with prefix filters.
+        db.rocksDB().compactRange(db.family(Family.ARTICLES));
+
+        FeedsDB.PrefixIterator it = db.scan(Keys.articles(10003), Keys.article(10003, 50));
+        for (long article = 50; article < 100; article++) {
+            assertThat(Longs.fromByteArray(it.next())).isEqualTo(10003 * 1000 + article);
+        }
+        assertThat(it.hasNext()).isFalse();
+
+        // Wider than the filter prefix, still sees every feed.
+        int count = 0;
+        for (it = db.scan(Keys.namespace(Keys.ARTICLES)); it.hasNext(); it.next()) {
+            count++;
+        }
+        assertThat(count).isEqualTo(500);
+
+        assertThat(db.scan(Keys.articles(20000)).hasNext()).isFalse();
+    }
+
+    @Test
+    public void upperBound() {
+        assertThat(FeedsDB.upperBound(new byte[]{0x01, 0x02})).isEqualTo(new byte[]{0x01, 0x03});
+        assertThat(FeedsDB.upperBound(new byte[]{0x01, (byte) 0xFF})).isEqualTo(new byte[]{0x02});
+        assertThat(FeedsDB.upperBound(new byte[]{(byte) 0xFF, (byte) 0xFF})).isNull();
+    }
+
+    @Test
+    public void iteratorIntoBuffer() {
+        db.put(Keys.article(10000, 1), "small".getBytes());
+        db.put(Keys.article(10000, 2), new byte[100]);
+        db.put(Keys.article(10001, 1), "next feed".getBytes());
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(16);
+        FeedsDB.PrefixIterator it = db.scan(Keys.articles(10000));
+
+        ByteBuffer value = it.next(buffer);
+        assertThat(value).isSameAs(buffer);
+        byte[] small = new byte[value.remaining()];
+        value.get(small);
+        assertThat(small).isEqualTo("small".getBytes());
+
+        // Too big for the buffer so it comes back in its own.
+        value = it.next(buffer);
+        assertThat(value).isNotSameAs(buffer);
+        assertThat(value.remaining()).isEqualTo(100);
+
+        assertThat(it.hasNext()).isFalse();
+    }
+
+    @Test
+    public void iteratorCloseIsIdempotent() {
+        db.put(Keys.feed(10000), "f".getBytes());
+        db.put(Keys.feed(10001), "f".getBytes());
+
+        FeedsDB.PrefixIterator it = db.scan(Keys.namespace(Keys.FEEDS));
+        assertThat(it.next()).isEqualTo("f".getBytes());
+
+        it.close();
+        it.close();
+        assertThat(it.hasNext()).isFalse();
+        assertThat(db.openIterators()).isZero();
+    }
+
+    @Test
+    public void openIterators() throws Exception {
+        MetricRegistry metrics = new MetricRegistry();
+        db.stop();
+        db = FeedsDB.FeedsDBFactory.withPath(folder.getRoot().getPath()).build(metrics);
+
+        for (int i = 0; i < 3; i++) {
+            db.put(Keys.feed(10000 + i), "f".getBytes());
+        }
+
+        Gauge gauge = metrics.getGauges().get("in.zqureshi.feeds.db.FeedsDB.open-iterators");
+        try (FeedsDB.PrefixIterator first = db.scan(Keys.namespace(Keys.FEEDS));
+             FeedsDB.PrefixIterator second = db.scan(Keys.namespace(Keys.FEEDS))) {
+            assertThat(db.openIterators()).isEqualTo(2);
+            assertThat(gauge.getValue()).isEqualTo(2L);
+
+            // Running to the end releases without an explicit close.
+            while (first.hasNext()) {
+                first.next();
+            }
+            assertThat(db.openIterators()).isEqualTo(1);
+        }
+
+        assertThat(gauge.getValue()).isEqualTo(0L);
+
+        // Nothing to iterate over never holds on to an iterator.
+        db.scan(Keys.namespace(Keys.USERS));
+        assertThat(db.openIterators()).isZero();
+    }
+
+    @Test
+    public void scanWithVisitor() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            db.put(Keys.feed(10000 + i), Longs.toByteArray(i));
+        }
+
+        List<Long> seen = new ArrayList<>();
+        db.scan(Keys.namespace(Keys.FEEDS), value -> seen.add(Longs.fromByteArray(value)));
+        assertThat(seen).containsExactly(0L, 1L, 2L, 3L, 4L, 5L, 6L, 7L, 8L, 9L);
+
+        // Stopping early still closes the iterator.
+        seen.clear();
+        db.scan(Keys.namespace(Keys.FEEDS), Keys.feed(10004), value -> {
+            seen.add(Longs.fromByteArray(value));
+            return seen.size() < 3;
+        });
+        assertThat(seen).containsExactly(4L, 5L, 6L);
+        assertThat(db.openIterators()).isZero();
+
+        // As does a visitor that throws.
+        assertThatThrownBy(() -> db.scan(Keys.namespace(Keys.FEEDS), value -> {
+            throw new IOException("bad record");
+        })).isInstanceOf(IOException.class);
+        assertThat(db.openIterators()).isZero();
+    }
+
+    @Test
+    public void existsFromIndex() throws Exception {
+        long feedId = db.insert("/feeds", (id, batch) -> batch.put(Keys.feed(id), "f".getBytes()));
+        db.put(Keys.user(10000), "u".getBytes());
+
+        assertThat(db.exists(Keys.feed(feedId))).isTrue();
+        assertThat(db.exists(Keys.feed(feedId + 1))).isFalse();
+        assertThat(db.exists(Keys.user(10000))).isTrue();
+        assertThat(db.exists(Keys.user(10001))).isFalse();
+
+        // Answered from memory, a record written behind its back isn't seen.
+        db.rocksDB().put(db.family(Family.FEEDS), Keys.feed(10500), "f".getBytes());
+        assertThat(db.exists(Keys.feed(10500))).isFalse();
+
+        // Ids below the counters' start aren't indexed and fall back to a get.
+        assertThat(db.exists(Keys.feed(5))).isFalse();
+        db.put(Keys.feed(5), "f".getBytes());
+        assertThat(db.exists(Keys.feed(5))).isTrue();
+
+        // Everything else is a plain get.
+        assertThat(db.exists(Keys.article(feedId, 10000))).isFalse();
+        db.put(Keys.article(feedId, 10000), "a".getBytes());
+        assertThat(db.exists(Keys.article(feedId, 10000))).isTrue();
+
+        // Rebuilt from the keys on open.
+        db.stop();
+        db = new FeedsDB(folder.getRoot().getPath());
+        assertThat(db.exists(Keys.feed(feedId))).isTrue();
+        assertThat(db.exists(Keys.feed(10500))).isTrue();
+        assertThat(db.exists(Keys.user(10000))).isTrue();
+        assertThat(db.exists(Keys.user(10001))).isFalse();
+    }
+
+    @Test
+    public void multiGet() throws Exception {
+        db.put(Keys.user(10000), "u".getBytes());
+        db.put(Keys.feed(10000), "f".getBytes());
+        db.put(Keys.article(10000, 10000), "a".getBytes());
+
+        List<byte[]> values = db.multiGet(Arrays.asList(
+            Keys.article(10000, 10000), Keys.feed(10001), Keys.user(10000), Keys.feed(10000)));
+        assertThat(values).hasSize(4);
+        assertThat(values.get(0)).isEqualTo("a".getBytes());
+        assertThat(values.get(1)).isNull();
+        assertThat(values.get(2)).isEqualTo("u".getBytes());
+        assertThat(values.get(3)).isEqualTo("f".getBytes());
+
+        db.put(Keys.feed(5), "f".getBytes());
+        assertThat(db.exists(Arrays.asList(Keys.feed(10000), Keys.feed(5), Keys.feed(6), Keys.feed(10001))))
+            .containsExactly(true, true, false, false);
+    }
+
+    @Test
+    public void scanRanges() throws Exception {
+        for (long feed = 10000; feed < 10005; feed++) {
+            for (long article = 10000; article < 10010; article++) {
+                db.put(Keys.article(feed, article), Longs.toByteArray(feed * 100000 + article));
+            }
+        }
+        db.rocksDB().compactRange(db.family(Family.ARTICLES));
+
+        List<FeedsDB.Range> ranges = Arrays.asList(
+            new FeedsDB.Range(Keys.articles(10003), Keys.article(10003, 10008)),
+            new FeedsDB.Range(Keys.articles(10001), Keys.article(10001, 10000)),
+            new FeedsDB.Range(Keys.articles(20000), Keys.article(20000, 10000)),
+            new FeedsDB.Range(Keys.articles(10004), Keys.article(10004, 10010)));
+
+        Map<Integer, List<Long>> seen = new TreeMap<>();
+        db.scan(ranges, 3, (range, key, value) ->
+            seen.computeIfAbsent(range, r -> new ArrayList<>()).add(Longs.fromByteArray(value)));
+
+        // At most limit per range and never past a range's prefix.
+        assertThat(seen).containsOnlyKeys(0, 1);
+        assertThat(seen.get(0)).containsExactly(1000310008L, 1000310009L);
+        assertThat(seen.get(1)).containsExactly(1000110000L, 1000110001L, 1000110002L);
+        assertThat(db.openIterators()).isZero();
+
+        assertThatThrownBy(() -> db.scan(Arrays.asList(
+            new FeedsDB.Range(Keys.articles(10000), Keys.articles(10000)),
+            new FeedsDB.Range(Keys.namespace(Keys.FEEDS), Keys.namespace(Keys.FEEDS))), 1, (range, key, value) -> {
+        })).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void scanReverse() throws Exception {
+        for (long feed = 10000; feed < 10003; feed++) {
+            for (long article = 10000; article < 10005; article++) {
+                db.put(Keys.article(feed, article), Longs.toByteArray(article));
+            }
+        }
+
+        for (int pass = 0; pass < 2; pass++) {
+            List<Long> seen = new ArrayList<>();
+            try (FeedsDB.PrefixIterator it = db.scanReverse(Keys.articles(10001), Keys.article(10001, Long.MAX_VALUE))) {
+                it.forEachRemaining(value -> seen.add(Longs.fromByteArray(value)));
+            }
+            assertThat(seen).containsExactly(10004L, 10003L, 10002L, 10001L, 10000L);
+
+            // Starts at the last key at or before startKey.
+            try (FeedsDB.PrefixIterator it = db.scanReverse(Keys.articles(10002), Keys.article(10002, 10001))) {
+                assertThat(Longs.fromByteArray(it.next())).isEqualTo(10001L);
+                assertThat(Longs.fromByteArray(it.next())).isEqualTo(10000L);
+                assertThat(it.hasNext()).isFalse();
+            }
+
+            try (FeedsDB.PrefixIterator it = db.scanReverse(Keys.articles(10000), Keys.article(10000, 9999))) {
+                assertThat(it.hasNext()).isFalse();
+            }
+            try (FeedsDB.PrefixIterator it = db.scanReverse(Keys.articles(20000), Keys.article(20000, Long.MAX_VALUE))) {
+                assertThat(it.hasNext()).isFalse();
+            }
+            assertThat(db.openIterators()).isZero();
+
+            // Same again out of SSTs.
+            db.rocksDB().compactRange(db.family(Family.ARTICLES));
+        }
+    }
+
+    @Test
+    public void changes() throws Exception {
+        long start = db.latestSequence() + 1;
+        db.put(Keys.user(10000), "u".getBytes());
+        db.write(db.batch()
+            .put(Keys.subscription(10000, 20000), "s".getBytes())
+            .delete(Keys.subscriber(20000, 10000))
+            .increment(Keys.subscriberCount(20000), 1));
+
+        for (int pass = 0; pass < 2; pass++) {
+            List<FeedsDB.Update> updates = new ArrayList<>();
+            try (FeedsDB.ChangeIterator it = db.changes(start)) {
+                it.forEachRemaining(updates::add);
+            }
+
+            assertThat(updates).hasSize(2);
+            assertThat(updates.get(0).sequence()).isEqualTo(start);
+            assertThat(updates.get(0).mutations()).extracting(FeedsDB.Mutation::op).containsExactly(FeedsDB.Op.PUT);
+            assertThat(updates.get(0).mutations().get(0).key()).isEqualTo(Keys.user(10000));
+            assertThat(updates.get(0).mutations().get(0).value()).isEqualTo("u".getBytes());
+
+            FeedsDB.Update batch = updates.get(1);
+            assertThat(batch.sequence()).isEqualTo(updates.get(0).next());
+            assertThat(batch.mutations()).extracting(FeedsDB.Mutation::op)
+                .containsExactly(FeedsDB.Op.PUT, FeedsDB.Op.DELETE, FeedsDB.Op.MERGE);
+            assertThat(batch.mutations()).extracting(FeedsDB.Mutation::key)
+                .containsExactly(Keys.subscription(10000, 20000), Keys.subscriber(20000, 10000), Keys.subscriberCount(20000));
+            assertThat(batch.mutations().get(1).value()).isNull();
+            assertThat(batch.next()).isEqualTo(db.latestSequence() + 1);
+
+            // Nothing written past the end yet.
+            try (FeedsDB.ChangeIterator it = db.changes(batch.next())) {
+                assertThat(it.hasNext()).isFalse();
+            }
+            assertThat(db.openIterators()).isZero();
+
+            // Still there once flushed and reopened.
+            try (FlushOptions flush = new FlushOptions().setWaitForFlush(true)) {
+                db.rocksDB().flush(flush, db.family(Family.SUBSCRIPTIONS));
+            }
+            db.stop();
+            db = new FeedsDB(folder.getRoot().getPath());
+        }
+    }
+
+    @Test
+    public void changesFromTheMiddleOfABatch() throws Exception {
+        long start = db.latestSequence() + 1;
+        db.write(db.batch()
+            .put(Keys.user(10000), "u".getBytes())
+            .put(Keys.user(10001), "u".getBytes()));
+
+        // Starts at the batch holding the sequence.
+        try (FeedsDB.ChangeIterator it = db.changes(start + 1)) {
+            FeedsDB.Update update = it.next();
+            assertThat(update.sequence()).isEqualTo(start);
+            assertThat(update.mutations()).hasSize(2);
+            assertThat(it.hasNext()).isFalse();
+        }
+    }
+
+    @Test
+    public void tail() throws Exception {
+        long start = db.latestSequence() + 1;
+
+        try (FeedsDB.ChangeIterator it = db.tail(start)) {
+            assertThat(it.hasNext()).isFalse();
+            assertThat(db.openIterators()).isEqualTo(1);
+
+            db.put(Keys.user(10000), "u".getBytes());
+            assertThat(it.next().sequence()).isEqualTo(start);
+            assertThat(it.hasNext()).isFalse();
+            assertThat(it.sequence()).isEqualTo(start + 1);
+
+            // Same file, then on into the next one.
+            db.put(Keys.user(10001), "u".getBytes());
+            assertThat(it.next().mutations().get(0).key()).isEqualTo(Keys.user(10001));
+            try (FlushOptions flush = new FlushOptions().setWaitForFlush(true)) {
+                db.rocksDB().flush(flush, db.family(Family.USERS));
+            }
+            db.put(Keys.user(10002), "u".getBytes());
+            assertThat(it.next().mutations().get(0).key()).isEqualTo(Keys.user(10002));
+            assertThat(it.hasNext()).isFalse();
+        }
+        assertThat(db.openIterators()).isZero();
+    }
+
+    @Test
+    public void advanceCounter() throws Exception {
+        assertThat(db.getCounter("/articles/10000")).isEqualTo(10000L);
+
+        db.write(db.batch().setCounter("/articles/10000", 10042));
+        db.advanceCounter("/articles/10000", 10042);
+        assertThat(db.getCounter("/articles/10000")).isEqualTo(10042L);
+
+        // Never back.
+        db.advanceCounter("/articles/10000", 10001);
+        assertThat(db.getCounter("/articles/10000")).isEqualTo(10042L);
+
+        // The value itself is read back after a restart, not a ceiling.
+        db.stop();
+        db = new FeedsDB(folder.getRoot().getPath());
+        assertThat(db.getCounter("/articles/10000")).isEqualTo(10042L);
+        assertThat(FeedsDB.isCounter(("/system/counters/articles/10000").getBytes())).isTrue();
+        assertThat(FeedsDB.isCounter(Keys.feed(10000))).isFalse();
+    }
+
+    @Test
+    public void shardsSpreadRecordsByUserAndFeed() throws Exception {
+        db.stop();
+        db = sharded(4);
+        assertThat(db.shards()).isEqualTo(4);
+
+        Set<Integer> used = new HashSet<>();
+        for (long id = 10000; id < 10100; id++) {
+            int shard = db.shard(Keys.feed(id));
+            used.add(shard);
+
+            // Everything of a feed or user stays with it.
+            assertThat(db.shard(Keys.article(id, 10042))).isEqualTo(shard);
+            assertThat(db.shard(Keys.articles(id))).isEqualTo(shard);
+            assertThat(db.shard(Keys.subscriber(id, 20000))).isEqualTo(shard);
+            assertThat(db.shard(Keys.subscriberCount(id))).isEqualTo(shard);
+            assertThat(db.shard(("/system/counters/articles/" + id).getBytes())).isEqualTo(shard);
+            assertThat(db.shard(Keys.user(id))).isEqualTo(shard);
+            assertThat(db.shard(Keys.subscription(id, 10042))).isEqualTo(shard);
+            assertThat(db.shard(Keys.inbox(id, 1, 10042, 10042))).isEqualTo(shard);
+        }
+        assertThat(used).containsOnly(0, 1, 2, 3);
+        assertThat(db.shard("/system/counters/users".getBytes())).isZero();
+        assertThat(db.shard("/data/memory".getBytes())).isZero();
+    }
+
+    @Test
+    public void shardedReadsAndWrites() throws Exception {
+        db.stop();
+        db = sharded(4);
+
+        List<Long> feeds = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            feeds.add(db.insert("/feeds", (id, batch) -> batch.put(Keys.feed(id), Longs.toByteArray(id))));
+        }
+        for (long feedId : feeds) {
+            db.insert("/articles/" + feedId, (id, batch) -> batch.put(Keys.article(feedId, id), Longs.toByteArray(id)));
+        }
+
+        // Spans shards, goes out one shard at a time.
+        db.write(db.batch()
+            .put(Keys.user(20000), "u".getBytes())
+            .put(Keys.user(20001), "u".getBytes())
+            .put(Keys.subscription(20000, 10000), new byte[0])
+            .put(Keys.subscriber(10000, 20000), new byte[0])
+            .increment(Keys.subscriberCount(10000), 1)
+            .put("/memory", "m".getBytes()));
+        assertThat(db.get(Keys.user(20001))).isEqualTo("u".getBytes());
+        assertThat(db.exists(Keys.user(20000))).isTrue();
+        assertThat(db.get(Keys.subscriber(10000, 20000))).isEmpty();
+        assertThat(db.getCount(Keys.subscriberCount(10000))).isEqualTo(1);
+        assertThat(db.get("/memory")).isEqualTo("m".getBytes());
+
+        // Whole namespaces come back merged in key order, both ways.
+        List<Long> scanned = new ArrayList<>();
+        db.scan(Keys.namespace(Keys.FEEDS), value -> scanned.add(Longs.fromByteArray(value)));
+        assertThat(scanned).isEqualTo(feeds);
+
+        List<Long> reversed = new ArrayList<>();
+        try (FeedsDB.PrefixIterator it = db.scanReverse(Keys.namespace(Keys.FEEDS), Keys.feed(10014))) {
+            it.forEachRemaining(value -> reversed.add(Longs.fromByteArray(value)));
+        }
+        assertThat(reversed).isEqualTo(Lists.reverse(feeds.subList(0, 15)));
+
+        List<Long> from = new ArrayList<>();
+        db.scan(Keys.namespace(Keys.FEEDS), Keys.feed(10015), value -> from.add(Longs.fromByteArray(value)));
+        assertThat(from).isEqualTo(feeds.subList(15, 20));
+
+        List<byte[]> values = db.multiGet(Arrays.asList(Keys.feed(10003), Keys.user(20000), Keys.feed(10042), Keys.feed(10000)));
+        assertThat(values.get(0)).isEqualTo(Longs.toByteArray(10003));
+        assertThat(values.get(1)).isEqualTo("u".getBytes());
+        assertThat(values.get(2)).isNull();
+        assertThat(values.get(3)).isEqualTo(Longs.toByteArray(10000));
+
+        Map<Integer, Long> firsts = new TreeMap<>();
+        db.scan(Arrays.asList(
+            new FeedsDB.Range(Keys.articles(10001), Keys.articles(10001)),
+            new FeedsDB.Range(Keys.articles(10002), Keys.articles(10002)),
+            new FeedsDB.Range(Keys.articles(10003), Keys.articles(10003))), 1, (range, key, value) ->
+            firsts.put(range, Keys.id(key, 0)));
+        assertThat(firsts).containsValues(10001L, 10002L, 10003L);
+        assertThat(db.openIterators()).isZero();
+
+        // Counters from every shard, and where they were after a restart.
+        ImmutableMap<String, Long> counters = db.counters();
+        assertThat(counters).containsEntry("/feeds", 10020L).containsEntry("/articles/10019", 10001L);
+
+        db.stop();
+        db = sharded(4);
+        assertThat(db.exists(Keys.feed(10019))).isTrue();
+        assertThat(db.incrementCounter("/articles/10019")).isGreaterThan(10000L);
+        assertThat(db.counters().keySet()).containsAll(counters.keySet());
+    }
+
+    @Test
+    public void shardedSubscribersReconciledAfterCrash() throws Exception {
+        db.stop();
+        db = sharded(4);
+
+        long userId = 20000;
+        long feedId = 10000;
+        while (db.shard(Keys.user(userId)) == db.shard(Keys.feed(feedId))) {
+            userId++;
+        }
+
+        // Shards are written in the order the batch first touches them.
+        FeedsDB.Batch subscribe = db.batch()
+            .put(Keys.subscriber(feedId, userId), new byte[0])
+            .increment(Keys.subscriberCount(feedId), 1)
+            .put(Keys.subscription(userId, feedId), Longs.toByteArray(10000));
+        assertThat(subscribe.shards()).containsExactly(db.shard(Keys.feed(feedId)), db.shard(Keys.user(userId)));
+
+        // Died after the feed's shard was written.
+        db.write(subscribe.part(db.shard(Keys.feed(feedId))));
+        db.crash();
+        db = sharded(4);
+        assertThat(db.get(Keys.subscriber(feedId, userId))).isNull();
+        assertThat(db.getCount(Keys.subscriberCount(feedId))).isZero();
+
+        // A clean shutdown skips the scan, what was written stays as is.
+        db.write(db.batch()
+            .put(Keys.subscriber(feedId, userId), new byte[0])
+            .increment(Keys.subscriberCount(feedId), 1));
+        db.stop();
+        db = sharded(4);
+        assertThat(db.getCount(Keys.subscriberCount(feedId))).isEqualTo(1);
+    }
+
+    @Test
+    public void shardsCantChange() throws Exception {
+        db.put(Keys.feed(10000), "f".getBytes());
+        db.stop();
+
+        // Records already written by an unsharded database.
+        assertThatThrownBy(() -> sharded(folder.getRoot().getPath(), 2)).isInstanceOf(IllegalStateException.class);
+
+        String path = folder.newFolder().getPath();
+        db = sharded(path, 3);
+        db.stop();
+        assertThatThrownBy(() -> sharded(path, 2)).isInstanceOf(IllegalStateException.class);
+        assertThatThrownBy(() -> new FeedsDB(path + "-1")).isInstanceOf(IllegalStateException.class);
+
+        db = sharded(path, 3);
+        assertThatThrownBy(() -> db.changes(1)).isInstanceOf(UnsupportedOperationException.class);
+    }
+
+    private FeedsDB sharded(int shards) throws Exception {
+        return sharded(new File(folder.getRoot(), "shard").getPath(), shards);
+    }
+
+    // First shard at path, the others next to it.
+    private FeedsDB sharded(String path, int shards) throws Exception {
+        FeedsDB.FeedsDBFactory factory = FeedsDB.FeedsDBFactory.withPath(path);
+        List<String> paths = new ArrayList<>();
+        for (int i = 1; i < shards; i++) {
+            paths.add(path + "-" + i);
+        }
+        factory.setShardPaths(paths);
+
+        return factory.build();
+    }
+}
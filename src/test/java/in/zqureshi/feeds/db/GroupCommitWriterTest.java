@@ -0,0 +1,161 @@
+package in.zqureshi.feeds.db;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Timer;
+import com.codahale.metrics.UniformReservoir;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.rocksdb.RocksDB;
+import org.rocksdb.RocksDBException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.assertj.core.api.Assertions.*;
+
+public class GroupCommitWriterTest {
+    private ExecutorService executor;
+
+    @Before
+    public void before() throws Exception {
+        RocksDB.loadLibrary();
+        executor = Executors.newFixedThreadPool(16);
+    }
+
+    @After
+    public void after() throws Exception {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void groupsQueuedWrites() throws Exception {
+        CountDownLatch firstWriteStarted = new CountDownLatch(1);
+        CountDownLatch releaseFirstWrite = new CountDownLatch(1);
+        List<Integer> groups = new CopyOnWriteArrayList<>();
+
+        GroupCommitWriter writer = new GroupCommitWriter(batch -> {
+            if (groups.isEmpty()) {
+                firstWriteStarted.countDown();
+                await(releaseFirstWrite);
+            }
+            groups.add(batch.count());
+        }, 64, 0, new Histogram(new UniformReservoir()), new Timer());
+
+        // Park the writer on the first batch so the rest pile up behind it.
+        Future<?> first = executor.submit(() -> writer.write(batch(0)));
+        firstWriteStarted.await();
+
+        List<Future<?>> rest = new ArrayList<>();
+        for (int i = 1; i <= 10; i++) {
+            final int n = i;
+            rest.add(executor.submit(() -> writer.write(batch(n))));
+        }
+        while (executor instanceof ThreadPoolExecutor
+            && ((ThreadPoolExecutor) executor).getActiveCount() < 11) {
+            Thread.sleep(1);
+        }
+        Thread.sleep(50);
+
+        releaseFirstWrite.countDown();
+        first.get();
+        for (Future<?> future : rest) {
+            future.get();
+        }
+        writer.close();
+
+        assertThat(groups).containsExactly(1, 10);
+    }
+
+    @Test
+    public void respectsMaxBatchSize() throws Exception {
+        CountDownLatch releaseFirstWrite = new CountDownLatch(1);
+        List<Integer> groups = new CopyOnWriteArrayList<>();
+
+        GroupCommitWriter writer = new GroupCommitWriter(batch -> {
+            await(releaseFirstWrite);
+            groups.add(batch.count());
+        }, 4, 0, new Histogram(new UniformReservoir()), new Timer());
+
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < 9; i++) {
+            final int n = i;
+            futures.add(executor.submit(() -> writer.write(batch(n))));
+        }
+        Thread.sleep(100);
+
+        releaseFirstWrite.countDown();
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        writer.close();
+
+        assertThat(groups.stream().mapToInt(Integer::intValue).sum()).isEqualTo(9);
+        assertThat(groups).allMatch(size -> size <= 4);
+    }
+
+    @Test
+    public void failuresReachEveryCaller() throws Exception {
+        GroupCommitWriter writer = new GroupCommitWriter(batch -> {
+            throw new RocksDBException("disk on fire");
+        }, 64, 0, new Histogram(new UniformReservoir()), new Timer());
+
+        assertThatThrownBy(() -> writer.write(batch(0)))
+            .isInstanceOf(RuntimeException.class)
+            .hasCauseInstanceOf(RocksDBException.class);
+
+        writer.close();
+    }
+
+    @Test
+    public void interruptsReachEveryCaller() throws Exception {
+        List<Integer> groups = new CopyOnWriteArrayList<>();
+
+        // Long enough a wait for stragglers that the group is still being
+        // collected when the writer is interrupted.
+        GroupCommitWriter writer = new GroupCommitWriter(batch -> groups.add(batch.count()),
+            64, TimeUnit.SECONDS.toMicros(1), new Histogram(new UniformReservoir()), new Timer());
+
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            final int n = i;
+            futures.add(executor.submit(() -> writer.write(batch(n))));
+        }
+        Thread.sleep(100);
+
+        writer.thread().interrupt();
+        for (Future<?> future : futures) {
+            assertThatThrownBy(() -> future.get(5, TimeUnit.SECONDS))
+                .isInstanceOf(ExecutionException.class)
+                .hasRootCauseInstanceOf(InterruptedException.class);
+        }
+        assertThat(groups).isEmpty();
+
+        // The writer carries on with later writes.
+        writer.write(batch(3));
+        writer.close();
+        assertThat(groups).containsExactly(1);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsWritesAfterClose() throws Exception {
+        GroupCommitWriter writer = new GroupCommitWriter(batch -> {
+        }, 64, 0, new Histogram(new UniformReservoir()), new Timer());
+        writer.close();
+
+        writer.write(batch(0));
+    }
+
+    private static FeedsDB.Batch batch(int n) {
+        return new FeedsDB.Batch().put("/batches/" + n, new byte[]{(byte) n});
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package in.zqureshi.feeds.db;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.*;
+
+public class IdIndexTest {
+    @Test
+    public void addAndContains() {
+        IdIndex index = new IdIndex(10000L);
+
+        assertThat(index.contains(10000L)).isFalse();
+        index.add(10000L);
+        index.add(10063L);
+        index.add(10064L);
+
+        assertThat(index.contains(10000L)).isTrue();
+        assertThat(index.contains(10001L)).isFalse();
+        assertThat(index.contains(10063L)).isTrue();
+        assertThat(index.contains(10064L)).isTrue();
+        assertThat(index.contains(10065L)).isFalse();
+    }
+
+    @Test
+    public void growsPastInitialSize() {
+        IdIndex index = new IdIndex(10000L);
+
+        for (long id = 10000L; id < 1010000L; id += 3) {
+            index.add(id);
+        }
+
+        assertThat(index.contains(10000L)).isTrue();
+        assertThat(index.contains(1009999L)).isTrue();
+        assertThat(index.contains(1009998L)).isFalse();
+        assertThat(index.contains(1010002L)).isFalse();
+        assertThat(index.contains(Long.MAX_VALUE - 1)).isFalse();
+    }
+
+    @Test
+    public void onlyCoversIdsFromBase() {
+        IdIndex index = new IdIndex(10000L);
+
+        assertThat(index.covers(9999L)).isFalse();
+        assertThat(index.covers(10000L)).isTrue();
+        assertThat(index.covers(Long.MAX_VALUE)).isFalse();
+
+        // Silently ignored, callers fall back to RocksDB for these.
+        index.add(5L);
+        index.add(Long.MAX_VALUE);
+    }
+}
@@ -0,0 +1,60 @@
+package in.zqureshi.feeds.db;
+
+import com.google.common.primitives.UnsignedBytes;
+import org.junit.Test;
+
+import java.util.Comparator;
+
+import static org.assertj.core.api.Assertions.*;
+
+public class KeysTest {
+    // Same order RocksDB's default bytewise comparator uses.
+    private static final Comparator<byte[]> BYTEWISE = UnsignedBytes.lexicographicalComparator();
+
+    @Test
+    public void orderingIsNumeric() {
+        assertThat(BYTEWISE.compare(Keys.article(10000, 99999), Keys.article(10000, 100000))).isLessThan(0);
+        assertThat(BYTEWISE.compare(Keys.article(9, 1), Keys.article(10, 0))).isLessThan(0);
+        assertThat(BYTEWISE.compare(Keys.feed(255), Keys.feed(256))).isLessThan(0);
+        assertThat(BYTEWISE.compare(Keys.user(Long.MAX_VALUE - 1), Keys.user(Long.MAX_VALUE))).isLessThan(0);
+    }
+
+    @Test
+    public void namespacesDoNotInterleave() {
+        assertThat(BYTEWISE.compare(Keys.user(Long.MAX_VALUE), Keys.feed(0))).isLessThan(0);
+        assertThat(BYTEWISE.compare(Keys.feed(Long.MAX_VALUE), Keys.article(0, 0))).isLessThan(0);
+        assertThat(BYTEWISE.compare(Keys.article(Long.MAX_VALUE, Long.MAX_VALUE), "/data".getBytes())).isLessThan(0);
+    }
+
+    @Test
+    public void roundTrip() {
+        byte[] key = Keys.article(10005L, 123456789L);
+
+        assertThat(key).hasSize(17);
+        assertThat(Keys.tag(key)).isEqualTo(Keys.ARTICLES);
+        assertThat(Keys.id(key, 0)).isEqualTo(10005L);
+        assertThat(Keys.id(key, 1)).isEqualTo(123456789L);
+        assertThat(Keys.startsWith(key, Keys.articles(10005L))).isTrue();
+        assertThat(Keys.startsWith(key, Keys.articles(10006L))).isFalse();
+        assertThat(Keys.toString(key)).isEqualTo("articles/10005/123456789");
+    }
+
+    @Test
+    public void inboxOrder() {
+        // Oldest first, ties by feed and then article.
+        assertThat(BYTEWISE.compare(Keys.inbox(20000, 1000, 10009, 10000), Keys.inbox(20000, 1001, 10000, 10000))).isLessThan(0);
+        assertThat(BYTEWISE.compare(Keys.inbox(20000, 1000, 10000, 10009), Keys.inbox(20000, 1000, 10001, 10000))).isLessThan(0);
+        assertThat(BYTEWISE.compare(Keys.inbox(20000, Long.MAX_VALUE, 0, 0), Keys.inbox(20001, 0, 0, 0))).isLessThan(0);
+
+        byte[] key = Keys.inbox(20000, 1500000000000L, 10005, 10042);
+        assertThat(Keys.startsWith(key, Keys.inbox(20000))).isTrue();
+        assertThat(Keys.id(key, 1)).isEqualTo(1500000000000L);
+        assertThat(Keys.toString(key)).isEqualTo("inbox/20000/1500000000000/10005/10042");
+
+        assertThat(Keys.startsWith(Keys.subscriber(10005, 20000), Keys.subscribers(10005))).isTrue();
+        assertThat(Keys.toString(Keys.subscriber(10005, 20000))).isEqualTo("subscribers/10005/20000");
+
+        assertThat(Keys.startsWith(Keys.subscription(20000, 10005), Keys.subscriptions(20000))).isTrue();
+        assertThat(Keys.toString(Keys.subscription(20000, 10005))).isEqualTo("subscriptions/20000/10005");
+    }
+}
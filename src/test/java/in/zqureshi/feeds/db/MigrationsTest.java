@@ -0,0 +1,186 @@
+package in.zqureshi.feeds.db;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.primitives.Longs;
+import in.zqureshi.feeds.api.User;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.rocksdb.Options;
+import org.rocksdb.RocksDB;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.*;
+
+public class MigrationsTest {
+    private FeedsDB db;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void before() throws Exception {
+        db = new FeedsDB(folder.getRoot().getPath());
+    }
+
+    @After
+    public void after() throws Exception {
+        db.stop();
+    }
+
+    @Test
+    public void legacyKeys() throws Exception {
+        db.put("/users/10000", "u0".getBytes());
+        db.put("/feeds/10000", "f0".getBytes());
+        db.put("/feeds/10001", "f1".getBytes());
+        for (int i = 99998; i < 100002; i++) {
+            db.put("/articles/10001/" + i, ("a" + i).getBytes());
+        }
+        db.put("/memory", "#DEADBEEF".getBytes());
+
+        assertThat(Migrations.legacyKeys(db)).isEqualTo(7);
+
+        assertThat(db.get(Keys.user(10000))).isEqualTo("u0".getBytes());
+        assertThat(db.get(Keys.feed(10001))).isEqualTo("f1".getBytes());
+        assertThat(db.get("/feeds/10001")).isNull();
+
+        // Articles now scan in numeric order.
+        FeedsDB.PrefixIterator it = db.scan(Keys.articles(10001));
+        for (int i = 99998; i < 100002; i++) {
+            assertThat(it.next()).isEqualTo(("a" + i).getBytes());
+        }
+        assertThat(it.hasNext()).isFalse();
+
+        // Anything that isn't a record is left alone.
+        assertThat(db.get("/memory")).isEqualTo("#DEADBEEF".getBytes());
+
+        // And running it again is a no-op.
+        assertThat(Migrations.legacyKeys(db)).isZero();
+    }
+
+    @Test
+    public void columnFamilies() throws Exception {
+        db.stop();
+        String path = folder.newFolder().getPath();
+
+        // Everything in the default column family, like older versions did.
+        try (Options options = new Options().setCreateIfMissing(true);
+             RocksDB legacy = RocksDB.open(options, path)) {
+            legacy.put(Keys.user(10000), "u0".getBytes());
+            legacy.put(Keys.article(10000, 10001), "a1".getBytes());
+            legacy.put("/system/counters/users".getBytes(), Longs.toByteArray(11000));
+            legacy.put("/system/counters/feeds".getBytes(), Longs.toByteArray(10500));
+            legacy.put("/data/memory".getBytes(), "#DEADBEEF".getBytes());
+        }
+
+        FeedsDB.FeedsDBFactory factory = FeedsDB.FeedsDBFactory.withPath(path);
+        factory.setCounters(ImmutableMap.of("/feeds", 20000L));
+        db = factory.build();
+
+        // Nothing is visible until migrated.
+        assertThat(db.get(Keys.user(10000))).isNull();
+
+        assertThat(Migrations.columnFamilies(db)).isEqualTo(4);
+        db.stop();
+        db = factory.build();
+
+        assertThat(db.get(Keys.user(10000))).isEqualTo("u0".getBytes());
+        assertThat(db.scan(Keys.articles(10000)).next()).isEqualTo("a1".getBytes());
+        assertThat(db.get("/memory")).isEqualTo("#DEADBEEF".getBytes());
+
+        // Moved ceiling wins when higher, a configured start value when that is.
+        assertThat(db.incrementCounter("/users")).isEqualTo(11000);
+        assertThat(db.incrementCounter("/feeds")).isEqualTo(20000);
+
+        assertThat(Migrations.columnFamilies(db)).isZero();
+    }
+
+    @Test
+    public void subscriptions() throws Exception {
+        db.put(Keys.user(20000), Records.encode(new User(20000L, ImmutableMap.of(10000L, 10000L, 10001L, 10042L))));
+        db.put(Keys.user(20001), Records.encode(new User(20001L, ImmutableMap.of())));
+
+        assertThat(Migrations.subscriptions(db)).isEqualTo(2);
+
+        assertThat(Records.decodeUser(db.get(Keys.user(20000))).getFeeds()).isEmpty();
+        assertThat(Records.decodeSubscription(db.get(Keys.subscription(20000, 10000)))).isEqualTo(10000);
+        assertThat(Records.decodeSubscription(db.get(Keys.subscription(20000, 10001)))).isEqualTo(10042);
+        assertThat(db.get(Keys.subscription(20001, 10000))).isNull();
+
+        // Nothing left to move.
+        assertThat(Migrations.subscriptions(db)).isZero();
+        assertThat(Records.decodeSubscription(db.get(Keys.subscription(20000, 10001)))).isEqualTo(10042);
+    }
+
+    @Test
+    public void subscribers() throws Exception {
+        db.put(Keys.user(20000), Records.encode(new User(20000L, ImmutableMap.of(10000L, 10000L, 10001L, 10042L))));
+        db.put(Keys.user(20001), Records.encode(new User(20001L, ImmutableMap.of(10001L, 10000L))));
+        db.put(Keys.user(20002), Records.encode(new User(20002L, ImmutableMap.of())));
+        Migrations.subscriptions(db);
+
+        assertThat(Migrations.subscribers(db)).isEqualTo(3);
+
+        assertThat(subscribers(10000)).containsExactly(20000L);
+        assertThat(subscribers(10001)).containsExactly(20000L, 20001L);
+        assertThat(db.getCount(Keys.subscriberCount(10001))).isEqualTo(2);
+
+        // Rewrites the same keys and counts when run again.
+        assertThat(Migrations.subscribers(db)).isEqualTo(3);
+        assertThat(subscribers(10001)).containsExactly(20000L, 20001L);
+        assertThat(db.getCount(Keys.subscriberCount(10000))).isEqualTo(1);
+        assertThat(db.getCount(Keys.subscriberCount(10001))).isEqualTo(2);
+    }
+
+    @Test
+    public void reconcileSubscribers() throws Exception {
+        // In line.
+        db.write(db.batch()
+            .put(Keys.subscription(20000, 10000), Records.encodeSubscription(10000))
+            .put(Keys.subscriber(10000, 20000), new byte[0])
+            .increment(Keys.subscriberCount(10000), 1));
+        // Subscriber without a subscription.
+        db.write(db.batch()
+            .put(Keys.subscriber(10000, 20001), new byte[0])
+            .increment(Keys.subscriberCount(10000), 1));
+        // Subscription without a subscriber.
+        db.write(db.batch().put(Keys.subscription(20002, 10001), Records.encodeSubscription(10000)));
+        // Count of a feed nobody is subscribed to.
+        db.write(db.batch().increment(Keys.subscriberCount(10002), 5));
+
+        assertThat(Migrations.reconcileSubscribers(db)).isEqualTo(5);
+
+        assertThat(db.get(Keys.subscriber(10000, 20000))).isNotNull();
+        assertThat(db.get(Keys.subscriber(10000, 20001))).isNull();
+        assertThat(db.get(Keys.subscriber(10001, 20002))).isNotNull();
+        assertThat(db.getCount(Keys.subscriberCount(10000))).isEqualTo(1);
+        assertThat(db.getCount(Keys.subscriberCount(10001))).isEqualTo(1);
+        assertThat(db.getCount(Keys.subscriberCount(10002))).isZero();
+
+        assertThat(Migrations.reconcileSubscribers(db)).isZero();
+    }
+
+    @Test
+    public void legacyKeyParsing() {
+        assertThat(Migrations.legacyKey("/data/articles/10/20")).isEqualTo(Keys.article(10, 20));
+        assertThat(Migrations.legacyKey("/data/articles/10")).isNull();
+        assertThat(Migrations.legacyKey("/data/users/abc")).isNull();
+        assertThat(Migrations.legacyKey("/data/memory")).isNull();
+    }
+
+    private List<Long> subscribers(long feedId) {
+        List<Long> users = new ArrayList<>();
+        try (FeedsDB.PrefixIterator it = db.scan(Keys.subscribers(feedId))) {
+            while (it.hasNext()) {
+                users.add(Keys.id(it.nextKey(), 1));
+                it.next();
+            }
+        }
+
+        return users;
+    }
+}
@@ -0,0 +1,183 @@
+package in.zqureshi.feeds.db;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableMap;
+import in.zqureshi.feeds.api.Article;
+import in.zqureshi.feeds.api.Feed;
+import in.zqureshi.feeds.api.User;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.assertj.core.api.Assertions.*;
+
+public class RecordsTest {
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @Test
+    public void articleRoundTrip() throws Exception {
+        Article article = Records.decodeArticle(Records.encode(new Article(10042L, "h\u00e9llo \"world\"")));
+
+        assertThat(article.getId()).isEqualTo(10042L);
+        assertThat(article.getText()).isEqualTo("h\u00e9llo \"world\"");
+
+        assertThat(Records.decodeArticle(Records.encode(new Article(10000L, null))).getText()).isNull();
+        assertThat(Records.decodeArticle(Records.encode(new Article(10000L, ""))).getText()).isEmpty();
+    }
+
+    @Test
+    public void publishedAtRoundTrip() throws Exception {
+        Article article = Records.decodeArticle(Records.encode(new Article(10042L, "text", 1500000000000L)));
+        assertThat(article.getPublishedAt()).isEqualTo(1500000000000L);
+        assertThat(article.getText()).isEqualTo("text");
+
+        assertThat(Records.decodeArticle(Records.encode(new Article(10042L, "text"))).getPublishedAt()).isNull();
+        assertThat(Records.decodeArticle(Records.encode(new Article(10042L, "text", 0L))).getPublishedAt()).isZero();
+    }
+
+    @Test
+    public void readsVersionOneArticles() throws Exception {
+        // 1 {id 10000} {length 2 + 1} "hi", before publishedAt existed.
+        byte[] v1 = {0x01, (byte) 0x90, 0x4E, 0x03, 'h', 'i'};
+
+        Article article = Records.decodeArticle(v1);
+        assertThat(article.getId()).isEqualTo(10000L);
+        assertThat(article.getText()).isEqualTo("hi");
+        assertThat(article.getPublishedAt()).isNull();
+
+        assertThat(articleJson(ByteBuffer.wrap(v1))).isEqualTo(mapper.writeValueAsString(article));
+    }
+
+    @Test
+    public void feedRoundTrip() throws Exception {
+        Feed feed = Records.decodeFeed(Records.encode(new Feed(10001L, Arrays.asList(
+            new Article(10000L, "a"), new Article(Long.MAX_VALUE, "b")))));
+
+        assertThat(feed.getId()).isEqualTo(10001L);
+        assertThat(feed.getArticles()).hasSize(2);
+        assertThat(feed.getArticles().get(1).getId()).isEqualTo(Long.MAX_VALUE);
+        assertThat(feed.getArticles().get(1).getText()).isEqualTo("b");
+
+        assertThat(Records.decodeFeed(Records.encode(new Feed(10002L, Collections.emptyList()))).getArticles()).isEmpty();
+    }
+
+    @Test
+    public void userRoundTrip() throws Exception {
+        User user = Records.decodeUser(Records.encode(new User(10003L, ImmutableMap.of(10000L, 10255L, 10001L, 10000L))));
+
+        assertThat(user.getId()).isEqualTo(10003L);
+        assertThat(user.getFeeds()).containsExactly(entry(10000L, 10255L), entry(10001L, 10000L));
+
+        // Resources add subscriptions to what they read.
+        user.getFeeds().put(10002L, 10000L);
+        assertThat(user.getFeeds()).hasSize(3);
+    }
+
+    @Test
+    public void subscriptionRoundTrip() throws Exception {
+        assertThat(Records.decodeSubscription(Records.encodeSubscription(10255L))).isEqualTo(10255L);
+        assertThat(Records.encodeSubscription(10255L)).hasSize(3);
+    }
+
+    @Test
+    public void updateRoundTrip() throws Exception {
+        FeedsDB.Update update = new FeedsDB.Update(1_000_000L, 3, Arrays.asList(
+            new FeedsDB.Mutation(FeedsDB.Op.PUT, Keys.article(10000, 10042), Records.encode(new Article(10042L, "#DEADBEEF"))),
+            new FeedsDB.Mutation(FeedsDB.Op.DELETE, Keys.subscriber(10000, 20000), null),
+            new FeedsDB.Mutation(FeedsDB.Op.MERGE, Keys.subscriberCount(10000), new byte[0])));
+
+        // Back to back, the way the log is sent.
+        ByteBuffer in = ByteBuffer.allocate(1024);
+        in.put(Records.encode(update)).put(Records.encode(update)).flip();
+        for (int i = 0; i < 2; i++) {
+            FeedsDB.Update decoded = Records.decodeUpdate(in);
+            assertThat(decoded.sequence()).isEqualTo(1_000_000L);
+            assertThat(decoded.next()).isEqualTo(1_000_003L);
+            assertThat(decoded.mutations()).extracting(FeedsDB.Mutation::op)
+                .containsExactly(FeedsDB.Op.PUT, FeedsDB.Op.DELETE, FeedsDB.Op.MERGE);
+            assertThat(decoded.mutations()).extracting(FeedsDB.Mutation::key)
+                .containsExactly(Keys.article(10000, 10042), Keys.subscriber(10000, 20000), Keys.subscriberCount(10000));
+            assertThat(Records.decodeArticle(decoded.mutations().get(0).value()).getText()).isEqualTo("#DEADBEEF");
+            assertThat(decoded.mutations().get(1).value()).isNull();
+            assertThat(decoded.mutations().get(2).value()).isEmpty();
+        }
+        assertThat(in.hasRemaining()).isFalse();
+
+        byte[] truncated = Arrays.copyOf(Records.encode(update), 20);
+        assertThatThrownBy(() -> Records.decodeUpdate(ByteBuffer.wrap(truncated))).isInstanceOf(IOException.class);
+    }
+
+    @Test
+    public void smallerThanJson() throws Exception {
+        Article article = new Article(10042L, "f:1a:2");
+
+        assertThat(Records.encode(article).length).isLessThan(mapper.writeValueAsBytes(article).length / 2);
+    }
+
+    @Test
+    public void readsLegacyJson() throws Exception {
+        Article article = Records.decodeArticle(mapper.writeValueAsBytes(new Article(10000L, "old")));
+        assertThat(article.getId()).isEqualTo(10000L);
+        assertThat(article.getText()).isEqualTo("old");
+
+        Feed feed = Records.decodeFeed(mapper.writeValueAsBytes(new Feed(10001L, Collections.emptyList())));
+        assertThat(feed.getId()).isEqualTo(10001L);
+
+        User user = Records.decodeUser(mapper.writeValueAsBytes(new User(10002L, ImmutableMap.of(10000L, 10001L))));
+        assertThat(user.getFeeds()).containsExactly(entry(10000L, 10001L));
+    }
+
+    @Test
+    public void unknownVersion() {
+        assertThatThrownBy(() -> Records.decodeArticle(new byte[]{0x7F, 0x01, 0x00}))
+            .isInstanceOf(IOException.class)
+            .hasMessageContaining("version");
+    }
+
+    @Test
+    public void articleJsonMatchesJackson() throws Exception {
+        for (String text : Arrays.asList("plain", "", null, "quote \" and \\ slash /",
+                                         "tab\tnew\nline\r\b\f\u0001\u001f", "\u00fcn\u00efc\u00f8d\u00e9 \u2713 \ud83d\ude00")) {
+            for (Article article : Arrays.asList(new Article(10099L, text), new Article(10099L, text, 1500000000000L))) {
+                String expected = mapper.writeValueAsString(article);
+
+                assertThat(articleJson(ByteBuffer.wrap(Records.encode(article)))).isEqualTo(expected);
+                assertThat(articleJson(direct(Records.encode(article)))).isEqualTo(expected);
+            }
+
+            Article article = new Article(10099L, text);
+            String expected = mapper.writeValueAsString(article);
+
+            // Legacy rows go out as Jackson wrote them, which may escape differently.
+            assertThat(mapper.readTree(articleJson(ByteBuffer.wrap(mapper.writeValueAsBytes(article)))))
+                .isEqualTo(mapper.readTree(expected));
+        }
+    }
+
+    @Test
+    public void articleJsonFromDirectBufferLeavesPosition() throws Exception {
+        ByteBuffer record = direct(Records.encode(new Article(10000L, "text")));
+
+        articleJson(record);
+        assertThat(record.position()).isZero();
+        assertThat(Records.decodeArticle(record).getText()).isEqualTo("text");
+    }
+
+    private static ByteBuffer direct(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes).flip();
+
+        return buffer;
+    }
+
+    private static String articleJson(ByteBuffer record) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Records.writeArticleJson(record, out);
+
+        return new String(out.toByteArray(), "UTF-8");
+    }
+}
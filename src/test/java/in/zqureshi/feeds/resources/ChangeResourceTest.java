@@ -0,0 +1,186 @@
+package in.zqureshi.feeds.resources;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import in.zqureshi.feeds.api.Article;
+import in.zqureshi.feeds.api.Change;
+import in.zqureshi.feeds.api.Changes;
+import in.zqureshi.feeds.db.FeedsDB;
+import in.zqureshi.feeds.db.Keys;
+import in.zqureshi.feeds.db.Records;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.ws.rs.BadRequestException;
+import javax.ws.rs.core.Response;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.*;
+
+public class ChangeResourceTest {
+    private FeedsDB db;
+    private ObjectMapper mapper;
+    private FeedResource feedResource;
+    private UserResource userResource;
+    private ChangeResource changeResource;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void before() throws Exception {
+        db = new FeedsDB(folder.getRoot().getPath());
+        mapper = new ObjectMapper();
+        feedResource = new FeedResource(db, mapper);
+        userResource = new UserResource(db, feedResource, mapper);
+        changeResource = new ChangeResource(db);
+    }
+
+    @After
+    public void after() throws Exception {
+        changeResource.stop();
+        assertThat(db.openIterators()).isZero();
+        db.stop();
+    }
+
+    @Test
+    public void initiallyEmpty() throws Exception {
+        Changes changes = changeResource.listChanges(Optional.empty(), Optional.empty());
+        assertThat(changes.getChanges()).isEmpty();
+        assertThat(changes.getNext()).isEqualTo(changes.getLatest() + 1);
+    }
+
+    @Test
+    public void listsChangesInOrder() throws Exception {
+        long userId = userResource.createUser().getId();
+        long feedId = feedResource.creatFeed().getId();
+        Article article = feedResource.publishArticle(feedId, "#DEADBEEF");
+        userResource.subscribe(userId, feedId);
+        userResource.unsubscribe(userId, feedId);
+
+        Changes changes = changeResource.listChanges(Optional.empty(), Optional.empty());
+        assertThat(changes.getChanges()).extracting(Change::getType).containsExactly(
+            Change.Type.USER_CREATED,
+            Change.Type.FEED_CREATED,
+            Change.Type.ARTICLE_PUBLISHED,
+            Change.Type.SUBSCRIBED,
+            Change.Type.UNSUBSCRIBED);
+        assertThat(changes.getChanges()).extracting(Change::getUserId)
+            .containsExactly(userId, null, null, userId, userId);
+        assertThat(changes.getChanges()).extracting(Change::getFeedId)
+            .containsExactly(null, feedId, feedId, feedId, feedId);
+        assertThat(changes.getChanges().get(2).getArticle()).isEqualTo(article);
+        assertThat(changes.getChanges()).extracting(Change::getSequence).isSorted();
+        assertThat(changes.getNext()).isEqualTo(db.latestSequence() + 1);
+        assertThat(changes.getLatest()).isEqualTo(db.latestSequence());
+
+        // Only what was written since.
+        feedResource.publishArticle(feedId, "#CAFEBABE");
+        Changes since = changeResource.listChanges(Optional.of(changes.getNext()), Optional.empty());
+        assertThat(since.getChanges()).hasSize(1);
+        assertThat(since.getChanges().get(0).getArticle().getText()).isEqualTo("#CAFEBABE");
+    }
+
+    @Test
+    public void pagesThroughChanges() throws Exception {
+        long feedId = feedResource.creatFeed().getId();
+        for (int i = 0; i < 25; i++) {
+            feedResource.publishArticle(feedId, "#DEADBEEF:" + i);
+        }
+
+        List<Change> all = new ArrayList<>();
+        Optional<Long> since = Optional.empty();
+        for (int pages = 0; ; pages++) {
+            assertThat(pages).isLessThan(10);
+
+            Changes page = changeResource.listChanges(since, Optional.of(10));
+            assertThat(page.getChanges().size()).isLessThanOrEqualTo(10);
+            if (page.getChanges().isEmpty()) {
+                assertThat(page.getNext()).isEqualTo(since.get());
+                break;
+            }
+            all.addAll(page.getChanges());
+            since = Optional.of(page.getNext());
+        }
+
+        assertThat(all).extracting(Change::getType).startsWith(Change.Type.FEED_CREATED).hasSize(26);
+        assertThat(all.subList(1, 26)).extracting(change -> change.getArticle().getText())
+            .startsWith("#DEADBEEF:0", "#DEADBEEF:1")
+            .endsWith("#DEADBEEF:24");
+    }
+
+    @Test
+    public void carriesOnFromWherePagesStopped() throws Exception {
+        long feedId = feedResource.creatFeed().getId();
+        for (int i = 0; i < 5; i++) {
+            feedResource.publishArticle(feedId, "#DEADBEEF:" + i);
+        }
+
+        Changes first = changeResource.listChanges(Optional.empty(), Optional.of(3));
+        assertThat(db.openIterators()).isEqualTo(1);
+
+        feedResource.publishArticle(feedId, "#CAFEBABE");
+
+        Changes second = changeResource.listChanges(Optional.of(first.getNext()), Optional.empty());
+        assertThat(db.openIterators()).isEqualTo(1);
+        assertThat(second.getChanges()).extracting(change -> change.getArticle().getText())
+            .containsExactly("#DEADBEEF:2", "#DEADBEEF:3", "#DEADBEEF:4", "#CAFEBABE");
+
+        // Someone else starting over gets their own.
+        Changes again = changeResource.listChanges(Optional.of(first.getNext()), Optional.of(1));
+        assertThat(again.getChanges()).extracting(change -> change.getArticle().getText()).containsExactly("#DEADBEEF:2");
+        assertThat(db.openIterators()).isEqualTo(2);
+
+        changeResource.stop();
+        assertThat(db.openIterators()).isZero();
+    }
+
+    @Test
+    public void log() throws Exception {
+        long feedId = feedResource.creatFeed().getId();
+        long start = db.latestSequence() + 1;
+        feedResource.publishArticle(feedId, "#DEADBEEF");
+        feedResource.publishArticle(feedId, "#CAFEBABE");
+
+        Response response = changeResource.log(start, Optional.of(1));
+        ByteBuffer body = ByteBuffer.wrap((byte[]) response.getEntity());
+        FeedsDB.Update update = Records.decodeUpdate(body);
+        assertThat(body.hasRemaining()).isFalse();
+        assertThat(update.sequence()).isEqualTo(start);
+        assertThat(update.mutations()).extracting(FeedsDB.Mutation::key).contains(Keys.article(feedId, 10000));
+        assertThat(response.getHeaderString(ChangeResource.NEXT_HEADER)).isEqualTo(String.valueOf(update.next()));
+        assertThat(response.getHeaderString(ChangeResource.LATEST_HEADER)).isEqualTo(String.valueOf(db.latestSequence()));
+
+        response = changeResource.log(update.next(), Optional.empty());
+        body = ByteBuffer.wrap((byte[]) response.getEntity());
+        assertThat(Records.decodeUpdate(body).mutations()).extracting(FeedsDB.Mutation::key).contains(Keys.article(feedId, 10001));
+        assertThat(body.hasRemaining()).isFalse();
+        assertThat(response.getHeaderString(ChangeResource.NEXT_HEADER)).isEqualTo(String.valueOf(db.latestSequence() + 1));
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void logNeedsSince() throws Exception {
+        changeResource.log(null, Optional.empty());
+    }
+
+    @Test
+    public void sinceInTheFuture() throws Exception {
+        feedResource.creatFeed();
+
+        long future = db.latestSequence() + 100;
+        Changes changes = changeResource.listChanges(Optional.of(future), Optional.empty());
+        assertThat(changes.getChanges()).isEmpty();
+        assertThat(changes.getNext()).isEqualTo(future);
+    }
+
+    @Test
+    public void leavesOutUnsetFields() throws Exception {
+        String json = mapper.writeValueAsString(new Change(42L, Change.Type.FEED_CREATED, null, 10000L, null));
+        assertThat(json).isEqualTo("{\"sequence\":42,\"type\":\"FEED_CREATED\",\"feedId\":10000}");
+    }
+}
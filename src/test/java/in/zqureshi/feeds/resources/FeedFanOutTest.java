@@ -0,0 +1,174 @@
+package in.zqureshi.feeds.resources;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.ImmutableMap;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.*;
+
+public class FeedFanOutTest {
+    private MetricRegistry metrics;
+    private ExecutorService executor;
+
+    @Before
+    public void before() {
+        metrics = new MetricRegistry();
+        executor = Executors.newFixedThreadPool(16);
+    }
+
+    @After
+    public void after() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void keepsRequestOrder() throws Exception {
+        FeedFanOut fanOut = new FeedFanOut(executor, 4, 5000, metrics);
+
+        List<Callable<Integer>> reads = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            int n = i;
+            // Later reads finish first.
+            reads.add(() -> {
+                Thread.sleep(20 - n);
+                return n;
+            });
+        }
+
+        assertThat(fanOut.readAll(reads)).containsExactly(
+            0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19);
+    }
+
+    @Test
+    public void limitsConcurrencyPerRequest() throws Exception {
+        FeedFanOut fanOut = new FeedFanOut(executor, 3, 5000, metrics);
+
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        List<Callable<Integer>> reads = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            reads.add(() -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                Thread.sleep(5);
+                running.decrementAndGet();
+                return 0;
+            });
+        }
+
+        assertThat(fanOut.readAll(reads)).hasSize(30);
+        assertThat(maxRunning.get()).isBetween(2, 3);
+    }
+
+    @Test
+    public void leavesOutReadsPastDeadline() throws Exception {
+        FeedFanOut fanOut = new FeedFanOut(executor, 4, 200, metrics);
+        CountDownLatch never = new CountDownLatch(1);
+
+        List<Callable<Integer>> reads = new ArrayList<>();
+        reads.add(() -> 0);
+        reads.add(() -> {
+            never.await();
+            return 1;
+        });
+        reads.add(() -> 2);
+
+        assertThat(fanOut.readAll(reads)).containsExactly(0, 2);
+        assertThat(metrics.meter(MetricRegistry.name(FeedFanOut.class, "timeouts")).getCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void reportsFeedsPastDeadline() throws Exception {
+        FeedFanOut fanOut = new FeedFanOut(executor, 4, 200, metrics);
+        CountDownLatch never = new CountDownLatch(1);
+
+        Map<Long, Long> startIds = new LinkedHashMap<>();
+        for (long i = 1; i <= 40; i++) {
+            startIds.put(i, i * 10);
+        }
+
+        // Batches of 16, the second one never finishes.
+        FeedFanOut.Results<Long> read = fanOut.readBatched(startIds, batch -> () -> {
+            if (batch.containsKey(17L)) {
+                never.await();
+            }
+            return new ArrayList<>(batch.keySet());
+        });
+
+        List<Long> expected = new ArrayList<>();
+        List<Long> missed = new ArrayList<>();
+        for (long i = 1; i <= 40; i++) {
+            (i >= 17 && i <= 32 ? missed : expected).add(i);
+        }
+        assertThat(read).containsExactlyElementsOf(expected);
+        assertThat(read.missed()).containsExactlyElementsOf(missed);
+        assertThat(fanOut.readBatched(ImmutableMap.of(1L, 10L), batch -> () -> new ArrayList<>(batch.keySet())).missed())
+            .isEmpty();
+    }
+
+    @Test
+    public void failsWithFirstError() {
+        FeedFanOut fanOut = new FeedFanOut(executor, 4, 5000, metrics);
+
+        List<Callable<Integer>> reads = new ArrayList<>();
+        reads.add(() -> 0);
+        reads.add(() -> {
+            throw new IOException("bad page");
+        });
+
+        assertThatThrownBy(() -> fanOut.readAll(reads))
+            .isInstanceOf(IOException.class)
+            .hasMessage("bad page");
+    }
+
+    @Test
+    public void singleReadRunsInline() throws Exception {
+        FeedFanOut fanOut = new FeedFanOut(executor, 4, 5000, metrics);
+        Thread caller = Thread.currentThread();
+
+        List<Callable<Thread>> reads = new ArrayList<>();
+        reads.add(Thread::currentThread);
+
+        assertThat(fanOut.readAll(reads)).containsExactly(caller);
+    }
+
+    @Test
+    public void readsInBatches() throws Exception {
+        FeedFanOut fanOut = new FeedFanOut(executor, 4, 5000, metrics);
+
+        Map<Long, Long> startIds = new LinkedHashMap<>();
+        for (long i = 100; i > 0; i--) {
+            startIds.put(i, i * 10);
+        }
+
+        List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+        List<Long> read = fanOut.readBatched(startIds, batch -> () -> {
+            batchSizes.add(batch.size());
+            return new ArrayList<>(batch.values());
+        });
+
+        assertThat(read).containsExactlyElementsOf(startIds.values());
+        assertThat(batchSizes).containsOnly(25);
+
+        // Small requests stay in one batch.
+        batchSizes.clear();
+        fanOut.readBatched(ImmutableMap.of(1L, 10L, 2L, 20L), batch -> () -> {
+            batchSizes.add(batch.size());
+            return new ArrayList<>(batch.values());
+        });
+        assertThat(batchSizes).containsExactly(2);
+    }
+}
@@ -0,0 +1,113 @@
+package in.zqureshi.feeds.resources;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.*;
+
+public class FeedPageCacheTest {
+    private MetricRegistry metrics;
+    private FeedPageCache cache;
+
+    @Before
+    public void before() {
+        metrics = new MetricRegistry();
+        cache = new FeedPageCache(3, 1024 * 1024, 0, metrics);
+    }
+
+    @Test
+    public void servesPageUntilCounterMoves() {
+        cache.put(1, 10003, ids(10000, 10003), articles(10000, 10003));
+
+        assertThat(text(cache.get(1, 10003))).containsExactly("a10000", "a10001", "a10002");
+        assertThat(cache.get(1, 10004)).isEmpty();
+        assertThat(cache.get(2, 10003)).isEmpty();
+
+        assertThat(metrics.meter(MetricRegistry.name(FeedPageCache.class, "hits")).getCount()).isEqualTo(1);
+        assertThat(metrics.meter(MetricRegistry.name(FeedPageCache.class, "misses")).getCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void skipsPagesWithArticlesInFlight() {
+        // 10003 is allocated but not written yet.
+        cache.put(1, 10004, ids(10000, 10003), articles(10000, 10003));
+        assertThat(cache.get(1, 10004)).isEmpty();
+
+        cache.put(1, 10000, ids(10000, 10000), articles(10000, 10000));
+        assertThat(cache.get(1, 10000)).isEmpty();
+    }
+
+    @Test
+    public void appendsPublishedArticles() {
+        cache.put(1, 10003, ids(10000, 10003), articles(10000, 10003));
+        cache.published(1, 10003, "a10003".getBytes());
+
+        // Still only the latest page.
+        assertThat(text(cache.get(1, 10004))).containsExactly("a10001", "a10002", "a10003");
+    }
+
+    @Test
+    public void dropsPageWhenPublishesRace() {
+        cache.put(1, 10003, ids(10000, 10003), articles(10000, 10003));
+
+        // 10004 landed before 10003 did.
+        cache.published(1, 10004, "a10004".getBytes());
+        cache.published(1, 10003, "a10003".getBytes());
+
+        assertThat(cache.get(1, 10005)).isEmpty();
+        assertThat(cache.get(1, 10003)).isEmpty();
+    }
+
+    @Test
+    public void evictsPastMaxMemory() {
+        cache = new FeedPageCache(3, 1024, 0, metrics);
+        for (long feed = 0; feed < 100; feed++) {
+            cache.put(feed, 10003, ids(10000, 10003), articles(10000, 10003));
+        }
+
+        assertThat(metrics.meter(MetricRegistry.name(FeedPageCache.class, "evictions")).getCount()).isGreaterThan(0);
+        assertThat(cache.get(99, 10003)).isPresent();
+        assertThat(cache.get(0, 10003)).isEmpty();
+    }
+
+    @Test
+    public void zeroMemoryDisablesCache() {
+        cache = new FeedPageCache(3, 0, 0, metrics);
+        cache.put(1, 10003, ids(10000, 10003), articles(10000, 10003));
+
+        assertThat(cache.get(1, 10003)).isEqualTo(Optional.empty());
+        assertThat(metrics.meter(MetricRegistry.name(FeedPageCache.class, "evictions")).getCount()).isZero();
+    }
+
+    private static List<String> text(Optional<List<byte[]>> page) {
+        assertThat(page).isPresent();
+
+        List<String> text = new ArrayList<>();
+        page.get().forEach(article -> text.add(new String(article)));
+
+        return text;
+    }
+
+    private static List<Long> ids(long from, long to) {
+        List<Long> ids = new ArrayList<>();
+        for (long id = from; id < to; id++) {
+            ids.add(id);
+        }
+
+        return ids;
+    }
+
+    private static List<byte[]> articles(long from, long to) {
+        List<byte[]> articles = new ArrayList<>();
+        for (long id = from; id < to; id++) {
+            articles.add(("a" + id).getBytes());
+        }
+
+        return articles;
+    }
+}
@@ -1,10 +1,18 @@
 package in.zqureshi.feeds.resources;
 
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.util.concurrent.MoreExecutors;
 import in.zqureshi.feeds.api.Article;
 import in.zqureshi.feeds.api.Feed;
+import in.zqureshi.feeds.api.FeedList;
 import in.zqureshi.feeds.cli.PopulateCommand;
 import in.zqureshi.feeds.db.FeedsDB;
+import in.zqureshi.feeds.db.Keys;
+import in.zqureshi.feeds.db.Records;
+import org.glassfish.jersey.media.sse.EventOutput;
+import org.glassfish.jersey.media.sse.OutboundEvent;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
@@ -15,10 +23,26 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.ws.rs.NotFoundException;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.CompletionCallback;
+import javax.ws.rs.container.TimeoutHandler;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 import static org.assertj.core.api.Assertions.*;
 
@@ -43,6 +67,8 @@ public class FeedResourceTest {
 
     @After
     public void after() throws Exception {
+        // Every resource call has to give back the iterators it opened.
+        assertThat(db.openIterators()).isZero();
         db.stop();
     }
 
@@ -51,12 +77,12 @@ public class FeedResourceTest {
         TemporaryFolder anotherFolder = new TemporaryFolder();
         anotherFolder.create();
 
-        feedResource = new FeedResource(
-            new FeedsDB(anotherFolder.getRoot().getPath()),
-            mapper
-        );
+        FeedsDB emptyDB = new FeedsDB(anotherFolder.getRoot().getPath());
+        feedResource = new FeedResource(emptyDB, mapper);
 
         assertThat(feedResource.listFeeds()).isEmpty();
+        assertThat(emptyDB.openIterators()).isZero();
+        emptyDB.stop();
     }
 
     @Test
@@ -70,19 +96,19 @@ public class FeedResourceTest {
         }
 
         // Validate record for each feed
-        FeedsDB.PrefixIterator it = db.scan("/feeds/");
+        FeedsDB.PrefixIterator it = db.scan(Keys.namespace(Keys.FEEDS));
         for (int i = 10000; i < 10010; i++) {
-            Feed feed = mapper.readValue(it.next(), Feed.class);
+            Feed feed = Records.decodeFeed(it.next());
             assertThat(feed.getId()).isEqualTo(i);
             assertThat(feed.getArticles()).isEmpty();
         }
         assertThat(it.hasNext()).isFalse();
 
         // Validate record for each article
-        it = db.scan("/articles");
+        it = db.scan(Keys.namespace(Keys.ARTICLES));
         for (int i = 0; i < 10; i++) {
             for (int j = 0; j < 256; j++) {
-                Article article = mapper.readValue(it.next(), Article.class);
+                Article article = Records.decodeArticle(it.next());
                 assertThat(article.getId()).isEqualTo(10000 + j);
                 assertThat(article.getText()).isEqualToIgnoringCase("f:" + i + "a:" + j);
             }
@@ -102,6 +128,42 @@ public class FeedResourceTest {
         }
     }
 
+    @Test
+    public void listFeedsInPages() throws Exception {
+        FeedList page = feedResource.listFeeds(Optional.empty(), Optional.of(4));
+        assertThat(page.getFeeds()).extracting(Feed::getId).containsExactly(10000L, 10001L, 10002L, 10003L);
+        assertThat(page.getFeeds()).extracting(Feed::getArticles).containsOnly(Collections.emptyList());
+        assertThat(page.getNext()).isEqualTo(10003L);
+
+        page = feedResource.listFeeds(Optional.of(page.getNext()), Optional.of(4));
+        assertThat(page.getFeeds()).extracting(Feed::getId).containsExactly(10004L, 10005L, 10006L, 10007L);
+
+        // Last page, exactly full.
+        page = feedResource.listFeeds(Optional.of(page.getNext()), Optional.of(2));
+        assertThat(page.getFeeds()).extracting(Feed::getId).containsExactly(10008L, 10009L);
+        assertThat(page.getNext()).isNull();
+
+        // Defaults and bounds.
+        assertThat(feedResource.listFeeds(Optional.empty(), Optional.empty()).getFeeds()).hasSize(10);
+        assertThat(feedResource.listFeeds(Optional.empty(), Optional.of(0)).getFeeds()).hasSize(1);
+        assertThat(feedResource.listFeeds(Optional.of(10009L), Optional.empty()).getFeeds()).isEmpty();
+        assertThat(feedResource.listFeeds(Optional.of(Long.MAX_VALUE), Optional.empty()).getFeeds()).isEmpty();
+    }
+
+    @Test
+    public void streamFeeds() throws Exception {
+        String[] lines = new String(stream(feedResource.streamFeeds(Optional.empty()))).split("\n");
+        assertThat(lines).hasSize(10);
+        for (int i = 0; i < lines.length; i++) {
+            Feed feed = mapper.readValue(lines[i], Feed.class);
+            assertThat(feed.getId()).isEqualTo(10000 + i);
+            assertThat(feed.getArticles()).isEmpty();
+        }
+
+        assertThat(new String(stream(feedResource.streamFeeds(Optional.of(10007L)))))
+            .isEqualTo("{\"id\":10008,\"articles\":[]}\n{\"id\":10009,\"articles\":[]}\n");
+    }
+
     @Test
     public void testCreateFeed() throws Exception {
         Feed feed = feedResource.creatFeed();
@@ -144,6 +206,15 @@ public class FeedResourceTest {
         feedResource.showFeed(10007l, Optional.of(9999l));
     }
 
+    @Test
+    public void testShowFeedReleasesIterators() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            feedResource.showFeed(10000l + i % 10, Optional.of(10000l));
+        }
+
+        assertThat(db.openIterators()).isZero();
+    }
+
     @Test(expected = IndexOutOfBoundsException.class)
     public void testShowFeedIndexOutOfUpperBound() throws Exception {
         feedResource.showFeed(10007l, Optional.of(999999l));
@@ -165,6 +236,38 @@ public class FeedResourceTest {
         assertThat(feed.getArticles().get(6).getId()).isEqualTo(10255);
     }
 
+    @Test
+    public void testShowFeedLatestPageAfterRestart() throws Exception {
+        // Clean shutdown, the counter carries on right after the last article.
+        db.stop();
+        db = new FeedsDB(folder.getRoot().getPath());
+        feedResource = new FeedResource(db, mapper);
+        assertThat(db.getCounter("/articles/10000")).isEqualTo(10256);
+        assertThat(feedResource.showFeed(10000l, Optional.empty()).getArticles())
+            .extracting(Article::getId).startsWith(10206l).endsWith(10255l).hasSize(50);
+
+        // After a crash it resumes from the reserved ceiling instead.
+        db.write(db.batch().setCounter("/articles/10000", 11000));
+        db.stop();
+        db = new FeedsDB(folder.getRoot().getPath());
+        feedResource = new FeedResource(db, mapper);
+        assertThat(db.getCounter("/articles/10000")).isEqualTo(11000);
+
+        Feed feed = feedResource.showFeed(10000l, Optional.empty());
+        assertThat(feed.getArticles()).extracting(Article::getId).startsWith(10206l).endsWith(10255l).hasSize(50);
+
+        Parked response = new Parked();
+        feedResource.poll(10000l, Optional.empty(), Optional.empty(), response);
+        assertThat(response.isDone()).isFalse();
+
+        Article article = feedResource.publishArticle(10000l, "#DEADBEEF");
+        assertThat(article.getId()).isEqualTo(11000l);
+        assertThat(((Feed) response.get()).getArticles()).extracting(Article::getId).containsExactly(11000l);
+
+        feed = feedResource.showFeed(10000l, Optional.empty());
+        assertThat(feed.getArticles()).extracting(Article::getId).startsWith(10207l).endsWith(10255l, 11000l).hasSize(50);
+    }
+
     @Test
     public void testPublishArticle() throws Exception {
         Article article = feedResource.publishArticle(10009l, "#DEADBEEF");
@@ -175,8 +278,309 @@ public class FeedResourceTest {
         assertThat(feed.getArticles().get(49)).isEqualTo(article);
     }
 
+    @Test
+    public void testShowFeedServedFromCache() throws Exception {
+        MetricRegistry metrics = new MetricRegistry();
+        feedResource = new FeedResource(db, mapper, new FeedPageCacheFactory(), metrics);
+        Meter hits = metrics.meter(MetricRegistry.name(FeedPageCache.class, "hits"));
+
+        Feed feed = feedResource.showFeed(10003l, Optional.empty());
+        assertThat(hits.getCount()).isZero();
+        assertThat(feedResource.showFeed(10003l, Optional.empty()).getArticles()).isEqualTo(feed.getArticles());
+        assertThat(hits.getCount()).isEqualTo(1);
+
+        // Publishing extends the cached page rather than dropping it.
+        Article article = feedResource.publishArticle(10003l, "#DEADBEEF");
+        List<Article> articles = feedResource.showFeed(10003l, Optional.empty()).getArticles();
+        assertThat(hits.getCount()).isEqualTo(2);
+        assertThat(articles).hasSize(50);
+        assertThat(articles.get(0).getId()).isEqualTo(10207);
+        assertThat(articles.get(49)).isEqualTo(article);
+
+        // Same page as a fresh read.
+        assertThat(new FeedResource(db, mapper).showFeed(10003l, Optional.empty()).getArticles()).isEqualTo(articles);
+    }
+
+    @Test
+    public void testStreamFeed() throws Exception {
+        // Latest page twice, once from RocksDB and once from the page cache.
+        for (int i = 0; i < 2; i++) {
+            Feed streamed = mapper.readValue(stream(feedResource.streamFeed(10004l, Optional.empty())), Feed.class);
+            assertThat(streamed.getId()).isEqualTo(10004l);
+            assertThat(streamed.getArticles()).isEqualTo(feedResource.showFeed(10004l, Optional.empty()).getArticles());
+        }
+
+        Feed streamed = mapper.readValue(stream(feedResource.streamFeed(10004l, Optional.of(10250l))), Feed.class);
+        assertThat(streamed.getArticles()).isEqualTo(feedResource.showFeed(10004l, Optional.of(10250l)).getArticles());
+    }
+
+    @Test
+    public void testStreamFeedWithoutArticles() throws Exception {
+        Feed feed = feedResource.creatFeed();
+
+        assertThat(new String(stream(feedResource.streamFeed(feed.getId(), Optional.empty()))))
+            .isEqualTo("{\"id\":" + feed.getId() + ",\"articles\":[]}");
+    }
+
+    @Test(expected = NotFoundException.class)
+    public void testStreamFeedNotFoundBeforeWriting() throws Exception {
+        feedResource.streamFeed(999999999l, Optional.empty());
+    }
+
     @Test(expected = NotFoundException.class)
     public void testPublishArticleFeedNotFound() throws Exception {
         feedResource.publishArticle(99999999l, "#DEADBEEF");
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testPollWaitsForPublish() throws Exception {
+        Parked response = new Parked();
+        feedResource.poll(10000l, Optional.empty(), Optional.empty(), response);
+        assertThat(response.isDone()).isFalse();
+        assertThat(response.timeout).isEqualTo(30000);
+
+        Article article = feedResource.publishArticle(10000l, "#DEADBEEF");
+
+        Feed feed = (Feed) response.get();
+        assertThat(feed.getId()).isEqualTo(10000l);
+        assertThat(feed.getArticles()).extracting(Article::getId).containsExactly(article.getId());
+        assertThat(feedResource.watchers().watching()).isZero();
+    }
+
+    @Test
+    public void testPollAnswersRightAway() throws Exception {
+        Parked response = new Parked();
+        feedResource.poll(10000l, Optional.of(10250l), Optional.empty(), response);
+
+        Feed feed = (Feed) response.get();
+        assertThat(feed.getArticles()).extracting(Article::getId)
+            .containsExactly(10250l, 10251l, 10252l, 10253l, 10254l, 10255l);
+        assertThat(feedResource.watchers().watching()).isZero();
+    }
+
+    @Test
+    public void testPollTimesOut() throws Exception {
+        Parked response = new Parked();
+        feedResource.poll(10000l, Optional.of(10256l), Optional.of(1), response);
+        assertThat(response.timeout).isEqualTo(1000);
+
+        response.expire();
+        assertThat(((Feed) response.get()).getArticles()).isEmpty();
+        assertThat(feedResource.watchers().watching()).isZero();
+
+        // Too late, nothing is waiting any more.
+        feedResource.publishArticle(10000l, "#DEADBEEF");
+        assertThat(((Feed) response.get()).getArticles()).isEmpty();
+    }
+
+    @Test(expected = NotFoundException.class)
+    public void testPollFeedNotFound() throws Exception {
+        feedResource.poll(99999999l, Optional.empty(), Optional.empty(), new Parked());
+    }
+
+    // Parked polls hold no thread, a couple of threads answer all of them.
+    @Test
+    public void testPollManyIdleWaiters() throws Exception {
+        FeedWatchersFactory factory = new FeedWatchersFactory();
+        factory.setThreads(2);
+        MetricRegistry metrics = new MetricRegistry();
+        feedResource = new FeedResource(db, mapper, new FeedPageCacheFactory(),
+            new InboxFactory().build(db, metrics), factory.build(metrics), metrics);
+
+        List<Parked> parked = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            Parked response = new Parked();
+            feedResource.poll(10000l + i % 10, Optional.empty(), Optional.empty(), response);
+            parked.add(response);
+        }
+        assertThat(feedResource.watchers().watching()).isEqualTo(10000);
+        assertThat(parked).extracting(Parked::isDone).containsOnly(false);
+
+        Map<Long, Long> published = new HashMap<>();
+        for (long feedId = 10000; feedId < 10010; feedId++) {
+            published.put(feedId, feedResource.publishArticle(feedId, "#DEADBEEF").getId());
+        }
+
+        for (int i = 0; i < parked.size(); i++) {
+            Feed feed = (Feed) parked.get(i).get();
+            assertThat(feed.getId()).isEqualTo(10000l + i % 10);
+            assertThat(feed.getArticles()).extracting(Article::getId).containsExactly(published.get(feed.getId()));
+        }
+        assertThat(feedResource.watchers().watching()).isZero();
+    }
+
+    @Test
+    public void testEvents() throws Exception {
+        feedResource = directWatchers();
+        Recorded output = new Recorded();
+
+        // Caught up from startId first.
+        feedResource.events(10000l, Optional.of(10254l), output);
+        assertThat(output.ids()).containsExactly("10254", "10255");
+
+        Article article = feedResource.publishArticle(10000l, "#DEADBEEF");
+        assertThat(output.ids()).containsExactly("10254", "10255", "10256");
+
+        OutboundEvent event = output.events.get(2);
+        assertThat(event.getName()).isEqualTo("article");
+        assertThat(mapper.readValue((String) event.getData(), Article.class)).isEqualTo(article);
+
+        feedResource.watchers().idle();
+        assertThat(output.events.get(3).getComment()).isEqualTo("heartbeat");
+    }
+
+    @Test
+    public void testEventsCatchUpAcrossPages() throws Exception {
+        feedResource = directWatchers();
+        Recorded output = new Recorded();
+
+        feedResource.events(10000l, Optional.of(10000l), output);
+        assertThat(output.ids()).hasSize(256);
+        assertThat(output.ids().get(255)).isEqualTo("10255");
+    }
+
+    @Test
+    public void testEventsStopOnceClosed() throws Exception {
+        feedResource = directWatchers();
+        Recorded output = new Recorded();
+        feedResource.events(10000l, Optional.empty(), output);
+        assertThat(output.ids()).isEmpty();
+        assertThat(feedResource.watchers().watching()).isEqualTo(1);
+
+        output.close();
+        feedResource.publishArticle(10000l, "#DEADBEEF");
+
+        assertThat(output.ids()).isEmpty();
+        assertThat(feedResource.watchers().watching()).isZero();
+    }
+
+    // Watchers run in the publishing thread.
+    private FeedResource directWatchers() {
+        MetricRegistry metrics = new MetricRegistry();
+        FeedWatchers watchers = new FeedWatchers(MoreExecutors.newDirectExecutorService(),
+            Executors.newSingleThreadScheduledExecutor(), TimeUnit.HOURS.toMillis(1), 30000, 120000, metrics);
+
+        return new FeedResource(db, mapper, new FeedPageCacheFactory(),
+            new InboxFactory().build(db, metrics), watchers, metrics);
+    }
+
+    // Enough of the container's AsyncResponse for poll.
+    private static class Parked implements AsyncResponse {
+        private final CompletableFuture<Object> answer = new CompletableFuture<>();
+        private final List<CompletionCallback> callbacks = new CopyOnWriteArrayList<>();
+        private volatile TimeoutHandler timeoutHandler;
+        private volatile long timeout;
+
+        Object get() throws Exception {
+            return answer.get(10, TimeUnit.SECONDS);
+        }
+
+        void expire() {
+            timeoutHandler.handleTimeout(this);
+        }
+
+        @Override
+        public synchronized boolean resume(Object response) {
+            if (answer.isDone()) {
+                return false;
+            }
+
+            callbacks.forEach(callback -> callback.onComplete(null));
+            return answer.complete(response);
+        }
+
+        @Override
+        public boolean resume(Throwable response) {
+            return resume((Object) response);
+        }
+
+        @Override
+        public boolean cancel() {
+            return false;
+        }
+
+        @Override
+        public boolean cancel(int retryAfter) {
+            return false;
+        }
+
+        @Override
+        public boolean cancel(Date retryAfter) {
+            return false;
+        }
+
+        @Override
+        public boolean isSuspended() {
+            return !answer.isDone();
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public boolean isDone() {
+            return answer.isDone();
+        }
+
+        @Override
+        public boolean setTimeout(long time, TimeUnit unit) {
+            timeout = unit.toMillis(time);
+            return true;
+        }
+
+        @Override
+        public void setTimeoutHandler(TimeoutHandler handler) {
+            timeoutHandler = handler;
+        }
+
+        @Override
+        public Collection<Class<?>> register(Class<?> callback) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Map<Class<?>, Collection<Class<?>>> register(Class<?> callback, Class<?>... callbacks) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Collection<Class<?>> register(Object callback) {
+            callbacks.add((CompletionCallback) callback);
+            return Collections.singletonList(CompletionCallback.class);
+        }
+
+        @Override
+        public Map<Class<?>, Collection<Class<?>>> register(Object callback, Object... callbacks) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    // Keeps what would have gone out to the client.
+    private static class Recorded extends EventOutput {
+        private final List<OutboundEvent> events = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void write(OutboundEvent event) throws IOException {
+            if (isClosed()) {
+                throw new IOException("Closed");
+            }
+            events.add(event);
+        }
+
+        List<String> ids() {
+            return events.stream()
+                .filter(event -> event.getId() != null)
+                .map(OutboundEvent::getId)
+                .collect(Collectors.toList());
+        }
+    }
+
+    private static byte[] stream(StreamingOutput output) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        output.write(out);
+
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,130 @@
+package in.zqureshi.feeds.resources;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.*;
+
+public class FeedWatchersTest {
+    private ScheduledExecutorService scheduler;
+    private MetricRegistry metrics;
+    private FeedWatchers watchers;
+
+    @Before
+    public void before() {
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        metrics = new MetricRegistry();
+        // Watchers are called in the publishing thread.
+        watchers = new FeedWatchers(MoreExecutors.newDirectExecutorService(), scheduler,
+            TimeUnit.HOURS.toMillis(1), 30000, 120000, metrics);
+    }
+
+    @After
+    public void after() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void notifiesWatchersOfTheFeed() {
+        List<Long> first = new ArrayList<>();
+        List<Long> second = new ArrayList<>();
+        List<Long> other = new ArrayList<>();
+        watchers.watch(10000, first::add);
+        watchers.watch(10000, second::add);
+        watchers.watch(10001, other::add);
+
+        watchers.published(10000, 10042);
+
+        assertThat(first).containsExactly(10042L);
+        assertThat(second).containsExactly(10042L);
+        assertThat(other).isEmpty();
+        assertThat(metrics.meter(MetricRegistry.name(FeedWatchers.class, "notified")).getCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void unwatch() {
+        List<Long> seen = new ArrayList<>();
+        FeedWatchers.Watcher watcher = seen::add;
+
+        watchers.watch(10000, watcher);
+        watchers.watch(10000, watcher);
+        assertThat(watchers.watching()).isEqualTo(1);
+
+        watchers.unwatch(10000, watcher);
+        watchers.unwatch(10000, watcher);
+        assertThat(watchers.watching()).isZero();
+
+        watchers.published(10000, 10042);
+        assertThat(seen).isEmpty();
+    }
+
+    @Test
+    public void idle() {
+        List<Long> idle = new ArrayList<>();
+        watchers.watch(10000, new FeedWatchers.Watcher() {
+            @Override
+            public void published(long articleId) {
+            }
+
+            @Override
+            public boolean heartbeats() {
+                return true;
+            }
+
+            @Override
+            public void idle() {
+                idle.add(10000L);
+            }
+        });
+        // Polls don't care.
+        watchers.watch(10001, articleId -> { });
+
+        watchers.idle();
+        assertThat(idle).containsExactly(10000L);
+    }
+
+    @Test
+    public void idlePollsTakeNoTask() throws Exception {
+        ThreadPoolExecutor executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(1);
+        watchers = new FeedWatchers(executor, scheduler, TimeUnit.HOURS.toMillis(1), 30000, 120000, metrics);
+        for (int i = 0; i < 10000; i++) {
+            watchers.watch(10000 + i % 10, articleId -> { });
+        }
+
+        watchers.idle();
+        executor.shutdown();
+        assertThat(executor.awaitTermination(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(executor.getTaskCount()).isZero();
+    }
+
+    @Test
+    public void failingWatcherDoesNotStopOthers() {
+        List<Long> seen = new ArrayList<>();
+        watchers.watch(10000, articleId -> {
+            throw new IllegalStateException("broken");
+        });
+        watchers.watch(10000, seen::add);
+
+        watchers.published(10000, 10042);
+        assertThat(seen).containsExactly(10042L);
+    }
+
+    @Test
+    public void pollTimeout() {
+        assertThat(watchers.pollTimeout(Optional.empty())).isEqualTo(30000);
+        assertThat(watchers.pollTimeout(Optional.of(5))).isEqualTo(5000);
+        assertThat(watchers.pollTimeout(Optional.of(-5))).isZero();
+        assertThat(watchers.pollTimeout(Optional.of(3600))).isEqualTo(120000);
+    }
+}
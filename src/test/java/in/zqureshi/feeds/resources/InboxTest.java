@@ -0,0 +1,249 @@
+package in.zqureshi.feeds.resources;
+
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.util.concurrent.MoreExecutors;
+import in.zqureshi.feeds.api.Article;
+import in.zqureshi.feeds.api.Timeline;
+import in.zqureshi.feeds.db.FeedsDB;
+import in.zqureshi.feeds.db.Keys;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.*;
+
+public class InboxTest {
+    private static final int CELEBRITY_THRESHOLD = 3;
+    private static final int BACKFILL = 5;
+
+    private FeedsDB db;
+    private MetricRegistry metrics;
+    private Inbox inbox;
+    private FeedResource feedResource;
+    private UserResource userResource;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void before() throws Exception {
+        db = new FeedsDB(folder.getRoot().getPath());
+        metrics = new MetricRegistry();
+        build();
+    }
+
+    @After
+    public void after() throws Exception {
+        assertThat(db.openIterators()).isZero();
+        db.stop();
+    }
+
+    @Test
+    public void fansOutToSubscribers() throws Exception {
+        long feedId = feedResource.creatFeed().getId();
+        long other = feedResource.creatFeed().getId();
+        long alice = subscribed(feedId);
+        long bob = subscribed(feedId, other);
+
+        Article article = feedResource.publishArticle(feedId, "hello");
+        Article elsewhere = feedResource.publishArticle(other, "hi");
+
+        assertThat(inbox(alice)).containsExactly(Keys.inbox(alice, article.getPublishedAt(), feedId, article.getId()));
+        assertThat(inbox(bob)).containsExactly(
+            Keys.inbox(bob, article.getPublishedAt(), feedId, article.getId()),
+            Keys.inbox(bob, elsewhere.getPublishedAt(), other, elsewhere.getId()));
+        assertThat(metrics.meter(MetricRegistry.name(Inbox.class, "fan-outs")).getCount()).isEqualTo(2);
+        assertThat(metrics.meter(MetricRegistry.name(Inbox.class, "entries")).getCount()).isEqualTo(3);
+    }
+
+    @Test
+    public void celebrityFeedsArePulled() throws Exception {
+        long feedId = feedResource.creatFeed().getId();
+        List<Long> users = new ArrayList<>();
+        for (int i = 0; i <= CELEBRITY_THRESHOLD; i++) {
+            users.add(subscribed(feedId));
+        }
+
+        assertThat(inbox.subscriberCount(feedId)).isEqualTo(CELEBRITY_THRESHOLD + 1);
+        assertThat(inbox.isPulled(feedId)).isTrue();
+
+        feedResource.publishArticle(feedId, "famous");
+        for (long userId : users) {
+            assertThat(inbox(userId)).isEmpty();
+        }
+        assertThat(metrics.meter(MetricRegistry.name(Inbox.class, "pulled")).getCount()).isEqualTo(1);
+
+        // Back under the threshold everyone left gets what fan-out skipped.
+        userResource.unsubscribe(users.get(0), feedId);
+        assertThat(inbox.isPulled(feedId)).isFalse();
+        assertThat(inbox(users.get(0))).isEmpty();
+        for (long userId : users.subList(1, users.size())) {
+            assertThat(inbox(userId)).hasSize(1);
+        }
+    }
+
+    @Test
+    public void unsubscribingEmptiesTheInbox() throws Exception {
+        long feedId = feedResource.creatFeed().getId();
+        long other = feedResource.creatFeed().getId();
+        long userId = subscribed(feedId, other);
+
+        feedResource.publishArticle(feedId, "one");
+        feedResource.publishArticle(feedId, "two");
+        Article kept = feedResource.publishArticle(other, "three");
+        assertThat(inbox(userId)).hasSize(3);
+
+        userResource.unsubscribe(userId, feedId);
+
+        assertThat(inbox(userId)).containsExactly(Keys.inbox(userId, kept.getPublishedAt(), other, kept.getId()));
+        assertThat(metrics.meter(MetricRegistry.name(Inbox.class, "purges")).getCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void becomingPulledEmptiesTheInbox() throws Exception {
+        long feedId = feedResource.creatFeed().getId();
+        List<Long> users = new ArrayList<>();
+        for (int i = 0; i < CELEBRITY_THRESHOLD; i++) {
+            users.add(subscribed(feedId));
+        }
+        feedResource.publishArticle(feedId, "not famous yet");
+        for (long userId : users) {
+            assertThat(inbox(userId)).hasSize(1);
+        }
+
+        users.add(subscribed(feedId));
+
+        assertThat(inbox.isPulled(feedId)).isTrue();
+        for (long userId : users) {
+            assertThat(inbox(userId)).isEmpty();
+        }
+    }
+
+    @Test
+    public void staleEntriesEndThePageEarly() throws Exception {
+        long feedId = feedResource.creatFeed().getId();
+        long userId = subscribed(feedId);
+        Article article = feedResource.publishArticle(feedId, "hello");
+
+        // Left behind by a feed the user isn't subscribed to any more, newer
+        // than anything they are.
+        FeedsDB.Batch batch = db.batch();
+        for (long i = 1; i <= 2500; i++) {
+            batch.put(Keys.inbox(userId, article.getPublishedAt() + 1, feedId + 1, i), new byte[0]);
+        }
+        db.write(batch);
+
+        List<Long> articleIds = new ArrayList<>();
+        int pages = 0;
+        Optional<String> cursor = Optional.empty();
+        do {
+            Timeline page = userResource.timeline(userId, cursor, Optional.of(10));
+            page.getArticles().forEach(a -> articleIds.add(a.getId()));
+            cursor = Optional.ofNullable(page.getCursor());
+            pages++;
+        } while (cursor.isPresent());
+
+        assertThat(articleIds).containsExactly(article.getId());
+        assertThat(pages).isEqualTo(3);
+    }
+
+    @Test
+    public void subscribingBackfills() throws Exception {
+        long feedId = feedResource.creatFeed().getId();
+        List<Article> articles = new ArrayList<>();
+        for (int i = 0; i < 2 * BACKFILL; i++) {
+            articles.add(feedResource.publishArticle(feedId, "article " + i));
+        }
+
+        long userId = subscribed(feedId);
+
+        List<byte[]> expected = new ArrayList<>();
+        for (Article article : articles.subList(BACKFILL, articles.size())) {
+            expected.add(Keys.inbox(userId, article.getPublishedAt(), feedId, article.getId()));
+        }
+        assertThat(inbox(userId)).containsExactlyElementsOf(expected);
+    }
+
+    @Test
+    public void subscriberCountsSurviveRestart() throws Exception {
+        long feedId = feedResource.creatFeed().getId();
+        subscribed(feedId);
+        long bob = subscribed(feedId);
+        userResource.unsubscribe(bob, feedId);
+
+        db.stop();
+        db = new FeedsDB(folder.getRoot().getPath());
+        build();
+
+        assertThat(inbox.subscriberCount(feedId)).isEqualTo(1);
+    }
+
+    @Test
+    public void rebuild() throws Exception {
+        long feedId = feedResource.creatFeed().getId();
+        Article article = feedResource.publishArticle(feedId, "before the inbox");
+
+        // Subscribed while the inbox was off.
+        FeedResource withoutInbox = new FeedResource(db, new ObjectMapper());
+        long userId = new UserResource(db, withoutInbox, new ObjectMapper()).createUser().getId();
+        new UserResource(db, withoutInbox, new ObjectMapper()).subscribe(userId, feedId);
+        assertThat(inbox(userId)).isEmpty();
+
+        build();
+        inbox.rebuild();
+
+        assertThat(inbox(userId)).containsExactly(Keys.inbox(userId, article.getPublishedAt(), feedId, article.getId()));
+    }
+
+    @Test
+    public void disabled() throws Exception {
+        inbox = new InboxFactory().build(db, metrics);
+        feedResource = new FeedResource(db, new ObjectMapper(), new FeedPageCacheFactory(), inbox, metrics);
+        userResource = new UserResource(db, feedResource, new ObjectMapper());
+
+        long feedId = feedResource.creatFeed().getId();
+        long userId = subscribed(feedId);
+        feedResource.publishArticle(feedId, "hello");
+
+        assertThat(inbox.isEnabled()).isFalse();
+        assertThat(inbox(userId)).isEmpty();
+        // The subscriber index is kept either way.
+        assertThat(db.get(Keys.subscriber(feedId, userId))).isNotNull();
+    }
+
+    // Fan-out runs in the publishing thread so everything is written by the
+    // time publish returns.
+    private void build() {
+        inbox = new Inbox(db, true, MoreExecutors.newDirectExecutorService(), CELEBRITY_THRESHOLD, BACKFILL, metrics);
+        feedResource = new FeedResource(db, new ObjectMapper(), new FeedPageCacheFactory(), inbox, metrics);
+        userResource = new UserResource(db, feedResource, new ObjectMapper());
+    }
+
+    private long subscribed(long... feedIds) throws Exception {
+        long userId = userResource.createUser().getId();
+        for (long feedId : feedIds) {
+            userResource.subscribe(userId, feedId);
+        }
+
+        return userId;
+    }
+
+    private List<byte[]> inbox(long userId) {
+        List<byte[]> keys = new ArrayList<>();
+        try (FeedsDB.PrefixIterator it = db.scan(Keys.inbox(userId))) {
+            while (it.hasNext()) {
+                keys.add(it.nextKey());
+                it.next();
+            }
+        }
+
+        return keys;
+    }
+}
@@ -0,0 +1,266 @@
+package in.zqureshi.feeds.resources;
+
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import in.zqureshi.feeds.api.Article;
+import in.zqureshi.feeds.api.Feed;
+import in.zqureshi.feeds.api.User;
+import in.zqureshi.feeds.cli.PopulateCommand;
+import in.zqureshi.feeds.db.FeedsDB;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+import java.io.IOException;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.*;
+
+public class ReplicatorTest {
+    private static final int PAGE_SIZE = 100;
+
+    private FeedsDB primaryDB;
+    private FeedResource primaryFeeds;
+    private UserResource primaryUsers;
+    private ChangeResource changes;
+
+    private FeedsDB replicaDB;
+    private FeedResource replicaFeeds;
+    private UserResource replicaUsers;
+    private ScheduledExecutorService scheduler;
+    private MetricRegistry metrics;
+    private Replicator replicator;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void before() throws Exception {
+        ObjectMapper mapper = new ObjectMapper();
+        primaryDB = new FeedsDB(folder.newFolder("primary").getPath());
+        primaryFeeds = new FeedResource(primaryDB, mapper);
+        primaryUsers = new UserResource(primaryDB, primaryFeeds, mapper);
+        changes = new ChangeResource(primaryDB);
+
+        replicaDB = new FeedsDB(folder.newFolder("replica").getPath());
+        replicaFeeds = new FeedResource(replicaDB, mapper);
+        replicaUsers = new UserResource(replicaDB, replicaFeeds, mapper);
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        replicator = replicator(changes::log);
+
+        PopulateCommand.populateFeeds(primaryFeeds);
+        PopulateCommand.populateUsers(primaryUsers);
+    }
+
+    @After
+    public void after() throws Exception {
+        replicator.stop();
+        changes.stop();
+        replicaDB.stop();
+        primaryDB.stop();
+    }
+
+    @Test
+    public void replicatesEverything() throws Exception {
+        assertThat(replicaFeeds.listFeeds()).isEmpty();
+
+        replicator.poll();
+        assertThat(replicator.lag()).isZero();
+        assertThat(replicator.next()).isEqualTo(primaryDB.latestSequence() + 1);
+        assertSameAsPrimary();
+
+        // And whatever comes after.
+        primaryFeeds.publishArticle(10000L, "#DEADBEEF");
+        primaryUsers.unsubscribe(primaryUsers.listUsers().get(0).getId(), 10000L);
+        replicator.poll();
+        assertSameAsPrimary();
+        assertThat(replicaFeeds.showFeed(10000L, Optional.empty()).getArticles())
+            .extracting(Article::getText).endsWith("#DEADBEEF");
+    }
+
+    @Test
+    public void carriesOnAfterRestart() throws Exception {
+        // A few pages in, then restarted.
+        replicator.replicate();
+        replicator.replicate();
+        long next = replicator.next();
+        replicator.stop();
+        replicaDB.stop();
+
+        replicaDB = new FeedsDB(folder.getRoot().toPath().resolve("replica").toString());
+        replicaFeeds = new FeedResource(replicaDB, new ObjectMapper());
+        replicaUsers = new UserResource(replicaDB, replicaFeeds, new ObjectMapper());
+        replicator = replicator(changes::log);
+        assertThat(replicator.next()).isEqualTo(next);
+
+        // Subscriber counts are merged in, applying anything twice would
+        // show up in them.
+        replicator.poll();
+        assertSameAsPrimary();
+    }
+
+    @Test
+    public void notifiesWatchers() throws Exception {
+        replicator.poll();
+
+        List<Long> published = new ArrayList<>();
+        replicaFeeds.watchers().watch(10000L, published::add);
+
+        long articleId = primaryFeeds.publishArticle(10000L, "#DEADBEEF").getId();
+        assertThat(published).isEmpty();
+
+        replicator.poll();
+        // Watchers run on their own pool.
+        for (int i = 0; i < 100 && published.isEmpty(); i++) {
+            Thread.sleep(10);
+        }
+        assertThat(published).containsExactly(articleId);
+    }
+
+    @Test
+    public void keepsInboxCountsUpToDate() throws Exception {
+        // A replica with the inbox on, started before there's anything to
+        // count, where feed 10000 becomes pulled once it has one more
+        // subscriber.
+        long feedId = 10000L;
+        int threshold = (int) primaryFeeds.subscriberCount(feedId);
+        InboxFactory inboxFactory = new InboxFactory();
+        inboxFactory.setEnabled(true);
+        inboxFactory.setCelebrityThreshold(threshold);
+
+        replicator.stop();
+        Inbox inbox = inboxFactory.build(replicaDB, new MetricRegistry());
+        replicaFeeds = new FeedResource(replicaDB, new ObjectMapper(), new FeedPageCacheFactory(), inbox, new MetricRegistry());
+        replicator = replicator(changes::log);
+
+        replicator.poll();
+        assertThat(inbox.subscriberCount(feedId)).isEqualTo(threshold);
+        assertThat(inbox.isPulled(feedId)).isFalse();
+
+        long userId = primaryUsers.createUser().getId();
+        primaryUsers.subscribe(userId, feedId);
+        replicator.poll();
+        assertThat(inbox.subscriberCount(feedId)).isEqualTo(threshold + 1);
+        assertThat(inbox.isPulled(feedId)).isTrue();
+
+        primaryUsers.unsubscribe(userId, feedId);
+        replicator.poll();
+        assertThat(inbox.isPulled(feedId)).isFalse();
+    }
+
+    @Test
+    public void lag() throws Exception {
+        TestClock clock = new TestClock();
+        replicator.setClock(clock);
+
+        // Behind from the first page on.
+        replicator.replicate();
+        assertThat(replicator.lag()).isEqualTo(primaryDB.latestSequence() - (replicator.next() - 1));
+        assertThat(replicator.lag()).isPositive();
+
+        clock.millis += 250;
+        assertThat(replicator.lagMillis()).isEqualTo(250);
+        assertThat(metrics.getGauges().get(MetricRegistry.name(Replicator.class, "lag")).getValue())
+            .isEqualTo(replicator.lag());
+
+        replicator.poll();
+        assertThat(replicator.lag()).isZero();
+        assertThat(replicator.lagMillis()).isZero();
+    }
+
+    @Test
+    public void keepsTryingAfterFailures() throws Exception {
+        replicator.stop();
+        boolean[] down = {true};
+        replicator = replicator((since, limit) -> {
+            if (down[0]) {
+                throw new IOException("Connection refused");
+            }
+            return changes.log(since, limit);
+        });
+
+        replicator.poll();
+        assertThat(replicator.next()).isEqualTo(1);
+        assertThat(metrics.meter(MetricRegistry.name(Replicator.class, "failures")).getCount()).isEqualTo(1);
+
+        down[0] = false;
+        replicator.poll();
+        assertSameAsPrimary();
+    }
+
+    @Test
+    public void readOnly() {
+        assertThatThrownBy(() -> new ReadOnlyFilter().filter(null))
+            .isInstanceOfSatisfying(WebApplicationException.class, e ->
+                assertThat(e.getResponse().getStatus()).isEqualTo(405));
+    }
+
+    private void assertSameAsPrimary() throws Exception {
+        assertThat(replicaFeeds.listFeeds()).extracting(Feed::getId)
+            .isEqualTo(primaryFeeds.listFeeds().stream().map(Feed::getId).collect(Collectors.toList()));
+
+        for (Feed feed : primaryFeeds.listFeeds()) {
+            // Latest page, read from the counter.
+            assertThat(replicaFeeds.showFeed(feed.getId(), Optional.empty()).getArticles())
+                .isEqualTo(primaryFeeds.showFeed(feed.getId(), Optional.empty()).getArticles());
+            assertThat(replicaFeeds.showFeed(feed.getId(), Optional.of(10100L)).getArticles())
+                .isEqualTo(primaryFeeds.showFeed(feed.getId(), Optional.of(10100L)).getArticles());
+            assertThat(replicaFeeds.subscriberCount(feed.getId())).isEqualTo(primaryFeeds.subscriberCount(feed.getId()));
+        }
+
+        List<User> users = primaryUsers.listUsers();
+        assertThat(replicaUsers.listUsers()).hasSameSizeAs(users);
+        for (User user : users) {
+            assertThat(replicaUsers.getUser(user.getId()).getFeeds()).isEqualTo(user.getFeeds());
+        }
+    }
+
+    private Replicator replicator(Log log) {
+        metrics = new MetricRegistry();
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+
+        return new Replicator(replicaDB, replicaFeeds, (since, limit) -> {
+            Response response = log.read(since, Optional.of(limit));
+            return new Replicator.Page((byte[]) response.getEntity(),
+                Long.parseLong(response.getHeaderString(ChangeResource.NEXT_HEADER)),
+                Long.parseLong(response.getHeaderString(ChangeResource.LATEST_HEADER)));
+        }, scheduler, 10, PAGE_SIZE, metrics);
+    }
+
+    private static class TestClock extends Clock {
+        long millis = 1000000;
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return Instant.ofEpochMilli(millis);
+        }
+    }
+
+    @FunctionalInterface
+    private interface Log {
+        Response read(Long since, Optional<Integer> limit) throws IOException;
+    }
+}
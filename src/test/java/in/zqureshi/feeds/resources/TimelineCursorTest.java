@@ -0,0 +1,83 @@
+package in.zqureshi.feeds.resources;
+
+import org.junit.Test;
+
+import javax.ws.rs.BadRequestException;
+import java.util.Base64;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.*;
+
+public class TimelineCursorTest {
+    @Test
+    public void roundTrip() {
+        TimelineCursor.Entry last = new TimelineCursor.Entry(1499999999999L, 10001L, 10042L);
+        String encoded = new TimelineCursor(1500000000000L, Optional.of(last)).encode();
+        assertThat(encoded).matches("[A-Za-z0-9_-]+");
+
+        TimelineCursor decoded = TimelineCursor.decode(encoded);
+        assertThat(decoded.asOf()).isEqualTo(1500000000000L);
+        assertThat(decoded.last()).isPresent();
+        assertThat(decoded.last().get().publishedAt()).isEqualTo(1499999999999L);
+        assertThat(decoded.last().get().feedId()).isEqualTo(10001L);
+        assertThat(decoded.last().get().articleId()).isEqualTo(10042L);
+
+        decoded = TimelineCursor.decode(TimelineCursor.start(42L).encode());
+        assertThat(decoded.asOf()).isEqualTo(42L);
+        assertThat(decoded.last()).isEmpty();
+    }
+
+    @Test
+    public void readsVersionOne() {
+        // 1 {asOf 300} {1 position} {10000 -> 10001}
+        byte[] v1 = {0x01, (byte) 0xAC, 0x02, 0x01, (byte) 0x90, 0x4E, (byte) 0x91, 0x4E};
+        TimelineCursor cursor = TimelineCursor.decode(Base64.getUrlEncoder().withoutPadding().encodeToString(v1));
+
+        assertThat(cursor.asOf()).isEqualTo(300L);
+        assertThat(cursor.last()).isEmpty();
+    }
+
+    @Test
+    public void readsVersionTwo() {
+        // 2 {asOf 300} {1 position} {10000 -> 10001} {last 200, 10000, 10001}
+        byte[] v2 = {0x02, (byte) 0xAC, 0x02, 0x01, (byte) 0x90, 0x4E, (byte) 0x91, 0x4E,
+            0x01, (byte) 0xC8, 0x01, (byte) 0x90, 0x4E, (byte) 0x91, 0x4E};
+        TimelineCursor cursor = TimelineCursor.decode(Base64.getUrlEncoder().withoutPadding().encodeToString(v2));
+
+        assertThat(cursor.asOf()).isEqualTo(300L);
+        assertThat(cursor.last().get().publishedAt()).isEqualTo(200L);
+        assertThat(cursor.last().get().feedId()).isEqualTo(10000L);
+        assertThat(cursor.last().get().articleId()).isEqualTo(10001L);
+    }
+
+    @Test
+    public void includes() {
+        TimelineCursor cursor = new TimelineCursor(2000L, Optional.of(new TimelineCursor.Entry(1500L, 10001L, 10042L)));
+
+        // Published after the first page.
+        assertThat(cursor.includes(2001L, 10000L, 10000L)).isFalse();
+        // Already returned, or newer than what was.
+        assertThat(cursor.includes(1500L, 10001L, 10042L)).isFalse();
+        assertThat(cursor.includes(1500L, 10001L, 10043L)).isFalse();
+        assertThat(cursor.includes(1500L, 10002L, 10000L)).isFalse();
+        assertThat(cursor.includes(1600L, 10000L, 10000L)).isFalse();
+
+        assertThat(cursor.includes(1500L, 10001L, 10041L)).isTrue();
+        assertThat(cursor.includes(1500L, 10000L, 10099L)).isTrue();
+        assertThat(cursor.includes(1499L, 10009L, 10099L)).isTrue();
+        assertThat(TimelineCursor.start(2000L).includes(2000L, 10000L, 10000L)).isTrue();
+    }
+
+    @Test
+    public void rejectsGarbage() {
+        assertThatThrownBy(() -> TimelineCursor.decode("not a cursor")).isInstanceOf(BadRequestException.class);
+        assertThatThrownBy(() -> TimelineCursor.decode("")).isInstanceOf(BadRequestException.class);
+        assertThatThrownBy(() -> TimelineCursor.decode("AwE")).isInstanceOf(BadRequestException.class);
+
+        // Cut short.
+        String encoded = new TimelineCursor(1500000000000L,
+            Optional.of(new TimelineCursor.Entry(1499999999999L, 10001L, 10042L))).encode();
+        assertThatThrownBy(() -> TimelineCursor.decode(encoded.substring(0, encoded.length() - 3)))
+            .isInstanceOf(BadRequestException.class);
+    }
+}
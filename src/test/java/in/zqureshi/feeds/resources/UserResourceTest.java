@@ -1,14 +1,24 @@
 package in.zqureshi.feeds.resources;
 
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.MoreExecutors;
 import in.zqureshi.feeds.api.Article;
 import in.zqureshi.feeds.api.Feed;
+import in.zqureshi.feeds.api.Subscribers;
+import in.zqureshi.feeds.api.Timeline;
+import in.zqureshi.feeds.api.TimelineArticle;
 import in.zqureshi.feeds.api.User;
+import in.zqureshi.feeds.api.UserList;
 import in.zqureshi.feeds.cli.PopulateCommand;
 import in.zqureshi.feeds.db.FeedsDB;
+import in.zqureshi.feeds.db.Keys;
+import in.zqureshi.feeds.db.Records;
 import org.assertj.core.api.AssertDelegateTarget;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -16,10 +26,24 @@ import org.junit.rules.TemporaryFolder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.ws.rs.BadRequestException;
 import javax.ws.rs.NotFoundException;
-import java.lang.reflect.Method;
-import java.lang.reflect.Modifier;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.ByteArrayOutputStream;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
 
 import static org.assertj.core.api.Assertions.*;
 
@@ -45,15 +69,24 @@ public class UserResourceTest {
         PopulateCommand.populateUsers(userResource);
     }
 
+    @After
+    public void after() throws Exception {
+        // Every resource call has to give back the iterators it opened.
+        assertThat(db.openIterators()).isZero();
+        db.stop();
+    }
+
     @Test
     public void initiallyEmpty() throws Exception {
         TemporaryFolder anotherFolder = new TemporaryFolder();
         anotherFolder.create();
 
-        db = new FeedsDB(anotherFolder.getRoot().getPath());
-        userResource = new UserResource(db, new FeedResource(db, mapper), mapper);
+        FeedsDB emptyDB = new FeedsDB(anotherFolder.getRoot().getPath());
+        userResource = new UserResource(emptyDB, new FeedResource(emptyDB, mapper), mapper);
 
         assertThat(userResource.listUsers()).isEmpty();
+        assertThat(emptyDB.openIterators()).isZero();
+        emptyDB.stop();
     }
 
     @Test
@@ -61,20 +94,27 @@ public class UserResourceTest {
         // Validate global users counter
         assertThat(db.getCounter("/users")).isEqualTo(10010);
 
-        // Validate record for each user
-        FeedsDB.PrefixIterator it = db.scan("/users/");
+        // Validate record for each user, subscriptions are kept apart
+        FeedsDB.PrefixIterator it = db.scan(Keys.namespace(Keys.USERS));
         for (int i = 10000; i < 10010; i++) {
-            User user = mapper.readValue(it.next(), User.class);
+            User user = Records.decodeUser(it.next());
             assertThat(user.getId()).isEqualTo(i);
-            assertThat(user.getFeeds()).hasSize(5);
+            assertThat(user.getFeeds()).isEmpty();
+        }
+        assertThat(it.hasNext()).isFalse();
 
-            assertThat(user.getFeeds().keySet())
-                .isEqualTo(Sets.newHashSet(10000l, 10001l, 10002l, 10003l, 10004l));
-            for (Map.Entry<Long, Long> entry : user.getFeeds().entrySet()) {
-                assertThat(entry.getValue()).isEqualTo(10255);
+        // Validate subscription records for each user
+        for (int i = 10000; i < 10010; i++) {
+            Set<Long> feeds = new HashSet<>();
+            try (FeedsDB.PrefixIterator subscriptions = db.scan(Keys.subscriptions(i))) {
+                while (subscriptions.hasNext()) {
+                    feeds.add(Keys.id(subscriptions.nextKey(), 1));
+                    assertThat(Records.decodeSubscription(subscriptions.next())).isEqualTo(10255);
+                }
             }
+
+            assertThat(feeds).isEqualTo(Sets.newHashSet(10000l, 10001l, 10002l, 10003l, 10004l));
         }
-        assertThat(it.hasNext()).isFalse();
     }
 
     @Test
@@ -111,6 +151,49 @@ public class UserResourceTest {
         assertThat(users.get(10)).isEqualTo(user);
     }
 
+    @Test
+    public void listUsersInPages() throws Exception {
+        userResource.subscribe(10004L, 10009L);
+
+        UserList page = userResource.listUsers(Optional.empty(), Optional.of(3));
+        assertThat(page.getUsers()).extracting(User::getId).containsExactly(10000L, 10001L, 10002L);
+        assertThat(page.getNext()).isEqualTo(10002L);
+
+        page = userResource.listUsers(Optional.of(page.getNext()), Optional.of(3));
+        assertThat(page.getUsers()).extracting(User::getId).containsExactly(10003L, 10004L, 10005L);
+        // Subscriptions of just the users on the page.
+        assertThat(page.getUsers().get(0).getFeeds()).containsOnlyKeys(10000L, 10001L, 10002L, 10003L, 10004L);
+        assertThat(page.getUsers().get(1).getFeeds()).containsOnlyKeys(10000L, 10001L, 10002L, 10003L, 10004L, 10009L);
+
+        page = userResource.listUsers(Optional.of(10005L), Optional.empty());
+        assertThat(page.getUsers()).extracting(User::getId).containsExactly(10006L, 10007L, 10008L, 10009L);
+        assertThat(page.getNext()).isNull();
+
+        // Same users as the full listing.
+        List<User> all = new ArrayList<>();
+        Long after = null;
+        do {
+            page = userResource.listUsers(Optional.ofNullable(after), Optional.of(4));
+            all.addAll(page.getUsers());
+            after = page.getNext();
+        } while (after != null);
+        assertThat(all).isEqualTo(userResource.listUsers());
+    }
+
+    @Test
+    public void streamUsers() throws Exception {
+        userResource.unsubscribe(10008L, 10000L);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        userResource.streamUsers(Optional.of(10007L)).write(out);
+        String[] lines = new String(out.toByteArray()).split("\n");
+
+        assertThat(lines).hasSize(2);
+        assertThat(mapper.readValue(lines[0], User.class)).isEqualTo(userResource.getUser(10008L));
+        assertThat(mapper.readValue(lines[0], User.class).getFeeds()).hasSize(4);
+        assertThat(mapper.readValue(lines[1], User.class)).isEqualTo(userResource.getUser(10009L));
+    }
+
     @Test
     public void testGetUser() throws Exception {
         User user = userResource.getUser(10005l);
@@ -268,11 +351,327 @@ public class UserResourceTest {
         }
     }
 
+    @Test
+    public void testStreamFeeds() throws Exception {
+        Map<Long, Long> startIds = ImmutableMap.of(10000l, 10200l, 10003l, 10250l);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        stream(userResource.streamFeeds(10005l, startIds)).write(out);
+        List<Feed> streamed = mapper.readValue(out.toByteArray(), new TypeReference<List<Feed>>() {});
+
+        List<Feed> feeds = userResource.consumeFeeds(10005l, startIds);
+        assertThat(streamed).hasSize(feeds.size());
+        for (int i = 0; i < feeds.size(); i++) {
+            assertThat(streamed.get(i).getId()).isEqualTo(feeds.get(i).getId());
+            assertThat(streamed.get(i).getArticles()).isEqualTo(feeds.get(i).getArticles());
+        }
+    }
+
+    @Test
+    public void testConsumeFeedsConcurrently() throws Exception {
+        FeedFanOutFactory fanOut = new FeedFanOutFactory();
+        fanOut.setThreads(4);
+        fanOut.setMaxConcurrencyPerRequest(2);
+        UserResource concurrent = new UserResource(db, feedResource, mapper, fanOut.build(new MetricRegistry()));
+
+        Map<Long, Long> startIds = ImmutableMap.of(10001l, 10100l, 10007l, 10200l);
+        List<Feed> feeds = concurrent.consumeFeeds(10005l, startIds);
+        List<Feed> serial = userResource.consumeFeeds(10005l, startIds);
+        assertThat(feeds).hasSize(serial.size());
+        for (int i = 0; i < feeds.size(); i++) {
+            assertThat(feeds.get(i).getId()).isEqualTo(serial.get(i).getId());
+            assertThat(feeds.get(i).getArticles()).isEqualTo(serial.get(i).getArticles());
+        }
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        stream(userResource.streamFeeds(10005l, startIds)).write(expected);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        stream(concurrent.streamFeeds(10005l, startIds)).write(out);
+        assertThat(out.toString()).isEqualTo(expected.toString());
+    }
+
+    @Test
+    public void testStreamFeedsTimedOut() throws Exception {
+        Map<Long, Long> startIds = ImmutableMap.of(10000l, 10200l);
+        assertThat(userResource.streamFeeds(10005l, startIds).getHeaderString(UserResource.TIMED_OUT_HEADER)).isNull();
+
+        // Nothing is ever read in time.
+        FeedFanOut stalled = new FeedFanOut(MoreExecutors.newDirectExecutorService(), 1, 0, new MetricRegistry()) {
+            @Override
+            public <T> Results<T> readBatched(Map<Long, Long> startIds,
+                                              Function<Map<Long, Long>, Callable<List<T>>> batchReader) {
+                return new Results<>(Collections.emptyList(), new ArrayList<>(startIds.keySet()));
+            }
+        };
+        Response response = new UserResource(db, feedResource, mapper, stalled).streamFeeds(10005l, startIds);
+        assertThat(response.getHeaderString(UserResource.TIMED_OUT_HEADER))
+            .isEqualTo("10000,10001,10002,10003,10004");
+    }
+
+    @Test(expected = NotFoundException.class)
+    public void testStreamFeedsFeedDoesNotExist() throws Exception {
+        userResource.streamFeeds(10005l, ImmutableMap.of(99999l, 10000l));
+    }
+
     @Test(expected = NotFoundException.class)
     public void testConsumeFeedsFeedDoesNotExist() throws Exception {
         userResource.consumeFeeds(10005l, ImmutableMap.of(99999l, 10000l));
     }
 
+    @Test
+    public void testSubscriberIndex() throws Exception {
+        long feedId = feedResource.creatFeed().getId();
+        long userId = userResource.createUser().getId();
+
+        userResource.subscribe(userId, feedId);
+        userResource.subscribe(userId, feedId);
+        assertThat(db.get(Keys.subscriber(feedId, userId))).isNotNull();
+        assertThat(feedResource.subscriberCount(feedId)).isEqualTo(1);
+
+        userResource.unsubscribe(userId, feedId);
+        userResource.unsubscribe(userId, feedId);
+        assertThat(db.get(Keys.subscriber(feedId, userId))).isNull();
+        assertThat(feedResource.subscriberCount(feedId)).isZero();
+        assertThat(feedResource.listSubscribers(feedId, Optional.empty(), Optional.empty()).getUsers()).isEmpty();
+    }
+
+    @Test
+    public void testSubscriptionRecords() throws Exception {
+        byte[] record = db.get(Keys.user(10005l));
+
+        userResource.subscribe(10005l, 10006l);
+        assertThat(Records.decodeSubscription(db.get(Keys.subscription(10005l, 10006l)))).isEqualTo(10255l);
+
+        userResource.unsubscribe(10005l, 10000l);
+        assertThat(db.get(Keys.subscription(10005l, 10000l))).isNull();
+
+        // Changes never touch the user record itself.
+        assertThat(db.get(Keys.user(10005l))).isEqualTo(record);
+        assertThat(userResource.getUser(10005l).getFeeds())
+            .containsOnlyKeys(10001l, 10002l, 10003l, 10004l, 10006l);
+    }
+
+    @Test
+    public void testListSubscribers() throws Exception {
+        // Every populated user follows feeds 10000 to 10004.
+        List<Long> users = new ArrayList<>();
+        Optional<Long> after = Optional.empty();
+        do {
+            Subscribers page = feedResource.listSubscribers(10000L, after, Optional.of(3));
+            assertThat(page.getCount()).isEqualTo(10);
+            assertThat(page.getUsers().size()).isLessThanOrEqualTo(3);
+
+            users.addAll(page.getUsers());
+            after = Optional.ofNullable(page.getNext());
+        } while (after.isPresent());
+
+        assertThat(users).containsExactly(10000L, 10001L, 10002L, 10003L, 10004L,
+            10005L, 10006L, 10007L, 10008L, 10009L);
+
+        assertThat(feedResource.listSubscribers(10000L, Optional.of(10007L), Optional.empty()).getUsers())
+            .containsExactly(10008L, 10009L);
+        assertThat(feedResource.listSubscribers(10000L, Optional.of(Long.MAX_VALUE), Optional.empty()).getUsers()).isEmpty();
+        assertThat(feedResource.listSubscribers(10009L, Optional.empty(), Optional.empty()).getCount()).isZero();
+    }
+
+    @Test(expected = NotFoundException.class)
+    public void testListSubscribersFeedNotFound() throws Exception {
+        feedResource.listSubscribers(99999L, Optional.empty(), Optional.empty());
+    }
+
+    @Test
+    public void testTimeline() throws Exception {
+        long[] feeds = new long[3];
+        for (int i = 0; i < feeds.length; i++) {
+            feeds[i] = feedResource.creatFeed().getId();
+        }
+
+        // Uneven interleaving, plus a couple published in the same milli.
+        List<TimelineArticle> expected = new ArrayList<>();
+        for (int t = 0; t < 40; t++) {
+            long feedId = feeds[t % 5 == 0 ? 0 : t % 2 + 1];
+            expected.add(publishAt(feedId, 1000 + t));
+
+            if (t % 10 == 3) {
+                expected.add(publishAt(feeds[0], 1000 + t));
+                expected.add(publishAt(feeds[2], 1000 + t));
+            }
+        }
+        expected.sort(Comparator.comparing(TimelineArticle::getPublishedAt)
+            .thenComparing(TimelineArticle::getFeedId)
+            .thenComparing(TimelineArticle::getId)
+            .reversed());
+
+        long userId = userResource.createUser().getId();
+        for (long feedId : feeds) {
+            userResource.subscribe(userId, feedId);
+        }
+
+        feedResource.setClock(Clock.fixed(Instant.ofEpochMilli(2000), ZoneOffset.UTC));
+        List<TimelineArticle> seen = new ArrayList<>();
+        Optional<String> cursor = Optional.empty();
+        do {
+            Timeline page = userResource.timeline(userId, cursor, Optional.of(7));
+            assertThat(page.getArticles().size()).isLessThanOrEqualTo(7);
+            seen.addAll(page.getArticles());
+            cursor = Optional.ofNullable(page.getCursor());
+
+            // Newer than the first page, has to wait for a fresh timeline.
+            publishAt(feeds[0], 3000 + seen.size());
+        } while (cursor.isPresent());
+
+        assertThat(positions(seen)).isEqualTo(positions(expected));
+
+        feedResource.setClock(Clock.fixed(Instant.ofEpochMilli(5000), ZoneOffset.UTC));
+        Timeline latest = userResource.timeline(userId, Optional.empty(), Optional.empty());
+        assertThat(latest.getArticles()).hasSize(50);
+        assertThat(latest.getArticles().get(0).getFeedId()).isEqualTo(feeds[0]);
+        assertThat(latest.getArticles().get(0).getPublishedAt()).isGreaterThan(3000L);
+
+        assertThat(userResource.timeline(userId, Optional.empty(), Optional.of(0)).getArticles()).hasSize(1);
+    }
+
+    @Test
+    public void testTimelineFromInbox() throws Exception {
+        // Fan-out in the publishing thread, feeds with 2 subscribers pulled.
+        Inbox inbox = new Inbox(db, true, MoreExecutors.newDirectExecutorService(), 1, 200, new MetricRegistry());
+        feedResource = new FeedResource(db, mapper, new FeedPageCacheFactory(), inbox, new MetricRegistry());
+        userResource = new UserResource(db, feedResource, mapper);
+
+        long[] feeds = new long[3];
+        for (int i = 0; i < feeds.length; i++) {
+            feeds[i] = feedResource.creatFeed().getId();
+        }
+        long userId = userResource.createUser().getId();
+        for (long feedId : feeds) {
+            userResource.subscribe(userId, feedId);
+        }
+        userResource.subscribe(userResource.createUser().getId(), feeds[0]);
+        assertThat(inbox.isPulled(feeds[0])).isTrue();
+
+        for (int t = 0; t < 30; t++) {
+            publishAt(feeds[t % 3 == 0 ? 0 : t % 2 + 1], 1000 + t / 2);
+        }
+
+        feedResource.setClock(Clock.fixed(Instant.ofEpochMilli(2000), ZoneOffset.UTC));
+        assertThat(positions(timeline(userId))).isEqualTo(positions(
+            feedResource.timeline(Arrays.asList(feeds[0], feeds[1], feeds[2]), Optional.empty(), 100).getArticles()));
+        assertThat(timeline(userId)).hasSize(30);
+
+        // Inbox entries of feeds unsubscribed since are skipped.
+        userResource.unsubscribe(userId, feeds[2]);
+        assertThat(positions(timeline(userId))).isEqualTo(positions(
+            feedResource.timeline(Arrays.asList(feeds[0], feeds[1]), Optional.empty(), 100).getArticles()));
+    }
+
+    @Test
+    public void testTimelineConcurrentPublishes() throws Exception {
+        long[] feeds = {feedResource.creatFeed().getId(), feedResource.creatFeed().getId()};
+        long userId = userResource.createUser().getId();
+        for (long feedId : feeds) {
+            userResource.subscribe(userId, feedId);
+        }
+
+        // Every read of the clock is a millisecond earlier than the last, so
+        // an article stamped before its id was handed out would come out of
+        // order.
+        feedResource.setClock(new BackwardsClock(100000));
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<?>> publishes = new ArrayList<>();
+        for (int i = 0; i < 400; i++) {
+            long feedId = feeds[i % 2];
+            publishes.add(executor.submit(() -> feedResource.publishArticle(feedId, "racing")));
+        }
+        for (Future<?> publish : publishes) {
+            publish.get(10, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+
+        for (long feedId : feeds) {
+            List<Article> articles = new ArrayList<>();
+            db.scan(Keys.articles(feedId), value -> articles.add(Records.decodeArticle(value)));
+            assertThat(articles).hasSize(200);
+            assertThat(articles).extracting(Article::getPublishedAt).isSorted();
+        }
+
+        feedResource.setClock(Clock.fixed(Instant.ofEpochMilli(200000), ZoneOffset.UTC));
+        List<TimelineArticle> seen = timeline(userId);
+        assertThat(seen).hasSize(400);
+        assertThat(new HashSet<>(positions(seen))).hasSize(400);
+    }
+
+    @Test
+    public void testTimelineWithoutSubscriptions() throws Exception {
+        Timeline timeline = userResource.timeline(userResource.createUser().getId(), Optional.empty(), Optional.empty());
+
+        assertThat(timeline.getArticles()).isEmpty();
+        assertThat(timeline.getCursor()).isNull();
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void testTimelineBadCursor() throws Exception {
+        userResource.timeline(10000L, Optional.of("garbage"), Optional.empty());
+    }
+
+    @Test(expected = NotFoundException.class)
+    public void testTimelineUserNotFound() throws Exception {
+        userResource.timeline(99999L, Optional.empty(), Optional.empty());
+    }
+
+    // Every page of a user's timeline, 4 at a time.
+    private List<TimelineArticle> timeline(long userId) throws Exception {
+        List<TimelineArticle> articles = new ArrayList<>();
+        Optional<String> cursor = Optional.empty();
+        do {
+            Timeline page = userResource.timeline(userId, cursor, Optional.of(4));
+            articles.addAll(page.getArticles());
+            cursor = Optional.ofNullable(page.getCursor());
+        } while (cursor.isPresent());
+
+        return articles;
+    }
+
+    private static List<String> positions(List<TimelineArticle> articles) {
+        List<String> positions = new ArrayList<>();
+        for (TimelineArticle article : articles) {
+            positions.add(article.getFeedId() + "/" + article.getId() + "@" + article.getPublishedAt());
+        }
+
+        return positions;
+    }
+
+    private static class BackwardsClock extends Clock {
+        private final AtomicLong millis;
+
+        BackwardsClock(long millis) {
+            this.millis = new AtomicLong(millis);
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return Instant.ofEpochMilli(millis.getAndDecrement());
+        }
+    }
+
+    private static StreamingOutput stream(Response response) {
+        return (StreamingOutput) response.getEntity();
+    }
+
+    private TimelineArticle publishAt(long feedId, long millis) throws Exception {
+        feedResource.setClock(Clock.fixed(Instant.ofEpochMilli(millis), ZoneOffset.UTC));
+        return new TimelineArticle(feedId, feedResource.publishArticle(feedId, "at " + millis));
+    }
+
     @Test(expected = IndexOutOfBoundsException.class)
     public void testConsumeFeedsIndexOutOfLowerBound() throws Exception {
         userResource.consumeFeeds(10005l, ImmutableMap.of(10001l, 9999l));
@@ -286,21 +685,88 @@ public class UserResourceTest {
     // Same shitty solution to test atomicity, an a better test suite would
     // be continuously fuzz testing.
 
+    // Every subscription change of one user racing, none of them lost.
     @Test
-    public void testSubscribeIsSynchronized() throws Exception {
-        for (Method method : UserResource.class.getMethods()) {
-            if (method.getName() == "subscribe") {
-                assertThat(Modifier.isSynchronized(method.getModifiers())).isTrue();
+    public void testConcurrentSubscriptions() throws Exception {
+        List<Long> feeds = new ArrayList<>();
+        for (int i = 0; i < 64; i++) {
+            feeds.add(feedResource.creatFeed().getId());
+        }
+        long userId = userResource.createUser().getId();
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            race(executor, feeds, feedId -> userResource.subscribe(userId, feedId));
+            assertThat(userResource.getUser(userId).getFeeds()).containsOnlyKeys(feeds.toArray(new Long[0]));
+
+            race(executor, feeds.subList(0, 32), feedId -> userResource.unsubscribe(userId, feedId));
+        } finally {
+            executor.shutdown();
+        }
+
+        assertThat(userResource.getUser(userId).getFeeds()).containsOnlyKeys(feeds.subList(32, 64).toArray(new Long[0]));
+        for (int i = 0; i < feeds.size(); i++) {
+            long feedId = feeds.get(i);
+            assertThat(db.get(Keys.subscriber(feedId, userId)) != null).isEqualTo(i >= 32);
+            assertThat(feedResource.subscriberCount(feedId)).isEqualTo(i >= 32 ? 1 : 0);
+        }
+    }
+
+    // Runs change on every feed at once, twice over.
+    private void race(ExecutorService executor, List<Long> feeds, Change change) throws Exception {
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> done = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            for (long feedId : feeds) {
+                done.add(executor.submit(() -> {
+                    start.await();
+                    change.apply(feedId);
+                    return null;
+                }));
             }
         }
+
+        start.countDown();
+        for (Future<?> future : done) {
+            future.get(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @FunctionalInterface
+    private interface Change {
+        void apply(long feedId) throws Exception;
     }
 
     @Test
-    public void testUnsubscribeIsSynchronized() throws Exception {
-        for (Method method : UserResource.class.getMethods()) {
-            if (method.getName() == "unsubscribe") {
-                assertThat(Modifier.isSynchronized(method.getModifiers())).isTrue();
-            }
+    public void sharded() throws Exception {
+        FeedsDB.FeedsDBFactory factory = new FeedsDB.FeedsDBFactory();
+        factory.setPath(folder.newFolder().getPath());
+        factory.setShardPaths(Arrays.asList(folder.newFolder().getPath(), folder.newFolder().getPath()));
+        FeedsDB shardedDB = factory.build();
+        FeedResource shardedFeeds = new FeedResource(shardedDB, mapper);
+        UserResource shardedUsers = new UserResource(shardedDB, shardedFeeds, mapper);
+
+        PopulateCommand.populateFeeds(shardedFeeds);
+        PopulateCommand.populateUsers(shardedUsers);
+        shardedUsers.unsubscribe(10003L, 10001L);
+        userResource.unsubscribe(10003L, 10001L);
+
+        // Reads the same as the unsharded database with the same writes.
+        assertThat(shardedFeeds.listFeeds()).extracting(Feed::getId)
+            .containsExactlyElementsOf(feedResource.listFeeds().stream().map(Feed::getId)::iterator);
+        assertThat(shardedUsers.listUsers()).hasSize(10);
+        for (User user : userResource.listUsers()) {
+            assertThat(shardedUsers.getUser(user.getId()).getFeeds()).isEqualTo(user.getFeeds());
         }
+        for (long feedId = 10000; feedId < 10010; feedId++) {
+            assertThat(shardedFeeds.showFeed(feedId, Optional.empty()).getArticles())
+                .isEqualTo(feedResource.showFeed(feedId, Optional.empty()).getArticles());
+            assertThat(shardedFeeds.listSubscribers(feedId, Optional.empty(), Optional.empty()).getUsers())
+                .isEqualTo(feedResource.listSubscribers(feedId, Optional.empty(), Optional.empty()).getUsers());
+        }
+        assertThat(shardedDB.counters()).isEqualTo(db.counters());
+
+        assertThat(shardedDB.openIterators()).isZero();
+        shardedDB.stop();
     }
-}
\ No newline at end of file
+}